@@ -0,0 +1,465 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.benchmarks.rendering;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.MatchResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.apache.commons.io.IOUtils;
+import org.jasig.portal.IUserPreferencesManager;
+import org.jasig.portal.character.stream.BasePlaceholderEventSource;
+import org.jasig.portal.character.stream.CharacterEventSource;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.ChunkPointPlaceholderEventSource;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.character.stream.events.PortletHeaderPlaceholderEventImpl;
+import org.jasig.portal.character.stream.events.PortletHelpPlaceholderEventImpl;
+import org.jasig.portal.character.stream.events.PortletTitlePlaceholderEventImpl;
+import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.rendering.PipelineEventReader;
+import org.jasig.portal.rendering.PipelineEventReaderImpl;
+import org.jasig.portal.rendering.StAXPipelineComponent;
+import org.jasig.portal.rendering.StAXSerializingComponent;
+import org.jasig.portal.rendering.UserLayoutStoreComponent;
+import org.jasig.portal.rendering.cache.CachingCharacterPipelineComponent;
+import org.jasig.portal.rendering.cache.CachingStAXPipelineComponent;
+import org.jasig.portal.rendering.xslt.TransformerSource;
+import org.jasig.portal.rendering.xslt.XSLTComponent;
+import org.jasig.portal.user.IUserInstance;
+import org.jasig.portal.user.IUserInstanceManager;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.jasig.portal.xml.XmlUtilitiesImpl;
+import org.jasig.portal.xml.stream.XMLEventBufferReader;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.w3c.dom.Document;
+
+/**
+ * Per-stage throughput of the rendering pipeline defined in renderingPipelineContext.xml, run against the fixture
+ * layouts in this package.
+ * <p/>
+ * Each stage is measured in isolation by feeding it the buffered output of the previous stage, so a regression
+ * shows up against the stage that caused it:
+ * <ul>
+ *  <li>{@link UserLayoutStoreComponent} exposing the layout DOM as StAX events</li>
+ *  <li>the structure {@link XSLTComponent} using the columns structure stylesheet</li>
+ *  <li>the theme {@link XSLTComponent} using a fixture theme shaped like respondr</li>
+ *  <li>{@link StAXSerializingComponent} with and without chunking, the difference is the cost of the
+ *  ChunkingEventReader</li>
+ *  <li>the structure and theme caching components on the cache hit and miss paths</li>
+ * </ul>
+ * Run with the GC profiler to get the allocation rate per stage, {@link #main(String[])} does this, or pass
+ * <code>-prof gc</code> to benchmarks.jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RenderingPipelineBenchmark {
+    private static final String FIXTURE_PATH = "org/jasig/portal/benchmarks/rendering/";
+    private static final String STRUCTURE_STYLESHEET = "layout/structure/columns/columns.xsl";
+    private static final String THEME_STYLESHEET = FIXTURE_PATH + "theme.xsl";
+    
+    @Param({"guestLayout", "adminLayout"})
+    public String layout;
+    
+    private final HttpServletRequest request = new MockHttpServletRequest();
+    private final HttpServletResponse response = new MockHttpServletResponse();
+    
+    private CacheManager cacheManager;
+    private Cache structureCache;
+    private Cache themeCache;
+    
+    private UserLayoutStoreComponent userLayoutStoreComponent;
+    private XSLTComponent structureTransformComponent;
+    private XSLTComponent themeTransformComponent;
+    private StAXSerializingComponent staxSerializingComponent;
+    private StAXSerializingComponent unchunkedSerializingComponent;
+    private CachingStAXPipelineComponent structureCachingComponent;
+    private CachingCharacterPipelineComponent themeCachingComponent;
+    
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+            .include(RenderingPipelineBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        
+        new Runner(options).run();
+    }
+    
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final XmlUtilitiesImpl xmlUtilities = new XmlUtilitiesImpl();
+        final DefaultResourceLoader resourceLoader = new DefaultResourceLoader();
+        
+        final ResourcesElementsProvider resourcesElementsProvider = mock(ResourcesElementsProvider.class);
+        when(resourcesElementsProvider.getDefaultIncludedType()).thenReturn(Included.AGGREGATED);
+        
+        this.cacheManager = CacheManager.newInstance(new Configuration().name("uportal-benchmarks"));
+        this.structureCache = new Cache(new CacheConfiguration("structureCache", 100).eternal(true));
+        this.themeCache = new Cache(new CacheConfiguration("themeCache", 100).eternal(true));
+        this.cacheManager.addCache(this.structureCache);
+        this.cacheManager.addCache(this.themeCache);
+        
+        //Layout store, backed by a DOM just like DistributedLayoutManager.getUserLayoutReader()
+        this.userLayoutStoreComponent = new UserLayoutStoreComponent();
+        this.userLayoutStoreComponent.setUserInstanceManager(this.createUserInstanceManager(xmlUtilities.getXmlInputFactory()));
+        
+        //Structure and theme transforms, each over the buffered output of the previous stage
+        final BufferedStAXComponent layoutEvents = BufferedStAXComponent.buffer(this.userLayoutStoreComponent, this.request, this.response);
+        this.structureTransformComponent = this.createXsltComponent("structureTransformComponent", layoutEvents, STRUCTURE_STYLESHEET, resourceLoader);
+
+        final BufferedStAXComponent structureEvents = BufferedStAXComponent.buffer(this.structureTransformComponent, this.request, this.response);
+        this.themeTransformComponent = this.createXsltComponent("themeTransformComponent", structureEvents, THEME_STYLESHEET, resourceLoader);
+        
+        //Serialization, with and without chunking
+        final BufferedStAXComponent themeEvents = BufferedStAXComponent.buffer(this.themeTransformComponent, this.request, this.response);
+        this.staxSerializingComponent = this.createSerializingComponent(themeEvents, xmlUtilities, true);
+        this.unchunkedSerializingComponent = this.createSerializingComponent(themeEvents, xmlUtilities, false);
+        
+        //Caches, wrapping the live pipeline so a miss pays for everything upstream of the cache
+        final XSLTComponent liveStructureTransform = this.createXsltComponent("liveStructureTransformComponent", this.userLayoutStoreComponent, STRUCTURE_STYLESHEET, resourceLoader);
+        this.structureCachingComponent = new CachingStAXPipelineComponent();
+        this.structureCachingComponent.setBeanName("structureCachingComponent");
+        this.structureCachingComponent.setCache(this.structureCache);
+        this.structureCachingComponent.setResourcesElementsProvider(resourcesElementsProvider);
+        this.structureCachingComponent.setWrappedComponent(liveStructureTransform);
+        
+        final XSLTComponent liveThemeTransform = this.createXsltComponent("liveThemeTransformComponent", this.structureCachingComponent, THEME_STYLESHEET, resourceLoader);
+        this.themeCachingComponent = new CachingCharacterPipelineComponent();
+        this.themeCachingComponent.setBeanName("themeCachingComponent");
+        this.themeCachingComponent.setCache(this.themeCache);
+        this.themeCachingComponent.setResourcesElementsProvider(resourcesElementsProvider);
+        this.themeCachingComponent.setWrappedComponent(this.createSerializingComponent(liveThemeTransform, xmlUtilities, true));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+    
+    @Benchmark
+    public void userLayoutStore(Blackhole blackhole) {
+        drain(this.userLayoutStoreComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void structureTransform(Blackhole blackhole) {
+        drain(this.structureTransformComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void themeTransform(Blackhole blackhole) {
+        drain(this.themeTransformComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void staxSerializing(Blackhole blackhole) {
+        drain(this.staxSerializingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void staxSerializingUnchunked(Blackhole blackhole) {
+        drain(this.unchunkedSerializingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void structureCacheHit(Blackhole blackhole) {
+        drain(this.structureCachingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void structureCacheMiss(Blackhole blackhole) {
+        this.structureCache.removeAll();
+        drain(this.structureCachingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void themeCacheHit(Blackhole blackhole) {
+        drain(this.themeCachingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    @Benchmark
+    public void themeCacheMiss(Blackhole blackhole) {
+        //The structure cache stays warm so this measures the theme transform, serialization and buffering
+        this.themeCache.removeAll();
+        drain(this.themeCachingComponent.getEventReader(this.request, this.response), blackhole);
+    }
+    
+    private static <E> void drain(PipelineEventReader<?, E> eventReader, Blackhole blackhole) {
+        for (final E event : eventReader) {
+            blackhole.consume(event);
+        }
+    }
+    
+    /**
+     * Mocks the user instance chain down to an {@link IUserLayoutManager} that creates a reader over the fixture
+     * layout DOM on every call, the same way DistributedLayoutManager does.
+     */
+    private IUserInstanceManager createUserInstanceManager(final XMLInputFactory xmlInputFactory) throws Exception {
+        final Document layoutDocument = this.parseLayout();
+        
+        final IUserLayoutManager userLayoutManager = mock(IUserLayoutManager.class);
+        when(userLayoutManager.getCacheKey()).thenReturn(this.layout);
+        when(userLayoutManager.getUserLayoutReader()).thenAnswer(new Answer<XMLEventReader>() {
+            @Override
+            public XMLEventReader answer(InvocationOnMock invocation) throws Throwable {
+                return xmlInputFactory.createXMLEventReader(new DOMSource(layoutDocument));
+            }
+        });
+        
+        final IUserPreferencesManager preferencesManager = mock(IUserPreferencesManager.class);
+        when(preferencesManager.getUserLayoutManager()).thenReturn(userLayoutManager);
+        
+        final IUserInstance userInstance = mock(IUserInstance.class);
+        when(userInstance.getPreferencesManager()).thenReturn(preferencesManager);
+        
+        final IUserInstanceManager userInstanceManager = mock(IUserInstanceManager.class);
+        when(userInstanceManager.getUserInstance(any(HttpServletRequest.class))).thenReturn(userInstance);
+        return userInstanceManager;
+    }
+    
+    private Document parseLayout() throws Exception {
+        //Not namespace aware, like the layout fixtures used by RenderingPipelineIntegrationTest
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        
+        final InputStream layoutStream = new ClassPathResource(FIXTURE_PATH + this.layout + ".xml").getInputStream();
+        try {
+            return documentBuilderFactory.newDocumentBuilder().parse(layoutStream);
+        }
+        finally {
+            IOUtils.closeQuietly(layoutStream);
+        }
+    }
+    
+    private XSLTComponent createXsltComponent(String name, StAXPipelineComponent wrappedComponent, String stylesheet, DefaultResourceLoader resourceLoader) throws Exception {
+        final XSLTComponent xsltComponent = new XSLTComponent();
+        xsltComponent.setBeanName(name);
+        xsltComponent.setResourceLoader(resourceLoader);
+        xsltComponent.setTransformerSource(new TemplatesTransformerSource(new ClassPathResource(stylesheet)));
+        xsltComponent.setWrappedComponent(wrappedComponent);
+        return xsltComponent;
+    }
+    
+    private StAXSerializingComponent createSerializingComponent(StAXPipelineComponent wrappedComponent, XmlUtilitiesImpl xmlUtilities, boolean chunking) {
+        final Map<String, CharacterEventSource> chunkingElements = new LinkedHashMap<String, CharacterEventSource>();
+        final Map<String, CharacterEventSource> chunkingPatterns = new LinkedHashMap<String, CharacterEventSource>();
+        if (chunking) {
+            chunkingElements.put(IUserLayoutManager.CHANNEL, new PortletPlaceholderSource(PlaceholderType.CONTENT));
+            chunkingElements.put(IUserLayoutManager.CHANNEL_HEADER, new PortletPlaceholderSource(PlaceholderType.HEADER));
+            chunkingElements.put(ChunkPointPlaceholderEventSource.CHUNK_POINT, new ChunkPointPlaceholderEventSource());
+            chunkingPatterns.put("\\{up-portlet-title\\(([^\\)]+)\\)\\}", new PortletPlaceholderSource(PlaceholderType.TITLE));
+            chunkingPatterns.put("\\{up-portlet-help\\(([^\\)]+)\\)\\}", new PortletPlaceholderSource(PlaceholderType.HELP));
+        }
+        
+        final StAXSerializingComponent serializingComponent = new StAXSerializingComponent();
+        serializingComponent.setXmlUtilities(xmlUtilities);
+        serializingComponent.setWrappedComponent(wrappedComponent);
+        serializingComponent.setChunkingElements(chunkingElements);
+        serializingComponent.setChunkingPatterns(chunkingPatterns);
+        return serializingComponent;
+    }
+    
+    /**
+     * Replays a buffered copy of another component's events, used to isolate a stage from the ones before it
+     */
+    static final class BufferedStAXComponent implements StAXPipelineComponent {
+        private final CacheKey cacheKey;
+        private final List<XMLEvent> events;
+        private final Map<String, String> outputProperties;
+        
+        public static BufferedStAXComponent buffer(StAXPipelineComponent component, HttpServletRequest request, HttpServletResponse response) {
+            final PipelineEventReader<XMLEventReader, XMLEvent> eventReader = component.getEventReader(request, response);
+            
+            final List<XMLEvent> events = new ArrayList<XMLEvent>();
+            for (final XMLEvent event : eventReader) {
+                events.add(event);
+            }
+            
+            return new BufferedStAXComponent(component.getCacheKey(request, response), events, eventReader.getOutputProperties());
+        }
+        
+        private BufferedStAXComponent(CacheKey cacheKey, List<XMLEvent> events, Map<String, String> outputProperties) {
+            this.cacheKey = cacheKey;
+            this.events = events;
+            this.outputProperties = new LinkedHashMap<String, String>(outputProperties);
+        }
+
+        @Override
+        public CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
+            return this.cacheKey;
+        }
+
+        @Override
+        public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
+            final XMLEventReader eventReader = new XMLEventBufferReader(this.events.listIterator());
+            return new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(eventReader, new LinkedHashMap<String, String>(this.outputProperties));
+        }
+    }
+    
+    /**
+     * Compiles the stylesheet once and creates a new {@link Transformer} per request, as the cached
+     * {@link Templates} in XmlUtilitiesImpl do in the portal
+     */
+    static final class TemplatesTransformerSource implements TransformerSource {
+        private final Templates templates;
+        private final CacheKey cacheKey;
+        
+        public TemplatesTransformerSource(Resource stylesheet) throws Exception {
+            final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            this.templates = transformerFactory.newTemplates(new StreamSource(stylesheet.getURL().toExternalForm()));
+            this.cacheKey = CacheKey.build(TemplatesTransformerSource.class.getName(), stylesheet.getDescription());
+        }
+
+        @Override
+        public Transformer getTransformer(HttpServletRequest request, HttpServletResponse response) {
+            try {
+                return this.templates.newTransformer();
+            }
+            catch (TransformerConfigurationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
+            return this.cacheKey;
+        }
+    }
+    
+    enum PlaceholderType {
+        CONTENT, HEADER, TITLE, HELP;
+    }
+    
+    /**
+     * Generates the same placeholder events as the portlet placeholder event sources without requiring a portlet
+     * window registry, the window id is taken directly from the layout node id.
+     */
+    static final class PortletPlaceholderSource extends BasePlaceholderEventSource {
+        private static final QName ID_ATTRIBUTE = new QName("ID");
+        
+        private final PlaceholderType type;
+        
+        public PortletPlaceholderSource(PlaceholderType type) {
+            this.type = type;
+        }
+
+        @Override
+        protected void generateCharacterEvents(HttpServletRequest servletRequest, StartElement event, Collection<CharacterEvent> eventBuffer) {
+            final String id = event.getAttributeByName(ID_ATTRIBUTE).getValue();
+            eventBuffer.add(this.createEvent(new LayoutNodePortletWindowId(id)));
+        }
+
+        @Override
+        public void generateCharacterEvents(HttpServletRequest servletRequest, MatchResult matchResult, Collection<CharacterEvent> eventBuffer) {
+            eventBuffer.add(this.createEvent(new LayoutNodePortletWindowId(matchResult.group(1))));
+        }
+        
+        private CharacterEvent createEvent(IPortletWindowId portletWindowId) {
+            switch (this.type) {
+                case HEADER: {
+                    return new PortletHeaderPlaceholderEventImpl(portletWindowId);
+                }
+                case TITLE: {
+                    return new PortletTitlePlaceholderEventImpl(portletWindowId);
+                }
+                case HELP: {
+                    return new PortletHelpPlaceholderEventImpl(portletWindowId);
+                }
+                default: {
+                    return new PortletContentPlaceholderEventImpl(portletWindowId);
+                }
+            }
+        }
+    }
+    
+    static final class LayoutNodePortletWindowId implements IPortletWindowId {
+        private static final long serialVersionUID = 1L;
+        
+        private final String id;
+        
+        public LayoutNodePortletWindowId(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getStringId() {
+            return this.id;
+        }
+    }
+}
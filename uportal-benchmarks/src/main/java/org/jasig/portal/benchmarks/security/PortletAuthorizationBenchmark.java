@@ -0,0 +1,400 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.benchmarks.security;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.jasig.portal.groups.GroupsException;
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.IGroupMember;
+import org.jasig.portal.permission.IPermissionActivity;
+import org.jasig.portal.permission.IPermissionOwner;
+import org.jasig.portal.permission.dao.IPermissionOwnerDao;
+import org.jasig.portal.permission.target.IPermissionTarget;
+import org.jasig.portal.permission.target.IPermissionTarget.TargetType;
+import org.jasig.portal.permission.target.IPermissionTargetProvider;
+import org.jasig.portal.permission.target.IPermissionTargetProviderRegistry;
+import org.jasig.portal.permission.target.PermissionTargetImpl;
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.portlet.om.IPortletDefinitionId;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionSet;
+import org.jasig.portal.security.IPermissionStore;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.AnyUnblockedGrantPermissionPolicy;
+import org.jasig.portal.security.provider.AuthorizationImpl;
+import org.jasig.portal.security.provider.PermissionImpl;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Compares checking BROWSE on a catalog of portlets one portlet at a time through
+ * {@link AuthorizationImpl#canPrincipalBrowse(IAuthorizationPrincipal, IPortletDefinition)} with checking the whole
+ * catalog through {@link AuthorizationImpl#filterBrowsablePortlets(IAuthorizationPrincipal, java.util.Collection)},
+ * both evaluated by the {@link AnyUnblockedGrantPermissionPolicy}.
+ * <p/>
+ * The permissions are read from a stubbed {@link IPermissionStore} and the groups from a fixed group graph, everything
+ * else is the real {@link AuthorizationImpl}: the effective permissions it builds, the groups containing each portlet
+ * and the blocking of grants by denies. The student belongs to two groups under a common parent, the portlets are
+ * spread over {@value #CATEGORY_COUNT} categories. Grants on the categories and on single portlets and denies on the
+ * student and on one of its groups leave a little under half of the catalog browsable.
+ * <p/>
+ * The cached answers are cleared before each invocation so every portlet is evaluated, as after a permission change
+ * or for a user's first request. With <code>coldCaches</code> the permissions, effective permissions and containing
+ * groups of the portlets are cleared as well so the permission store and group lookups are part of the measurement.
+ * Divide the reported time by <code>catalogSize</code> for the cost per portlet; the bulk check pays the super-user
+ * and ALL_PORTLETS checks and the effective permissions lookups once per catalog rather than once per portlet so its
+ * cost per portlet falls as the catalog grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PortletAuthorizationBenchmark {
+    private static final String BROWSE_TARGET_PROVIDER = "portlets";
+    private static final int CATEGORY_COUNT = 20;
+
+    private static final String STUDENT = "student";
+    private static final String STUDENTS_GROUP = "local.students";
+    private static final String CAMPUS_GROUP = "pags.campus";
+    private static final String EVERYONE_GROUP = "local.everyone";
+    private static final String CATEGORIES_GROUP = "local.categories";
+
+    @Param({"10", "100", "1000", "5000"})
+    public int catalogSize;
+
+    @Param({"false", "true"})
+    public boolean coldCaches;
+
+    private CacheManager cacheManager;
+    private Cache doesPrincipalHavePermissionCache;
+    private Cache effectivePermissionsCache;
+    private Cache entityParentsCache;
+    private StubbedGroupsAuthorizationService authorizationService;
+    private IAuthorizationPrincipal principal;
+    private List<IPortletDefinition> portlets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.cacheManager = CacheManager.newInstance(new Configuration().name("uportal-benchmarks-authorization"));
+        this.doesPrincipalHavePermissionCache = this.addCache("doesPrincipalHavePermissionCache", 20000);
+        this.effectivePermissionsCache = this.addCache("effectivePermissionsCache", 100);
+        this.entityParentsCache = this.addCache("entityParentsCache", 20000);
+        final Cache principalCache = this.addCache("principalCache", 100);
+
+        final IPermissionOwnerDao permissionOwnerDao = mock(IPermissionOwnerDao.class);
+        final IPermissionOwner subscribeOwner = mockOwner(permissionOwnerDao, IPermission.PORTAL_SUBSCRIBE);
+        final IPermissionOwner systemOwner = mockOwner(permissionOwnerDao, IPermission.PORTAL_SYSTEM);
+        mockActivity(permissionOwnerDao, subscribeOwner, IPermission.PORTLET_BROWSE_ACTIVITY);
+        mockActivity(permissionOwnerDao, systemOwner, IPermission.ALL_PERMISSIONS_ACTIVITY);
+
+        final IPermissionTargetProvider targetProvider = mock(IPermissionTargetProvider.class);
+        when(targetProvider.getTarget(anyString())).thenAnswer(new Answer<IPermissionTarget>() {
+            @Override
+            public IPermissionTarget answer(InvocationOnMock invocation) throws Throwable {
+                final String key = (String) invocation.getArguments()[0];
+                return new PermissionTargetImpl(key, key, TargetType.PORTLET);
+            }
+        });
+        final IPermissionTargetProviderRegistry targetProviderRegistry = mock(IPermissionTargetProviderRegistry.class);
+        when(targetProviderRegistry.getTargetProvider(BROWSE_TARGET_PROVIDER)).thenReturn(targetProvider);
+
+        final AnyUnblockedGrantPermissionPolicy policy = new AnyUnblockedGrantPermissionPolicy();
+        ReflectionTestUtils.setField(policy, "permissionOwnerDao", permissionOwnerDao);
+        ReflectionTestUtils.setField(policy, "targetProviderRegistry", targetProviderRegistry);
+
+        //student -- local.students -- local.everyone
+        //student -- pags.campus    -- local.everyone
+        final Map<String, IGroupMember> groupMembers = new HashMap<String, IGroupMember>();
+        final IGroupMember everyone = mockGroupMember(groupMembers, EVERYONE_GROUP, IEntityGroup.class);
+        mockGroupMember(groupMembers, STUDENTS_GROUP, IEntityGroup.class, everyone);
+        mockGroupMember(groupMembers, CAMPUS_GROUP, IEntityGroup.class, everyone);
+        mockGroupMember(groupMembers, STUDENT, IPerson.class, groupMembers.get(STUDENTS_GROUP), groupMembers.get(CAMPUS_GROUP));
+
+        final IGroupMember categories = mockGroupMember(groupMembers, CATEGORIES_GROUP, IEntityGroup.class);
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            mockGroupMember(groupMembers, categoryKey(i), IEntityGroup.class, categories);
+        }
+
+        final Map<String, List<IPermission>> permissions = new HashMap<String, List<IPermission>>();
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            if (i < 5) {
+                //Granted to everyone
+                addBrowsePermission(permissions, IEntityGroup.class, EVERYONE_GROUP, IPermission.PERMISSION_TYPE_GRANT, categoryKey(i));
+            }
+            else if (i < 10) {
+                //Granted to students, the last category is denied to the student
+                addBrowsePermission(permissions, IEntityGroup.class, STUDENTS_GROUP, IPermission.PERMISSION_TYPE_GRANT, categoryKey(i));
+                if (i == 9) {
+                    addBrowsePermission(permissions, IPerson.class, STUDENT, IPermission.PERMISSION_TYPE_DENY, categoryKey(i));
+                }
+            }
+        }
+
+        this.portlets = new ArrayList<IPortletDefinition>(catalogSize);
+        for (int i = 0; i < catalogSize; i++) {
+            final String portletDefinitionId = Integer.toString(i);
+            final IPortletDefinitionId id = mock(IPortletDefinitionId.class);
+            when(id.getStringId()).thenReturn(portletDefinitionId);
+            final IPortletDefinition portlet = mock(IPortletDefinition.class);
+            when(portlet.getPortletDefinitionId()).thenReturn(id);
+            this.portlets.add(portlet);
+
+            final IGroupMember category = groupMembers.get(categoryKey(i % CATEGORY_COUNT));
+            mockGroupMember(groupMembers, portletDefinitionId, IPortletDefinition.class, category);
+
+            //Every seventh portlet is granted to the campus directly, denied on the students path
+            if (i % 7 == 0) {
+                final String target = IPermission.PORTLET_PREFIX + portletDefinitionId;
+                addBrowsePermission(permissions, IEntityGroup.class, CAMPUS_GROUP, IPermission.PERMISSION_TYPE_GRANT, target);
+                addBrowsePermission(permissions, IEntityGroup.class, STUDENTS_GROUP, IPermission.PERMISSION_TYPE_DENY, target);
+            }
+        }
+
+        final IPermissionStore permissionStore = mock(IPermissionStore.class);
+        when(permissionStore.select(anyString(), anyString(), anyString(), anyString(), anyString())).thenAnswer(new Answer<IPermission[]>() {
+            @Override
+            public IPermission[] answer(InvocationOnMock invocation) throws Throwable {
+                final List<IPermission> principalPermissions = permissions.get(invocation.getArguments()[1]);
+                if (principalPermissions == null) {
+                    return new IPermission[0];
+                }
+                return principalPermissions.toArray(new IPermission[principalPermissions.size()]);
+            }
+        });
+
+        this.authorizationService = new StubbedGroupsAuthorizationService(groupMembers);
+        this.authorizationService.setDefaultPermissionPolicy(policy);
+        this.authorizationService.setPermissionStore(permissionStore);
+        this.authorizationService.setPermissionOwner(permissionOwnerDao);
+        this.authorizationService.setPrincipalCache(principalCache);
+        this.authorizationService.setEntityParentsCache(this.entityParentsCache);
+        this.authorizationService.setDoesPrincipalHavePermissionCache(this.doesPrincipalHavePermissionCache);
+        this.authorizationService.setEffectivePermissionsCache(this.effectivePermissionsCache);
+        ReflectionTestUtils.setField(this.authorizationService, "permissionOwnerDao", permissionOwnerDao);
+        ReflectionTestUtils.setField(this.authorizationService, "targetProviderRegistry", targetProviderRegistry);
+
+        this.principal = this.authorizationService.newPrincipal(STUDENT, IPerson.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+
+    /**
+     * Per invocation set up is only accurate for invocations well over a millisecond, true of the larger catalogs
+     */
+    @Setup(Level.Invocation)
+    public void clearPermissionCache() {
+        this.doesPrincipalHavePermissionCache.removeAll();
+        if (this.coldCaches) {
+            this.effectivePermissionsCache.removeAll();
+            this.entityParentsCache.removeAll();
+            this.authorizationService.clearPermissionSets();
+        }
+    }
+
+    @Benchmark
+    public void canPrincipalBrowse(Blackhole blackhole) {
+        for (final IPortletDefinition portlet : this.portlets) {
+            blackhole.consume(this.authorizationService.canPrincipalBrowse(this.principal, portlet));
+        }
+    }
+
+    @Benchmark
+    public void filterBrowsablePortlets(Blackhole blackhole) {
+        blackhole.consume(this.authorizationService.filterBrowsablePortlets(this.principal, this.portlets));
+    }
+
+    private Cache addCache(String name, int maxElementsInMemory) {
+        final Cache cache = new Cache(new CacheConfiguration(name, maxElementsInMemory).eternal(true));
+        this.cacheManager.addCache(cache);
+        return cache;
+    }
+
+    private static String categoryKey(int category) {
+        return "local.category." + category;
+    }
+
+    private static IPermissionOwner mockOwner(IPermissionOwnerDao permissionOwnerDao, String fname) {
+        final IPermissionOwner owner = mock(IPermissionOwner.class);
+        when(owner.getFname()).thenReturn(fname);
+        when(permissionOwnerDao.getPermissionOwner(fname)).thenReturn(owner);
+        return owner;
+    }
+
+    private static void mockActivity(IPermissionOwnerDao permissionOwnerDao, IPermissionOwner owner, String fname) {
+        final IPermissionActivity activity = mock(IPermissionActivity.class);
+        when(activity.getFname()).thenReturn(fname);
+        when(activity.getTargetProviderKey()).thenReturn(BROWSE_TARGET_PROVIDER);
+        when(permissionOwnerDao.getPermissionActivity(owner.getFname(), fname)).thenReturn(activity);
+    }
+
+    /**
+     * Mocks a group member contained directly by the parents, and indirectly by the groups containing them
+     */
+    private static IGroupMember mockGroupMember(Map<String, IGroupMember> groupMembers, String key, Class<?> type,
+            IGroupMember... parents) {
+        final List<IGroupMember> allParents = new ArrayList<IGroupMember>();
+        for (final IGroupMember parent : parents) {
+            allParents.add(parent);
+            try {
+                for (final Iterator<?> ancestors = parent.getAllContainingGroups(); ancestors.hasNext(); ) {
+                    final IGroupMember ancestor = (IGroupMember) ancestors.next();
+                    if (!allParents.contains(ancestor)) {
+                        allParents.add(ancestor);
+                    }
+                }
+            }
+            catch (GroupsException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        final IGroupMember groupMember = mock(type == IEntityGroup.class ? IEntityGroup.class : IGroupMember.class);
+        when(groupMember.getKey()).thenReturn(key);
+        when(groupMember.getType()).thenReturn((Class) type);
+        try {
+            when(groupMember.getContainingGroups()).thenAnswer(new IteratorAnswer(parents));
+            when(groupMember.getAllContainingGroups()).thenAnswer(new IteratorAnswer(allParents.toArray()));
+        }
+        catch (GroupsException e) {
+            throw new IllegalStateException(e);
+        }
+        groupMembers.put(principalString(type, key), groupMember);
+        return groupMember;
+    }
+
+    private static void addBrowsePermission(Map<String, List<IPermission>> permissions, Class<?> principalType,
+            String principalKey, String type, String target) {
+        final String principal = principalString(principalType, principalKey);
+
+        final PermissionImpl permission = new PermissionImpl(IPermission.PORTAL_SUBSCRIBE);
+        permission.setPrincipal(principal);
+        permission.setActivity(IPermission.PORTLET_BROWSE_ACTIVITY);
+        permission.setType(type);
+        permission.setTarget(target);
+
+        List<IPermission> principalPermissions = permissions.get(principal);
+        if (principalPermissions == null) {
+            principalPermissions = new ArrayList<IPermission>();
+            permissions.put(principal, principalPermissions);
+        }
+        principalPermissions.add(permission);
+    }
+
+    /**
+     * Stands in for the type id and key the portal identifies principals by, without the entity types table
+     */
+    static String principalString(Class<?> type, String key) {
+        return type.getSimpleName() + "." + key;
+    }
+
+    static final class IteratorAnswer implements Answer<Iterator<?>> {
+        private final List<Object> elements;
+
+        public IteratorAnswer(Object[] elements) {
+            this.elements = Arrays.asList(elements);
+        }
+
+        @Override
+        public Iterator<?> answer(InvocationOnMock invocation) throws Throwable {
+            return this.elements.iterator();
+        }
+    }
+
+    /**
+     * Finds group members in a fixed group graph and keeps the permission sets of principals in a map rather than
+     * going through the GroupService and EntityCachingService singletons.
+     */
+    static final class StubbedGroupsAuthorizationService extends AuthorizationImpl {
+        private final Map<String, IGroupMember> groupMembers;
+        private final ConcurrentMap<String, IPermissionSet> permissionSets = new ConcurrentHashMap<String, IPermissionSet>();
+
+        public StubbedGroupsAuthorizationService(Map<String, IGroupMember> groupMembers) {
+            this.groupMembers = Collections.unmodifiableMap(groupMembers);
+        }
+
+        public void clearPermissionSets() {
+            this.permissionSets.clear();
+        }
+
+        @Override
+        protected IGroupMember getGroupMember(String key, Class type) throws GroupsException {
+            return this.groupMembers.get(principalString(type, key));
+        }
+
+        @Override
+        protected IEntityGroup findGroup(String key) throws GroupsException {
+            return (IEntityGroup) this.groupMembers.get(principalString(IEntityGroup.class, key));
+        }
+
+        @Override
+        public String getPrincipalString(IAuthorizationPrincipal principal) {
+            return principalString(principal.getType(), principal.getKey());
+        }
+
+        @Override
+        protected void cacheAdd(IPermissionSet ps) {
+            this.permissionSets.put(ps.getEntityIdentifier().getKey(), ps);
+        }
+
+        @Override
+        protected IPermissionSet cacheGet(IAuthorizationPrincipal principal) {
+            return this.permissionSets.get(principal.getPrincipalString());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.benchmarks.utils.threading;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.portal.utils.threading.ConcurrentQualityOfServiceBlockingQueue;
+import org.jasig.portal.utils.threading.QualityOfServiceBlockingQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the single lock {@link QualityOfServiceBlockingQueue} with the lock-free
+ * {@link ConcurrentQualityOfServiceBlockingQueue} when many producer threads feed a single consumer, the shape of
+ * portlet workers being submitted by request threads. Each invocation has every producer put a batch of elements
+ * keyed by producer and the benchmark thread take all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QualityOfServiceBlockingQueueBenchmark {
+    private static final int KEYS = 16;
+    
+    @Param({"8", "32", "64"})
+    public int producers;
+    
+    @Param({"locking", "concurrent"})
+    public String queueType;
+    
+    @Param({"1024"})
+    public int capacity;
+    
+    @Param({"256"})
+    public int elementsPerProducer;
+    
+    private BlockingQueue<KeyedElement> queue;
+    private ThreadPoolExecutor producerPool;
+    private KeyedElement[] elements;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        if ("locking".equals(queueType)) {
+            this.queue = new LockingElementQueue(capacity);
+        }
+        else {
+            this.queue = new ConcurrentElementQueue(capacity);
+        }
+        
+        this.elements = new KeyedElement[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            this.elements[i] = new KeyedElement(i);
+        }
+        
+        //Producer threads are created once so thread start-up isn't part of the measurement
+        this.producerPool = new ThreadPoolExecutor(producers, producers, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        this.producerPool.prestartAllCoreThreads();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.producerPool.shutdownNow();
+    }
+    
+    @Benchmark
+    public void produceAndConsume(Blackhole blackhole) throws InterruptedException {
+        for (int p = 0; p < producers; p++) {
+            final KeyedElement element = this.elements[p % KEYS];
+            this.producerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < elementsPerProducer; i++) {
+                            queue.put(element);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        
+        final int total = producers * elementsPerProducer;
+        for (int i = 0; i < total; i++) {
+            blackhole.consume(this.queue.take());
+        }
+    }
+    
+    static final class KeyedElement {
+        private final Integer key;
+        
+        public KeyedElement(int key) {
+            this.key = key;
+        }
+    }
+    
+    static final class ConcurrentElementQueue extends ConcurrentQualityOfServiceBlockingQueue<Integer, KeyedElement> {
+        public ConcurrentElementQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected Integer getElementKey(KeyedElement e) {
+            return e.key;
+        }
+    }
+    
+    /**
+     * Round-robins over the keys the same way PortletWorkerExecutionQueue did on top of the locking queue
+     */
+    static final class LockingElementQueue extends QualityOfServiceBlockingQueue<Integer, KeyedElement> {
+        private Iterator<Integer> keyIterator;
+        
+        public LockingElementQueue(int capacity) {
+            super(capacity);
+            this.keyIterator = this.getKeySet().iterator();
+        }
+
+        @Override
+        protected Integer getElementKey(KeyedElement e) {
+            return e.key;
+        }
+
+        @Override
+        protected Integer getNextElementKey() {
+            boolean reset = false;
+            
+            Integer key;
+            do {
+                if (!this.keyIterator.hasNext()) {
+                    if (reset) {
+                        throw new IllegalStateException("No key could be found that had queued elements: " + this.toString());
+                    }
+                    
+                    reset = true;
+                    this.keyIterator = this.getKeySet().iterator();
+                }
+                
+                key = this.keyIterator.next();
+            } while (this.isKeyEmpty(key));
+            
+            return key;
+        }
+    }
+}
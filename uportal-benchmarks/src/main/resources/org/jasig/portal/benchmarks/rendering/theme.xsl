@@ -0,0 +1,97 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+
+    Licensed to Apereo under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Apereo licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License.  You may obtain a
+    copy of the License at the following location:
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+
+-->
+<!--
+ | Fixture theme used by the rendering pipeline benchmarks. It produces the same shape of output as the
+ | respondr theme (page chrome, tab navigation, columns of portlet chrome with channel and channel-header
+ | placeholders and portlet title tokens) without the Spring managed XSLT helpers the real theme depends on.
+ +-->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform" xmlns:dlm="http://www.uportal.org/layout/dlm"
+    exclude-result-prefixes="dlm">
+    <xsl:output method="xml" indent="no" media-type="text/html" omit-xml-declaration="yes" />
+
+    <xsl:template match="/">
+        <xsl:apply-templates select="layout|layout_fragment" />
+    </xsl:template>
+
+    <xsl:template match="layout|layout_fragment">
+        <html>
+            <head>
+                <title>uPortal</title>
+                <chunk-point/>
+                <xsl:copy-of select="header/channel-header" />
+            </head>
+            <body class="up">
+                <div id="portalPageHeader">
+                    <xsl:apply-templates select="header/channel" mode="chrome" />
+                </div>
+                <xsl:apply-templates select="navigation" />
+                <xsl:apply-templates select="regions/region" />
+                <div id="portalPageBody">
+                    <xsl:apply-templates select="content" />
+                </div>
+            </body>
+        </html>
+    </xsl:template>
+
+    <xsl:template match="navigation">
+        <ul id="portalNavigationList">
+            <xsl:for-each select="tab">
+                <li id="portalNavigation_{@ID}" class="portal-navigation">
+                    <a href="#" title="{@name}"><span><xsl:value-of select="@name" /></span></a>
+                    <ul class="portal-subnav-list">
+                        <xsl:for-each select="tabChannel">
+                            <li><a href="#"><xsl:value-of select="@title" /></a></li>
+                        </xsl:for-each>
+                    </ul>
+                </li>
+            </xsl:for-each>
+        </ul>
+    </xsl:template>
+
+    <xsl:template match="region">
+        <div id="region-{@name}" class="portal-region">
+            <xsl:apply-templates select="channel" mode="chrome" />
+        </div>
+    </xsl:template>
+
+    <xsl:template match="content">
+        <div class="portal-page-columns">
+            <xsl:for-each select="column|focused">
+                <div id="column_{@ID}" class="portal-page-column" style="width: {@width}">
+                    <xsl:apply-templates select=".//channel" mode="chrome" />
+                </div>
+            </xsl:for-each>
+        </div>
+    </xsl:template>
+
+    <xsl:template match="channel" mode="chrome">
+        <section id="portlet_{@ID}" class="up-portlet-wrapper {@fname}">
+            <div class="up-portlet-titlebar">
+                <h2><a name="{@ID}"></a>{up-portlet-title(<xsl:value-of select="@ID" />)}</h2>
+                <span class="up-portlet-help">{up-portlet-help(<xsl:value-of select="@ID" />)}</span>
+            </div>
+            <div class="up-portlet-content-wrapper">
+                <xsl:copy-of select="." />
+            </div>
+        </section>
+    </xsl:template>
+</xsl:stylesheet>
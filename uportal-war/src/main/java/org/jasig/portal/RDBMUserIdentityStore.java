@@ -47,6 +47,7 @@ import org.jasig.portal.portlet.dao.IPortletEntityDao;
 import org.jasig.portal.portlet.om.IPortletEntity;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.PersonFactory;
+import org.jasig.portal.security.provider.InMemoryPermissionStore;
 import org.jasig.portal.services.GroupService;
 import org.jasig.portal.spring.locator.CounterStoreLocator;
 import org.jasig.portal.utils.SerializableObject;
@@ -165,6 +166,8 @@ public class RDBMUserIdentityStore  implements IUserIdentityStore {
                 final int type = jdbcOperations.queryForObject("SELECT ENTITY_TYPE_ID FROM UP_ENTITY_TYPE WHERE ENTITY_TYPE_NAME = ?", Integer.class, IPerson.class.getName());
 
                 jdbcOperations.update("DELETE FROM UP_PERMISSION WHERE PRINCIPAL_KEY=? AND PRINCIPAL_TYPE=?", userName, type);
+                //Permissions are served from a snapshot, a new version makes every server reload it
+                InMemoryPermissionStore.incrementVersion(jdbcOperations);
 
 
                 final List<Integer> groupIds = jdbcOperations.queryForList(
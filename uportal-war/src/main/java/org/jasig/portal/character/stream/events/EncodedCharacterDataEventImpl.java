@@ -0,0 +1,107 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.character.stream.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.springframework.util.Assert;
+
+/**
+ * UTF-8 encoded character data. Only the encoded bytes are retained, {@link #getData()}
+ * decodes the data on each call and is intended for infrequent use.
+ */
+public final class EncodedCharacterDataEventImpl implements EncodedCharacterDataEvent {
+    private static final long serialVersionUID = 1L;
+    
+    public static final String CHARACTER_SET = "UTF-8";
+    private static final Charset CHARSET = Charset.forName(CHARACTER_SET);
+    
+    public static EncodedCharacterDataEvent create(String data) {
+        Assert.notNull(data);
+        return new EncodedCharacterDataEventImpl(data.getBytes(CHARSET));
+    }
+    
+    private final byte[] encodedData;
+    private int hash = 0;
+    
+    private EncodedCharacterDataEventImpl(byte[] encodedData) {
+        this.encodedData = encodedData;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterDataEvent#getData()
+     */
+    @Override
+    public String getData() {
+        return new String(this.encodedData, CHARSET);
+    }
+
+    @Override
+    public String getCharacterSet() {
+        return CHARACTER_SET;
+    }
+
+    @Override
+    public int getEncodedLength() {
+        return this.encodedData.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.encodedData);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterEvent#getEventType()
+     */
+    @Override
+    public CharacterEventTypes getEventType() {
+        return CharacterEventTypes.CHARACTER;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedCharacterDataEvent [data=" + this.getData() + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = Arrays.hashCode(this.encodedData);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        EncodedCharacterDataEventImpl other = (EncodedCharacterDataEventImpl) obj;
+        return Arrays.equals(this.encodedData, other.encodedData);
+    }
+}
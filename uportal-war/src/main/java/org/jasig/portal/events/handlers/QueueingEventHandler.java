@@ -20,29 +20,84 @@ package org.jasig.portal.events.handlers;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.jasig.portal.spring.context.FilteringApplicationListener;
+import org.jasig.portal.utils.threading.BoundedRingBuffer;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationEvent;
 
 /**
- * Queues PortalEvents in a local {@link ConcurrentLinkedQueue} and flushes the events to the configured
+ * Queues PortalEvents in a local {@link BoundedRingBuffer} and flushes the events to the configured
  * {@link BatchingEventHandler} when {@link #flush()} is called. This class must be used with some external
  * timer that will call {@link #flush()} at regular intervals
+ * <p>
+ * The queue is bounded, what happens to events published while it is full is determined by the
+ * {@link OverflowPolicy}. The default {@link OverflowPolicy#DROP_OLDEST} never holds up the
+ * publishing thread, {@link OverflowPolicy#BLOCK} waits at most {@link #setMaxBlockTime(long)} ms
+ * for space before giving up on the event. Every discarded event is counted and a warning is
+ * logged at most once per {@link #DROPPED_EVENT_WARNING_INTERVAL} ms.
+ * <p>
+ * If a group commit window is configured a flush is skipped while fewer than a full batch of events
+ * are queued and the window since the last flush has not yet passed, trading a small delay for
+ * fewer and larger writes.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public abstract class QueueingEventHandler<E extends ApplicationEvent> 
-        extends FilteringApplicationListener<E> implements DisposableBean {
+        extends FilteringApplicationListener<E> implements DisposableBean, QueueingEventHandlerMXBean {
     
-    private final Queue<E> eventQueue = new ConcurrentLinkedQueue<E>();
+    /**
+     * What to do with an event when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * The publishing thread waits up to the max block time for space in the queue, if there
+         * is still no space the new event is discarded
+         */
+        BLOCK,
+        /**
+         * The oldest queued event is discarded to make room for the new event
+         */
+        DROP_OLDEST,
+        /**
+         * Once the queue is filled past the sample threshold only one of every sampleRate
+         * events is queued, if the queue is full the new event is discarded
+         */
+        SAMPLE;
+    }
+    
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long DROPPED_EVENT_WARNING_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    
+    private volatile BoundedRingBuffer<E> eventQueue = new BoundedRingBuffer<E>(16384);
     private final Lock flushLock = new ReentrantLock();
     private int batchSize = 25;
+    private volatile long groupCommitWindow = 0;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile long maxBlockTime = 100;
+    private volatile double sampleThreshold = .75;
+    private volatile int sampleRate = 10;
+    
+    //Overflow statistics
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    private final AtomicLong blockedEventCount = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong lastDroppedEventWarning = new AtomicLong();
+    
+    //Flush statistics
+    private final AtomicLong flushedBatchCount = new AtomicLong();
+    private final AtomicLong flushedEventCount = new AtomicLong();
+    private final AtomicLong failedBatchCount = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private volatile long lastFlushLatency;
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+    private volatile long lastFlushTime = System.currentTimeMillis();
     
     //Used to hold events to flush, MUST only be read/written from within the flushLock 
     private List<E> eventBuffer = new ArrayList<E>(this.batchSize);
@@ -57,12 +112,136 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
         eventBuffer = new ArrayList<E>(this.batchSize);
     }
     
+    /**
+     * Maximum number of events that can be queued waiting to be flushed, rounded up to the next
+     * power of two, defaults to 16384. Must only be set during initialization.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.eventQueue = new BoundedRingBuffer<E>(queueCapacity);
+    }
+    
+    @Override
+    public int getQueueCapacity() {
+        return this.eventQueue.capacity();
+    }
+    
+    /**
+     * What to do with events when the queue is full, defaults to {@link OverflowPolicy#DROP_OLDEST}
+     */
+    @Override
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    @Override
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+    
+    /**
+     * Maximum time in ms a publishing thread waits for space in the queue when using
+     * {@link OverflowPolicy#BLOCK} before the event is discarded, defaults to 100
+     */
+    @Override
+    public void setMaxBlockTime(long maxBlockTime) {
+        if (maxBlockTime < 0) {
+            throw new IllegalArgumentException("maxBlockTime must not be negative: " + maxBlockTime);
+        }
+        this.maxBlockTime = maxBlockTime;
+    }
+    
+    @Override
+    public long getMaxBlockTime() {
+        return this.maxBlockTime;
+    }
+    
+    /**
+     * Fraction of the queue capacity above which events are sampled when using {@link OverflowPolicy#SAMPLE}, defaults to .75
+     */
+    public void setSampleThreshold(double sampleThreshold) {
+        this.sampleThreshold = sampleThreshold;
+    }
+    
+    /**
+     * One of every sampleRate events is queued while sampling with {@link OverflowPolicy#SAMPLE}, defaults to 10
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be at least 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+    
+    @Override
+    public long getDroppedEventCount() {
+        return this.droppedEventCount.get();
+    }
+    
+    @Override
+    public long getBlockedEventCount() {
+        return this.blockedEventCount.get();
+    }
+
+    @Override
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    
+    /**
+     * Time in ms to delay a flush while fewer than {@link #setBatchSize(int)} events are queued, defaults to 0 (no delay).
+     */
+    @Override
+    public void setGroupCommitWindow(long groupCommitWindow) {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+    
+    @Override
+    public long getGroupCommitWindow() {
+        return this.groupCommitWindow;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return this.eventQueue.size();
+    }
+
+    @Override
+    public long getFlushedBatchCount() {
+        return this.flushedBatchCount.get();
+    }
+
+    @Override
+    public long getFlushedEventCount() {
+        return this.flushedEventCount.get();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return this.failedBatchCount.get();
+    }
+
+    @Override
+    public long getLastFlushLatency() {
+        return this.lastFlushLatency;
+    }
+
+    @Override
+    public long getMaxFlushLatency() {
+        return this.maxFlushLatency.get();
+    }
+
+    @Override
+    public double getAverageFlushLatency() {
+        final long batches = this.flushedBatchCount.get() + this.failedBatchCount.get();
+        return batches == 0 ? 0 : (double) this.totalFlushLatency.get() / batches;
+    }
+    
     /* (non-Javadoc)
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     @Override
     public final void destroy() throws Exception {
-        this.flush();
+        this.flush(true);
     }
     
     /* (non-Javadoc)
@@ -70,7 +249,57 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
      */
     @Override
     protected final void onFilteredApplicationEvent(E event) {
-        this.eventQueue.offer(event);
+        final BoundedRingBuffer<E> eventQueue = this.eventQueue;
+        switch (this.overflowPolicy) {
+            case BLOCK: {
+                if (!eventQueue.offer(event)) {
+                    this.blockedEventCount.incrementAndGet();
+                    final long blockDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxBlockTime);
+                    do {
+                        if (Thread.currentThread().isInterrupted() || System.nanoTime() - blockDeadline >= 0) {
+                            this.eventDropped(event);
+                            return;
+                        }
+                        LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    } while (!eventQueue.offer(event));
+                }
+                break;
+            }
+            case DROP_OLDEST: {
+                while (!eventQueue.offer(event)) {
+                    final E droppedEvent = eventQueue.poll();
+                    if (droppedEvent != null) {
+                        this.eventDropped(droppedEvent);
+                    }
+                }
+                break;
+            }
+            case SAMPLE: {
+                if (eventQueue.size() >= eventQueue.capacity() * this.sampleThreshold 
+                        && this.sampleCounter.incrementAndGet() % this.sampleRate != 0) {
+                    this.eventDropped(event);
+                }
+                else if (!eventQueue.offer(event)) {
+                    this.eventDropped(event);
+                }
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Count an event discarded by the overflow policy, each is logged at debug and a warning with
+     * the total dropped so far is logged at most once per {@link #DROPPED_EVENT_WARNING_INTERVAL}
+     */
+    private void eventDropped(E event) {
+        final long droppedEventCount = this.droppedEventCount.incrementAndGet();
+        logger.debug("Event queue full, dropped event {}", event);
+        
+        final long now = System.currentTimeMillis();
+        final long lastWarning = this.lastDroppedEventWarning.get();
+        if (now - lastWarning >= DROPPED_EVENT_WARNING_INTERVAL && this.lastDroppedEventWarning.compareAndSet(lastWarning, now)) {
+            logger.warn("Event queue is full, {} events have been dropped by the {} overflow policy. Increase the queue capacity or check why events are not being flushed.", droppedEventCount, this.overflowPolicy);
+        }
     }
     
     /**
@@ -90,11 +319,26 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
      * @param force Forces flushing events to the {@link BatchingEventHandler} even if there are fewer than <code>flushCount</code> PortalEvents in the queue.
      */
     public final void flush() {
+        this.flush(false);
+    }
+    
+    /**
+     * @param ignoreGroupCommitWindow If true events are flushed even if the group commit window has not passed
+     */
+    protected final void flush(boolean ignoreGroupCommitWindow) {
         if (eventQueue.isEmpty()) {
             //No events to flush
             logger.trace("No events to flush, returning.");
             return;
         }
+        
+        //Wait for a full batch until the group commit window has passed
+        final long groupCommitWindow = this.groupCommitWindow;
+        if (!ignoreGroupCommitWindow && groupCommitWindow > 0 && eventQueue.size() < this.batchSize 
+                && System.currentTimeMillis() - this.lastFlushTime < groupCommitWindow) {
+            logger.trace("Less than a full batch queued and group commit window has not passed, returning.");
+            return;
+        }
 
         //Only one thread should be flushing at a time, try to get the flush lock and if it
         //is already held just return.
@@ -108,20 +352,29 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
                 eventBuffer.clear();
                 
                 //Pop events off the queue into the buffer
-                while (!this.eventQueue.isEmpty() && eventBuffer.size() < this.batchSize) {
-                    final E event = eventQueue.poll();
+                E event;
+                while (eventBuffer.size() < this.batchSize && (event = eventQueue.poll()) != null) {
                     eventBuffer.add(event);
                 }
+                if (eventBuffer.isEmpty()) {
+                    break;
+                }
 
                 if (this.logger.isDebugEnabled()) {
                     this.logger.debug("Flushing " + eventBuffer.size() + " events");
                 }
 
                 //Write events out to batching listener
+                final long flushStart = System.nanoTime();
                 try {
                     this.onApplicationEvents(eventBuffer);
+                    
+                    this.flushedBatchCount.incrementAndGet();
+                    this.flushedEventCount.addAndGet(eventBuffer.size());
                 }
                 catch (Throwable t) {
+                    this.failedBatchCount.incrementAndGet();
+
                     this.logger.error("An exception was thrown while trying to flush " + eventBuffer.size() + " events", t);
 
                     final StringBuilder failedEvents = new StringBuilder();
@@ -140,7 +393,12 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
 
                     this.logger.error(failedEvents.toString(), t);
                 }
+                finally {
+                    this.recordFlushLatency(flushStart);
+                }
             }
+            
+            this.lastFlushTime = System.currentTimeMillis();
 
         }
         finally {
@@ -150,4 +408,13 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
             this.flushLock.unlock();
         }
     }
+    
+    private void recordFlushLatency(long flushStart) {
+        final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - flushStart);
+        this.lastFlushLatency = latency;
+        this.totalFlushLatency.addAndGet(latency);
+        long maxFlushLatency;
+        while (latency > (maxFlushLatency = this.maxFlushLatency.get()) 
+                && !this.maxFlushLatency.compareAndSet(maxFlushLatency, latency));
+    }
 }
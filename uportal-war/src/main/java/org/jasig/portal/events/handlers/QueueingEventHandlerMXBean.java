@@ -0,0 +1,111 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.handlers;
+
+import org.jasig.portal.events.handlers.QueueingEventHandler.OverflowPolicy;
+
+/**
+ * Statistics and settings for a {@link QueueingEventHandler}
+ */
+public interface QueueingEventHandlerMXBean {
+    /**
+     * @return The number of events currently waiting to be flushed
+     */
+    int getQueueDepth();
+    
+    /**
+     * @return The maximum number of events that can be queued
+     */
+    int getQueueCapacity();
+    
+    /**
+     * @return What is done with new events when the queue is full
+     */
+    OverflowPolicy getOverflowPolicy();
+    
+    /**
+     * @param overflowPolicy What is done with new events when the queue is full
+     */
+    void setOverflowPolicy(OverflowPolicy overflowPolicy);
+    
+    /**
+     * @return Maximum time in ms a publishing thread waits for space in the queue before the event is discarded
+     */
+    long getMaxBlockTime();
+    
+    /**
+     * @param maxBlockTime Maximum time in ms a publishing thread waits for space in the queue before the event is discarded
+     */
+    void setMaxBlockTime(long maxBlockTime);
+    
+    /**
+     * @return Number of events discarded due to the queue being full since startup
+     */
+    long getDroppedEventCount();
+    
+    /**
+     * @return Number of events whose publishing thread had to wait for space in the queue since startup
+     */
+    long getBlockedEventCount();
+    
+    /**
+     * @return The maximum number of events flushed per batch
+     */
+    int getBatchSize();
+    
+    /**
+     * @return Time in ms that a flush is delayed waiting for a full batch of events
+     */
+    long getGroupCommitWindow();
+    
+    /**
+     * @param groupCommitWindow Time in ms that a flush is delayed waiting for a full batch of events
+     */
+    void setGroupCommitWindow(long groupCommitWindow);
+    
+    /**
+     * @return Number of batches flushed since startup
+     */
+    long getFlushedBatchCount();
+    
+    /**
+     * @return Number of events flushed since startup
+     */
+    long getFlushedEventCount();
+    
+    /**
+     * @return Number of batches that failed to flush since startup
+     */
+    long getFailedBatchCount();
+    
+    /**
+     * @return Duration in ms of the most recent batch flush
+     */
+    long getLastFlushLatency();
+    
+    /**
+     * @return Longest duration in ms of a batch flush since startup
+     */
+    long getMaxFlushLatency();
+    
+    /**
+     * @return Average duration in ms of a batch flush since startup
+     */
+    double getAverageFlushLatency();
+}
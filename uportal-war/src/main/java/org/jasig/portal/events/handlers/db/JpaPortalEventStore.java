@@ -19,7 +19,18 @@
 package org.jasig.portal.events.handlers.db;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
@@ -32,11 +43,19 @@ import org.hibernate.FlushMode;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
 import org.jasig.portal.concurrency.FunctionWithoutResult;
 import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.jpa.BaseRawEventsJpaDao;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.stereotype.Repository;
@@ -44,12 +63,27 @@ import org.springframework.stereotype.Repository;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Function;
 
 /**
  * Stores portal events using JPA/Hibenate no internal batch segmentation is done to the passed list
  * of {@link PortalEvent}s. If a {@link PortalEvent} is not mapped as a persistent entity a message is logged
  * at the WARN level and the event is ignored.
+ * <p>
+ * If JDBC batch inserts are enabled {@link #storePortalEvents(Iterable)} bypasses the JPA persistence
+ * context and writes the events using a single batched insert statement. Identifiers are still allocated
+ * from the UP_RAW_EVENTS_GEN generator and column values are bound using the Hibernate mapping types so
+ * rows are identical to those written via JPA.
+ * <p>
+ * If binary event data is enabled new events are serialized using the Smile binary JSON format and stored
+ * in the EVENT_DATA_BINARY column. Events are always read back from whichever column is populated so
+ * existing JSON rows remain readable after the format is switched.
+ * <p>
+ * If more than one aggregation decode thread is configured {@link #aggregatePortalEvents(DateTime, DateTime, int, Function)}
+ * loads events in chunks of the aggregation flush period, splits each chunk into contiguous time slices that are
+ * deserialized in parallel on the event aggregation thread pool and then hands the events to the handler in
+ * timestamp order on the calling thread. All persistence work stays on the calling thread.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -58,10 +92,17 @@ import com.google.common.base.Function;
 public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalEventDao {
 
     private ObjectMapper mapper;
+    private ObjectMapper binaryMapper;
+    private boolean binaryEventData = false;
+    private volatile Boolean binaryEventDataSchemaReady;
     private String deleteQuery;
     private String selectQuery;
     private String selectUnaggregatedQuery;
     private int flushPeriod = 1000;
+    private boolean jdbcBatchInsert = false;
+    private int aggregationDecodeThreads = 1;
+    private ExecutorService aggregationExecutor;
+    private volatile String batchInsertSql;
     private CriteriaQuery<DateTime> findNewestPersistentPortalEventTimestampQuery;
     private CriteriaQuery<DateTime> findOldestPersistentPortalEventTimestampQuery;
     private ParameterExpression<DateTime> startTimeParameter;
@@ -81,8 +122,50 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
         this.flushPeriod = flushPeriod;
     }
     
+    /**
+     * If {@link #storePortalEvents(Iterable)} should write events with JDBC batch inserts instead of
+     * persisting each event through the EntityManager, defaults to false.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.JpaPortalEventStore.jdbcBatchInsert:false}")
+    public void setJdbcBatchInsert(boolean jdbcBatchInsert) {
+        this.jdbcBatchInsert = jdbcBatchInsert;
+    }
+    
+    /**
+     * Number of time slices each chunk of events is split into for parallel deserialization during
+     * {@link #aggregatePortalEvents(DateTime, DateTime, int, Function)}, defaults to 1 which decodes
+     * events on the calling thread.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.JpaPortalEventStore.aggregationDecodeThreads:1}")
+    public void setAggregationDecodeThreads(int aggregationDecodeThreads) {
+        this.aggregationDecodeThreads = aggregationDecodeThreads;
+    }
+    
+    /**
+     * Thread pool used to deserialize events in parallel during aggregation, if not set events are
+     * always decoded on the calling thread.
+     */
+    @Autowired(required=false)
+    public void setAggregationExecutor(@Qualifier("eventAggregationThreadPool") ExecutorService aggregationExecutor) {
+        this.aggregationExecutor = aggregationExecutor;
+    }
+    
+    /**
+     * If new events should be stored using the compact Smile binary encoding instead of JSON text, defaults
+     * to false. Reading events is unaffected by this setting. Events are still stored as JSON until the
+     * EVENT_DATA column of UP_RAW_EVENTS has been migrated to allow nulls.
+     */
+    @Value("${org.jasig.portal.events.handlers.db.JpaPortalEventStore.binaryEventData:false}")
+    public void setBinaryEventData(boolean binaryEventData) {
+        this.binaryEventData = binaryEventData;
+    }
+    
     @Override
     public void afterPropertiesSet() throws Exception {
+        //Smile mapper is configured the same way as the JSON mapper from ObjectMapperFactoryBean
+        this.binaryMapper = new ObjectMapper(new SmileFactory());
+        this.binaryMapper.findAndRegisterModules();
+        
         this.startTimeParameter = this.createParameterExpression(DateTime.class, "startTime");
         this.endTimeParameter = this.createParameterExpression(DateTime.class, "endTime");
         
@@ -160,6 +243,11 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
     @Override
     @RawEventsTransactional
     public void storePortalEvents(Iterable<PortalEvent> portalEvents) {
+        if (this.jdbcBatchInsert) {
+            this.batchInsertPortalEvents(portalEvents);
+            return;
+        }
+        
         for (final PortalEvent portalEvent : portalEvents) {
             try {
                 storePortalEvent(portalEvent);
@@ -170,6 +258,107 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
         }
     }
     
+    /**
+     * Writes the events using a single batched JDBC insert in the current transaction, events that
+     * can't be serialized are logged and skipped so they don't prevent the rest from being stored
+     */
+    protected void batchInsertPortalEvents(Iterable<PortalEvent> portalEvents) {
+        final List<PersistentPortalEvent> persistentPortalEvents = new ArrayList<PersistentPortalEvent>();
+        for (final PortalEvent portalEvent : portalEvents) {
+            try {
+                persistentPortalEvents.add(this.wrapPortalEvent(portalEvent));
+            }
+            catch (RuntimeException e) {
+                this.logger.warn(portalEvent.getClass().getName() + " could not be serialized and will not be stored. " + portalEvent, e);
+            }
+        }
+        if (persistentPortalEvents.isEmpty()) {
+            return;
+        }
+        
+        final Session session = this.getEntityManager().unwrap(Session.class);
+        final SessionImplementor sessionImplementor = (SessionImplementor) session;
+        final SessionFactoryImplementor sessionFactory = sessionImplementor.getFactory();
+        final String entityName = PersistentPortalEvent.class.getName();
+        final AbstractEntityPersister persister = (AbstractEntityPersister) sessionFactory.getEntityPersister(entityName);
+        final IdentifierGenerator identifierGenerator = sessionFactory.getIdentifierGenerator(entityName);
+        final String insertSql = this.getBatchInsertSql(persister);
+        
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                final Type identifierType = persister.getIdentifierType();
+                final Type[] propertyTypes = persister.getPropertyTypes();
+                final boolean[] propertyInsertability = persister.getPropertyInsertability();
+                
+                final PreparedStatement ps = connection.prepareStatement(insertSql);
+                try {
+                    for (final PersistentPortalEvent persistentPortalEvent : persistentPortalEvents) {
+                        final Serializable id = identifierGenerator.generate(sessionImplementor, persistentPortalEvent);
+                        identifierType.nullSafeSet(ps, id, 1, sessionImplementor);
+                        int index = 1 + identifierType.getColumnSpan(sessionFactory);
+                        
+                        final Object[] propertyValues = persister.getPropertyValues(persistentPortalEvent);
+                        for (int i = 0; i < propertyTypes.length; i++) {
+                            if (propertyInsertability[i]) {
+                                propertyTypes[i].nullSafeSet(ps, propertyValues[i], index, sessionImplementor);
+                                index += propertyTypes[i].getColumnSpan(sessionFactory);
+                            }
+                        }
+                        
+                        ps.addBatch();
+                    }
+                    
+                    ps.executeBatch();
+                }
+                finally {
+                    ps.close();
+                }
+            }
+        });
+        
+        this.logger.debug("Batch inserted {} portal events", persistentPortalEvents.size());
+    }
+    
+    /**
+     * Builds the insert statement for {@link PersistentPortalEvent} from the Hibernate mapping metadata
+     */
+    private String getBatchInsertSql(AbstractEntityPersister persister) {
+        String sql = this.batchInsertSql;
+        if (sql != null) {
+            return sql;
+        }
+        
+        final List<String> columns = new ArrayList<String>();
+        for (final String column : persister.getIdentifierColumnNames()) {
+            columns.add(column);
+        }
+        final boolean[] propertyInsertability = persister.getPropertyInsertability();
+        for (int i = 0; i < propertyInsertability.length; i++) {
+            if (propertyInsertability[i]) {
+                for (final String column : persister.getPropertyColumnNames(i)) {
+                    columns.add(column);
+                }
+            }
+        }
+        
+        final StringBuilder insert = new StringBuilder("INSERT INTO ").append(persister.getTableName()).append(" (");
+        final StringBuilder values = new StringBuilder(" VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                insert.append(", ");
+                values.append(", ");
+            }
+            insert.append(columns.get(i));
+            values.append("?");
+        }
+        insert.append(")").append(values).append(")");
+        
+        sql = insert.toString();
+        this.batchInsertSql = sql;
+        return sql;
+    }
+    
     @Override
     public DateTime getOldestPortalEventTimestamp() {
         final TypedQuery<DateTime> query = this.createQuery(this.findOldestPersistentPortalEventTimestampQuery);
@@ -196,49 +385,168 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
             query.setMaxResults(maxEvents);
         }
 
+        final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        if (this.aggregationDecodeThreads > 1 && this.aggregationExecutor != null) {
+            return this.aggregatePortalEventsParallel(session, results, handler);
+        }
+
         int resultCount = 0;
-        for (final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY); results.next(); ) {
+        while (results.next()) {
             final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
             final PortalEvent portalEvent;
             try {
-                portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
+                portalEvent = this.toPortalEvent(persistentPortalEvent);
             }
             catch (RuntimeException e) {
-                this.logger.warn("Failed to convert PersistentPortalEvent to PortalEvent: " + persistentPortalEvent, e);
-                
-                //Mark the event as error and store the mark to prevent trying to reprocess the broken event data
-                persistentPortalEvent.setErrorAggregating(true);
-                session.persist(persistentPortalEvent);
-                
+                this.markErrorAggregating(session, persistentPortalEvent, e);
                 continue;
             }
             
-            try {
+            if (!this.aggregatePortalEvent(session, persistentPortalEvent, portalEvent, handler)) {
+                return false;
+            }
             
-                final Boolean eventHandled = handler.apply(portalEvent);
-                if (!eventHandled) {
-                    this.logger.debug("Aggregation stop requested before processing event {}", portalEvent);
-                    return false;
-                }
+            //periodic flush and clear of session to manage memory demands
+            if (++resultCount % this.flushPeriod == 0) {
+                this.logger.debug("Aggregated {} events, flush and clear {} EntityManager.", resultCount, PERSISTENCE_UNIT_NAME);
+                session.flush();
+                session.clear();
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Loads chunks of flushPeriod events, decodes each chunk in parallel time slices and then passes the decoded
+     * events to the handler in order. The session is only flushed and cleared between chunks so every entity in
+     * the chunk being handled is still attached.
+     */
+    private boolean aggregatePortalEventsParallel(Session session, ScrollableResults results, Function<PortalEvent, Boolean> handler) {
+        final List<PersistentPortalEvent> chunk = new ArrayList<PersistentPortalEvent>(this.flushPeriod);
+        final PortalEvent[] decoded = new PortalEvent[this.flushPeriod];
+        final RuntimeException[] failures = new RuntimeException[this.flushPeriod];
+        
+        int resultCount = 0;
+        boolean moreResults = true;
+        while (moreResults) {
+            chunk.clear();
+            while (chunk.size() < this.flushPeriod && (moreResults = results.next())) {
+                chunk.add((PersistentPortalEvent)results.get(0));
+            }
+            if (chunk.isEmpty()) {
+                break;
+            }
+            
+            this.decodePortalEvents(chunk, decoded, failures);
+            
+            for (int i = 0; i < chunk.size(); i++) {
+                final PersistentPortalEvent persistentPortalEvent = chunk.get(i);
+                final PortalEvent portalEvent = decoded[i];
+                final RuntimeException failure = failures[i];
+                decoded[i] = null;
+                failures[i] = null;
                 
-                //Mark the event as aggregated and store the mark
-                persistentPortalEvent.setAggregated(true);
-                session.persist(persistentPortalEvent);
+                if (failure != null) {
+                    this.markErrorAggregating(session, persistentPortalEvent, failure);
+                    continue;
+                }
                 
-                //periodic flush and clear of session to manage memory demands
-                if (++resultCount % this.flushPeriod == 0) {
-                    this.logger.debug("Aggregated {} events, flush and clear {} EntityManager.", resultCount, PERSISTENCE_UNIT_NAME);
-                    session.flush();
-                    session.clear();
+                if (!this.aggregatePortalEvent(session, persistentPortalEvent, portalEvent, handler)) {
+                    return false;
                 }
+                resultCount++;
+            }
             
-            } catch (Exception e) {
-                this.logger.warn("Failed to aggregate portal event: " + persistentPortalEvent, e);
-                //mark the event as erred and move on. This will not be picked up by processing again
-                persistentPortalEvent.setErrorAggregating(true);
-                session.persist(persistentPortalEvent);
+            this.logger.debug("Aggregated {} events, flush and clear {} EntityManager.", resultCount, PERSISTENCE_UNIT_NAME);
+            session.flush();
+            session.clear();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Splits the chunk into contiguous slices and deserializes each slice on the aggregation executor, the calling
+     * thread decodes the first slice itself. Deserialization failures are recorded per event in the failures array.
+     */
+    private void decodePortalEvents(final List<PersistentPortalEvent> chunk, final PortalEvent[] decoded, final RuntimeException[] failures) {
+        final int size = chunk.size();
+        final int slices = Math.min(this.aggregationDecodeThreads, size);
+        final int sliceSize = (size + slices - 1) / slices;
+        
+        final List<Future<?>> futures = new ArrayList<Future<?>>(slices - 1);
+        for (int start = sliceSize; start < size; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(start + sliceSize, size);
+            futures.add(this.aggregationExecutor.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    decodePortalEvents(chunk, sliceStart, sliceEnd, decoded, failures);
+                    return null;
+                }
+            }));
+        }
+        
+        this.decodePortalEvents(chunk, 0, Math.min(sliceSize, size), decoded, failures);
+        
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for PortalEvent data to be deserialized", e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException("Failed to deserialize PortalEvent data", e.getCause());
             }
         }
+    }
+    
+    private void decodePortalEvents(List<PersistentPortalEvent> chunk, int start, int end, PortalEvent[] decoded, RuntimeException[] failures) {
+        for (int i = start; i < end; i++) {
+            try {
+                decoded[i] = this.toPortalEvent(chunk.get(i));
+            }
+            catch (RuntimeException e) {
+                failures[i] = e;
+            }
+        }
+    }
+    
+    /**
+     * Mark the event as error and store the mark to prevent trying to reprocess the broken event data
+     */
+    private void markErrorAggregating(Session session, PersistentPortalEvent persistentPortalEvent, RuntimeException e) {
+        this.logger.warn("Failed to convert PersistentPortalEvent to PortalEvent: " + persistentPortalEvent, e);
+        
+        persistentPortalEvent.setErrorAggregating(true);
+        session.persist(persistentPortalEvent);
+    }
+    
+    /**
+     * Pass the event to the handler and mark it as aggregated
+     * 
+     * @return false if the handler requested that aggregation stop
+     */
+    private boolean aggregatePortalEvent(Session session, PersistentPortalEvent persistentPortalEvent, PortalEvent portalEvent, Function<PortalEvent, Boolean> handler) {
+        try {
+            final Boolean eventHandled = handler.apply(portalEvent);
+            if (!eventHandled) {
+                this.logger.debug("Aggregation stop requested before processing event {}", portalEvent);
+                return false;
+            }
+            
+            //Mark the event as aggregated and store the mark
+            persistentPortalEvent.setAggregated(true);
+            session.persist(persistentPortalEvent);
+        } catch (Exception e) {
+            this.logger.warn("Failed to aggregate portal event: " + persistentPortalEvent, e);
+            //mark the event as erred and move on. This will not be picked up by processing again
+            persistentPortalEvent.setErrorAggregating(true);
+            session.persist(persistentPortalEvent);
+        }
         
         return true;
     }
@@ -260,7 +568,7 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
 
         for (final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY); results.next(); ) {
             final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
-            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
+            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent);
             handler.apply(portalEvent);
             persistentPortalEvent.setAggregated(true);
             session.evict(persistentPortalEvent);
@@ -276,9 +584,96 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
     }
     
     protected PersistentPortalEvent wrapPortalEvent(PortalEvent event) {
+        if (this.binaryEventData && this.isBinaryEventDataSchemaReady()) {
+            final byte[] portalEventData = this.toBytes(event);
+            return new PersistentPortalEvent(event, portalEventData);
+        }
+        
         final String portalEventData = this.toString(event);
         return new PersistentPortalEvent(event, portalEventData);
     }
+    
+    /**
+     * Databases created before EVENT_DATA_BINARY was added have a NOT NULL EVENT_DATA column, rows
+     * with only binary data can't be inserted until it is migrated. Checked once using the database
+     * metadata, the portal must be restarted to start storing binary data after migrating.
+     */
+    protected boolean isBinaryEventDataSchemaReady() {
+        Boolean ready = this.binaryEventDataSchemaReady;
+        if (ready != null) {
+            return ready;
+        }
+        
+        final Session session = this.getEntityManager().unwrap(Session.class);
+        final SessionFactoryImplementor sessionFactory = ((SessionImplementor) session).getFactory();
+        final AbstractEntityPersister persister = (AbstractEntityPersister) sessionFactory.getEntityPersister(PersistentPortalEvent.class.getName());
+        final String tableName = persister.getTableName();
+        
+        ready = session.doReturningWork(new ReturningWork<Boolean>() {
+            @Override
+            public Boolean execute(Connection connection) throws SQLException {
+                final DatabaseMetaData metaData = connection.getMetaData();
+                
+                //Identifier case depends on the database, try the common variants
+                for (final String table : new String[] { tableName, tableName.toUpperCase(), tableName.toLowerCase() }) {
+                    final ResultSet columns = metaData.getColumns(null, null, table, null);
+                    try {
+                        boolean tableFound = false;
+                        boolean eventDataNullable = false;
+                        boolean eventDataBinaryFound = false;
+                        while (columns.next()) {
+                            tableFound = true;
+                            final String column = columns.getString("COLUMN_NAME");
+                            if ("EVENT_DATA".equalsIgnoreCase(column)) {
+                                eventDataNullable = columns.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+                            }
+                            else if ("EVENT_DATA_BINARY".equalsIgnoreCase(column)) {
+                                eventDataBinaryFound = true;
+                            }
+                        }
+                        if (tableFound) {
+                            return eventDataNullable && eventDataBinaryFound;
+                        }
+                    }
+                    finally {
+                        columns.close();
+                    }
+                }
+                
+                return false;
+            }
+        });
+        
+        if (!ready) {
+            this.logger.warn("binaryEventData is enabled but {}.EVENT_DATA does not allow nulls or {}.EVENT_DATA_BINARY does not exist. " +
+                    "Events will be stored as JSON until the database is migrated, see the release notes.", tableName, tableName);
+        }
+        this.binaryEventDataSchemaReady = ready;
+        return ready;
+    }
+    
+    protected PortalEvent toPortalEvent(PersistentPortalEvent persistentPortalEvent) {
+        final byte[] eventDataBinary = persistentPortalEvent.getEventDataBinary();
+        if (eventDataBinary != null) {
+            return this.toPortalEvent(eventDataBinary, persistentPortalEvent.getEventType());
+        }
+        return this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
+    }
+    
+    protected <E extends PortalEvent> E toPortalEvent(final byte[] eventData, Class<E> eventType) {
+        try {
+            return binaryMapper.readValue(eventData, eventType);
+        }
+        catch (JsonParseException e) {
+            throw new RuntimeException("Failed to deserialize binary PortalEvent data", e);
+        }
+        catch (JsonMappingException e) {
+            throw new RuntimeException("Failed to deserialize binary PortalEvent data", e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to deserialize binary PortalEvent data", e);
+        }
+    }
 
     protected <E extends PortalEvent> E toPortalEvent(final String eventData, Class<E> eventType) {
         try {
@@ -309,4 +704,19 @@ public class JpaPortalEventStore extends BaseRawEventsJpaDao implements IPortalE
             throw new RuntimeException("Failed to serialize PortalEvent data", e);
         }
     }
+    
+    protected byte[] toBytes(PortalEvent event) {
+        try {
+            return binaryMapper.writeValueAsBytes(event);
+        }
+        catch (JsonParseException e) {
+            throw new RuntimeException("Failed to serialize binary PortalEvent data", e);
+        }
+        catch (JsonMappingException e) {
+            throw new RuntimeException("Failed to serialize binary PortalEvent data", e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to serialize binary PortalEvent data", e);
+        }
+    }
 }
@@ -89,10 +89,14 @@ public class PersistentPortalEvent implements Serializable {
     @Type(type="class")
     private final Class<PortalEvent> eventType;
     
-    @Column(name = "EVENT_DATA", nullable=false, updatable=false, length=10000)
+    @Column(name = "EVENT_DATA", nullable=true, updatable=false, length=10000)
     @Lob
     private final String eventData; 
     
+    @Column(name = "EVENT_DATA_BINARY", nullable=true, updatable=false, length=10000)
+    @Lob
+    private final byte[] eventDataBinary; 
+    
     @Index(name = "IDX_UP_RAW_EVENTS_AGGREGATED")
     @Column(name = "AGGREGATED") 
     private Boolean aggregated = false;
@@ -108,6 +112,7 @@ public class PersistentPortalEvent implements Serializable {
     private PersistentPortalEvent() {
         this.id = -1;
         this.eventData = null;
+        this.eventDataBinary = null;
         this.timestamp = null;
         this.serverId = null;
         this.eventSessionId = null;
@@ -115,10 +120,19 @@ public class PersistentPortalEvent implements Serializable {
         this.eventType = null;
     }
     
-    @SuppressWarnings("unchecked")
     PersistentPortalEvent(PortalEvent portalEvent, String eventData) {
+        this(portalEvent, eventData, null);
+    }
+    
+    PersistentPortalEvent(PortalEvent portalEvent, byte[] eventDataBinary) {
+        this(portalEvent, null, eventDataBinary);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private PersistentPortalEvent(PortalEvent portalEvent, String eventData, byte[] eventDataBinary) {
         this.id = -1;
         this.eventData = eventData;
+        this.eventDataBinary = eventDataBinary;
         this.timestamp = new DateTime(portalEvent.getTimestamp());
         this.serverId = portalEvent.getServerId();
         this.eventSessionId = portalEvent.getEventSessionId();
@@ -131,12 +145,19 @@ public class PersistentPortalEvent implements Serializable {
     }
 
     /**
-     * @return the eventData
+     * @return the JSON eventData, null if the event was stored in the binary format
      */
     public String getEventData() {
         return this.eventData;
     }
     
+    /**
+     * @return the binary (Smile) eventData, null if the event was stored as JSON
+     */
+    public byte[] getEventDataBinary() {
+        return this.eventDataBinary;
+    }
+    
     public boolean isAggregated() {
         Boolean a = this.aggregated;
         if (a == null) {
@@ -168,6 +189,9 @@ public class PersistentPortalEvent implements Serializable {
      */
     @Override
     public String toString() {
+        if (this.eventData == null && this.eventDataBinary != null) {
+            return this.eventType + " [" + this.eventDataBinary.length + " bytes of binary event data]";
+        }
         return this.eventData;
     }
 }
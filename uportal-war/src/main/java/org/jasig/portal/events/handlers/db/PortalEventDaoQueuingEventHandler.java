@@ -21,6 +21,7 @@ package org.jasig.portal.events.handlers.db;
 import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.handlers.QueueingEventHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
  * Hands off queued portal events for storage by the IPortalEventDao
@@ -28,6 +29,7 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @author Eric Dalquist
  * @version $Revision$
  */
+@ManagedResource("uPortal:section=Events,name=PortalEventDaoQueuingEventHandler")
 public class PortalEventDaoQueuingEventHandler extends QueueingEventHandler<PortalEvent> {
     private IPortalEventDao portalEventDao;
     
@@ -201,6 +201,10 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
     if ( this.contains(gm) )
         { return true; }
 
+    final GroupClosureIndex groupClosureIndex = GroupClosureIndex.getGroupClosureIndex();
+    if ( groupClosureIndex != null )
+        { return groupClosureIndex.isDeepMemberOf(gm, this); }
+
     boolean found = false;
     Iterator it = getMemberGroups();
     while (it.hasNext() && !found) {
@@ -0,0 +1,383 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.EntityTypes;
+import org.jasig.portal.IBasicEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Index of the transitive closure of the group graph, maps each {@link IGroupMember} to the set
+ * of all groups that contain it, directly or through other groups, so deep membership checks are
+ * a single bit test once the member's closure has been computed.
+ * <p>
+ * Group keys are interned as small integers and each closure is held as an immutable
+ * {@link BitSet} of those ids. A closure is computed bottom-up from
+ * {@link IGroupMember#getContainingGroups()}, reusing the closures already computed for the
+ * member's parent groups.
+ * <p>
+ * Closures follow the lifecycle of the cached group members they were computed from. This bean is
+ * registered as a listener on the IEntityGroup and IEntity entity caches. When a member is updated,
+ * removed, evicted or invalidated by a peer, its closure and the closures of every member it
+ * contains are dropped and recomputed on next use. Group services that do not cache their groups,
+ * such as PAGS, have no cache events so closures are also dropped after maxAge.
+ */
+@Service("groupClosureIndex")
+public class GroupClosureIndex extends CacheEventListenerAdapter implements InitializingBean, DisposableBean {
+    private static final BitSet EMPTY_ANCESTORS = new BitSet();
+    private static volatile GroupClosureIndex instance;
+    
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    //Interned group keys, ids are never reused so closures referring to removed groups stay correct
+    private final ConcurrentMap<String, Integer> groupIds = new ConcurrentHashMap<String, Integer>();
+    private volatile AtomicReferenceArray<String> groupKeys = new AtomicReferenceArray<String>(256);
+    private int nextGroupId = 0;
+    
+    private final ConcurrentMap<EntityIdentifier, Closure> closures = new ConcurrentHashMap<EntityIdentifier, Closure>();
+    //Incremented on every group invalidation, closures computed across one are not cached
+    private final AtomicLong generation = new AtomicLong();
+    
+    private boolean enabled = true;
+    private long maxAge = 180000;
+    
+    /**
+     * @return The active index, null if the index is disabled or the portal context has not been initialized
+     */
+    public static GroupClosureIndex getGroupClosureIndex() {
+        return instance;
+    }
+    
+    /**
+     * If false deep membership checks walk the group graph on each call, defaults to true
+     */
+    @Value("${org.jasig.portal.groups.GroupClosureIndex.enabled:true}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Maximum age in ms of a closure, bounds how long changes to groups from group services
+     * without caching take to be seen. Defaults to 180000 (3 minutes).
+     */
+    @Value("${org.jasig.portal.groups.GroupClosureIndex.maxAge:180000}")
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.enabled) {
+            instance = this;
+        }
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    /**
+     * @return true if the member is contained by the group directly or through any of its containing groups
+     */
+    public boolean isDeepMemberOf(IGroupMember member, IGroupMember group) throws GroupsException {
+        if (member == group || !group.isGroup()) {
+            return false;
+        }
+        
+        final BitSet ancestors = this.getAncestors(member);
+        final Integer groupId = this.groupIds.get(group.getKey());
+        return groupId != null && ancestors.get(groupId);
+    }
+    
+    /**
+     * @return The keys of all groups that contain the member directly or through other groups
+     */
+    public Set<String> getAncestorGroupKeys(IGroupMember member) throws GroupsException {
+        final BitSet ancestors = this.getAncestors(member);
+        if (ancestors.isEmpty()) {
+            return Collections.emptySet();
+        }
+        
+        final AtomicReferenceArray<String> groupKeys = this.groupKeys;
+        final Set<String> ancestorGroupKeys = new LinkedHashSet<String>(ancestors.cardinality() * 2);
+        for (int groupId = ancestors.nextSetBit(0); groupId >= 0; groupId = ancestors.nextSetBit(groupId + 1)) {
+            ancestorGroupKeys.add(groupKeys.get(groupId));
+        }
+        return ancestorGroupKeys;
+    }
+    
+    /**
+     * Drop the closure of the member and, if the member is a group, the closures of every member
+     * it contains. Called when the membership of the member changes.
+     */
+    public void invalidate(EntityIdentifier memberIdentifier) {
+        if (memberIdentifier.getType() != EntityTypes.GROUP_ENTITY_TYPE) {
+            //Entities are leaves of the graph, no other closure is computed from them
+            this.closures.remove(memberIdentifier);
+            return;
+        }
+        
+        this.generation.incrementAndGet();
+        this.closures.remove(memberIdentifier);
+        
+        final Integer groupId = this.groupIds.get(memberIdentifier.getKey());
+        if (groupId == null) {
+            return;
+        }
+        
+        int invalidated = 0;
+        for (final Iterator<Closure> closureItr = this.closures.values().iterator(); closureItr.hasNext(); ) {
+            if (closureItr.next().ancestors.get(groupId)) {
+                closureItr.remove();
+                invalidated++;
+            }
+        }
+        this.logger.debug("Invalidated {} group closures containing {}", invalidated, memberIdentifier);
+    }
+    
+    /**
+     * Drop all closures
+     */
+    public void clear() {
+        this.generation.incrementAndGet();
+        this.closures.clear();
+    }
+    
+    @Override
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+        this.invalidate(cache, element);
+    }
+
+    @Override
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+        this.invalidate(cache, element);
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+        this.invalidate(cache, element);
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+        this.invalidate(cache, element);
+    }
+
+    @Override
+    public void notifyRemoveAll(Ehcache cache) {
+        this.clear();
+    }
+
+    /**
+     * Invalidate the member cached by an IEntityGroup or IEntity entity cache element
+     */
+    protected void invalidate(Ehcache cache, Element element) {
+        final Object key = element.getObjectKey();
+        if (key == null) {
+            return;
+        }
+        
+        final Class<? extends IBasicEntity> type;
+        if (EntityTypes.GROUP_ENTITY_TYPE.getName().equals(cache.getName())) {
+            type = EntityTypes.GROUP_ENTITY_TYPE;
+        }
+        else {
+            type = EntityTypes.LEAF_ENTITY_TYPE;
+        }
+        
+        this.invalidate(new EntityIdentifier(key.toString(), type));
+    }
+    
+    /**
+     * @return The ids of all groups containing the member, must not be modified
+     */
+    protected BitSet getAncestors(IGroupMember member) throws GroupsException {
+        final EntityIdentifier memberIdentifier = member.getEntityIdentifier();
+        final BitSet cachedAncestors = this.getCachedAncestors(memberIdentifier);
+        if (cachedAncestors != null) {
+            return cachedAncestors;
+        }
+        
+        final long startGeneration = this.generation.get();
+        final ClosureBuilder builder = new ClosureBuilder();
+        final BitSet ancestors = this.buildAncestors(member, builder);
+        
+        //Only publish if nothing was invalidated while walking the graph. The closures of groups on
+        //a cycle may be missing part of the cycle, only the closure of the member is complete then.
+        if (this.generation.get() == startGeneration) {
+            final Map<EntityIdentifier, Closure> published = new LinkedHashMap<EntityIdentifier, Closure>();
+            if (builder.cycle) {
+                published.put(memberIdentifier, new Closure(ancestors));
+            }
+            else {
+                for (final Map.Entry<EntityIdentifier, BitSet> builtEntry : builder.built.entrySet()) {
+                    published.put(builtEntry.getKey(), new Closure(builtEntry.getValue()));
+                }
+            }
+            this.closures.putAll(published);
+            
+            //Drop them again if an invalidation raced with the put
+            if (this.generation.get() != startGeneration) {
+                for (final Map.Entry<EntityIdentifier, Closure> publishedEntry : published.entrySet()) {
+                    this.closures.remove(publishedEntry.getKey(), publishedEntry.getValue());
+                }
+            }
+        }
+        
+        return ancestors;
+    }
+    
+    /**
+     * Depth first walk up the group graph, the closure of each member reached is built from
+     * the closures of its containing groups.
+     */
+    protected BitSet buildAncestors(IGroupMember member, ClosureBuilder builder) throws GroupsException {
+        final EntityIdentifier memberIdentifier = member.getEntityIdentifier();
+        final BitSet cachedAncestors = this.getCachedAncestors(memberIdentifier);
+        if (cachedAncestors != null) {
+            return cachedAncestors;
+        }
+        
+        final BitSet builtAncestors = builder.built.get(memberIdentifier);
+        if (builtAncestors != null) {
+            return builtAncestors;
+        }
+        
+        if (!builder.building.add(memberIdentifier)) {
+            //The member contains itself, its ancestors are added by the frame already building it
+            builder.cycle = true;
+            return EMPTY_ANCESTORS;
+        }
+        
+        final BitSet ancestors = new BitSet();
+        for (final Iterator<?> parentItr = member.getContainingGroups(); parentItr.hasNext(); ) {
+            final IGroupMember parent = (IGroupMember) parentItr.next();
+            if (parent == null) {
+                continue;
+            }
+            
+            ancestors.set(this.getGroupId(parent.getKey()));
+            ancestors.or(this.buildAncestors(parent, builder));
+        }
+        
+        builder.building.remove(memberIdentifier);
+        builder.built.put(memberIdentifier, ancestors);
+        return ancestors;
+    }
+    
+    protected BitSet getCachedAncestors(EntityIdentifier memberIdentifier) {
+        final Closure closure = this.closures.get(memberIdentifier);
+        if (closure == null) {
+            return null;
+        }
+        
+        if (System.currentTimeMillis() - closure.created > this.maxAge) {
+            this.closures.remove(memberIdentifier, closure);
+            return null;
+        }
+        
+        return closure.ancestors;
+    }
+    
+    protected int getGroupId(String groupKey) {
+        final Integer groupId = this.groupIds.get(groupKey);
+        if (groupId != null) {
+            return groupId;
+        }
+        
+        synchronized (this.groupIds) {
+            final Integer existingGroupId = this.groupIds.get(groupKey);
+            if (existingGroupId != null) {
+                return existingGroupId;
+            }
+            
+            final int newGroupId = this.nextGroupId++;
+            AtomicReferenceArray<String> groupKeys = this.groupKeys;
+            if (newGroupId >= groupKeys.length()) {
+                final AtomicReferenceArray<String> newGroupKeys = new AtomicReferenceArray<String>(groupKeys.length() * 2);
+                for (int i = 0; i < groupKeys.length(); i++) {
+                    newGroupKeys.set(i, groupKeys.get(i));
+                }
+                groupKeys = newGroupKeys;
+            }
+            groupKeys.set(newGroupId, groupKey);
+            this.groupKeys = groupKeys;
+            
+            //Publish the id after its key so readers can always resolve it
+            this.groupIds.put(groupKey, newGroupId);
+            return newGroupId;
+        }
+    }
+    
+    /**
+     * @return Number of members with a computed closure
+     */
+    public int getClosureCount() {
+        return this.closures.size();
+    }
+    
+    /**
+     * @return Number of interned group keys
+     */
+    public int getGroupCount() {
+        return this.groupIds.size();
+    }
+    
+    protected static final class ClosureBuilder {
+        private final Set<EntityIdentifier> building = new HashSet<EntityIdentifier>();
+        private final Map<EntityIdentifier, BitSet> built = new LinkedHashMap<EntityIdentifier, BitSet>();
+        private boolean cycle = false;
+    }
+    
+    private static final class Closure {
+        private final BitSet ancestors;
+        private final long created = System.currentTimeMillis();
+
+        public Closure(BitSet ancestors) {
+            this.ancestors = ancestors;
+        }
+    }
+}
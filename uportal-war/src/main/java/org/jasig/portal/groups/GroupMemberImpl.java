@@ -138,7 +138,19 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
  */
 public java.util.Iterator getAllContainingGroups() throws GroupsException
 {
-    return primGetAllContainingGroups(this, new HashSet()).iterator();
+    final GroupClosureIndex groupClosureIndex = GroupClosureIndex.getGroupClosureIndex();
+    if ( groupClosureIndex == null )
+        { return primGetAllContainingGroups(this, new HashSet()).iterator(); }
+
+    Set ancestorGroupKeys = groupClosureIndex.getAncestorGroupKeys(this);
+    Collection groupsColl = new ArrayList(ancestorGroupKeys.size());
+    for (Iterator itr = ancestorGroupKeys.iterator(); itr.hasNext(); )
+    {
+        IEntityGroup group = getCompositeGroupService().findGroup((String) itr.next());
+        if ( group != null )
+            { groupsColl.add(group); }
+    }
+    return groupsColl.iterator();
 }
 
 /**
@@ -299,6 +311,9 @@ public boolean isDeepMemberOf(IGroupMember gm) throws GroupsException {
 
     if ( this.isMemberOf(gm) )
         { return true; }
+    final GroupClosureIndex groupClosureIndex = GroupClosureIndex.getGroupClosureIndex();
+    if ( groupClosureIndex != null )
+        { return groupClosureIndex.isDeepMemberOf(this, gm); }
     return gm.deepContains( this );
 }
 /**
@@ -814,7 +814,9 @@ throws GroupsException
         gmi.removeGroup(group);
         if ( cacheInUse() )
            { cacheUpdate(gmi); }
+        invalidateGroupClosure(gmi);
     }
+    invalidateGroupClosure(group);
 }
 
 /**
@@ -835,6 +837,7 @@ throws GroupsException
         gmi.addGroup(egi);
         if ( cacheInUse() )
            { cacheUpdate(gmi); }
+        invalidateGroupClosure(gmi);
     }
 
     for (Iterator it=egi.getRemovedMembers().values().iterator(); it.hasNext();)
@@ -843,9 +846,23 @@ throws GroupsException
         gmi.removeGroup(egi);
         if ( cacheInUse() )
            { cacheUpdate(gmi); }
+        invalidateGroupClosure(gmi);
     }
 }
 
+/**
+ * Drop the transitive group closure of a member whose containing groups changed.
+ * The closures of the members of a group are dropped with it.
+ *
+ * @param gm IGroupMember
+ */
+protected void invalidateGroupClosure(IGroupMember gm)
+{
+    GroupClosureIndex groupClosureIndex = GroupClosureIndex.getGroupClosureIndex();
+    if ( groupClosureIndex != null )
+        { groupClosureIndex.invalidate(gm.getEntityIdentifier()); }
+}
+
 /**
  * Answers if <code>group</code> contains <code>member</code>.  
  * If the group belongs to another service and the present service is 
@@ -0,0 +1,412 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups.pags;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.portal.groups.pags.testers.AlwaysTrueTester;
+import org.jasig.portal.groups.pags.testers.BaseAttributeTester;
+import org.jasig.portal.groups.pags.testers.GuestUserTester;
+import org.jasig.portal.groups.pags.testers.StringEqualsIgnoreCaseTester;
+import org.jasig.portal.groups.pags.testers.StringEqualsTester;
+import org.jasig.portal.security.IPerson;
+
+/**
+ * Evaluates the membership of a person in every PAGS group in a single pass.
+ * <p>
+ * The testers of all groups are compiled once. Identical testers used by several groups are
+ * evaluated once per person. String equality testers are indexed by attribute and test value so
+ * each attribute value is read, and case folded, once and matched against all of them with a
+ * hash lookup. All other testers are evaluated only when a group needs their result.
+ * <p>
+ * A person is a member of a group if any of the group's test groups pass and every ancestor of
+ * the group either has no test groups or has a passing test group, the same rules applied by
+ * {@link PagsGroup#contains(IPerson)} and {@link PagsGroup#test(IPerson)}.
+ * <p>
+ * Instances are immutable and thread safe.
+ */
+public class PagsMembershipEvaluator {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final int[] NO_TESTS = new int[0];
+    
+    private final long id = NEXT_ID.incrementAndGet();
+    
+    private final Map<String, PagsGroup> groupsByName;
+    private final List<PagsGroup> groups;
+    private final int[][][] groupTestGroups;
+    private final int[][] groupAncestors;
+    
+    //Testers evaluated by calling them, indexed by test id
+    private final IPersonTester[] testers;
+    //Attribute -> test value -> ids of the equality tests matching the value
+    private final Map<String, Map<String, int[]>> equalsTests;
+    private final Map<String, Map<String, int[]>> equalsIgnoreCaseTests;
+    
+    //Attributes the results depend on, null if a tester depends on anything but attributes
+    private final String[] fingerprintAttributes;
+
+    /**
+     * @param groups The groups to evaluate, a null value marks a group that failed to load whose members are excluded
+     * @param parents Group name to names of the groups that directly contain it
+     */
+    public PagsMembershipEvaluator(Map<String, PagsGroup> groups, Map<String, Set<String>> parents) {
+        this.groupsByName = Collections.unmodifiableMap(new HashMap<String, PagsGroup>(groups));
+        
+        final Map<String, Integer> groupIndexes = new HashMap<String, Integer>();
+        this.groups = new ArrayList<PagsGroup>(groups.size());
+        for (final Map.Entry<String, PagsGroup> groupEntry : groups.entrySet()) {
+            groupIndexes.put(groupEntry.getKey(), this.groups.size());
+            this.groups.add(groupEntry.getValue());
+        }
+        
+        final TestCompiler compiler = new TestCompiler();
+        this.groupTestGroups = new int[this.groups.size()][][];
+        this.groupAncestors = new int[this.groups.size()][];
+        int groupIndex = 0;
+        for (final Map.Entry<String, PagsGroup> groupEntry : groups.entrySet()) {
+            final PagsGroup group = groupEntry.getValue();
+            if (group == null) {
+                this.groupTestGroups[groupIndex] = null;
+            }
+            else {
+                final List<TestGroup> testGroups = group.getTestGroups();
+                final int[][] compiledTestGroups = new int[testGroups.size()][];
+                for (int i = 0; i < compiledTestGroups.length; i++) {
+                    compiledTestGroups[i] = compiler.compile(testGroups.get(i));
+                }
+                this.groupTestGroups[groupIndex] = compiledTestGroups;
+            }
+            
+            this.groupAncestors[groupIndex] = getAncestors(groupEntry.getKey(), parents, groupIndexes);
+            groupIndex++;
+        }
+        
+        this.testers = compiler.testers.toArray(new IPersonTester[compiler.testers.size()]);
+        this.equalsTests = compiler.getIndex(compiler.equalsTests);
+        this.equalsIgnoreCaseTests = compiler.getIndex(compiler.equalsIgnoreCaseTests);
+        this.fingerprintAttributes = compiler.attributeOnly
+                ? compiler.attributes.toArray(new String[compiler.attributes.size()])
+                : null;
+    }
+    
+    /**
+     * @return The definition of the named group, null if the group is unknown or failed to load
+     */
+    public PagsGroup getGroup(String name) {
+        return this.groupsByName.get(name);
+    }
+    
+    /**
+     * @return A key identifying the results of {@link #getContainingGroupNames(IPerson)} for the person,
+     *  people with the same key are members of the same groups. Null if the groups use testers that
+     *  depend on more than the person's attributes.
+     */
+    public List<Object> getFingerprint(IPerson person) {
+        if (this.fingerprintAttributes == null) {
+            return null;
+        }
+        
+        final List<Object> fingerprint = new ArrayList<Object>(this.fingerprintAttributes.length + 1);
+        fingerprint.add(this.id);
+        for (final String attribute : this.fingerprintAttributes) {
+            final Object[] values = person.getAttributeValues(attribute);
+            fingerprint.add(values != null ? Arrays.asList(values) : null);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return The names of all groups the person is a member of
+     */
+    public Set<String> getContainingGroupNames(IPerson person) {
+        final Evaluation evaluation = new Evaluation(person);
+        
+        final Set<String> groupNames = new LinkedHashSet<String>();
+        for (int groupIndex = 0; groupIndex < this.groups.size(); groupIndex++) {
+            if (evaluation.contains(groupIndex)) {
+                groupNames.add(this.groups.get(groupIndex).getName());
+            }
+        }
+        return groupNames;
+    }
+    
+    /**
+     * Fold case the way {@link String#equalsIgnoreCase(String)} compares characters, two strings
+     * are equal ignoring case if and only if their folded forms are equal.
+     */
+    static String foldCase(String value) {
+        final char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+    
+    private static int[] getAncestors(String name, Map<String, Set<String>> parents, Map<String, Integer> groupIndexes) {
+        final Set<String> ancestors = new LinkedHashSet<String>();
+        addAncestors(name, parents, ancestors);
+        ancestors.remove(name);
+        
+        final int[] ancestorIndexes = new int[ancestors.size()];
+        int i = 0;
+        for (final String ancestor : ancestors) {
+            final Integer ancestorIndex = groupIndexes.get(ancestor);
+            //An unknown ancestor has no definition to test against, treat it as failed
+            ancestorIndexes[i++] = ancestorIndex != null ? ancestorIndex : -1;
+        }
+        return ancestorIndexes;
+    }
+    
+    private static void addAncestors(String name, Map<String, Set<String>> parents, Set<String> ancestors) {
+        final Set<String> groupParents = parents.get(name);
+        if (groupParents == null) {
+            return;
+        }
+        for (final String parent : groupParents) {
+            if (ancestors.add(parent)) {
+                addAncestors(parent, parents, ancestors);
+            }
+        }
+    }
+
+    /**
+     * Assigns ids to the distinct testers of all groups
+     */
+    private static final class TestCompiler {
+        private final Map<Object, Integer> testIds = new HashMap<Object, Integer>();
+        private final List<IPersonTester> testers = new ArrayList<IPersonTester>();
+        private final Map<String, Map<String, List<Integer>>> equalsTests = new LinkedHashMap<String, Map<String, List<Integer>>>();
+        private final Map<String, Map<String, List<Integer>>> equalsIgnoreCaseTests = new LinkedHashMap<String, Map<String, List<Integer>>>();
+        private final Set<String> attributes = new TreeSet<String>();
+        private boolean attributeOnly = true;
+        
+        public int[] compile(TestGroup testGroup) {
+            final List<IPersonTester> tests = testGroup.getTests();
+            if (tests.isEmpty()) {
+                return NO_TESTS;
+            }
+            
+            final int[] testGroupIds = new int[tests.size()];
+            for (int i = 0; i < testGroupIds.length; i++) {
+                testGroupIds[i] = this.compile(tests.get(i));
+            }
+            return testGroupIds;
+        }
+        
+        /**
+         * @return The id of the test, -1 for a missing tester which always fails
+         */
+        private int compile(IPersonTester tester) {
+            if (tester == null) {
+                return -1;
+            }
+            
+            final Object testKey;
+            if (tester instanceof BaseAttributeTester) {
+                final BaseAttributeTester attributeTester = (BaseAttributeTester) tester;
+                testKey = Arrays.asList(tester.getClass(), attributeTester.getAttributeName(), attributeTester.getTestValue());
+            }
+            else {
+                testKey = tester;
+            }
+            
+            final Integer existingId = this.testIds.get(testKey);
+            if (existingId != null) {
+                return existingId;
+            }
+            
+            final int testId = this.testers.size();
+            this.testIds.put(testKey, testId);
+            
+            //Only index the exact classes, subclasses may change how values are compared
+            final Class<?> testerClass = tester.getClass();
+            if (testerClass == StringEqualsTester.class || testerClass == StringEqualsIgnoreCaseTester.class) {
+                final BaseAttributeTester attributeTester = (BaseAttributeTester) tester;
+                final String testValue = attributeTester.getTestValue();
+                if (testerClass == StringEqualsTester.class) {
+                    addIndexedTest(this.equalsTests, attributeTester.getAttributeName(), testValue, testId);
+                }
+                else {
+                    addIndexedTest(this.equalsIgnoreCaseTests, attributeTester.getAttributeName(), foldCase(testValue), testId);
+                }
+                //Placeholder, indexed tests are never called
+                this.testers.add(null);
+            }
+            else {
+                this.testers.add(tester);
+            }
+            
+            if (tester instanceof BaseAttributeTester) {
+                this.attributes.add(((BaseAttributeTester) tester).getAttributeName());
+            }
+            else if (tester instanceof GuestUserTester) {
+                this.attributes.add(IPerson.USERNAME);
+            }
+            else if (!(tester instanceof AlwaysTrueTester)) {
+                this.attributeOnly = false;
+            }
+            
+            return testId;
+        }
+        
+        private static void addIndexedTest(Map<String, Map<String, List<Integer>>> index, String attribute, String testValue, int testId) {
+            Map<String, List<Integer>> valueTests = index.get(attribute);
+            if (valueTests == null) {
+                valueTests = new HashMap<String, List<Integer>>();
+                index.put(attribute, valueTests);
+            }
+            List<Integer> testIds = valueTests.get(testValue);
+            if (testIds == null) {
+                testIds = new ArrayList<Integer>(1);
+                valueTests.put(testValue, testIds);
+            }
+            testIds.add(testId);
+        }
+        
+        public Map<String, Map<String, int[]>> getIndex(Map<String, Map<String, List<Integer>>> index) {
+            final Map<String, Map<String, int[]>> compiledIndex = new LinkedHashMap<String, Map<String, int[]>>(index.size() * 2);
+            for (final Map.Entry<String, Map<String, List<Integer>>> attributeEntry : index.entrySet()) {
+                final Map<String, List<Integer>> valueTests = attributeEntry.getValue();
+                final Map<String, int[]> compiledValueTests = new HashMap<String, int[]>(valueTests.size() * 2);
+                for (final Map.Entry<String, List<Integer>> valueEntry : valueTests.entrySet()) {
+                    final List<Integer> testIds = valueEntry.getValue();
+                    final int[] compiledTestIds = new int[testIds.size()];
+                    for (int i = 0; i < compiledTestIds.length; i++) {
+                        compiledTestIds[i] = testIds.get(i);
+                    }
+                    compiledValueTests.put(valueEntry.getKey(), compiledTestIds);
+                }
+                compiledIndex.put(attributeEntry.getKey(), Collections.unmodifiableMap(compiledValueTests));
+            }
+            return Collections.unmodifiableMap(compiledIndex);
+        }
+    }
+    
+    /**
+     * The test and group results for one person, each test and group is evaluated at most once
+     */
+    private final class Evaluation {
+        private final IPerson person;
+        private final BitSet evaluatedTests = new BitSet(testers.length);
+        private final BitSet passedTests = new BitSet(testers.length);
+        private final BitSet evaluatedGroups = new BitSet(groups.size());
+        private final BitSet passedGroups = new BitSet(groups.size());
+        
+        public Evaluation(IPerson person) {
+            this.person = person;
+            
+            //Run all of the indexed equality tests up front, one lookup per attribute value
+            for (final Map.Entry<String, Map<String, int[]>> attributeEntry : equalsTests.entrySet()) {
+                this.matchValues(attributeEntry.getKey(), attributeEntry.getValue(), false);
+            }
+            for (final Map.Entry<String, Map<String, int[]>> attributeEntry : equalsIgnoreCaseTests.entrySet()) {
+                this.matchValues(attributeEntry.getKey(), attributeEntry.getValue(), true);
+            }
+        }
+        
+        private void matchValues(String attribute, Map<String, int[]> valueTests, boolean ignoreCase) {
+            final Object[] values = this.person.getAttributeValues(attribute);
+            if (values == null) {
+                return;
+            }
+            for (final Object value : values) {
+                if (!(value instanceof String)) {
+                    continue;
+                }
+                final int[] testIds = valueTests.get(ignoreCase ? foldCase((String) value) : value);
+                if (testIds != null) {
+                    for (final int testId : testIds) {
+                        this.passedTests.set(testId);
+                    }
+                }
+            }
+        }
+        
+        private boolean test(int testId) {
+            if (testId < 0) {
+                return false;
+            }
+            
+            final IPersonTester tester = testers[testId];
+            if (tester != null && !this.evaluatedTests.get(testId)) {
+                this.evaluatedTests.set(testId);
+                if (tester.test(this.person)) {
+                    this.passedTests.set(testId);
+                }
+            }
+            return this.passedTests.get(testId);
+        }
+        
+        /**
+         * @return true if any test group of the group passes, see {@link PagsGroup#test(IPerson)}
+         */
+        private boolean test(int groupIndex, boolean emptyResult) {
+            final int[][] testGroups = groupTestGroups[groupIndex];
+            if (testGroups == null) {
+                return false;
+            }
+            if (testGroups.length == 0) {
+                return emptyResult;
+            }
+            
+            if (!this.evaluatedGroups.get(groupIndex)) {
+                this.evaluatedGroups.set(groupIndex);
+                for (final int[] testGroup : testGroups) {
+                    if (this.testAll(testGroup)) {
+                        this.passedGroups.set(groupIndex);
+                        break;
+                    }
+                }
+            }
+            return this.passedGroups.get(groupIndex);
+        }
+        
+        private boolean testAll(int[] testGroup) {
+            for (final int testId : testGroup) {
+                if (!this.test(testId)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        public boolean contains(int groupIndex) {
+            if (!this.test(groupIndex, false)) {
+                return false;
+            }
+            for (final int ancestorIndex : groupAncestors[groupIndex]) {
+                if (ancestorIndex < 0 || !this.test(ancestorIndex, true)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
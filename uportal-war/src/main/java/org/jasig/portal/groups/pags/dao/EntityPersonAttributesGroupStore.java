@@ -21,9 +21,12 @@ package org.jasig.portal.groups.pags.dao;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.sf.ehcache.Cache;
@@ -43,6 +46,7 @@ import org.jasig.portal.groups.IGroupMember;
 import org.jasig.portal.groups.ILockableEntityGroup;
 import org.jasig.portal.groups.pags.PagsGroup;
 import org.jasig.portal.groups.pags.IPersonTester;
+import org.jasig.portal.groups.pags.PagsMembershipEvaluator;
 import org.jasig.portal.groups.pags.TestGroup;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.PersonFactory;
@@ -69,6 +73,9 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
     private static final EntityIdentifier[] EMPTY_SEARCH_RESULTS = new EntityIdentifier[0];
     private IPersonAttributesGroupDefinitionDao personAttributesGroupDefinitionDao;
     private final Cache groupDefCache;
+    private final Cache membershipCache;
+    private volatile PagsMembershipEvaluator membershipEvaluator;
+    private volatile long membershipEvaluatorCreated;
 
     public EntityPersonAttributesGroupStore() {
         super();
@@ -76,13 +83,14 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
         this.personAttributesGroupDefinitionDao = applicationContext.getBean("personAttributesGroupDefinitionDao", IPersonAttributesGroupDefinitionDao.class);
         CacheManager cacheManager = applicationContext.getBean("cacheManager", CacheManager.class);
         this.groupDefCache = cacheManager.getCache("org.jasig.portal.groups.pags.dao.EntityPersonAttributesGroupStore");
+        this.membershipCache = cacheManager.getCache("org.jasig.portal.groups.pags.dao.EntityPersonAttributesGroupStore.membership");
     }
 
     public boolean contains(IEntityGroup group, IGroupMember member) {
         logger.debug("Checking if group {} contains member {}/{}", group.getName(), member.getKey(), member.getEntityType().getSimpleName());
-        PagsGroup groupDef = convertEntityToGroupDef(group);
         if (member.isGroup()) 
         {
+           PagsGroup groupDef = convertEntityToGroupDef(group);
            String key = ((IEntityGroup)member).getLocalKey();
            return groupDef.hasMember(key);
         } 
@@ -90,24 +98,81 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
         {
            if (member.getEntityType() != IPERSON_CLASS) 
                { return false; }
-           IPerson person = null;
-           try {
-               IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
-               final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
+           IPerson person = getPerson(member);
+           if (person == null)
+               { return false; }
+           return getContainingGroupNames(getMembershipEvaluator(), person).contains(group.getName());
+        }
+    }
+
+    private IPerson getPerson(IGroupMember member) {
+        try {
+            IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
+            final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
+
+            RestrictedPerson rp = PersonFactory.createRestrictedPerson();
+            if (personAttributes != null) {
+                rp.setAttributes(personAttributes.getAttributes());
+            }
+            
+            return rp;
+        }
+        catch (Exception ex) { 
+            logger.error("Exception acquiring attributes for member " + member + " while checking its PAGS group membership.", ex);
+            return null;
+        }
+    }
 
-               RestrictedPerson rp = PersonFactory.createRestrictedPerson();
-               if (personAttributes != null) {
-                   rp.setAttributes(personAttributes.getAttributes());
-               }
-               
-               person = rp;
-           }
-           catch (Exception ex) { 
-               logger.error("Exception acquiring attributes for member " + member + " while checking if group " + group + " contains this member.", ex);
-               return false;
-           }
-           return testRecursively(groupDef, person, member);
+    /**
+     * @return The names of all PAGS groups the person is a member of, shared by all people with the same attributes
+     */
+    private Set<String> getContainingGroupNames(PagsMembershipEvaluator evaluator, IPerson person) {
+        final List<Object> fingerprint = evaluator.getFingerprint(person);
+        if (fingerprint == null) {
+            return evaluator.getContainingGroupNames(person);
         }
+        
+        Element element = this.membershipCache.get(fingerprint);
+        if (element != null) {
+            @SuppressWarnings("unchecked")
+            final Set<String> groupNames = (Set<String>) element.getObjectValue();
+            return groupNames;
+        }
+        
+        final Set<String> groupNames = Collections.unmodifiableSet(evaluator.getContainingGroupNames(person));
+        this.membershipCache.put(new Element(fingerprint, groupNames));
+        return groupNames;
+    }
+
+    /**
+     * @return The compiled testers of all PAGS groups, rebuilt as often as the group definitions are reloaded
+     */
+    private PagsMembershipEvaluator getMembershipEvaluator() {
+        final long now = System.currentTimeMillis();
+        final PagsMembershipEvaluator evaluator = this.membershipEvaluator;
+        final long timeToLiveSeconds = this.groupDefCache.getCacheConfiguration().getTimeToLiveSeconds();
+        if (evaluator != null && (timeToLiveSeconds <= 0 || now - this.membershipEvaluatorCreated < timeToLiveSeconds * 1000)) {
+            return evaluator;
+        }
+        
+        final Map<String, PagsGroup> groupDefs = new LinkedHashMap<String, PagsGroup>();
+        final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+        for (IPersonAttributesGroupDefinition pagsGroup : personAttributesGroupDefinitionDao.getPersonAttributesGroupDefinitions()) {
+            groupDefs.put(pagsGroup.getName(), initGroupDef(pagsGroup));
+            for (IPersonAttributesGroupDefinition member : pagsGroup.getMembers()) {
+                Set<String> memberParents = parents.get(member.getName());
+                if (memberParents == null) {
+                    memberParents = new HashSet<String>();
+                    parents.put(member.getName(), memberParents);
+                }
+                memberParents.add(pagsGroup.getName());
+            }
+        }
+        
+        final PagsMembershipEvaluator newEvaluator = new PagsMembershipEvaluator(groupDefs, parents);
+        this.membershipEvaluator = newEvaluator;
+        this.membershipEvaluatorCreated = now;
+        return newEvaluator;
     }
 
     private PagsGroup convertEntityToGroupDef(IEntityGroup group) {
@@ -123,6 +188,13 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
         return entityGroup;
     }
 
+    private IEntityGroup convertGroupDefToEntity(PagsGroup groupDef) {
+        IEntityGroup entityGroup = new EntityTestingGroupImpl(groupDef.getName(), IPERSON_CLASS);
+        entityGroup.setName(groupDef.getName());
+        entityGroup.setDescription(groupDef.getDescription());
+        return entityGroup;
+    }
+
     public void delete(IEntityGroup group) throws GroupsException {
         throw new UnsupportedOperationException("EntityPersonAttributesGroupStore: Method delete() not supported.");
     }
@@ -142,45 +214,6 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
         return group;
     }
 
-    private boolean testRecursively(PagsGroup groupDef, IPerson person, IGroupMember member)
-        throws GroupsException {
-            if ( ! groupDef.contains(person) )
-                { return false;}
-            else
-            {
-                IEntityGroup group = find(groupDef.getName());
-                IEntityGroup parentGroup = null;
-                Set<IEntityGroup> allParents = primGetAllContainingGroups(group, new HashSet<IEntityGroup>());
-                boolean testPassed = true;
-                for (Iterator<IEntityGroup> i=allParents.iterator(); i.hasNext() && testPassed;)
-                {
-                    parentGroup = i.next();
-                    PagsGroup parentGroupDef = (PagsGroup) convertEntityToGroupDef(parentGroup);
-                    testPassed = parentGroupDef.test(person);
-                }
-                
-                if (!testPassed && logger.isWarnEnabled()) {
-                    logger.warn("PAGS group {} contained person {}, but the person failed to be contained in"
-                            + " ancesters of this group ({}). This may indicate a misconfigured PAGS group store."
-                            +" Please check PAGS Entity Files", group.getKey(), member.getKey(),
-                            parentGroup != null ? parentGroup.getKey() : "no parent");
-                }
-                return testPassed;
-            }
-        }
-    private java.util.Set<IEntityGroup> primGetAllContainingGroups(IEntityGroup group, Set<IEntityGroup> s)
-            throws GroupsException
-            {
-                Iterator<IEntityGroup> i = findContainingGroups(group);
-                while ( i.hasNext() )
-                {
-                    IEntityGroup parentGroup = i.next();
-                    s.add(parentGroup);
-                    primGetAllContainingGroups(parentGroup, s);
-                }
-                return s;
-            }
-
     public Iterator<IEntityGroup> findContainingGroups(IGroupMember member) 
     throws GroupsException 
     {
@@ -200,12 +233,16 @@ public class EntityPersonAttributesGroupStore implements IEntityGroupStore, IEnt
     }
     private Iterator<IEntityGroup> findContainingGroupsForEntity(IEntity member)
     throws GroupsException {
-        Set<IPersonAttributesGroupDefinition> pagsGroups = personAttributesGroupDefinitionDao.getPersonAttributesGroupDefinitions();
+        if (member.getEntityType() != IPERSON_CLASS) 
+            { return Collections.<IEntityGroup>emptyList().iterator(); }
+        IPerson person = getPerson(member);
+        if (person == null)
+            { return Collections.<IEntityGroup>emptyList().iterator(); }
+        
+        PagsMembershipEvaluator evaluator = getMembershipEvaluator();
         List<IEntityGroup> results = new ArrayList<IEntityGroup>();
-        for (IPersonAttributesGroupDefinition pagsGroup : pagsGroups) {
-            IEntityGroup group = convertPagsGroupToEntity(pagsGroup);
-            if ( contains(group, member))
-                { results.add(group); }
+        for (String groupName : getContainingGroupNames(evaluator, person)) {
+            results.add(convertGroupDefToEntity(evaluator.getGroup(groupName)));
         }
         return results.iterator();
     }
@@ -18,22 +18,37 @@
  */
 package org.jasig.portal.io.xml.layout;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.dom4j.Element;
 import org.jasig.portal.IUserIdentityStore;
 import org.jasig.portal.IUserProfile;
 import org.jasig.portal.UserProfile;
+import org.jasig.portal.io.xml.IPortalData;
 import org.jasig.portal.io.xml.crn.AbstractDom4jExporter;
 import org.jasig.portal.layout.IUserLayoutStore;
 import org.jasig.portal.security.provider.BrokenSecurityContext;
 import org.jasig.portal.security.provider.PersonImpl;
 import org.jasig.portal.utils.Tuple;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.w3c.dom.Document;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 
 /**
+ * Exports the layout of a user. When all layouts are exported the layouts of the users listed by
+ * {@link #getPortalData()} are bulk loaded with {@link IUserLayoutStore#getPersonalUserLayouts(java.util.Collection, String, java.util.Locale)}
+ * in groups of {@link #setPrefetchSize(int)} users, in the order they are listed, instead of
+ * being loaded one at a time.
+ * 
  * @author Eric Dalquist
  * @version $Revision$
  */
@@ -41,8 +56,15 @@ public class LayoutExporter extends AbstractDom4jExporter  {
     private final Cache<Tuple<String, String>, UserProfile> layoutCache = CacheBuilder.newBuilder().maximumSize(1000).<Tuple<String, String>, UserProfile>build();
     private final Cache<Tuple<String, String>, Document> profileCache = CacheBuilder.newBuilder().maximumSize(1000).<Tuple<String, String>, Document>build();
     
+    //Users in the order returned by the last getPortalData call, the groups already claimed for prefetching and the prefetched users not exported yet
+    private volatile List<String> listedUserNames = Collections.emptyList();
+    private volatile Map<String, Integer> listedUserIndexes = Collections.emptyMap();
+    private final ConcurrentMap<Integer, Boolean> prefetchedGroups = new ConcurrentHashMap<Integer, Boolean>();
+    private final Set<String> prefetchedUserNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
     private IUserLayoutStore userLayoutStore;
     private IUserIdentityStore userIdentityStore;
+    private int prefetchSize = 100;
     
     @Autowired
     public void setUserLayoutStore(IUserLayoutStore userLayoutStore) {
@@ -53,6 +75,40 @@ public class LayoutExporter extends AbstractDom4jExporter  {
     public void setUserIdentityStore(IUserIdentityStore userIdentityStore) {
         this.userIdentityStore = userIdentityStore;
     }
+    
+    /**
+     * Number of layouts bulk loaded together when exporting the listed users, 1 disables
+     * prefetching. Defaults to 100, must stay well below the 1000 layouts held by the layout cache.
+     */
+    @Value("${org.jasig.portal.io.layout.exportPrefetchSize:100}")
+    public void setPrefetchSize(int prefetchSize) {
+        if (prefetchSize < 1) {
+            throw new IllegalArgumentException("prefetchSize must be greater than 0: " + prefetchSize);
+        }
+        this.prefetchSize = prefetchSize;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.io.xml.crn.AbstractDom4jExporter#getPortalData()
+     */
+    @Override
+    public Iterable<? extends IPortalData> getPortalData() {
+        //Copied so the users are only queried once, the list is also iterated to remember their order
+        final List<? extends IPortalData> portalData = ImmutableList.copyOf(super.getPortalData());
+        
+        final ImmutableList.Builder<String> userNames = ImmutableList.builder();
+        final Map<String, Integer> userIndexes = new ConcurrentHashMap<String, Integer>();
+        int index = 0;
+        for (final IPortalData data : portalData) {
+            userNames.add(data.getDataId());
+            userIndexes.put(data.getDataId(), index++);
+        }
+        this.listedUserNames = userNames.build();
+        this.listedUserIndexes = userIndexes;
+        this.prefetchedGroups.clear();
+        
+        return portalData;
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.io.xml.crn.AbstractDom4jExporter#exportDataElement(java.lang.String)
@@ -77,14 +133,51 @@ public class LayoutExporter extends AbstractDom4jExporter  {
             this.userLayoutStore.setLayoutImportExportCache(profileCache);
 
             final IUserProfile userProfile = userLayoutStore.getUserProfileByFname(person, UserProfile.DEFAULT_PROFILE_FNAME);
+            this.prefetchLayouts(userName, userProfile.getProfileFname());
+            
             final Element layoutElement = userLayoutStore.exportLayout(person, userProfile);
             
             return layoutElement;
         }
         finally {
+            //Prefetched layouts are only used once, drop them so they don't push the fragment layouts out of the cache
+            if (this.prefetchedUserNames.remove(userName)) {
+                this.profileCache.invalidate(new Tuple<String, String>(userName, UserProfile.DEFAULT_PROFILE_FNAME));
+            }
+            
             this.userLayoutStore.setProfileImportExportCache(null);
             this.userLayoutStore.setLayoutImportExportCache(null);
         }
     }
     
+    /**
+     * If the user was listed by {@link #getPortalData()} and the group of users it is in has not
+     * been loaded yet bulk load the layouts of the group into the layout cache. Only one thread
+     * loads each group, users of a group being loaded by another thread are loaded individually.
+     */
+    protected void prefetchLayouts(String userName, String profileFname) {
+        if (this.prefetchSize == 1) {
+            return;
+        }
+        
+        final Integer index = this.listedUserIndexes.get(userName);
+        if (index == null || this.prefetchedGroups.putIfAbsent(index / this.prefetchSize, Boolean.TRUE) != null) {
+            return;
+        }
+        
+        final List<String> userNames = this.listedUserNames;
+        final int groupStart = index - (index % this.prefetchSize);
+        final List<String> group = userNames.subList(groupStart, Math.min(groupStart + this.prefetchSize, userNames.size()));
+        
+        final Map<String, Document> layouts = this.userLayoutStore.getPersonalUserLayouts(group, profileFname, null);
+        for (final Map.Entry<String, Document> layoutEntry : layouts.entrySet()) {
+            final Tuple<String, String> key = new Tuple<String, String>(layoutEntry.getKey(), profileFname);
+            if (this.profileCache.asMap().putIfAbsent(key, layoutEntry.getValue()) == null) {
+                this.prefetchedUserNames.add(layoutEntry.getKey());
+            }
+        }
+        
+        this.logger.debug("Prefetched {} layouts for {} users starting with {}", new Object[] { layouts.size(), group.size(), userName });
+    }
+    
 }
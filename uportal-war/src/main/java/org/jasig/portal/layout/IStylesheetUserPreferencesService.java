@@ -70,6 +70,16 @@ public interface IStylesheetUserPreferencesService {
      */
     public IStylesheetDescriptor getStylesheetDescriptor(HttpServletRequest request, PreferencesScope prefScope);
     
+    /**
+     * The version is incremented every time a session or persistent scoped preference of the
+     * user is modified through this service and never decreases for the life of the session.
+     * Changes made through other sessions of the same user are not reflected.
+     * 
+     * @param request The current request
+     * @return The version of the stylesheet user preferences of the current session, 0 if no preferences have been modified
+     */
+    public long getPreferencesVersion(HttpServletRequest request);
+    
     /**
      * Get an output property
      * @param request The current request
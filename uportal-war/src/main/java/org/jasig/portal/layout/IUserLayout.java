@@ -149,6 +149,22 @@ public interface IUserLayout {
      */
     public String findNodeId(INodeIdResolver finder);
 
+    /**
+     * Returns the id of the tab (a child of the root, header or footer folder) that contains the node.
+     *
+     * @param nodeId The id of a folder or channel
+     * @return The ID of the containing tab, the nodeId if the node is a tab, null if the node is not in a tab
+     */
+    public String getTabId(String nodeId);
+
+    /**
+     * Returns the id of the tab at an index, counting only regular tabs that are not hidden.
+     *
+     * @param tabIndex 1 based index of the tab
+     * @return The ID of the tab, null if the layout has fewer tabs
+     */
+    public String getVisibleTabId(int tabIndex);
+
      /**
      * Returns a list of node Ids in the layout.
      *
@@ -254,6 +254,15 @@ public interface IUserLayoutManager {
      */
     public String getCacheKey() throws PortalException;
 
+    /**
+     * Return the version of the user layout. The version is incremented every time the layout
+     * is modified or reloaded and unlike {@link #getCacheKey()} never decreases for the life of
+     * the layout manager.
+     *
+     * @return a <code>long</code> value
+     */
+    public long getLayoutVersion();
+
     /**
      * @deprecated {@link #getUserLayout()} should be used instead. Direct manipulation of the DOM can cause caching problems and issues where the layout manager doesn't know about DOM changes. Read https://lists.wisc.edu/read/messages?id=2167043 for more information.
      */
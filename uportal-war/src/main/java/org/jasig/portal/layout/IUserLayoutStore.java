@@ -24,7 +24,9 @@
  * @version $Revision$
  */
 
+import java.util.Collection;
 import java.util.Hashtable;
+import java.util.Locale;
 import java.util.Map;
 
 import org.jasig.portal.IUserProfile;
@@ -253,6 +255,19 @@ public interface IUserLayoutStore {
     
     public Document getFragmentLayout (IPerson person,
             IUserProfile profile);
+
+    /**
+     * Loads the stored personal layouts of many users with a few set based queries instead of
+     * loading each layout individually. Users without a stored layout for the profile, such as
+     * users still using the layout of their template user, are not included in the returned
+     * map and have to be loaded individually.
+     * 
+     * @param userNames The users to load the layouts of
+     * @param profileFname The functional name of the profile to load the layouts for
+     * @param locale The locale to load the layouts for, may be null
+     * @return The layouts keyed by user name
+     */
+    public Map<String, Document> getPersonalUserLayouts(Collection<String> userNames, String profileFname, Locale locale);
     
     /**
      * Generates a new struct id for directive elements that dlm places in
@@ -23,6 +23,7 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
@@ -47,7 +48,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.util.WebUtils;
 
 import com.google.common.base.Function;
@@ -67,6 +67,7 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
     private static final String OUTPUT_PROPERTIES_KEY = StylesheetUserPreferencesServiceImpl.class.getName() + ".OUTPUT_PROPERTIES";
     private static final String STYLESHEET_PARAMETERS_KEY = StylesheetUserPreferencesServiceImpl.class.getName() + ".STYLESHEET_PARAMETERS";
     private static final String LAYOUT_ATTRIBUTES_KEY = StylesheetUserPreferencesServiceImpl.class.getName() + ".LAYOUT_ATTRIBUTES";
+    private static final String PREFERENCES_VERSION_KEY = StylesheetUserPreferencesServiceImpl.class.getName() + ".PREFERENCES_VERSION";
     
     public static final String STYLESHEET_STRUCTURE_OVERRIDE_REQUEST_ATTRIBUTE =
             StylesheetUserPreferencesServiceImpl.class.getCanonicalName() + ".STYLESHEET_STRUCTURE_NAME";
@@ -231,6 +232,45 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
     }
     
+    /**
+     * Increment the preferences version of the session if a preference with the specified scope
+     * was modified. Request scoped preferences only live for the current request and don't change
+     * the version.
+     */
+    protected final void updatePreferencesVersion(HttpServletRequest request, Scope scope) {
+        if (Scope.REQUEST == scope) {
+            return;
+        }
+        
+        this.getPreferencesVersionCounter(request.getSession()).incrementAndGet();
+    }
+    
+    protected final AtomicLong getPreferencesVersionCounter(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            AtomicLong preferencesVersion = (AtomicLong)session.getAttribute(PREFERENCES_VERSION_KEY);
+            if (preferencesVersion == null) {
+                preferencesVersion = new AtomicLong();
+                session.setAttribute(PREFERENCES_VERSION_KEY, preferencesVersion);
+            }
+            return preferencesVersion;
+        }
+    }
+    
+    @Override
+    public long getPreferencesVersion(HttpServletRequest request) {
+        final HttpSession session = request.getSession(false);
+        if (session == null) {
+            return 0;
+        }
+        
+        final AtomicLong preferencesVersion = (AtomicLong)session.getAttribute(PREFERENCES_VERSION_KEY);
+        if (preferencesVersion == null) {
+            return 0;
+        }
+        
+        return preferencesVersion.get();
+    }
+    
     @Override
     public IStylesheetDescriptor getStylesheetDescriptor(HttpServletRequest request, PreferencesScope prefScope) {
         String stylesheetName = this.getStyleSheetName(request, prefScope);
@@ -291,7 +331,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return value;
     }
 
-    @Transactional
     @Override
     public String setOutputProperty(HttpServletRequest request, PreferencesScope prefScope, String name, String value) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
@@ -307,6 +346,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, outputPropertyDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -325,7 +366,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
     }
 
-    @Transactional
     @Override
     public String removeOutputProperty(HttpServletRequest request, PreferencesScope prefScope, String name) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
@@ -338,6 +378,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, outputPropertyDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -433,10 +475,10 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return properties;
     }
 
-    @Transactional
     @Override
     public void clearOutputProperties(HttpServletRequest request, PreferencesScope prefScope) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
+        this.updatePreferencesVersion(request, Scope.SESSION);
         
         final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
         if (stylesheetUserPreferences != null) {
@@ -498,7 +540,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return value;
     }
 
-    @Transactional
     @Override
     public String setStylesheetParameter(HttpServletRequest request, PreferencesScope prefScope, String name, String value) {
 
@@ -517,6 +558,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, stylesheetParameterDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -535,7 +578,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
     }
 
-    @Transactional
     @Override
     public String removeStylesheetParameter(HttpServletRequest request, PreferencesScope prefScope, String name) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
@@ -547,6 +589,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, stylesheetParameterDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -653,10 +697,10 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return stylesheetParameters;
     }
 
-    @Transactional
     @Override
     public void clearStylesheetParameters(HttpServletRequest request, PreferencesScope prefScope) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
+        this.updatePreferencesVersion(request, Scope.SESSION);
         
         final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
         if (stylesheetUserPreferences != null) {
@@ -791,7 +835,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return PortalWebUtils.getMapSessionAttribute(session, LAYOUT_ATTRIBUTES_KEY + stylesheetPreferencesKey.toString(), false);
     }
     
-    @Transactional
     @Override
     public String setLayoutAttribute(HttpServletRequest request, PreferencesScope prefScope, String nodeId, String name, String value) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
@@ -817,6 +860,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, layoutAttributeDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -864,7 +909,6 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
     }
 
-    @Transactional
     @Override
     public String removeLayoutAttribute(HttpServletRequest request, PreferencesScope prefScope, String nodeId, String name) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
@@ -876,6 +920,8 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
         
         final Scope scope = this.getWriteScope(request, prefScope, stylesheetPreferencesKey, layoutAttributeDescriptor);
+        
+        this.updatePreferencesVersion(request, scope);
         switch (scope) {
             case PERSISTENT: {
                 final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
@@ -1084,10 +1130,10 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         return layoutAttributes;
     }
 
-    @Transactional
     @Override
     public void clearLayoutAttributes(HttpServletRequest request, PreferencesScope prefScope, String nodeId) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
+        this.updatePreferencesVersion(request, Scope.SESSION);
         
         final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
         if (stylesheetUserPreferences != null) {
@@ -1110,10 +1156,10 @@ public class StylesheetUserPreferencesServiceImpl implements IStylesheetUserPref
         }
     }
 
-    @Transactional
     @Override
     public void clearAllLayoutAttributes(HttpServletRequest request, PreferencesScope prefScope) {
         final StylesheetPreferencesKey stylesheetPreferencesKey = this.getStylesheetPreferencesKey(request, prefScope);
+        this.updatePreferencesVersion(request, Scope.SESSION);
         
         final IStylesheetUserPreferences stylesheetUserPreferences = this.getStylesheetUserPreferences(request, stylesheetPreferencesKey);
         if (stylesheetUserPreferences != null) {
@@ -257,6 +257,10 @@ public class TransientUserLayoutManagerWrapper implements IUserLayoutManager {
         return man.getCacheKey();
     }
 
+    public long getLayoutVersion() {
+        return man.getLayoutVersion();
+    }
+
     public int getLayoutId() {
         return man.getLayoutId();
     }
@@ -52,6 +52,10 @@ public interface IStylesheetUserPreferencesDao {
     @Deprecated
     public IStylesheetUserPreferences getStylesheetUserPreferences(IStylesheetDescriptor stylesheetDescriptor, int personId, int profileId);
     
+    /**
+     * Store changes made to the preferences, implementations may defer writing them as long as
+     * the stored preferences are returned by the lookup methods in the meantime.
+     */
     public void storeStylesheetUserPreferences(IStylesheetUserPreferences stylesheetUserPreferences);
     
     public void deleteStylesheetUserPreferences(IStylesheetUserPreferences stylesheetUserPreferences);
@@ -18,8 +18,19 @@
  */
 package org.jasig.portal.layout.dao.jpa;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -33,26 +44,114 @@ import org.jasig.portal.layout.dao.IStylesheetUserPreferencesDao;
 import org.jasig.portal.layout.om.IStylesheetDescriptor;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
 import org.jasig.portal.security.IPerson;
+import org.jasig.portal.utils.Tuple;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * JPA implementation of {@link IStylesheetUserPreferencesDao}
- * 
+ * <p>
+ * When write-behind is enabled every caller gets its own detached copy of the preferences and
+ * {@link #storeStylesheetUserPreferences(IStylesheetUserPreferences)} only queues a copy of them,
+ * the lookup methods return copies of the queued preferences until {@link #flush()}, which must be
+ * called at regular intervals, copies them onto the stored entities in batched transactions. Storing
+ * the same preferences again before a flush replaces the queued copy so a run of tab switches or
+ * minimize clicks results in a single update. A queued copy is discarded if the stored preferences
+ * were changed by someone other than this DAO since the copy was read. Preferences that are managed
+ * by the caller's transaction are still written with that transaction.
+ *
  * @author Eric Dalquist
  * @version $Revision$
  */
+@ManagedResource("uPortal:section=Layout,name=JpaStylesheetUserPreferencesDao")
 @Repository("stylesheetUserPreferencesDao")
-public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements IStylesheetUserPreferencesDao {
+public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements IStylesheetUserPreferencesDao, DisposableBean, JpaStylesheetUserPreferencesDaoMXBean {
+    //Preferences waiting to be flushed and preferences being flushed, both keyed by descriptor id, user id and profile id
+    private final ConcurrentMap<String, StylesheetUserPreferencesImpl> pendingPreferences = new ConcurrentHashMap<String, StylesheetUserPreferencesImpl>();
+    private final ConcurrentMap<String, StylesheetUserPreferencesImpl> flushingPreferences = new ConcurrentHashMap<String, StylesheetUserPreferencesImpl>();
+    private final Lock flushLock = new ReentrantLock();
+    private final AtomicLong flushedPreferencesCount = new AtomicLong();
+    private final AtomicLong failedBatchCount = new AtomicLong();
+    private final AtomicLong stalePreferencesCount = new AtomicLong();
+    
+    /*
+     * Entity versions written by flush() keyed by preferences key, the version the first of a run of
+     * flushes started from and the version the last one wrote. Lets copies read before a flush still
+     * be written after it, requests hold their copy for far less than the retention time.
+     */
+    private final Cache<String, Tuple<Long, Long>> flushedVersions = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .<String, Tuple<Long, Long>>build();
+
+    private boolean writeBehind = true;
+    private int flushBatchSize = 100;
+
     private CriteriaQuery<StylesheetUserPreferencesImpl> findAllPreferences;
     private CriteriaQuery<StylesheetUserPreferencesImpl> findAllPreferencesForUser;
     private CriteriaQuery<StylesheetUserPreferencesImpl> findPreferencesByDescriptorUserProfileQuery;
     private ParameterExpression<StylesheetDescriptorImpl> stylesheetDescriptorParameter;
     private ParameterExpression<Integer> userIdParameter;
     private ParameterExpression<Integer> profileIdParameter;
-    
+
+    /**
+     * If true stored preferences are written to the database by {@link #flush()} instead of when
+     * they are stored, defaults to true. Must only be set during initialization.
+     */
+    @Value("${org.jasig.portal.layout.dao.jpa.JpaStylesheetUserPreferencesDao.writeBehind:true}")
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    @Override
+    public boolean isWriteBehind() {
+        return this.writeBehind;
+    }
+
+    /**
+     * Maximum number of preferences written per transaction by {@link #flush()}, defaults to 100
+     */
+    @Value("${org.jasig.portal.layout.dao.jpa.JpaStylesheetUserPreferencesDao.flushBatchSize:100}")
+    public void setFlushBatchSize(int flushBatchSize) {
+        if (flushBatchSize < 1) {
+            throw new IllegalArgumentException("flushBatchSize must be at least 1: " + flushBatchSize);
+        }
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    @Override
+    public int getFlushBatchSize() {
+        return this.flushBatchSize;
+    }
+
+    @Override
+    public int getPendingPreferences() {
+        return this.pendingPreferences.size();
+    }
+
+    @Override
+    public long getFlushedPreferencesCount() {
+        return this.flushedPreferencesCount.get();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return this.failedBatchCount.get();
+    }
+
+    @Override
+    public long getStalePreferencesCount() {
+        return this.stalePreferencesCount.get();
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         this.stylesheetDescriptorParameter = this.createParameterExpression(StylesheetDescriptorImpl.class, "stylesheetDescriptor");
@@ -122,7 +221,7 @@ public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements
         final TypedQuery<StylesheetUserPreferencesImpl> query = this.createCachedQuery(this.findAllPreferencesForUser);
         query.setParameter(this.userIdParameter, personId);
         
-        return query.getResultList();
+        return this.overlayPendingPreferences(query.getResultList());
     }
 
     @PortalTransactional
@@ -150,12 +249,20 @@ public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements
     @Override
     public List<? extends IStylesheetUserPreferences> getStylesheetUserPreferences() {
         final TypedQuery<StylesheetUserPreferencesImpl> query = this.createCachedQuery(this.findAllPreferences);
-        return query.getResultList();
+        return this.overlayPendingPreferences(query.getResultList());
     }
     
     @Override
     public IStylesheetUserPreferences getStylesheetUserPreferences(long id) {
-        return this.getEntityManager().find(StylesheetUserPreferencesImpl.class, id);
+        if (this.writeBehind) {
+            final StylesheetUserPreferencesImpl pending = this.getPendingPreferences(id);
+            if (pending != null) {
+                return new StylesheetUserPreferencesImpl(pending);
+            }
+        }
+        
+        final StylesheetUserPreferencesImpl stylesheetUserPreferences = this.getEntityManager().find(StylesheetUserPreferencesImpl.class, id);
+        return this.copyForWriteBehind(stylesheetUserPreferences);
     }
 
     @Override
@@ -166,6 +273,13 @@ public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements
     @Deprecated
     @Override
     public IStylesheetUserPreferences getStylesheetUserPreferences(IStylesheetDescriptor stylesheetDescriptor, int personId, int profileId) {
+        if (this.writeBehind) {
+            final StylesheetUserPreferencesImpl pending = this.getPendingPreferences(this.getPreferencesKey(stylesheetDescriptor.getId(), personId, profileId));
+            if (pending != null) {
+                return new StylesheetUserPreferencesImpl(pending);
+            }
+        }
+        
         final TypedQuery<StylesheetUserPreferencesImpl> query = this.createCachedQuery(findPreferencesByDescriptorUserProfileQuery);
         query.setParameter(this.stylesheetDescriptorParameter, (StylesheetDescriptorImpl)stylesheetDescriptor);
         query.setParameter(this.userIdParameter, personId);
@@ -173,18 +287,258 @@ public class JpaStylesheetUserPreferencesDao extends BasePortalJpaDao implements
         
         final List<StylesheetUserPreferencesImpl> results = query.getResultList();
         
-        return DataAccessUtils.uniqueResult(results);
+        return this.copyForWriteBehind(DataAccessUtils.uniqueResult(results));
     }
 
-    @PortalTransactional
     @Override
-    public void storeStylesheetUserPreferences(IStylesheetUserPreferences stylesheetUserPreferences) {
-        this.getEntityManager().persist(stylesheetUserPreferences);
+    public void storeStylesheetUserPreferences(final IStylesheetUserPreferences stylesheetUserPreferences) {
+        if (this.writeBehind && !this.getEntityManager().contains(stylesheetUserPreferences)) {
+            //The caller may keep modifying its copy, queue a copy that nothing modifies
+            final String key = this.getPreferencesKey(stylesheetUserPreferences);
+            this.pendingPreferences.put(key, new StylesheetUserPreferencesImpl((StylesheetUserPreferencesImpl) stylesheetUserPreferences));
+            return;
+        }
+        
+        this.getTransactionOperations().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                final EntityManager entityManager = getEntityManager();
+                if (entityManager.contains(stylesheetUserPreferences)) {
+                    entityManager.persist(stylesheetUserPreferences);
+                }
+                else {
+                    entityManager.merge(stylesheetUserPreferences);
+                }
+            }
+        });
     }
     
     @PortalTransactional
     @Override
     public void deleteStylesheetUserPreferences(IStylesheetUserPreferences stylesheetUserPreferences) {
-        this.getEntityManager().remove(stylesheetUserPreferences);
+        //Drop any queued copy so it is not written back after the delete
+        final String key = this.getPreferencesKey(stylesheetUserPreferences);
+        this.pendingPreferences.remove(key);
+        this.flushingPreferences.remove(key);
+        this.flushedVersions.invalidate(key);
+        
+        final EntityManager entityManager = this.getEntityManager();
+        if (entityManager.contains(stylesheetUserPreferences)) {
+            entityManager.remove(stylesheetUserPreferences);
+        }
+        else {
+            final StylesheetUserPreferencesImpl storedPreferences = entityManager.find(StylesheetUserPreferencesImpl.class, stylesheetUserPreferences.getId());
+            if (storedPreferences != null) {
+                entityManager.remove(storedPreferences);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (this.pendingPreferences.isEmpty()) {
+            return;
+        }
+        
+        //Only one thread flushes at a time, the other can skip since the queue is being drained
+        if (!this.flushLock.tryLock()) {
+            return;
+        }
+        try {
+            final Iterator<Map.Entry<String, StylesheetUserPreferencesImpl>> pendingItr = this.pendingPreferences.entrySet().iterator();
+            while (pendingItr.hasNext()) {
+                final Map<String, StylesheetUserPreferencesImpl> batch = new LinkedHashMap<String, StylesheetUserPreferencesImpl>();
+                while (pendingItr.hasNext() && batch.size() < this.flushBatchSize) {
+                    final Map.Entry<String, StylesheetUserPreferencesImpl> pendingEntry = pendingItr.next();
+                    final String key = pendingEntry.getKey();
+                    final StylesheetUserPreferencesImpl preferences = pendingEntry.getValue();
+                    
+                    //Published as flushing before it is removed from pending so lookups always find it
+                    this.flushingPreferences.put(key, preferences);
+                    if (this.pendingPreferences.remove(key, preferences)) {
+                        batch.put(key, preferences);
+                    }
+                    else {
+                        this.flushingPreferences.remove(key, preferences);
+                    }
+                }
+                
+                this.flushBatch(batch);
+            }
+        }
+        finally {
+            this.flushLock.unlock();
+        }
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (!this.pendingPreferences.isEmpty()) {
+            this.logger.info("Flushing {} pending stylesheet user preferences on shutdown", this.pendingPreferences.size());
+            this.flush();
+        }
+    }
+
+    /**
+     * Copy a batch of pending preferences onto the stored entities in a single transaction. If the
+     * transaction fails the preferences are queued again unless they were stored or deleted since.
+     */
+    protected void flushBatch(final Map<String, StylesheetUserPreferencesImpl> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        //Entity version before the copy and the stored entity of each written preferences keyed by preferences key
+        final Map<String, Tuple<Long, StylesheetUserPreferencesImpl>> written = new LinkedHashMap<String, Tuple<Long, StylesheetUserPreferencesImpl>>();
+        final List<String> staleKeys = new ArrayList<String>();
+        boolean flushed = false;
+        try {
+            this.getTransactionOperations().execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    written.clear();
+                    staleKeys.clear();
+                    
+                    final EntityManager entityManager = getEntityManager();
+                    for (final Map.Entry<String, StylesheetUserPreferencesImpl> batchEntry : batch.entrySet()) {
+                        final String key = batchEntry.getKey();
+                        final StylesheetUserPreferencesImpl preferences = batchEntry.getValue();
+                        final StylesheetUserPreferencesImpl storedPreferences = entityManager.find(StylesheetUserPreferencesImpl.class, preferences.getId());
+                        if (storedPreferences == null) {
+                            logger.debug("{} was deleted before it was flushed, it will be ignored", preferences);
+                            continue;
+                        }
+                        
+                        if (!isCurrentVersion(key, preferences, storedPreferences)) {
+                            logger.warn("{} was changed to {} since it was read, the queued change will be discarded", preferences, storedPreferences);
+                            staleKeys.add(key);
+                            continue;
+                        }
+                        
+                        written.put(key, new Tuple<Long, StylesheetUserPreferencesImpl>(storedPreferences.getEntityVersion(), storedPreferences));
+                        storedPreferences.copyPreferences(preferences);
+                    }
+                }
+            });
+            
+            flushed = true;
+            this.flushedPreferencesCount.addAndGet(written.size());
+            this.stalePreferencesCount.addAndGet(staleKeys.size());
+            this.recordFlushedVersions(written);
+        }
+        catch (RuntimeException e) {
+            this.failedBatchCount.incrementAndGet();
+            this.logger.warn("Failed to flush " + batch.size() + " stylesheet user preferences, they will be retried on the next flush", e);
+        }
+        finally {
+            for (final Map.Entry<String, StylesheetUserPreferencesImpl> batchEntry : batch.entrySet()) {
+                final String key = batchEntry.getKey();
+                final StylesheetUserPreferencesImpl preferences = batchEntry.getValue();
+                if (this.flushingPreferences.remove(key, preferences) && !flushed) {
+                    this.pendingPreferences.putIfAbsent(key, preferences);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true if the stored preferences have not been changed since the queued copy was read, other than by flushes of this DAO
+     */
+    protected boolean isCurrentVersion(String key, StylesheetUserPreferencesImpl preferences, StylesheetUserPreferencesImpl storedPreferences) {
+        final long version = preferences.getEntityVersion();
+        final long storedVersion = storedPreferences.getEntityVersion();
+        if (version == storedVersion) {
+            return true;
+        }
+        
+        final Tuple<Long, Long> flushedVersion = this.flushedVersions.getIfPresent(key);
+        return flushedVersion != null && flushedVersion.second == storedVersion && flushedVersion.first <= version && version < storedVersion;
+    }
+    
+    /**
+     * Remember the versions written by a flush, the entities hold the incremented version once the transaction is committed
+     */
+    protected void recordFlushedVersions(Map<String, Tuple<Long, StylesheetUserPreferencesImpl>> written) {
+        for (final Map.Entry<String, Tuple<Long, StylesheetUserPreferencesImpl>> writtenEntry : written.entrySet()) {
+            final String key = writtenEntry.getKey();
+            final long previousVersion = writtenEntry.getValue().first;
+            final long version = writtenEntry.getValue().second.getEntityVersion();
+            if (version == previousVersion) {
+                //Nothing differed so nothing was written
+                continue;
+            }
+            
+            final Tuple<Long, Long> flushedVersion = this.flushedVersions.getIfPresent(key);
+            if (flushedVersion != null && flushedVersion.second == previousVersion) {
+                this.flushedVersions.put(key, new Tuple<Long, Long>(flushedVersion.first, version));
+            }
+            else {
+                this.flushedVersions.put(key, new Tuple<Long, Long>(previousVersion, version));
+            }
+        }
+    }
+    
+    /**
+     * With write-behind every caller gets its own detached copy so changes made to it are only
+     * written by a {@link #flush()} after they are stored and are not seen by anyone else before
+     */
+    protected StylesheetUserPreferencesImpl copyForWriteBehind(StylesheetUserPreferencesImpl stylesheetUserPreferences) {
+        if (this.writeBehind && stylesheetUserPreferences != null) {
+            return new StylesheetUserPreferencesImpl(stylesheetUserPreferences);
+        }
+        
+        return stylesheetUserPreferences;
+    }
+    
+    /**
+     * Replace stored preferences that have a queued copy with a copy of the queued preferences
+     */
+    protected List<StylesheetUserPreferencesImpl> overlayPendingPreferences(List<StylesheetUserPreferencesImpl> storedPreferences) {
+        if (!this.writeBehind) {
+            return storedPreferences;
+        }
+        
+        final List<StylesheetUserPreferencesImpl> preferences = new ArrayList<StylesheetUserPreferencesImpl>(storedPreferences.size());
+        for (final StylesheetUserPreferencesImpl stored : storedPreferences) {
+            final StylesheetUserPreferencesImpl pending = this.getPendingPreferences(this.getPreferencesKey(stored));
+            preferences.add(new StylesheetUserPreferencesImpl(pending != null ? pending : stored));
+        }
+        return preferences;
+    }
+    
+    protected StylesheetUserPreferencesImpl getPendingPreferences(String key) {
+        final StylesheetUserPreferencesImpl pending = this.pendingPreferences.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        
+        return this.flushingPreferences.get(key);
+    }
+    
+    protected StylesheetUserPreferencesImpl getPendingPreferences(long id) {
+        if (this.pendingPreferences.isEmpty() && this.flushingPreferences.isEmpty()) {
+            return null;
+        }
+        
+        for (final StylesheetUserPreferencesImpl pending : this.pendingPreferences.values()) {
+            if (pending.getId() == id) {
+                return pending;
+            }
+        }
+        for (final StylesheetUserPreferencesImpl flushing : this.flushingPreferences.values()) {
+            if (flushing.getId() == id) {
+                return flushing;
+            }
+        }
+        
+        return null;
+    }
+    
+    protected String getPreferencesKey(IStylesheetUserPreferences stylesheetUserPreferences) {
+        return this.getPreferencesKey(stylesheetUserPreferences.getStylesheetDescriptorId(), stylesheetUserPreferences.getUserId(), stylesheetUserPreferences.getProfileId());
+    }
+    
+    protected String getPreferencesKey(long stylesheetDescriptorId, int userId, int profileId) {
+        return stylesheetDescriptorId + ":" + userId + ":" + profileId;
     }
 }
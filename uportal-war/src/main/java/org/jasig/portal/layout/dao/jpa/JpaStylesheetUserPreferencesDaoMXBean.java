@@ -0,0 +1,60 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dao.jpa;
+
+/**
+ * JMX configuration and stats for the write-behind of JpaStylesheetUserPreferencesDao
+ */
+public interface JpaStylesheetUserPreferencesDaoMXBean {
+
+    /**
+     * @return true if stored preferences are held in memory and written to the database by {@link #flush()}
+     */
+    boolean isWriteBehind();
+
+    /**
+     * @return Maximum number of preferences written per transaction by {@link #flush()}
+     */
+    int getFlushBatchSize();
+
+    /**
+     * @return Number of stored preferences waiting to be written to the database
+     */
+    int getPendingPreferences();
+
+    /**
+     * @return Number of preferences written to the database by {@link #flush()}
+     */
+    long getFlushedPreferencesCount();
+
+    /**
+     * @return Number of batches that failed to be written and were queued again
+     */
+    long getFailedBatchCount();
+
+    /**
+     * @return Number of queued preferences discarded because the stored preferences were changed since they were read
+     */
+    long getStalePreferencesCount();
+
+    /**
+     * Write all pending preferences to the database
+     */
+    void flush();
+}
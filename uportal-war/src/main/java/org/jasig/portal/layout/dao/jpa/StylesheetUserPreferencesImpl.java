@@ -153,6 +153,24 @@ class StylesheetUserPreferencesImpl implements IStylesheetUserPreferences {
         this.profileId = profileId;
     }
     
+    /**
+     * Detached copy of the preferences, including the id and entity version. Modifying the copy
+     * does not modify the source and the copy shares no mutable state with it.
+     */
+    StylesheetUserPreferencesImpl(StylesheetUserPreferencesImpl source) {
+        this.id = source.id;
+        this.entityVersion = source.entityVersion;
+        this.stylesheetDescriptor = source.stylesheetDescriptor;
+        this.userId = source.userId;
+        this.profileId = source.profileId;
+        this.outputProperties.putAll(source.outputProperties);
+        this.parameters.putAll(source.parameters);
+        for (final Entry<String, LayoutNodeAttributesImpl> layoutAttributesEntry : source.layoutAttributes.entrySet()) {
+            final String nodeId = layoutAttributesEntry.getKey();
+            this.layoutAttributes.put(nodeId, new LayoutNodeAttributesImpl(nodeId, layoutAttributesEntry.getValue().getAttributes()));
+        }
+    }
+    
     @PrePersist
     @SuppressWarnings("unused") //Called by jpa/hibernate via reflection
     private void purgeEmptyLayoutNodes() {
@@ -172,6 +190,10 @@ class StylesheetUserPreferencesImpl implements IStylesheetUserPreferences {
         return this.id;
     }
 
+    long getEntityVersion() {
+        return this.entityVersion;
+    }
+
     @Override
     public long getStylesheetDescriptorId() {
         return this.stylesheetDescriptor.getId();
@@ -356,6 +378,39 @@ class StylesheetUserPreferencesImpl implements IStylesheetUserPreferences {
         this.layoutAttributes.clear(); 
     }
 
+    /**
+     * Replace the preferences of this entity with those of a detached copy of it. Only the
+     * collections that differ are modified and the layout node attributes of nodes present in both
+     * are updated in place so unchanged rows are left alone.
+     */
+    void copyPreferences(StylesheetUserPreferencesImpl source) {
+        if (!this.outputProperties.equals(source.outputProperties)) {
+            this.outputProperties.clear();
+            this.outputProperties.putAll(source.outputProperties);
+        }
+
+        if (!this.parameters.equals(source.parameters)) {
+            this.parameters.clear();
+            this.parameters.putAll(source.parameters);
+        }
+
+        this.layoutAttributes.keySet().retainAll(source.layoutAttributes.keySet());
+        for (final Entry<String, LayoutNodeAttributesImpl> sourceAttributesEntry : source.layoutAttributes.entrySet()) {
+            final String nodeId = sourceAttributesEntry.getKey();
+            final Map<String, String> sourceAttributes = sourceAttributesEntry.getValue().getAttributes();
+            if (sourceAttributes.isEmpty()) {
+                this.layoutAttributes.remove(nodeId);
+                continue;
+            }
+
+            final Map<String, String> attributes = this.getLayoutNodeAttributes(nodeId, true).getAttributes();
+            if (!attributes.equals(sourceAttributes)) {
+                attributes.clear();
+                attributes.putAll(sourceAttributes);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "StylesheetUserPreferencesImpl [id=" + this.id + ", entityVersion=" + this.entityVersion
@@ -30,13 +30,12 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.xpath.XPathConstants;
 
 import org.apache.commons.logging.Log;
@@ -50,6 +49,10 @@ import org.jasig.portal.layout.IUserLayout;
 import org.jasig.portal.layout.IUserLayoutManager;
 import org.jasig.portal.layout.IUserLayoutStore;
 import org.jasig.portal.layout.PortletSubscribeIdResolver;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeIndex;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeInterner;
+import org.jasig.portal.layout.immutable.ImmutableLayoutXMLEventReader;
 import org.jasig.portal.layout.node.IUserLayoutChannelDescription;
 import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
 import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
@@ -66,10 +69,12 @@ import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.PersonFactory;
 import org.jasig.portal.spring.locator.PortletDefinitionRegistryLocator;
 import org.jasig.portal.spring.locator.UserIdentityStoreLocator;
+import org.jasig.portal.utils.DocumentFactory;
 import org.jasig.portal.xml.XmlUtilities;
 import org.jasig.portal.xml.xpath.XPathOperations;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -104,10 +109,12 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 
     protected final static Random rnd = new Random();
     protected String cacheKey = null;  // Must be "updated" prior to use
+    private final AtomicLong layoutVersion = new AtomicLong();
     protected String rootNodeId = null;
 
     private boolean channelsAdded = false;
     private boolean isFragmentOwner = false;
+    private boolean compactLayouts = true;
 
     public DistributedLayoutManager(IPerson owner, IUserProfile profile) throws PortalException {
 
@@ -163,6 +170,17 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         this.portalEventFactory = portalEventFactory;
     }
 
+    /**
+     * If true layouts of users that do not own a fragment are cached as immutable trees that
+     * share nodes with the fragments they incorporate, the DOM is only re-created when an
+     * operation needs it and every edit publishes a new tree that is read without locking.
+     * Defaults to true.
+     */
+    @Value("${org.jasig.portal.layout.dlm.DistributedLayoutManager.compactLayouts:true}")
+    public void setCompactLayouts(boolean compactLayouts) {
+        this.compactLayouts = compactLayouts;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         // Ensure a new layout gets loaded whenever a user logs in except for guest users
@@ -203,15 +221,34 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         Node attr = layout.getAttributeNodeNS( Constants.NS_URI,
                                                Constants.LCL_FRAGMENT_NAME );
         this.isFragmentOwner = attr != null;
+        
+        // fragment owners edit their layout, everyone else mostly just reads it
+        if (this.compactLayouts && !this.isFragmentOwner) {
+            userLayout.compact();
+        }
     }
 
+    /**
+     * Threads updating the layout get the working DOM so their changes are kept, everyone else gets
+     * a copy of the layout that is not changed by concurrent edits.
+     */
     @SuppressWarnings("deprecation")
     @Deprecated
     @Override
     public Document getUserLayoutDOM()
     {
         final DistributedUserLayout userLayout = getDistributedUserLayout();
-        return userLayout.getLayout();
+        if (userLayout.isUpdatingThread()) {
+            return userLayout.getLayout();
+        }
+        return userLayout.getLayoutSnapshot();
+    }
+    
+    /**
+     * @return The layout DOM, only to be used while holding the read lock or updating the layout
+     */
+    private Document getLayoutDocument() {
+        return this.getDistributedUserLayout().getLayout();
     }
 
     protected DistributedUserLayout getDistributedUserLayout() {
@@ -273,21 +310,77 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         return userLayout;
     }
     
+    /**
+     * @return The published compact form of the user's layout which can be read without locking,
+     * null if the DOM has to be read instead. Threads updating the layout always read the DOM so
+     * they see their own changes.
+     */
+    protected ImmutableLayoutNode getCompactLayout() {
+        final DistributedUserLayout userLayout = this.getDistributedUserLayout();
+        if (userLayout.isUpdatingThread()) {
+            return null;
+        }
+        return userLayout.getCompactLayout();
+    }
+    
+    /**
+     * @return The index of the published compact layout, null if the layout has not been compacted or is being updated by the current thread
+     */
+    protected ImmutableLayoutNodeIndex getLayoutIndex() {
+        final DistributedUserLayout userLayout = this.getDistributedUserLayout();
+        if (userLayout.isUpdatingThread()) {
+            return null;
+        }
+        return userLayout.getLayoutIndex();
+    }
+    
+    /**
+     * @return The acquired read lock of the layout, must be released once done reading the DOM
+     */
+    protected Lock lockLayoutForRead() {
+        final Lock readLock = this.getDistributedUserLayout().getReadLock();
+        readLock.lock();
+        return readLock;
+    }
+    
+    /**
+     * Start an update of the layout, the returned layout must be passed to
+     * {@link #endLayoutUpdate(DistributedUserLayout)} in a finally block.
+     */
+    protected DistributedUserLayout beginLayoutUpdate() {
+        final DistributedUserLayout userLayout = this.getDistributedUserLayout();
+        userLayout.beginUpdate();
+        return userLayout;
+    }
+    
+    /**
+     * End an update of the layout, publishing the changes to lock-free readers if compact layouts
+     * are in use.
+     */
+    protected void endLayoutUpdate(DistributedUserLayout userLayout) {
+        userLayout.endUpdate(this.compactLayouts && !this.isFragmentOwner);
+    }
+    
     @Override
     public XMLEventReader getUserLayoutReader() {
-        Document ul = this.getUserLayoutDOM();
-        if (ul == null) {
-            throw new PortalException("User layout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        if (compactLayout != null) {
+            return new ImmutableLayoutXMLEventReader(compactLayout);
         }
         
-        final XMLInputFactory xmlInputFactory = this.xmlUtilities.getXmlInputFactory();
-        
-        final DOMSource layoutSoure = new DOMSource(ul);
+        final Lock readLock = this.lockLayoutForRead();
         try {
-            return xmlInputFactory.createXMLEventReader(layoutSoure);
+            Document ul = this.getLayoutDocument();
+            if (ul == null) {
+                throw new PortalException("User layout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
+            }
+
+            // the reader is consumed after the lock is released, stream a copy of the DOM
+            final ImmutableLayoutNode layoutCopy = ImmutableLayoutNode.fromDocument(ul, new ImmutableLayoutNodeInterner());
+            return new ImmutableLayoutXMLEventReader(layoutCopy);
         }
-        catch (XMLStreamException e) {
-            throw new RuntimeException("Failed to create Layout XMLStreamReader for user: " + owner.getAttribute(IPerson.USERNAME), e);
+        finally {
+            readLock.unlock();
         }
     }
 
@@ -311,19 +404,19 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         return xfrmr;
     }
 
-    public synchronized void loadUserLayout() throws PortalException {
+    public void loadUserLayout() throws PortalException {
         this.loadUserLayout(false);
     }
 
-    public synchronized void loadUserLayout(boolean reload) throws PortalException {
-        Document uli= null;
+    public void loadUserLayout(boolean reload) throws PortalException {
+        DistributedUserLayout uli= null;
         try {
             //Clear the loaded document first if this is a forced reload
             if (reload) {
                 this.layoutCachingService.removeCachedLayout(owner, profile);
             }
             
-            uli=getUserLayoutDOM();
+            uli=getDistributedUserLayout();
         } catch (Exception e) {
             throw new PortalException("Exception encountered while " +
                     "reading a layout for userId=" + this.owner.getID() +
@@ -337,43 +430,65 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         }
     }
 
-    public synchronized void saveUserLayout() throws PortalException{
-        Document uld=this.getUserLayoutDOM();
+    public void saveUserLayout() throws PortalException{
+        final DistributedUserLayout userLayout = this.beginLayoutUpdate();
+        try {
+            Document uld=this.getLayoutDocument();
         
-        if(uld==null) {
-            throw new PortalException("UserLayout has not been initialized for " 
-                    + owner.getAttribute(IPerson.USERNAME) + ".");
+            if(uld==null) {
+                throw new PortalException("UserLayout has not been initialized for " 
+                        + owner.getAttribute(IPerson.USERNAME) + ".");
+            }
+            try {
+                this.distributedLayoutStore.setUserLayout(this.owner,this.profile,uld,channelsAdded);
+            } catch (Exception e) {
+                throw new PortalException("Exception encountered while " +
+                        "saving layout for userId=" + this.owner.getID() +
+                        ", profileId=" + this.profile.getProfileId(),e);
+            }
+
+            this.channelsAdded = false;
         }
-        try {
-            this.distributedLayoutStore.setUserLayout(this.owner,this.profile,uld,channelsAdded);
-        } catch (Exception e) {
-            throw new PortalException("Exception encountered while " +
-                    "saving layout for userId=" + this.owner.getID() +
-                    ", profileId=" + this.profile.getProfileId(),e);
+        finally {
+            this.endLayoutUpdate(userLayout);
         }
-
-        this.channelsAdded = false;
     }
     
 
     @Override
     public Set<String> getAllSubscribedChannels() {
-        final Document uld = this.getUserLayoutDOM();
-
-        if (uld == null) {
-            throw new PortalException("UserLayout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        if (compactLayout != null) {
+            final List<ImmutableLayoutNode> channelNodes = compactLayout.getElementsByTagName(CHANNEL);
+            final Set<String> allSubscribedChannels = new LinkedHashSet<String>(channelNodes.size());
+            for (final ImmutableLayoutNode channelNode : channelNodes) {
+                allSubscribedChannels.add(channelNode.getId());
+            }
+            return allSubscribedChannels;
         }
         
-        final NodeList channelElements = uld.getElementsByTagName(CHANNEL);
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            final Document uld = this.getLayoutDocument();
+
+            if (uld == null) {
+                throw new PortalException("UserLayout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
+            }
         
-        final Set<String> allSubscribedChannels = new LinkedHashSet<String>(channelElements.getLength());
-        for (int nodeIndex = 0; nodeIndex < channelElements.getLength(); nodeIndex++) {
-            final Element channelElement = (Element)channelElements.item(nodeIndex);
-            final String subscribeId = channelElement.getAttribute("ID");
-            allSubscribedChannels.add(subscribeId);
-        }
+            final NodeList channelElements = uld.getElementsByTagName(CHANNEL);
+        
+            final Set<String> allSubscribedChannels = new LinkedHashSet<String>(channelElements.getLength());
+            for (int nodeIndex = 0; nodeIndex < channelElements.getLength(); nodeIndex++) {
+                final Element channelElement = (Element)channelElements.item(nodeIndex);
+                final String subscribeId = channelElement.getAttribute("ID");
+                allSubscribedChannels.add(subscribeId);
+            }
         
-        return allSubscribedChannels;
+            return allSubscribedChannels;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     public IUserLayoutNodeDescription getNode( String nodeId )
@@ -382,29 +497,48 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         if (nodeId == null)
             return null;
         
-        Document uld=this.getUserLayoutDOM();
-
-        if( uld==null )
-            throw new PortalException("UserLayout has not been initialized for " 
-                    + owner.getAttribute(IPerson.USERNAME) + ".");
-
         // find an element with a given id
-        Element element = uld.getElementById( nodeId );
-        if( element == null )
-        {
-            throw new PortalException("Element with ID=\"" + nodeId +
-                                      "\" doesn't exist for " 
-                    + owner.getAttribute(IPerson.USERNAME) + "." );
-        }
-        // instantiate the node description
-        IUserLayoutNodeDescription desc = createNodeDescription(element);
-        if (nodeId.startsWith(Constants.FRAGMENT_ID_USER_PREFIX)
-                && desc instanceof ChannelDescription)
-        {
-            FragmentChannelInfo info = this.distributedLayoutStore.getFragmentChannelInfo(nodeId);
-            ((ChannelDescription)desc).setFragmentChannelInfo(info);
+        Element element = null;
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        final Lock readLock = compactLayout == null ? this.lockLayoutForRead() : null;
+        try {
+            if (compactLayout != null) {
+                final ImmutableLayoutNode node = this.findCompactNode(compactLayout, nodeId);
+                if (node != null) {
+                    // channel descriptions are read from the parameter children, folders need no children
+                    element = node.toElement(DocumentFactory.getThreadDocument(), CHANNEL.equals(node.getNodeName()));
+                }
+            }
+            else {
+                Document uld=this.getLayoutDocument();
+    
+                if( uld==null )
+                    throw new PortalException("UserLayout has not been initialized for " 
+                            + owner.getAttribute(IPerson.USERNAME) + ".");
+    
+                element = uld.getElementById( nodeId );
+            }
+            if( element == null )
+            {
+                throw new PortalException("Element with ID=\"" + nodeId +
+                                          "\" doesn't exist for " 
+                        + owner.getAttribute(IPerson.USERNAME) + "." );
+            }
+            // instantiate the node description
+            IUserLayoutNodeDescription desc = createNodeDescription(element);
+            if (nodeId.startsWith(Constants.FRAGMENT_ID_USER_PREFIX)
+                    && desc instanceof ChannelDescription)
+            {
+                FragmentChannelInfo info = this.distributedLayoutStore.getFragmentChannelInfo(nodeId);
+                ((ChannelDescription)desc).setFragmentChannelInfo(info);
+            }
+            return desc;
+        }
+        finally {
+            if (readLock != null) {
+                readLock.unlock();
+            }
         }
-        return desc;
     }
 
     public IUserLayoutNodeDescription addNode( IUserLayoutNodeDescription node,
@@ -412,56 +546,62 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                                               String nextSiblingId )
         throws PortalException
     {
-        boolean isChannel=false;
-        IUserLayoutNodeDescription parent=this.getNode(parentId);
-        if( canAddNode( node, parent, nextSiblingId ) )
-        {
-            // assign new Id
-            try {
-                if(node instanceof IUserLayoutChannelDescription) {
-                    isChannel=true;
-                    node.setId(this.distributedLayoutStore.generateNewChannelSubscribeId(owner));
-                } else {
-                    node.setId(this.distributedLayoutStore.generateNewFolderId(owner));
+        final DistributedUserLayout userLayout = this.beginLayoutUpdate();
+        try {
+            boolean isChannel=false;
+            IUserLayoutNodeDescription parent=this.getNode(parentId);
+            if( canAddNode( node, parent, nextSiblingId ) )
+            {
+                // assign new Id
+                try {
+                    if(node instanceof IUserLayoutChannelDescription) {
+                        isChannel=true;
+                        node.setId(this.distributedLayoutStore.generateNewChannelSubscribeId(owner));
+                    } else {
+                        node.setId(this.distributedLayoutStore.generateNewFolderId(owner));
+                    }
+                } catch (Exception e) {
+                        throw new PortalException("Exception encountered while " +
+                                "generating new user layout node Id for  for " 
+                            + owner.getAttribute(IPerson.USERNAME), e);
                 }
-            } catch (Exception e) {
-                    throw new PortalException("Exception encountered while " +
-                            "generating new user layout node Id for  for " 
-                        + owner.getAttribute(IPerson.USERNAME), e);
-            }
 
-            Document uld=getUserLayoutDOM();
-            Element childElement=node.getXML(uld);
-            Element parentElement= uld.getElementById(parentId);
-            if(nextSiblingId==null) {
-                parentElement.appendChild(childElement);
-            } else {
-                Node nextSibling=uld.getElementById(nextSiblingId);
-                parentElement.insertBefore(childElement,nextSibling);
-            }
-            // register element id
-            childElement.setIdAttribute(Constants.ATT_ID, true);
-            childElement.setAttribute(Constants.ATT_ID, node.getId());
-            this.updateCacheKey();
-
-            // push into the user's real layout that gets persisted.
-            HandlerUtils.createPlfNodeAndPath( childElement,
-                                               isChannel, owner );
-
-            // fire event
-            final int layoutId = this.getLayoutId();
-            if(isChannel) {
-                this.channelsAdded = true;
-                final String fname = ((IUserLayoutChannelDescription)node).getFunctionalName();
-                this.portalEventFactory.publishPortletAddedToLayoutPortalEvent(this, this.owner, layoutId, parent.getId(), fname);
-            } 
-            else {
-                this.portalEventFactory.publishFolderAddedToLayoutPortalEvent(this, this.owner, layoutId, node.getId());
-            }
+                Document uld=this.getLayoutDocument();
+                Element childElement=node.getXML(uld);
+                Element parentElement= uld.getElementById(parentId);
+                if(nextSiblingId==null) {
+                    parentElement.appendChild(childElement);
+                } else {
+                    Node nextSibling=uld.getElementById(nextSiblingId);
+                    parentElement.insertBefore(childElement,nextSibling);
+                }
+                // register element id
+                childElement.setIdAttribute(Constants.ATT_ID, true);
+                childElement.setAttribute(Constants.ATT_ID, node.getId());
+                this.updateCacheKey();
+
+                // push into the user's real layout that gets persisted.
+                HandlerUtils.createPlfNodeAndPath( childElement,
+                                                   isChannel, owner );
+
+                // fire event
+                final int layoutId = this.getLayoutId();
+                if(isChannel) {
+                    this.channelsAdded = true;
+                    final String fname = ((IUserLayoutChannelDescription)node).getFunctionalName();
+                    this.portalEventFactory.publishPortletAddedToLayoutPortalEvent(this, this.owner, layoutId, parent.getId(), fname);
+                } 
+                else {
+                    this.portalEventFactory.publishFolderAddedToLayoutPortalEvent(this, this.owner, layoutId, node.getId());
+                }
             
-            return node;
+                return node;
+            }
+            return null;
+        }
+        finally {
+            this.endLayoutUpdate(userLayout);
         }
-        return null;
     }
 
     public boolean moveNode( String nodeId,
@@ -469,76 +609,88 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                              String nextSiblingId )
         throws PortalException
     {
-        IUserLayoutNodeDescription parent=this.getNode(parentId);
-        IUserLayoutNodeDescription node=this.getNode(nodeId);
-        String oldParentNodeId=getParentId(nodeId);
-        if(canMoveNode(node,parent,nextSiblingId)) {
-            // must be a folder
-            Document uld=this.getUserLayoutDOM();
-            Element childElement = uld.getElementById(nodeId);
-            Element parentElement = uld.getElementById(parentId);
-            if(nextSiblingId==null) {
-                parentElement.appendChild(childElement);
-            } else {
-                Node nextSibling=uld.getElementById(nextSiblingId);
-                parentElement.insertBefore(childElement,nextSibling);
-            }
-            this.updateCacheKey();
-
-            // propagate the change into the PLF
-            Element oldParent = uld.getElementById(oldParentNodeId);
-            TabColumnPrefsHandler.moveElement( childElement,
-                                               oldParent,
-                                               owner );
-            // fire event
-            final int layoutId = this.getLayoutId();
-            if (node instanceof IUserLayoutChannelDescription) {
-                this.channelsAdded = true;
-                final String fname = ((IUserLayoutChannelDescription)node).getFunctionalName();
-                this.portalEventFactory.publishPortletMovedInLayoutPortalEvent(this, this.owner, layoutId, oldParentNodeId, parent.getId(), fname);
-            } 
-            else {
-                this.portalEventFactory.publishFolderMovedInLayoutPortalEvent(this, this.owner, layoutId, oldParentNodeId, parent.getId());
+        final DistributedUserLayout userLayout = this.beginLayoutUpdate();
+        try {
+            IUserLayoutNodeDescription parent=this.getNode(parentId);
+            IUserLayoutNodeDescription node=this.getNode(nodeId);
+            String oldParentNodeId=getParentId(nodeId);
+            if(canMoveNode(node,parent,nextSiblingId)) {
+                // must be a folder
+                Document uld=this.getLayoutDocument();
+                Element childElement = uld.getElementById(nodeId);
+                Element parentElement = uld.getElementById(parentId);
+                if(nextSiblingId==null) {
+                    parentElement.appendChild(childElement);
+                } else {
+                    Node nextSibling=uld.getElementById(nextSiblingId);
+                    parentElement.insertBefore(childElement,nextSibling);
+                }
+                this.updateCacheKey();
+
+                // propagate the change into the PLF
+                Element oldParent = uld.getElementById(oldParentNodeId);
+                TabColumnPrefsHandler.moveElement( childElement,
+                                                   oldParent,
+                                                   owner );
+                // fire event
+                final int layoutId = this.getLayoutId();
+                if (node instanceof IUserLayoutChannelDescription) {
+                    this.channelsAdded = true;
+                    final String fname = ((IUserLayoutChannelDescription)node).getFunctionalName();
+                    this.portalEventFactory.publishPortletMovedInLayoutPortalEvent(this, this.owner, layoutId, oldParentNodeId, parent.getId(), fname);
+                } 
+                else {
+                    this.portalEventFactory.publishFolderMovedInLayoutPortalEvent(this, this.owner, layoutId, oldParentNodeId, parent.getId());
+                }
+                return true;
             }
-            return true;
+            return false;
+        }
+        finally {
+            this.endLayoutUpdate(userLayout);
         }
-        return false;
     }
 
     public boolean deleteNode( String nodeId )
         throws PortalException {
-        if(canDeleteNode(nodeId)) {
-            IUserLayoutNodeDescription nodeDescription=this.getNode(nodeId);
-            String parentNodeId=this.getParentId(nodeId);
-
-            Document uld=this.getUserLayoutDOM();
-            Element ilfNode = uld.getElementById(nodeId);
-            Node parent=ilfNode.getParentNode();
-            if(parent!=null) {
-                parent.removeChild(ilfNode);
-            } else {
-                throw new PortalException("Node \""+nodeId +
-                        "\" has a NULL parent for layout of " 
-                    + owner.getAttribute(IPerson.USERNAME) + ".");
-            }
-            this.updateCacheKey();
-
-            // now push into the PLF
-            TabColumnPrefsHandler.deleteNode( ilfNode, (Element) parent,
-                                              owner );
-            // inform the listeners
-            final int layoutId = this.getLayoutId();
-            if (nodeDescription instanceof IUserLayoutChannelDescription) {
-                final IUserLayoutChannelDescription userLayoutChannelDescription = (IUserLayoutChannelDescription)nodeDescription;
-                this.portalEventFactory.publishPortletDeletedFromLayoutPortalEvent(this, this.owner, layoutId, parentNodeId, userLayoutChannelDescription.getFunctionalName());
-            }
-            else {
-                this.portalEventFactory.publishFolderDeletedFromLayoutPortalEvent(this, this.owner, layoutId, parentNodeId, nodeDescription.getId(), nodeDescription.getName());
-            }
+        final DistributedUserLayout userLayout = this.beginLayoutUpdate();
+        try {
+            if(canDeleteNode(nodeId)) {
+                IUserLayoutNodeDescription nodeDescription=this.getNode(nodeId);
+                String parentNodeId=this.getParentId(nodeId);
+
+                Document uld=this.getLayoutDocument();
+                Element ilfNode = uld.getElementById(nodeId);
+                Node parent=ilfNode.getParentNode();
+                if(parent!=null) {
+                    parent.removeChild(ilfNode);
+                } else {
+                    throw new PortalException("Node \""+nodeId +
+                            "\" has a NULL parent for layout of " 
+                        + owner.getAttribute(IPerson.USERNAME) + ".");
+                }
+                this.updateCacheKey();
+
+                // now push into the PLF
+                TabColumnPrefsHandler.deleteNode( ilfNode, (Element) parent,
+                                                  owner );
+                // inform the listeners
+                final int layoutId = this.getLayoutId();
+                if (nodeDescription instanceof IUserLayoutChannelDescription) {
+                    final IUserLayoutChannelDescription userLayoutChannelDescription = (IUserLayoutChannelDescription)nodeDescription;
+                    this.portalEventFactory.publishPortletDeletedFromLayoutPortalEvent(this, this.owner, layoutId, parentNodeId, userLayoutChannelDescription.getFunctionalName());
+                }
+                else {
+                    this.portalEventFactory.publishFolderDeletedFromLayoutPortalEvent(this, this.owner, layoutId, parentNodeId, nodeDescription.getId(), nodeDescription.getName());
+                }
 
-            return true;
+                return true;
+            }
+            return false;
+        }
+        finally {
+            this.endLayoutUpdate(userLayout);
         }
-        return false;
     }
     
     /**
@@ -548,45 +700,51 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      * is a user owned node then the changes are applied directly to the corresponding node
      * in the PLF. 
      */
-    public synchronized boolean updateNode( IUserLayoutNodeDescription node )
+    public boolean updateNode( IUserLayoutNodeDescription node )
         throws PortalException
     {
-        if( canUpdateNode( node ) )
-        {
-            String nodeId = node.getId();
-            IUserLayoutNodeDescription oldNode = getNode( nodeId );
-
-            if( oldNode instanceof IUserLayoutChannelDescription )
+        final DistributedUserLayout userLayout = this.beginLayoutUpdate();
+        try {
+            if( canUpdateNode( node ) )
             {
-                IUserLayoutChannelDescription oldChanDesc = (IUserLayoutChannelDescription) oldNode;
-                if (!(node instanceof IUserLayoutChannelDescription))
+                String nodeId = node.getId();
+                IUserLayoutNodeDescription oldNode = getNode( nodeId );
+
+                if( oldNode instanceof IUserLayoutChannelDescription )
                 {
-                    throw new PortalException("Change channel to folder is "
-                            + "not allowed by updateNode() method! Occurred "
-                            + "in layout for "
-                            + owner.getAttribute(IPerson.USERNAME) + ".");
+                    IUserLayoutChannelDescription oldChanDesc = (IUserLayoutChannelDescription) oldNode;
+                    if (!(node instanceof IUserLayoutChannelDescription))
+                    {
+                        throw new PortalException("Change channel to folder is "
+                                + "not allowed by updateNode() method! Occurred "
+                                + "in layout for "
+                                + owner.getAttribute(IPerson.USERNAME) + ".");
+                    }
+                    IUserLayoutChannelDescription newChanDesc = 
+                        (IUserLayoutChannelDescription) node;
+                    updateChannelNode(nodeId, newChanDesc, oldChanDesc);
                 }
-                IUserLayoutChannelDescription newChanDesc = 
-                    (IUserLayoutChannelDescription) node;
-                updateChannelNode(nodeId, newChanDesc, oldChanDesc);
-            }
-            else
-            {
-                 // must be a folder
-                IUserLayoutFolderDescription oldFolderDesc=(IUserLayoutFolderDescription) oldNode;
-                if (oldFolderDesc.getId().equals(getRootFolderId()))
-                    throw new PortalException("Update of root node is not currently allowed!");
-                    
-                if( node instanceof IUserLayoutFolderDescription )
+                else
                 {
-                    IUserLayoutFolderDescription newFolderDesc=(IUserLayoutFolderDescription) node;
-                    updateFolderNode(nodeId, newFolderDesc, oldFolderDesc);
+                     // must be a folder
+                    IUserLayoutFolderDescription oldFolderDesc=(IUserLayoutFolderDescription) oldNode;
+                    if (oldFolderDesc.getId().equals(getRootFolderId()))
+                        throw new PortalException("Update of root node is not currently allowed!");
+                    
+                    if( node instanceof IUserLayoutFolderDescription )
+                    {
+                        IUserLayoutFolderDescription newFolderDesc=(IUserLayoutFolderDescription) node;
+                        updateFolderNode(nodeId, newFolderDesc, oldFolderDesc);
+                    }
                 }
+                this.updateCacheKey();
+                return true;
             }
-            this.updateCacheKey();
-            return true;
+            return false;
+        }
+        finally {
+            this.endLayoutUpdate(userLayout);
         }
-        return false;
     }
 
     /**
@@ -607,7 +765,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             IUserLayoutFolderDescription oldFolderDesc)
     throws PortalException
     {
-        Element ilfNode = (Element) getUserLayoutDOM().getElementById(nodeId);
+        Element ilfNode = (Element) this.getLayoutDocument().getElementById(nodeId);
         List<ILayoutProcessingAction> pendingActions 
             = new ArrayList<ILayoutProcessingAction>();
 
@@ -754,7 +912,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             IUserLayoutChannelDescription oldChanDesc)
     throws PortalException
     {
-        Element ilfNode = (Element) getUserLayoutDOM().getElementById(nodeId);
+        Element ilfNode = (Element) this.getLayoutDocument().getElementById(nodeId);
         List<ILayoutProcessingAction> pendingActions 
             = new ArrayList<ILayoutProcessingAction>();
         boolean isIncorporated = 
@@ -1033,32 +1191,38 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 canAddNode( node, parent, nextSiblingId );
 
         // same parent. which direction are we moving?
-        Document uld = this.getUserLayoutDOM();
-        Element parentE = uld.getElementById( parent.getId() );
-        Element child = (Element) parentE.getFirstChild();
-        int idx = 0;
-        int nodeIdx = -1;
-        int sibIdx = -1;
-
-        while ( child != null )
-        {
-            String id = child.getAttribute( Constants.ATT_ID );
-            if ( id.equals( node.getId() ) )
-                nodeIdx = idx;
-            if ( id.equals( nextSiblingId ) )
-                sibIdx = idx;
-            idx++;
-            child = (Element) child.getNextSibling();
-        }
-        if ( nodeIdx == -1 ||     // couldn't find node
-             ( nextSiblingId != null &&
-               sibIdx == -1 ) )   // couldn't find sibling
-            return false;
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Document uld = this.getLayoutDocument();
+            Element parentE = uld.getElementById( parent.getId() );
+            Element child = (Element) parentE.getFirstChild();
+            int idx = 0;
+            int nodeIdx = -1;
+            int sibIdx = -1;
+
+            while ( child != null )
+            {
+                String id = child.getAttribute( Constants.ATT_ID );
+                if ( id.equals( node.getId() ) )
+                    nodeIdx = idx;
+                if ( id.equals( nextSiblingId ) )
+                    sibIdx = idx;
+                idx++;
+                child = (Element) child.getNextSibling();
+            }
+            if ( nodeIdx == -1 ||     // couldn't find node
+                 ( nextSiblingId != null &&
+                   sibIdx == -1 ) )   // couldn't find sibling
+                return false;
 
-        if ( nodeIdx < sibIdx || // moving right
-             sibIdx == -1 )      // appending to end
-            return canMoveRight( node.getId(), nextSiblingId );
-        return canMoveLeft( node.getId(), nextSiblingId );
+            if ( nodeIdx < sibIdx || // moving right
+                 sibIdx == -1 )      // appending to end
+                return canMoveRight( node.getId(), nextSiblingId );
+            return canMoveLeft( node.getId(), nextSiblingId );
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     private boolean canMoveRight( String nodeId, String targetNextSibId )
@@ -1167,64 +1331,150 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     }
 
 
+    /**
+     * @return The node in the compact layout with the specified ID, null if there is none
+     */
+    private ImmutableLayoutNode findCompactNode(ImmutableLayoutNode compactLayout, String nodeId) {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getDistributedUserLayout().getLayoutIndex();
+        if (layoutIndex != null && layoutIndex.getLayout() == compactLayout) {
+            return layoutIndex.getNode(nodeId);
+        }
+        
+        final List<ImmutableLayoutNode> path = compactLayout.findPathById(nodeId);
+        if (path == null) {
+            return null;
+        }
+        return path.get(path.size() - 1);
+    }
+
+    /**
+     * @return The ID of the element <code>offset</code> positions away from the node with the
+     * specified ID in the compact layout, null if there is no such sibling
+     */
+    private String getCompactSiblingId(ImmutableLayoutNode compactLayout, String nodeId, int offset) {
+        final List<ImmutableLayoutNode> path = compactLayout.findPathById(nodeId);
+        if (path == null) {
+            throw new PortalException("Node with id=\""+nodeId+
+                    "\" doesn't exist. Occurred in layout for " 
+                    + owner.getAttribute(IPerson.USERNAME) + ".");
+        }
+        if (path.size() < 2) {
+            return null;
+        }
+        final ImmutableLayoutNode parent = path.get(path.size() - 2);
+        final ImmutableLayoutNode node = path.get(path.size() - 1);
+        for (int index = 0; index < parent.getChildCount(); index++) {
+            if (parent.getChild(index) == node) {
+                final int siblingIndex = index + offset;
+                if (siblingIndex < 0 || siblingIndex >= parent.getChildCount()) {
+                    return null;
+                }
+                return parent.getChild(siblingIndex).getId();
+            }
+        }
+        return null;
+    }
+
     public String getParentId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
-        Element nelement = uld.getElementById(nodeId);
-        if(nelement!=null) {
-            Node parent=nelement.getParentNode();
-            if(parent!=null) {
-                if(parent.getNodeType()!=Node.ELEMENT_NODE) {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            if (layoutIndex.getNode(nodeId) != null) {
+                final String parentId = layoutIndex.getParentId(nodeId);
+                if (parentId == null) {
                     throw new PortalException("Node with id=\""+nodeId+"\" is attached to something other then an element node.");
                 }
-                Element e=(Element) parent;
-                return e.getAttribute("ID");
+                return parentId;
             }
-            return null;
+            throw new PortalException("Node with id=\""+nodeId+
+                    "\" doesn't exist. Occurred in layout for " 
+                    + owner.getAttribute(IPerson.USERNAME) + ".");
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Document uld=this.getLayoutDocument();
+            Element nelement = uld.getElementById(nodeId);
+            if(nelement!=null) {
+                Node parent=nelement.getParentNode();
+                if(parent!=null) {
+                    if(parent.getNodeType()!=Node.ELEMENT_NODE) {
+                        throw new PortalException("Node with id=\""+nodeId+"\" is attached to something other then an element node.");
+                    }
+                    Element e=(Element) parent;
+                    return e.getAttribute("ID");
+                }
+                return null;
+            }
+            throw new PortalException("Node with id=\""+nodeId+
+                    "\" doesn't exist. Occurred in layout for " 
+                    + owner.getAttribute(IPerson.USERNAME) + ".");
+        }
+        finally {
+            readLock.unlock();
         }
-        throw new PortalException("Node with id=\""+nodeId+
-                "\" doesn't exist. Occurred in layout for " 
-                + owner.getAttribute(IPerson.USERNAME) + ".");
     }
 
     public String getNextSiblingId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
-        Element nelement = uld.getElementById(nodeId);
-        if(nelement!=null) {
-            Node nsibling=nelement.getNextSibling();
-            // scroll to the next element node
-            while(nsibling!=null && nsibling.getNodeType()!=Node.ELEMENT_NODE){
-                nsibling=nsibling.getNextSibling();
-            }
-            if(nsibling!=null) {
-                Element e=(Element) nsibling;
-                return e.getAttribute("ID");
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        if (compactLayout != null) {
+            return this.getCompactSiblingId(compactLayout, nodeId, 1);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Document uld=this.getLayoutDocument();
+            Element nelement = uld.getElementById(nodeId);
+            if(nelement!=null) {
+                Node nsibling=nelement.getNextSibling();
+                // scroll to the next element node
+                while(nsibling!=null && nsibling.getNodeType()!=Node.ELEMENT_NODE){
+                    nsibling=nsibling.getNextSibling();
+                }
+                if(nsibling!=null) {
+                    Element e=(Element) nsibling;
+                    return e.getAttribute("ID");
+                }
+                return null;
             }
-            return null;
+            throw new PortalException("Node with id=\""+nodeId+
+                    "\" doesn't exist. Occurred " +
+                    "in layout for " 
+                    + owner.getAttribute(IPerson.USERNAME) + ".");
+        }
+        finally {
+            readLock.unlock();
         }
-        throw new PortalException("Node with id=\""+nodeId+
-                "\" doesn't exist. Occurred " +
-                "in layout for " 
-                + owner.getAttribute(IPerson.USERNAME) + ".");
     }
 
     public String getPreviousSiblingId(String nodeId) throws PortalException {
-        Document uld=this.getUserLayoutDOM();
-        Element nelement = uld.getElementById(nodeId);
-        if(nelement!=null) {
-            Node nsibling=nelement.getPreviousSibling();
-            // scroll to the next element node
-            while(nsibling!=null && nsibling.getNodeType()!=Node.ELEMENT_NODE){
-                nsibling=nsibling.getNextSibling();
-            }
-            if(nsibling!=null) {
-                Element e=(Element) nsibling;
-                return e.getAttribute("ID");
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        if (compactLayout != null) {
+            return this.getCompactSiblingId(compactLayout, nodeId, -1);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Document uld=this.getLayoutDocument();
+            Element nelement = uld.getElementById(nodeId);
+            if(nelement!=null) {
+                Node nsibling=nelement.getPreviousSibling();
+                // scroll to the next element node
+                while(nsibling!=null && nsibling.getNodeType()!=Node.ELEMENT_NODE){
+                    nsibling=nsibling.getNextSibling();
+                }
+                if(nsibling!=null) {
+                    Element e=(Element) nsibling;
+                    return e.getAttribute("ID");
+                }
+                return null;
             }
-            return null;
+            throw new PortalException("Node with id=\""+nodeId+
+                    "\" doesn't exist. Occurred in layout for " 
+                    + owner.getAttribute(IPerson.USERNAME) + ".");
+        }
+        finally {
+            readLock.unlock();
         }
-        throw new PortalException("Node with id=\""+nodeId+
-                "\" doesn't exist. Occurred in layout for " 
-                + owner.getAttribute(IPerson.USERNAME) + ".");
     }
 
     public Enumeration<String> getChildIds(String nodeId) throws PortalException {
@@ -1243,25 +1493,44 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     {
         Vector<String> v=new Vector<String>();
         IUserLayoutNodeDescription node=getNode(nodeId);
-        if(node instanceof IUserLayoutFolderDescription) {
-            Document uld=this.getUserLayoutDOM();
-            Element felement = uld.getElementById(nodeId);
-            for(Node n=felement.getFirstChild(); n!=null;n=n.getNextSibling()) {
-                if( n.getNodeType()==Node.ELEMENT_NODE &&
-                    ( visibleOnly == false ||
-                      ( visibleOnly == true &&
-                        ((Element) n).getAttribute( Constants.ATT_HIDDEN )
-                        .equals("false") ) ) )
-                {
-                    Element e=(Element)n;
-                    if(e.getAttribute("ID")!=null)
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        final Lock readLock = compactLayout == null ? this.lockLayoutForRead() : null;
+        try {
+            if(node instanceof IUserLayoutFolderDescription && compactLayout != null) {
+                final ImmutableLayoutNode folder = this.findCompactNode(compactLayout, nodeId);
+                if (folder != null) {
+                    for (final ImmutableLayoutNode child : folder.getChildren()) {
+                        if (!visibleOnly || child.getAttribute(Constants.ATT_HIDDEN).equals("false")) {
+                            v.add(child.getId());
+                        }
+                    }
+                }
+            }
+            else if(node instanceof IUserLayoutFolderDescription) {
+                Document uld=this.getLayoutDocument();
+                Element felement = uld.getElementById(nodeId);
+                for(Node n=felement.getFirstChild(); n!=null;n=n.getNextSibling()) {
+                    if( n.getNodeType()==Node.ELEMENT_NODE &&
+                        ( visibleOnly == false ||
+                          ( visibleOnly == true &&
+                            ((Element) n).getAttribute( Constants.ATT_HIDDEN )
+                            .equals("false") ) ) )
                     {
-                        v.add(e.getAttribute("ID"));
+                        Element e=(Element)n;
+                        if(e.getAttribute("ID")!=null)
+                        {
+                            v.add(e.getAttribute("ID"));
+                        }
                     }
                 }
             }
+            return v.elements();
+        }
+        finally {
+            if (readLock != null) {
+                readLock.unlock();
+            }
         }
-        return v.elements();
     }
 
     @Override
@@ -1269,6 +1538,11 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         return this.cacheKey;
     }
 
+    @Override
+    public long getLayoutVersion() {
+        return this.layoutVersion.get();
+    }
+
     /**
      * This is outright cheating! We're supposed to analyze the user layout tree
      * and return a key that corresponds uniquely to the composition and the structure of the tree.
@@ -1279,6 +1553,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      */
     private void updateCacheKey() {
         this.cacheKey=Long.toString(rnd.nextLong());
+        this.layoutVersion.incrementAndGet();
     }
 
     public int getLayoutId() {
@@ -1291,22 +1566,44 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      */
     @Override
     public String getSubscribeId(String fname) {
-    	final Document userLayout = this.getUserLayoutDOM();
-        return new PortletSubscribeIdResolver(fname).traverseDocument(userLayout);
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getSubscribeId(fname);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+        	final Document userLayout = this.getLayoutDocument();
+            return new PortletSubscribeIdResolver(fname).traverseDocument(userLayout);
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
     public String getSubscribeId(String parentFolderId, String fname) {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getSubscribeId(parentFolderId, fname);
+        }
+        
     	final Map<String, String> variables = new HashMap<String, String>();
     	variables.put("parentFolderId", parentFolderId);
     	variables.put("fname", fname);
     	
-    	final Document userLayout = this.getUserLayoutDOM();
-    	final Element fnameNode = this.xpathOperations.evaluate("//folder[@ID=$parentFolderId]/descendant::channel[@fname=$fname]", variables, userLayout, XPathConstants.NODE);
-		if (fnameNode != null) {
-			return fnameNode.getAttribute("ID");
-		}
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+        	final Document userLayout = this.getLayoutDocument();
+        	final Element fnameNode = this.xpathOperations.evaluate("//folder[@ID=$parentFolderId]/descendant::channel[@fname=$fname]", variables, userLayout, XPathConstants.NODE);
+    		if (fnameNode != null) {
+    			return fnameNode.getAttribute("ID");
+    		}
     	
-    	return null;
+        	return null;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
 
@@ -1329,6 +1626,20 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     public String getRootFolderId()
     {
         if (rootNodeId == null) {
+            final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+            if (compactLayout != null) {
+                for (final ImmutableLayoutNode child : compactLayout.getChildren()) {
+                    if (FOLDER.equals(child.getNodeName())) {
+                        if (child.getAttribute(Constants.ATT_TYPE).equals(Constants.ROOT_FOLDER_ID)) {
+                            rootNodeId = child.getId();
+                            return rootNodeId;
+                        }
+                        // let the DOM based lookup below deal with resetting the layout
+                        break;
+                    }
+                }
+            }
+            
             Document layout = getUserLayoutDOM();
             
             Element rootNode = this.xpathOperations.evaluate("//layout/folder", layout, XPathConstants.NODE);
@@ -1336,6 +1647,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 LOG.error("Unable to locate root node in layout of " + owner.getAttribute(IPerson.USERNAME) + ". Resetting corrupted layout.");
                 resetLayout((String) null);
                 
+                layout = getUserLayoutDOM();
                 rootNode = this.xpathOperations.evaluate("//layout/folder", layout, XPathConstants.NODE);
                 if (rootNode == null || !rootNode.getAttribute(Constants.ATT_TYPE).equals(Constants.ROOT_FOLDER_ID)) {
                     throw new PortalException("Corrupted layout detected for " + owner.getAttribute(IPerson.USERNAME)
@@ -1475,7 +1787,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             {
                 this.layoutCachingService.removeCachedLayout(person, profile);
                 updateCacheKey();
-                getUserLayoutDOM();
+                getDistributedUserLayout();
             }
             //if (isFragmentOwner)
             //{
@@ -1515,31 +1827,50 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
      */
     public Map getChannelFunctionalNameMap() throws PortalException
     {
-        Document layout = getUserLayoutDOM();
+        final ImmutableLayoutNode compactLayout = this.getCompactLayout();
+        if (compactLayout != null) {
+            final Map<String, String> map = new HashMap<String, String>();
+            for (final ImmutableLayoutNode chan : compactLayout.getElementsByTagName(CHANNEL)) {
+                final String id = chan.getId();
+                final String fname = chan.getAttribute("fname");
+                if (!id.equals("") && !fname.equals("")) {
+                    map.put(id, fname);
+                }
+            }
+            return map;
+        }
         
-        /*
-         * NodeLists are known not to be thread safe but the layout is 
-         * hierarchical and this is the simples way to obtain all of the nested
-         * channels. Furthermore, since this method is only called by jndi
-         * initialization once in a user's session and hence should be just
-         * fine. Furthermore, this NodeList is not that of the children of
-         * a node in the layout so it is unlikely that it will change.
-         */
-        NodeList channelNodes = layout.getElementsByTagName("channel");
-        Map<String, String> map = new HashMap<String, String>();
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Document layout = this.getLayoutDocument();
         
-        // Parse through the channels and populate the set
-        for (int i = 0; i < channelNodes.getLength(); i++) {
-            // Attempt to get the fname and instance ID from the channel
-            Element chan = (Element) channelNodes.item(i);
-            String id = chan.getAttribute("ID");
-            String fname = chan.getAttribute("fname");
-            if (!id.equals("") && !fname.equals(""))
-            {
-                map.put(id, fname);
+            /*
+             * NodeLists are known not to be thread safe but the layout is 
+             * hierarchical and this is the simples way to obtain all of the nested
+             * channels. Furthermore, since this method is only called by jndi
+             * initialization once in a user's session and hence should be just
+             * fine. Furthermore, this NodeList is not that of the children of
+             * a node in the layout so it is unlikely that it will change.
+             */
+            NodeList channelNodes = layout.getElementsByTagName("channel");
+            Map<String, String> map = new HashMap<String, String>();
+        
+            // Parse through the channels and populate the set
+            for (int i = 0; i < channelNodes.getLength(); i++) {
+                // Attempt to get the fname and instance ID from the channel
+                Element chan = (Element) channelNodes.item(i);
+                String id = chan.getAttribute("ID");
+                String fname = chan.getAttribute("fname");
+                if (!id.equals("") && !fname.equals(""))
+                {
+                    map.put(id, fname);
+                }
             }
+            return map;
+        }
+        finally {
+            readLock.unlock();
         }
-        return map;
     }
     
     /**
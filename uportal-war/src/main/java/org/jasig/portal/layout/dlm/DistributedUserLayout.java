@@ -20,19 +20,41 @@ package org.jasig.portal.layout.dlm;
 
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeIndex;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeInterner;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
+import org.jasig.portal.utils.DocumentFactory;
 import org.w3c.dom.Document;
 
 /**
  * A user's layout and meta-data about that layout
+ * <p>
+ * The layout is held either as a mutable DOM or, after {@link #compact()}, as an
+ * {@link ImmutableLayoutNode} tree that shares the subtrees it has in common with the fragments
+ * it was built from. A compacted layout is turned back into a DOM working copy the first time
+ * {@link #getLayout()} is called by an update, the compact layout stays published until the next
+ * {@link #compact()} replaces it so it can be read without locking while the working copy is
+ * being edited.
+ * <p>
+ * Edits are made between {@link #beginUpdate()} and {@link #endUpdate(boolean)} which hold the
+ * write lock of the layout, reads of the DOM are made while holding {@link #getReadLock()}.
+ * {@link #getLayoutSnapshot()} provides a copy for callers that read the layout outside of the lock.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class DistributedUserLayout {
-    private final Document layout;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Document layout;
+    private volatile ImmutableLayoutNode compactLayout;
+    private volatile ImmutableLayoutNodeIndex layoutIndex;
+    private final List<ImmutableLayoutNodeInterner> fragmentNodes;
     private final Set<String> fragmentNames;
     private final IStylesheetUserPreferences distributedStructureStylesheetUserPreferences;
     private final IStylesheetUserPreferences distributedThemeStylesheetUserPreferences;
@@ -45,6 +67,7 @@ public class DistributedUserLayout {
     public DistributedUserLayout(Document layout) {
         this.layout = layout;
         this.fragmentNames = Collections.emptySet();
+        this.fragmentNodes = Collections.emptyList();
         this.distributedStructureStylesheetUserPreferences = null;
         this.distributedThemeStylesheetUserPreferences = null;
     }
@@ -57,18 +80,144 @@ public class DistributedUserLayout {
     public DistributedUserLayout(Document layout, Set<String> fragmentNames,
             IStylesheetUserPreferences distributedStructureStylesheetUserPreferences,
             IStylesheetUserPreferences distributedThemeStylesheetUserPreferences) {
+        this(layout, fragmentNames, Collections.<ImmutableLayoutNodeInterner>emptyList(),
+                distributedStructureStylesheetUserPreferences, distributedThemeStylesheetUserPreferences);
+    }
+
+    /**
+     * Used for non-fragment owners when the shared nodes of the incorporated fragments are known.
+     * 
+     * @param layout
+     * @param fragmentNodes The shared nodes of the fragments incorporated in the layout, used by {@link #compact()}
+     */
+    public DistributedUserLayout(Document layout, Set<String> fragmentNames, List<ImmutableLayoutNodeInterner> fragmentNodes,
+            IStylesheetUserPreferences distributedStructureStylesheetUserPreferences,
+            IStylesheetUserPreferences distributedThemeStylesheetUserPreferences) {
         this.layout = layout;
         this.fragmentNames = Collections.unmodifiableSet(new LinkedHashSet<String>(fragmentNames));
+        this.fragmentNodes = fragmentNodes;
         this.distributedStructureStylesheetUserPreferences = distributedStructureStylesheetUserPreferences;
         this.distributedThemeStylesheetUserPreferences = distributedThemeStylesheetUserPreferences;
     }
 
     /**
-     * @return The layout document
+     * Must be called while holding {@link #getReadLock()} or between {@link #beginUpdate()} and
+     * {@link #endUpdate(boolean)}. Only an update keeps the DOM expanded from the compact layout,
+     * other callers get an expanded copy that is dropped once they are done with it.
+     * 
+     * @return The layout document, expanded from the compact layout if needed
      */
-    public Document getLayout() {
+    public synchronized Document getLayout() {
+        if (this.layout == null && this.compactLayout != null) {
+            final Document layout = this.compactLayout.toDocument(DocumentFactory.getThreadDocument());
+            if (!this.isUpdatingThread()) {
+                return layout;
+            }
+            this.layout = layout;
+        }
         return this.layout;
     }
+    
+    /**
+     * @return A copy of the layout that is not changed by later edits and can be read without
+     * locking, built from the compact layout if there is one, from the DOM otherwise
+     */
+    public Document getLayoutSnapshot() {
+        ImmutableLayoutNode layoutCopy = this.compactLayout;
+        if (layoutCopy == null) {
+            final Lock readLock = this.getReadLock();
+            readLock.lock();
+            try {
+                layoutCopy = this.compactLayout;
+                if (layoutCopy == null) {
+                    layoutCopy = ImmutableLayoutNode.fromDocument(this.getLayout(), new ImmutableLayoutNodeInterner());
+                }
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+        return layoutCopy.toDocument(DocumentFactory.getThreadDocument());
+    }
+    
+    /**
+     * @return The most recently published compact layout, null if the layout has never been compacted
+     */
+    public ImmutableLayoutNode getCompactLayout() {
+        return this.compactLayout;
+    }
+    
+    /**
+     * @return The index of the most recently published compact layout, built on first use, null if the layout has never been compacted
+     */
+    public ImmutableLayoutNodeIndex getLayoutIndex() {
+        final ImmutableLayoutNode compactLayout = this.compactLayout;
+        if (compactLayout == null) {
+            return null;
+        }
+        
+        ImmutableLayoutNodeIndex layoutIndex = this.layoutIndex;
+        if (layoutIndex == null || layoutIndex.getLayout() != compactLayout) {
+            //Concurrent callers may each build an index, they are identical so the last one wins
+            layoutIndex = new ImmutableLayoutNodeIndex(compactLayout);
+            this.layoutIndex = layoutIndex;
+        }
+        return layoutIndex;
+    }
+    
+    /**
+     * Publish the current layout DOM as an immutable tree that shares nodes with the fragments the
+     * layout was built from and drop the DOM. Readers of the compact layout see either the
+     * previous or the new tree, never a partially edited one. Callers must not modify the document
+     * previously returned by {@link #getLayout()} after calling this.
+     */
+    public synchronized void compact() {
+        if (this.layout == null) {
+            return;
+        }
+        
+        final ImmutableLayoutNodeInterner interner = new ImmutableLayoutNodeInterner(this.fragmentNodes);
+        this.compactLayout = ImmutableLayoutNode.fromDocument(this.layout, interner);
+        this.layout = null;
+    }
+    
+    /**
+     * @return The lock to hold while reading the layout DOM, not needed to read the compact layout
+     */
+    public Lock getReadLock() {
+        return this.lock.readLock();
+    }
+    
+    /**
+     * Acquire the write lock before modifying the layout, may be called again by the thread
+     * already updating the layout. Every call must be paired with {@link #endUpdate(boolean)}.
+     */
+    public void beginUpdate() {
+        this.lock.writeLock().lock();
+    }
+    
+    /**
+     * Release the write lock acquired by {@link #beginUpdate()}.
+     * 
+     * @param publish If true and this ends the outermost update the edited DOM is published via {@link #compact()}
+     */
+    public void endUpdate(boolean publish) {
+        try {
+            if (publish && this.lock.getWriteHoldCount() == 1) {
+                this.compact();
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @return true if the current thread is between {@link #beginUpdate()} and {@link #endUpdate(boolean)}
+     */
+    public boolean isUpdatingThread() {
+        return this.lock.isWriteLockedByCurrentThread();
+    }
 
     /**
      * @return The names of all of the fragments incorporated into the layout
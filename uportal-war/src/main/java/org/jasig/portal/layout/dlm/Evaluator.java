@@ -62,13 +62,11 @@ public abstract class Evaluator {
     
     public static final String NAMESPACE_URI = "http://org.jasig.portal.layout.dlm.config";
 
-    @SuppressWarnings("unused")
     @Id
     @GeneratedValue(generator = "UP_DLM_EVALUATOR_GEN")
     @Column(name = "EVALUATOR_ID")
     private final long evaluatorId;
         
-    @SuppressWarnings("unused")
     @Version
     @Column(name = "ENTITY_VERSION")
     private final long entityVersion;
@@ -80,6 +78,27 @@ public abstract class Evaluator {
 
     public abstract boolean isApplicable( IPerson person );
     
+    /**
+     * Adds this evaluator, and the person attributes and group memberships 
+     * {@link #isApplicable(IPerson)} is based on, to the 
+     * {@link FragmentAudienceInputs}.  Returns false if the result of 
+     * {@link #isApplicable(IPerson)} depends on anything else and can't be 
+     * shared between users with the same inputs.
+     */
+    public boolean collectAudienceInputs(FragmentAudienceInputs inputs) {
+        inputs.addEvaluator(this.getClass(), this.evaluatorId, this.entityVersion);
+        return this.addAudienceInputs(inputs);
+    }
+    
+    /**
+     * Override to register the inputs {@link #isApplicable(IPerson)} depends 
+     * on.  Defaults to false, evaluators that don't override this method are 
+     * evaluated for every user.
+     */
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        return false;
+    }
+    
     /**
      * Serializes this {@link Evaluator} into the same XML format supported 
      * by dlm.xml.  <b>NOTE:</b>  this method will only yield usable XML if 
@@ -0,0 +1,91 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Activation counts and times of a single fragment, updated by {@link FragmentActivator} every
+ * time it activates a UserView for the fragment.
+ */
+public final class FragmentActivationStatistics {
+    private final AtomicLong activations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private volatile long lastTime;
+    
+    void recordActivation(long activationTime, boolean successful) {
+        if (successful) {
+            this.activations.incrementAndGet();
+            this.totalTime.addAndGet(activationTime);
+            this.lastTime = activationTime;
+            
+            long max = this.maxTime.get();
+            while (activationTime > max && !this.maxTime.compareAndSet(max, activationTime)) {
+                max = this.maxTime.get();
+            }
+        }
+        else {
+            this.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of successful activations
+     */
+    public long getActivations() {
+        return this.activations.get();
+    }
+
+    /**
+     * @return Number of failed activations
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * @return Duration in ms of the most recent successful activation
+     */
+    public long getLastTime() {
+        return this.lastTime;
+    }
+
+    /**
+     * @return Mean duration in ms of the successful activations
+     */
+    public long getMeanTime() {
+        final long count = this.activations.get();
+        return count == 0 ? 0 : this.totalTime.get() / count;
+    }
+
+    /**
+     * @return Duration in ms of the slowest successful activation
+     */
+    public long getMaxTime() {
+        return this.maxTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "activations=" + this.getActivations() + ", failures=" + this.getFailures() + ", lastTime="
+                + this.getLastTime() + "ms, meanTime=" + this.getMeanTime() + "ms, maxTime=" + this.getMaxTime() + "ms";
+    }
+}
@@ -19,9 +19,16 @@
 package org.jasig.portal.layout.dlm;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import net.sf.ehcache.Ehcache;
@@ -39,6 +46,7 @@ import org.jasig.portal.layout.IUserLayoutStore;
 import org.jasig.portal.properties.PropertiesManager;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.provider.PersonImpl;
+import org.jasig.portal.utils.ConcurrentMapUtils;
 import org.jasig.portal.utils.Tuple;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -63,14 +71,17 @@ public class FragmentActivator
     public static final String RCS_ID = "@(#) $Header$";
     private static final Log LOG = LogFactory.getLog(FragmentActivator.class);
 
-    private final LoadingCache<String, List<Locale>> fragmentOwnerLocales = CacheBuilder.newBuilder()
-            .<String, List<Locale>>build(new CacheLoader<String, List<Locale>>() {
+    private final LoadingCache<String, CopyOnWriteArrayList<Locale>> fragmentOwnerLocales = CacheBuilder.newBuilder()
+            .<String, CopyOnWriteArrayList<Locale>>build(new CacheLoader<String, CopyOnWriteArrayList<Locale>>() {
                 @Override
-                public List<Locale> load(String key) throws Exception {
+                public CopyOnWriteArrayList<Locale> load(String key) throws Exception {
                     return new CopyOnWriteArrayList<Locale>();
                 }
             });
 
+    private final ConcurrentMap<String, FragmentActivationStatistics> activationStatistics = new ConcurrentHashMap<String, FragmentActivationStatistics>();
+    private final ConcurrentMap<UserViewKey, Document> prefetchedLayouts = new ConcurrentHashMap<UserViewKey, Document>();
+
     private Ehcache userViews;
     private Ehcache userViewErrors;
     private IUserIdentityStore identityStore;
@@ -193,7 +204,7 @@ public class FragmentActivator
         
         final Locale locale = userViewKey.getLocale();
         
-        fragmentOwnerLocales.getUnchecked(ownerId).add(locale);
+        fragmentOwnerLocales.getUnchecked(ownerId).addIfAbsent(locale);
         
         if (fd.isNoAudienceIncluded()) {
             if (LOG.isDebugEnabled()) {
@@ -207,32 +218,41 @@ public class FragmentActivator
             LOG.debug("Activating FragmentDefinition " + fd.getName() + " with locale " + locale);
         }
 
-        IPerson owner = bindToOwner(fd);
-        UserView view = new UserView(owner.getID());
-        loadLayout(view, fd, owner, locale);
-
-        // if owner just created we need to push the layout into
-        // the db so that our fragment template user is used and
-        // not the default template user as determined by
-        // the user identity store.
-        if (owner.getAttribute(NEWLY_CREATED_ATTR) != null) {
-            owner.setAttribute(Constants.PLF, view.layout);
-            try {
-                saveLayout(view, owner);
-            }
-            catch (Exception e) {
-                throw new RuntimeException("Failed to save layout for newly created fragment owner "
-                        + owner.getUserName(), e);
+        final long start = System.nanoTime();
+        boolean activated = false;
+        try {
+            IPerson owner = bindToOwner(fd);
+            UserView view = new UserView(owner.getID());
+            loadLayout(view, fd, owner, locale);
+
+            // if owner just created we need to push the layout into
+            // the db so that our fragment template user is used and
+            // not the default template user as determined by
+            // the user identity store.
+            if (owner.getAttribute(NEWLY_CREATED_ATTR) != null) {
+                owner.setAttribute(Constants.PLF, view.layout);
+                try {
+                    saveLayout(view, owner);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException("Failed to save layout for newly created fragment owner "
+                            + owner.getUserName(), e);
+                }
             }
-        }
 
-        loadPreferences(view, fd);
-        fragmentizeLayout(view, fd);
+            loadPreferences(view, fd);
+            fragmentizeLayout(view, fd);
         
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Activated FragmentDefinition " + fd.getName() + " with locale " + locale);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Activated FragmentDefinition " + fd.getName() + " with locale " + locale);
+            }
+            activated = true;
+            return view;
+        }
+        finally {
+            final long activationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            this.getActivationStatistics(fd.getName()).recordActivation(activationTime, activated);
         }
-        return view;
     }
     
     public UserView getUserView(final FragmentDefinition fd, final Locale locale) {
@@ -241,6 +261,78 @@ public class FragmentActivator
         return (UserView)userViewElement.getObjectValue();
     }
     
+    /**
+     * Activates the fragment for the locale and replaces the cached {@link UserView} once the
+     * activation is complete. Until then {@link #getUserView(FragmentDefinition, Locale)} keeps
+     * returning the previous UserView instead of blocking on the activation. If the activation
+     * fails the previous UserView is kept and the exception is thrown.
+     */
+    public UserView refreshUserView(final FragmentDefinition fd, final Locale locale) {
+        final UserViewKey userViewKey = new UserViewKey(fd.getOwnerId(), locale);
+        this.prefetchedLayouts.remove(userViewKey);
+        final UserView userView = this.activateFragment(userViewKey);
+        this.userViews.put(new net.sf.ehcache.Element(userViewKey, userView));
+        this.userViewErrors.remove(userViewKey);
+        return userView;
+    }
+    
+    /**
+     * Loads the layouts of the fragment owners with a few bulk queries instead of loading the
+     * layout of each owner as its fragment is activated. A prefetched layout is used by the next
+     * activation of the fragment for the locale and discarded if the fragment is refreshed or
+     * cleared first.
+     */
+    public void prefetchFragmentLayouts(final List<FragmentDefinition> fragments, final Locale locale) {
+        final List<String> ownerIds = new ArrayList<String>(fragments.size());
+        for (final FragmentDefinition fd : fragments) {
+            if (!fd.isNoAudienceIncluded()) {
+                ownerIds.add(fd.getOwnerId());
+            }
+        }
+        
+        final Map<String, Document> layouts = userLayoutStore.getPersonalUserLayouts(ownerIds, UserProfile.DEFAULT_PROFILE_FNAME, locale);
+        for (final Map.Entry<String, Document> layoutEntry : layouts.entrySet()) {
+            this.prefetchedLayouts.put(new UserViewKey(layoutEntry.getKey(), locale), layoutEntry.getValue());
+        }
+        
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Prefetched " + layouts.size() + " of " + ownerIds.size() + " fragment layouts with locale " + locale);
+        }
+    }
+    
+    /**
+     * @return The locales UserViews have been activated with for the fragment owner
+     */
+    public List<Locale> getActivatedLocales(final String ownerId) {
+        final List<Locale> locales = fragmentOwnerLocales.getIfPresent(ownerId);
+        if (locales == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(locales);
+    }
+    
+    /**
+     * @return Activation statistics keyed by fragment name
+     */
+    public Map<String, FragmentActivationStatistics> getActivationStatistics() {
+        return Collections.unmodifiableMap(this.activationStatistics);
+    }
+    
+    /**
+     * Discard the activation statistics of all fragments
+     */
+    public void resetActivationStatistics() {
+        this.activationStatistics.clear();
+    }
+    
+    private FragmentActivationStatistics getActivationStatistics(String fragmentName) {
+        FragmentActivationStatistics statistics = this.activationStatistics.get(fragmentName);
+        if (statistics == null) {
+            statistics = ConcurrentMapUtils.putIfAbsent(this.activationStatistics, fragmentName, new FragmentActivationStatistics());
+        }
+        return statistics;
+    }
+    
     public boolean hasUserView(FragmentDefinition fd, Locale locale) {
 
         // Assertions...
@@ -388,7 +480,10 @@ public class FragmentActivator
 //            view.structureStylesheetId = profile.getStructureStylesheetId();
 //            view.themeStylesheetId = profile.getThemeStylesheetId();
             
-            layout = userLayoutStore.getFragmentLayout( owner, profile ); 
+            layout = prefetchedLayouts.remove(new UserViewKey(fragment.getOwnerId(), locale));
+            if (layout == null) {
+                layout = userLayoutStore.getFragmentLayout( owner, profile ); 
+            }
             Element root = layout.getDocumentElement();
             root.setAttribute( Constants.ATT_ID, 
                     Constants.FRAGMENT_ID_USER_PREFIX + view.getUserId() +
@@ -521,6 +616,12 @@ public class FragmentActivator
     }
     
     public void clearChacheForOwner(final String ownerId) {
+        for (final Iterator<UserViewKey> prefetchedItr = prefetchedLayouts.keySet().iterator(); prefetchedItr.hasNext();) {
+            if (prefetchedItr.next().getOwnerId().equals(ownerId)) {
+                prefetchedItr.remove();
+            }
+        }
+        
         final List<Locale> locales = fragmentOwnerLocales.getIfPresent(ownerId);
         if (locales == null) {
             //Nothing to purge
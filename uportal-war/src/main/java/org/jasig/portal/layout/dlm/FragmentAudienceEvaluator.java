@@ -0,0 +1,187 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.groups.GroupsException;
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.IGroupMember;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.services.GroupService;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Determines which {@link FragmentDefinition}s apply to a user, memoizing the result for users with the same
+ * audience inputs.
+ * <p/>
+ * The audience evaluators of all fragments are walked once per call to gather the {@link FragmentAudienceInputs}
+ * they depend on. The user's values for those inputs (the referenced person attributes, the user's direct parent
+ * groups and the guest flag) form a fingerprint, and the applicable fragments are cached as a bitset keyed by the
+ * evaluator signature and that fingerprint. Users with identical profiles share the cached bitset. Changing a
+ * fragment changes the signature so the cached entries are no longer used. Changes to the group hierarchy are
+ * picked up when the cache entries expire.
+ * <p/>
+ * Fragments with evaluators that depend on other state, such as the requested profile or the user's layout, are
+ * evaluated for every user.
+ */
+@Service
+public class FragmentAudienceEvaluator {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private Ehcache applicableFragmentsCache;
+    private boolean cacheEnabled = true;
+    
+    @Autowired
+    public void setApplicableFragmentsCache(
+            @Qualifier("org.jasig.portal.layout.dlm.FragmentAudienceEvaluator.applicableFragments")
+            Ehcache applicableFragmentsCache) {
+        this.applicableFragmentsCache = applicableFragmentsCache;
+    }
+
+    /**
+     * If false every fragment is evaluated for every user, defaults to true
+     */
+    @Value("${org.jasig.portal.layout.dlm.FragmentAudienceEvaluator.cacheEnabled:true}")
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * @param definitions The fragment definitions, in precedence order
+     * @param person The user to evaluate
+     * @return The applicable fragment definitions, in the same order as definitions
+     */
+    public List<FragmentDefinition> getApplicableFragments(List<FragmentDefinition> definitions, IPerson person) {
+        final List<FragmentDefinition> applicableFragments = new ArrayList<FragmentDefinition>();
+        if (definitions == null || definitions.isEmpty()) {
+            return applicableFragments;
+        }
+        
+        //Gather the inputs of all the evaluators and note which fragments can be shared between users
+        final FragmentAudienceInputs inputs = new FragmentAudienceInputs();
+        final BitSet shareable = new BitSet(definitions.size());
+        int index = 0;
+        for (final FragmentDefinition fragmentDefinition : definitions) {
+            if (fragmentDefinition.collectAudienceInputs(inputs)) {
+                shareable.set(index);
+            }
+            index++;
+        }
+        
+        CacheKey cacheKey = null;
+        BitSet cachedApplicable = null;
+        if (this.cacheEnabled && !shareable.isEmpty()) {
+            final Serializable fingerprint = this.getAudienceFingerprint(inputs, person);
+            if (fingerprint != null) {
+                cacheKey = CacheKey.build(FragmentAudienceEvaluator.class.getName(), inputs.getSignature(), fingerprint);
+                final Element element = this.applicableFragmentsCache.get(cacheKey);
+                if (element != null) {
+                    cachedApplicable = (BitSet) element.getObjectValue();
+                }
+            }
+        }
+        
+        final BitSet applicable = new BitSet(definitions.size());
+        index = 0;
+        for (final FragmentDefinition fragmentDefinition : definitions) {
+            final boolean isApplicable;
+            if (cachedApplicable != null && shareable.get(index)) {
+                isApplicable = cachedApplicable.get(index);
+            }
+            else {
+                logger.debug("Checking applicability of the following fragment: {}", fragmentDefinition.getName());
+                isApplicable = fragmentDefinition.isApplicable(person);
+            }
+            
+            if (isApplicable) {
+                applicable.set(index);
+                applicableFragments.add(fragmentDefinition);
+            }
+            index++;
+        }
+        
+        if (cacheKey != null && cachedApplicable == null) {
+            //Only the shareable fragments are cached, the rest are evaluated for every user
+            applicable.and(shareable);
+            this.applicableFragmentsCache.put(new Element(cacheKey, applicable));
+        }
+        
+        return applicableFragments;
+    }
+    
+    /**
+     * @return The user's values for the inputs, null if they could not be determined
+     */
+    protected Serializable getAudienceFingerprint(FragmentAudienceInputs inputs, IPerson person) {
+        final ArrayList<Serializable> fingerprint = new ArrayList<Serializable>();
+        
+        for (final String attributeName : inputs.getAttributeNames()) {
+            final Object value = person.getAttribute(attributeName);
+            if (value != null && !(value instanceof String)) {
+                logger.debug("Attribute {} of {} is not a String, fragment audiences will not be cached", attributeName, person.getUserName());
+                return null;
+            }
+            fingerprint.add((String) value);
+        }
+        
+        if (inputs.isGuestCheckUsed()) {
+            fingerprint.add(person.isGuest());
+        }
+        
+        if (inputs.isGroupMembershipUsed()) {
+            //Membership in any group, direct or deep, is determined by the groups the user is directly in
+            final EntityIdentifier entityIdentifier = person.getEntityIdentifier();
+            if (entityIdentifier == null) {
+                return null;
+            }
+            
+            final TreeSet<String> groupKeys = new TreeSet<String>();
+            try {
+                final IGroupMember groupMember = GroupService.getGroupMember(entityIdentifier);
+                for (final Iterator<?> groupItr = groupMember.getContainingGroups(); groupItr.hasNext();) {
+                    final IEntityGroup group = (IEntityGroup) groupItr.next();
+                    groupKeys.add(group.getKey());
+                }
+            }
+            catch (GroupsException e) {
+                logger.warn("Failed to load the groups of " + person.getUserName() + ", fragment audiences will not be cached", e);
+                return null;
+            }
+            fingerprint.add(groupKeys);
+        }
+        
+        return fingerprint;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The inputs the audience {@link Evaluator}s of a set of {@link FragmentDefinition}s base their decisions on,
+ * gathered by {@link Evaluator#collectAudienceInputs(FragmentAudienceInputs)}. Two users that have the same values
+ * for these inputs get the same set of applicable fragments.
+ * <p/>
+ * Also tracks a signature of the evaluator tree made up of the type, id and version of every evaluator visited,
+ * the signature changes whenever a fragment or one of its evaluators is added, removed or modified.
+ */
+public final class FragmentAudienceInputs {
+    private final SortedSet<String> attributeNames = new TreeSet<String>();
+    private boolean groupMembershipUsed = false;
+    private boolean guestCheckUsed = false;
+    private long signature = 17;
+    
+    /**
+     * Add an evaluator to the signature
+     */
+    void addEvaluator(Class<?> type, long evaluatorId, long entityVersion) {
+        this.mix(type.getName().hashCode());
+        this.mix(evaluatorId);
+        this.mix(entityVersion);
+    }
+    
+    /**
+     * The decision depends on the value of the named person attribute
+     */
+    public void addAttribute(String name) {
+        if (name != null) {
+            this.attributeNames.add(name);
+        }
+    }
+    
+    /**
+     * The decision depends on membership in the group with the specified key
+     */
+    public void addGroup(String groupKey) {
+        if (groupKey != null) {
+            this.groupMembershipUsed = true;
+        }
+    }
+    
+    /**
+     * The decision depends on {@link org.jasig.portal.security.IPerson#isGuest()}
+     */
+    public void addGuestCheck() {
+        this.guestCheckUsed = true;
+    }
+    
+    /**
+     * @return The person attribute names used by the evaluators, in a stable order
+     */
+    public SortedSet<String> getAttributeNames() {
+        return Collections.unmodifiableSortedSet(this.attributeNames);
+    }
+
+    /**
+     * @return true if any evaluator checks group membership
+     */
+    public boolean isGroupMembershipUsed() {
+        return this.groupMembershipUsed;
+    }
+
+    /**
+     * @return true if any evaluator checks if the user is a guest
+     */
+    public boolean isGuestCheckUsed() {
+        return this.guestCheckUsed;
+    }
+
+    /**
+     * @return Signature of the evaluators visited, in the order they were visited
+     */
+    public long getSignature() {
+        return this.signature;
+    }
+    
+    private void mix(long value) {
+        this.signature = this.signature * 1000003 ^ value;
+    }
+
+    @Override
+    public String toString() {
+        return "FragmentAudienceInputs [attributeNames=" + this.attributeNames + ", groupMembershipUsed="
+                + this.groupMembershipUsed + ", guestCheckUsed=" + this.guestCheckUsed + ", signature="
+                + this.signature + "]";
+    }
+}
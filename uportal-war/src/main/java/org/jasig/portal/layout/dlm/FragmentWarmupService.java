@@ -0,0 +1,278 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.StringUtils;
+import org.jasig.portal.i18n.LocaleManager;
+import org.jasig.portal.properties.PropertiesManager;
+import org.jasig.portal.utils.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Activates fragment {@link UserView}s on background threads so users don't wait on fragment
+ * activation. All fragments are activated for all warm-up locales once the portal has started and
+ * a fragment is re-activated after its owner changes it, the previous UserView is served by
+ * {@link FragmentActivator} until the new one is complete.
+ * <p>
+ * Requests to activate a fragment/locale that is already waiting for a warm-up thread are
+ * coalesced into the waiting activation.
+ */
+@ManagedResource("uPortal:section=Framework,name=FragmentWarmupService")
+@Service("fragmentWarmupService")
+public class FragmentWarmupService implements ApplicationListener<ContextRefreshedEvent>, FragmentWarmupServiceMXBean {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final ConcurrentMap<Tuple<String, Locale>, Boolean> pendingActivations = new ConcurrentHashMap<Tuple<String, Locale>, Boolean>();
+    private final AtomicBoolean startupWarmupScheduled = new AtomicBoolean();
+    
+    private FragmentActivator fragmentActivator;
+    private ConfigurationLoader configurationLoader;
+    private ExecutorService warmupExecutor;
+    
+    private boolean warmupOnStartup = true;
+    private boolean asyncRefresh = true;
+    private int warmupThreads = 2;
+    private List<Locale> warmupLocales = null;
+
+    @Autowired
+    public void setFragmentActivator(FragmentActivator fragmentActivator) {
+        this.fragmentActivator = fragmentActivator;
+    }
+
+    @Autowired
+    public void setConfigurationLoader(ConfigurationLoader configurationLoader) {
+        this.configurationLoader = configurationLoader;
+    }
+
+    /**
+     * If true the UserViews of all fragments are activated once the portal has started, defaults to true
+     */
+    @Value("${org.jasig.portal.layout.dlm.FragmentWarmupService.warmupOnStartup:true}")
+    public void setWarmupOnStartup(boolean warmupOnStartup) {
+        this.warmupOnStartup = warmupOnStartup;
+    }
+
+    @Override
+    public boolean isWarmupOnStartup() {
+        return this.warmupOnStartup;
+    }
+
+    /**
+     * If true a changed fragment is re-activated in the background while the previous UserView is
+     * still served. If false the cached UserViews are dropped and the fragment is activated by the
+     * calling thread. Defaults to true
+     */
+    @Value("${org.jasig.portal.layout.dlm.FragmentWarmupService.asyncRefresh:true}")
+    public void setAsyncRefresh(boolean asyncRefresh) {
+        this.asyncRefresh = asyncRefresh;
+    }
+
+    @Override
+    public boolean isAsyncRefresh() {
+        return this.asyncRefresh;
+    }
+
+    /**
+     * Number of threads fragments are activated with, defaults to 2
+     */
+    @Value("${org.jasig.portal.layout.dlm.FragmentWarmupService.warmupThreads:2}")
+    public void setWarmupThreads(int warmupThreads) {
+        this.warmupThreads = warmupThreads;
+    }
+
+    @Override
+    public int getWarmupThreads() {
+        return this.warmupThreads;
+    }
+
+    /**
+     * Comma separated list of locales fragments are activated for at startup. If empty the portal
+     * locales are used when the portal is locale aware, the JVM default locale otherwise.
+     */
+    @Value("${org.jasig.portal.layout.dlm.FragmentWarmupService.locales:}")
+    public void setWarmupLocales(String warmupLocales) {
+        final Locale[] locales = LocaleManager.parseLocales(StringUtils.trimToNull(warmupLocales));
+        if (locales == null) {
+            this.warmupLocales = null;
+        }
+        else {
+            this.warmupLocales = new ArrayList<Locale>(new LinkedHashSet<Locale>(Arrays.asList(locales)));
+        }
+    }
+    
+    @PostConstruct
+    public void initializeWarmupExecutor() {
+        final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("uP-FragmentWarmup-");
+        threadFactory.setDaemon(true);
+        this.warmupExecutor = Executors.newFixedThreadPool(Math.max(1, this.warmupThreads), threadFactory);
+    }
+    
+    @PreDestroy
+    public void shutdownWarmupExecutor() {
+        this.warmupExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (this.warmupOnStartup && this.startupWarmupScheduled.compareAndSet(false, true)) {
+            this.warmupAllFragments();
+        }
+    }
+
+    @Override
+    public void warmupAllFragments() {
+        final List<FragmentDefinition> fragments;
+        try {
+            fragments = this.configurationLoader.getFragments();
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to load fragment definitions, fragments will be activated on first use", e);
+            return;
+        }
+        
+        final List<Locale> locales = this.getWarmupLocales();
+        this.logger.info("Warming up {} fragments for locales {}", fragments.size(), locales);
+        for (final Locale locale : locales) {
+            try {
+                this.fragmentActivator.prefetchFragmentLayouts(fragments, locale);
+            }
+            catch (RuntimeException e) {
+                this.logger.warn("Failed to prefetch fragment layouts for locale " + locale + ", each fragment will load its own layout", e);
+            }
+        }
+        for (final FragmentDefinition fragment : fragments) {
+            for (final Locale locale : locales) {
+                this.scheduleActivation(fragment, locale, false);
+            }
+        }
+    }
+    
+    /**
+     * Re-activate a fragment after its layout was changed for every locale it has been activated
+     * with and the specified locale.
+     */
+    public void refreshFragment(FragmentDefinition fragment, Locale locale) {
+        final Set<Locale> locales = new LinkedHashSet<Locale>(this.fragmentActivator.getActivatedLocales(fragment.getOwnerId()));
+        locales.add(locale);
+        
+        if (!this.asyncRefresh) {
+            this.fragmentActivator.clearChacheForOwner(fragment.getOwnerId());
+            this.fragmentActivator.getUserView(fragment, locale);
+            return;
+        }
+        
+        for (final Locale activatedLocale : locales) {
+            this.scheduleActivation(fragment, activatedLocale, true);
+        }
+    }
+
+    @Override
+    public int getPendingActivations() {
+        return this.pendingActivations.size();
+    }
+
+    @Override
+    public Map<String, String> getFragmentActivationStatistics() {
+        final Map<String, String> statistics = new TreeMap<String, String>();
+        for (final Map.Entry<String, FragmentActivationStatistics> statisticsEntry : this.fragmentActivator.getActivationStatistics().entrySet()) {
+            statistics.put(statisticsEntry.getKey(), statisticsEntry.getValue().toString());
+        }
+        return statistics;
+    }
+
+    @Override
+    public void resetStatistics() {
+        this.fragmentActivator.resetActivationStatistics();
+    }
+    
+    /**
+     * @return The locales fragments are activated for at startup
+     */
+    protected List<Locale> getWarmupLocales() {
+        if (this.warmupLocales != null) {
+            return this.warmupLocales;
+        }
+        
+        final Set<Locale> locales = new LinkedHashSet<Locale>();
+        if (LocaleManager.isLocaleAware()) {
+            final Locale[] portalLocales = LocaleManager.parseLocales(PropertiesManager.getProperty("org.jasig.portal.i18n.LocaleManager.portal_locales", null));
+            if (portalLocales != null) {
+                locales.addAll(Arrays.asList(portalLocales));
+            }
+        }
+        locales.add(Locale.getDefault());
+        return new ArrayList<Locale>(locales);
+    }
+    
+    private void scheduleActivation(final FragmentDefinition fragment, final Locale locale, final boolean refresh) {
+        final Tuple<String, Locale> activationKey = new Tuple<String, Locale>(fragment.getOwnerId(), locale);
+        if (this.pendingActivations.putIfAbsent(activationKey, Boolean.TRUE) != null) {
+            //Already waiting for a warm-up thread
+            return;
+        }
+        
+        this.warmupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //Removed before activating so a change made during the activation schedules another one
+                pendingActivations.remove(activationKey);
+                activate(fragment, locale, refresh);
+            }
+        });
+    }
+    
+    private void activate(FragmentDefinition fragment, Locale locale, boolean refresh) {
+        try {
+            if (refresh) {
+                this.fragmentActivator.refreshUserView(fragment, locale);
+            }
+            else {
+                this.fragmentActivator.getUserView(fragment, locale);
+            }
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to activate fragment " + fragment.getName() + " for locale " + locale, e);
+        }
+    }
+}
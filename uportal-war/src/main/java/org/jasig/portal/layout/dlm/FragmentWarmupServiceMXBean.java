@@ -0,0 +1,62 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import java.util.Map;
+
+/**
+ * JMX configuration and stats for FragmentWarmupService
+ */
+public interface FragmentWarmupServiceMXBean {
+
+    /**
+     * @return true if the UserViews of all fragments are activated when the portal starts
+     */
+    boolean isWarmupOnStartup();
+
+    /**
+     * @return true if changed fragments are re-activated in the background while the previous UserView is still served
+     */
+    boolean isAsyncRefresh();
+
+    /**
+     * @return Number of threads fragments are activated with
+     */
+    int getWarmupThreads();
+
+    /**
+     * @return Number of fragment activations waiting for or running on a warm-up thread
+     */
+    int getPendingActivations();
+
+    /**
+     * @return Activation counts and times by fragment name
+     */
+    Map<String, String> getFragmentActivationStatistics();
+
+    /**
+     * Activate the UserViews of all fragments for all warm-up locales in the background
+     */
+    void warmupAllFragments();
+
+    /**
+     * Reset the activation counts and times of all fragments
+     */
+    void resetStatistics();
+}
@@ -19,8 +19,6 @@
 package org.jasig.portal.layout.dlm;
 
 import java.io.StringWriter;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -63,8 +61,10 @@ import org.jasig.portal.layout.LayoutStructure;
 import org.jasig.portal.layout.StructureParameter;
 import org.jasig.portal.layout.StylesheetUserPreferencesImpl;
 import org.jasig.portal.layout.dao.IStylesheetUserPreferencesDao;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeInterner;
 import org.jasig.portal.layout.om.IStylesheetDescriptor;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
+import org.jasig.portal.layout.simple.LayoutRowSet;
 import org.jasig.portal.layout.simple.RDBMUserLayoutStore;
 import org.jasig.portal.portlet.dao.IPortletEntityDao;
 import org.jasig.portal.portlet.dao.jpa.PortletPreferenceImpl;
@@ -101,6 +101,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import com.google.common.cache.Cache;
+import com.google.common.collect.MapMaker;
 
 /**
  * This class extends RDBMUserLayoutStore and implements instantiating and
@@ -125,6 +126,8 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
 
     private ConfigurationLoader configurationLoader;
     private FragmentActivator fragmentActivator;
+    private FragmentWarmupService fragmentWarmupService;
+    private FragmentAudienceEvaluator fragmentAudienceEvaluator;
 
     private Ehcache fragmentNodeInfoCache;
 
@@ -251,6 +254,16 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         this.fragmentActivator = fragmentActivator;
     }
 
+    @Autowired
+    public void setFragmentWarmupService(FragmentWarmupService fragmentWarmupService) {
+        this.fragmentWarmupService = fragmentWarmupService;
+    }
+
+    @Autowired
+    public void setFragmentAudienceEvaluator(FragmentAudienceEvaluator fragmentAudienceEvaluator) {
+        this.fragmentAudienceEvaluator = fragmentAudienceEvaluator;
+    }
+
     private FragmentActivator getFragmentActivator() {
         return this.fragmentActivator;
     }
@@ -446,7 +459,11 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
     }
 
     private org.dom4j.Element getExportLayoutDom(IPerson person, IUserProfile profile) {
-        if (!this.layoutExistsForUser(person)) {
+        //A layout already in the import/export cache, such as one bulk loaded by the exporter, exists
+        final Cache<Tuple<String, String>, Document> layoutCache = getLayoutImportExportCache();
+        final boolean layoutCached = layoutCache != null
+                && layoutCache.getIfPresent(new Tuple<String, String>(person.getUserName(), profile.getProfileFname())) != null;
+        if (!layoutCached && !this.layoutExistsForUser(person)) {
             return null;
         }
 
@@ -812,11 +829,14 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         }
 
         // (3) Restore chanID attributes on <channel> elements...
+        // Each fname is resolved once, the definitions are reused when storing the layout and preferences
+        final Map<String, IPortletDefinition> portletDefinitionsByFname = new HashMap<String, IPortletDefinition>();
+        final Map<Integer, IPortletDefinition> portletDefinitionsByChanId = new HashMap<Integer, IPortletDefinition>();
         for (final Iterator<org.dom4j.Element> it = (Iterator<org.dom4j.Element>) layout.selectNodes("//channel")
                 .iterator(); it.hasNext();) {
             final org.dom4j.Element c = it.next();
             final String fname = c.valueOf("@fname");
-            final IPortletDefinition cd = this.portletDefinitionRegistry.getPortletDefinitionByFname(fname);
+            final IPortletDefinition cd = this.getImportPortletDefinition(fname, portletDefinitionsByFname);
             if (cd == null) {
                 final String msg = "No portlet with fname=" + fname + " exists referenced by node " + c.valueOf("@ID") + " from layout for " + ownerUsername;
                 if (errorOnMissingPortlet) {
@@ -829,7 +849,9 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
                 }
             }
             else {
-                c.addAttribute("chanID", String.valueOf(cd.getPortletDefinitionId().getStringId()));
+                final String chanId = cd.getPortletDefinitionId().getStringId();
+                c.addAttribute("chanID", chanId);
+                portletDefinitionsByChanId.put(Integer.valueOf(chanId), cd);
             }
         }
 
@@ -868,6 +890,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         }
 
         // Finally store the layout...
+        this.setLayoutPortletDefinitions(portletDefinitionsByChanId);
         try {
             this.setUserLayout(person, profile, layoutDom, true, true);
         }
@@ -875,6 +898,9 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
             final String msg = "Unable to persist layout for user:  " + ownerUsername;
             throw new RuntimeException(msg, t);
         }
+        finally {
+            this.clearLayoutPortletDefinitions();
+        }
         
         if (preferencesElement != null) {
             final int ownerUserId = this.userIdentityStore.getPortalUserId(ownerUsername);
@@ -883,6 +909,12 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
             //track which entities from the user's pre-existing set are touched (all non-touched entities will be removed)
             final Set<IPortletEntity> oldPortletEntities = new LinkedHashSet<IPortletEntity>(this.portletEntityDao.getPortletEntitiesForUser(ownerUserId));
             
+            //Entities are looked up by layout node from the loaded set instead of querying for each entry
+            final Map<String, IPortletEntity> portletEntities = new HashMap<String, IPortletEntity>();
+            for (final IPortletEntity portletEntity : oldPortletEntities) {
+                portletEntities.put(portletEntity.getLayoutNodeId(), portletEntity);
+            }
+            
             final List<org.dom4j.Element> entries = preferencesElement.selectNodes("entry");
             for (final org.dom4j.Element entry : entries) {
                 final String dlmPathRef = entry.attributeValue("entity");
@@ -892,7 +924,12 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
                 final Noderef dlmNoderef = nodeReferenceFactory.getNoderefFromPathref(person.getUserName(), dlmPathRef, fname, false, layout);
                 
                 if (dlmNoderef != null && fname != null) {
-                    final IPortletEntity portletEntity = this.getPortletEntity(fname, dlmNoderef.toString(), ownerUserId);
+                    final String layoutNodeId = dlmNoderef.toString();
+                    IPortletEntity portletEntity = portletEntities.get(layoutNodeId);
+                    if (portletEntity == null) {
+                        portletEntity = this.createPortletEntity(fname, layoutNodeId, ownerUserId, portletDefinitionsByFname);
+                        portletEntities.put(layoutNodeId, portletEntity);
+                    }
                     oldPortletEntities.remove(portletEntity);
                     
                     final List<IPortletPreference> portletPreferences = portletEntity.getPortletPreferences();
@@ -924,17 +961,14 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         }
     }
 
-    protected IPortletEntity getPortletEntity(String fName, String layoutNodeId, int userId) {
-        //Try getting the entity
-        final IPortletEntity portletEntity = this.portletEntityDao.getPortletEntity(layoutNodeId, userId);
-        if (portletEntity != null) {
-            return portletEntity;
-        }
-
+    /**
+     * Create the portlet entity for a layout node that has none yet
+     */
+    protected IPortletEntity createPortletEntity(String fName, String layoutNodeId, int userId, Map<String, IPortletDefinition> portletDefinitions) {
         //Load the portlet definition
         final IPortletDefinition portletDefinition;
         try {
-            portletDefinition = this.portletDefinitionRegistry.getPortletDefinitionByFname(fName);
+            portletDefinition = this.getImportPortletDefinition(fName, portletDefinitions);
         }
         catch (Exception e) {
             throw new DataRetrievalFailureException("Failed to retrieve ChannelDefinition for fName='" + fName + "'", e);
@@ -949,6 +983,20 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         final IPortletDefinitionId portletDefinitionId = portletDefinition.getPortletDefinitionId();
         return this.portletEntityDao.createPortletEntity(portletDefinitionId, layoutNodeId, userId);
     }
+    
+    /**
+     * Portlet definition for an fname referenced by an imported layout, each fname is only looked up once
+     * per layout
+     */
+    private IPortletDefinition getImportPortletDefinition(String fname, Map<String, IPortletDefinition> portletDefinitions) {
+        if (portletDefinitions.containsKey(fname)) {
+            return portletDefinitions.get(fname);
+        }
+        
+        final IPortletDefinition portletDefinition = this.portletDefinitionRegistry.getPortletDefinitionByFname(fname);
+        portletDefinitions.put(fname, portletDefinition);
+        return portletDefinition;
+    }
 
     protected void loadStylesheetUserPreferencesAttributes(IPerson person, IUserProfile profile,
             org.dom4j.Element layout, final int structureStylesheetId, final String nodeType) {
@@ -1085,6 +1133,13 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
 
     private final ThreadLocal<Cache<Tuple<String, String>, Document>> layoutCacheHolder = new ThreadLocal<Cache<Tuple<String, String>, Document>>();
 
+    /*
+     * Import/export layout caches the fragment owner layouts have already been bulk loaded into,
+     * weak so the caches of finished imports and exports can be collected.
+     */
+    private final Set<Cache<Tuple<String, String>, Document>> fragmentPrefetchedLayoutCaches = Collections
+            .newSetFromMap(new MapMaker().weakKeys().<Cache<Tuple<String, String>, Document>, Boolean> makeMap());
+
     public void setLayoutImportExportCache(Cache<Tuple<String, String>, Document> layoutCache) {
         if (layoutCache == null) {
             layoutCacheHolder.remove();
@@ -1120,6 +1175,16 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
             if (layoutDoc != null) {
                 return (Document) layoutDoc.cloneNode(true);
             }
+            
+            // Imported and exported layouts reference the layouts of many fragment owners, load
+            // all of them at once the first time one is needed
+            if (this.isFragmentOwner(person.getUserName()) && this.fragmentPrefetchedLayoutCaches.add(layoutCache)) {
+                this.prefetchFragmentLayouts(layoutCache, profile);
+                layoutDoc = layoutCache.getIfPresent(key);
+                if (layoutDoc != null) {
+                    return (Document) layoutDoc.cloneNode(true);
+                }
+            }
         }
 
         layoutDoc = super.getPersonalUserLayout(person, profile);
@@ -1133,6 +1198,39 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         return layoutDoc;
     }
 
+    /**
+     * Bulk load the layouts of all fragment owners that are not in the import/export layout cache
+     * yet into the cache.
+     */
+    private void prefetchFragmentLayouts(Cache<Tuple<String, String>, Document> layoutCache, IUserProfile profile) {
+        final String profileFname = profile.getProfileFname();
+        final List<String> ownerIds = new ArrayList<String>();
+        for (final FragmentDefinition fragment : this.configurationLoader.getFragments()) {
+            final String ownerId = fragment.getOwnerId();
+            if (layoutCache.getIfPresent(new Tuple<String, String>(ownerId, profileFname)) == null) {
+                ownerIds.add(ownerId);
+            }
+        }
+
+        final LocaleManager localeManager = profile.getLocaleManager();
+        final Locale locale = localeManager != null ? localeManager.getLocales()[0] : null;
+        final Map<String, Document> layouts = this.getPersonalUserLayouts(ownerIds, profileFname, locale);
+        for (final Map.Entry<String, Document> layoutEntry : layouts.entrySet()) {
+            layoutCache.put(new Tuple<String, String>(layoutEntry.getKey(), profileFname), layoutEntry.getValue());
+        }
+
+        logger.debug("Loaded {} of {} fragment owner layouts into the import/export layout cache", layouts.size(), ownerIds.size());
+    }
+
+    @Override
+    public Map<String, Document> getPersonalUserLayouts(Collection<String> userNames, String profileFname, Locale locale) {
+        final Map<String, Document> layouts = super.getPersonalUserLayouts(userNames, profileFname, locale);
+        for (final Document layoutDoc : layouts.values()) {
+            layoutDoc.getDocumentElement().setAttribute(Constants.NS_DECL, Constants.NS_URI);
+        }
+        return layouts;
+    }
+
     /**
      * Returns the layout for a user. This method overrides the same
      * method in the superclass to return a composite layout for non
@@ -1225,8 +1323,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         root.setAttribute(Constants.ATT_ID, Constants.FRAGMENT_ID_USER_PREFIX + userView.getUserId()
                 + Constants.FRAGMENT_ID_LAYOUT_PREFIX + "1");
         try {
-            activator.clearChacheForOwner(fragment.getOwnerId());
-            activator.getUserView(fragment, locale);
+            this.fragmentWarmupService.refreshFragment(fragment, locale);
         }
         catch (final Exception e) {
             logger.error("An exception occurred attempting to update a layout.", e);
@@ -1315,6 +1412,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
     {
         final Set<String> fragmentNames = new LinkedHashSet<String>();
         final List<Document> applicables = new LinkedList<Document>();
+        final List<ImmutableLayoutNodeInterner> fragmentNodes = new ArrayList<ImmutableLayoutNodeInterner>();
         final Locale locale = profile.getLocaleManager().getLocales()[0];
 
         final List<FragmentDefinition> definitions = this.configurationLoader.getFragments();
@@ -1323,18 +1421,13 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
 
         final FragmentActivator activator = this.getFragmentActivator();
 
-        if (definitions != null) {
-            for (final FragmentDefinition fragmentDefinition : definitions) {
-                logger.debug("Checking applicability of the following fragment: {}", fragmentDefinition.getName());
-
-                if (fragmentDefinition.isApplicable(person)) {
-                    final UserView userView = activator.getUserView(fragmentDefinition, locale);
-                    if (userView != null) {
-                        applicables.add(userView.layout);
-                    }
-                    fragmentNames.add(fragmentDefinition.getName());
-                }
+        for (final FragmentDefinition fragmentDefinition : this.fragmentAudienceEvaluator.getApplicableFragments(definitions, person)) {
+            final UserView userView = activator.getUserView(fragmentDefinition, locale);
+            if (userView != null) {
+                applicables.add(userView.layout);
+                fragmentNodes.add(userView.getLayoutNodes());
             }
+            fragmentNames.add(fragmentDefinition.getName());
         }
 
         Document PLF = (Document) person.getAttribute(Constants.PLF);
@@ -1370,7 +1463,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         final IStylesheetUserPreferences distributedThemeStylesheetUserPreferences = this
                 .loadDistributedStylesheetUserPreferences(person, profile, themeStylesheetId, fragmentNames);
 
-        return new DistributedUserLayout(ILF, fragmentNames, distributedStructureStylesheetUserPreferences,
+        return new DistributedUserLayout(ILF, fragmentNames, fragmentNodes, distributedStructureStylesheetUserPreferences,
                 distributedThemeStylesheetUserPreferences);
     }
 
@@ -1502,8 +1595,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         }
 
         if (ls.isChannel()) {
-            final IPortletDefinition channelDef = this.portletDefinitionRegistry.getPortletDefinition(String.valueOf(ls
-                    .getChanId()));
+            final IPortletDefinition channelDef = this.getLayoutPortletDefinition(ls.getChanId());
             if (channelDef != null && channelApproved(channelDef.getApprovalDate())) {
                 structure = this
                         .getElementForChannel(doc, channelPrefix + ls.getStructId(), channelDef, ls.getLocale());
@@ -1655,14 +1747,13 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
     }
 
     @Override
-    protected int saveStructure(Node node, PreparedStatement structStmt, PreparedStatement parmStmt)
-            throws SQLException {
+    protected int saveStructure(Node node, LayoutRowSet layoutRows) {
         if (node == null) { // No more
             return 0;
         }
         if (node.getNodeName().equals("parameter")) {
             //parameter, skip it and go on to the next node
-            return this.saveStructure(node.getNextSibling(), structStmt, parmStmt);
+            return this.saveStructure(node.getNextSibling(), layoutRows);
         }
         if (!(node instanceof Element)) {
             return 0;
@@ -1696,7 +1787,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
 
         if (isChannel) {
             chanId = Integer.parseInt(node.getAttributes().getNamedItem("chanID").getNodeValue());
-            portletDef = this.portletDefinitionRegistry.getPortletDefinition(String.valueOf(chanId));
+            portletDef = this.getLayoutPortletDefinition(chanId);
             if (portletDef == null) {
                 //Portlet doesn't exist any more, drop the layout node
                 return 0;
@@ -1704,38 +1795,23 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         }
 
         if (node.hasChildNodes()) {
-            childStructId = this.saveStructure(node.getFirstChild(), structStmt, parmStmt);
+            childStructId = this.saveStructure(node.getFirstChild(), layoutRows);
         }
-        nextStructId = this.saveStructure(node.getNextSibling(), structStmt, parmStmt);
-        structStmt.clearParameters();
-        structStmt.setInt(1, saveStructId);
-        structStmt.setInt(2, nextStructId);
-        structStmt.setInt(3, childStructId);
+        nextStructId = this.saveStructure(node.getNextSibling(), layoutRows);
 
-        final String externalId = structure.getAttribute("external_id");
-        if (externalId != null && externalId.trim().length() > 0) {
-            final Integer eID = new Integer(externalId);
-            structStmt.setInt(4, eID.intValue());
-        }
-        else {
-            structStmt.setNull(4, java.sql.Types.NUMERIC);
-
-        }
-        if (isChannel) {
-            structStmt.setInt(5, chanId);
-            structStmt.setNull(6, java.sql.Types.VARCHAR);
-        }
-        else {
-            structStmt.setNull(5, java.sql.Types.NUMERIC);
-            structStmt.setString(6, structure.getAttribute("name"));
+        Integer externalId = null;
+        final String externalIdAttribute = structure.getAttribute("external_id");
+        if (externalIdAttribute != null && externalIdAttribute.trim().length() > 0) {
+            externalId = new Integer(externalIdAttribute);
         }
         final String structType = structure.getAttribute("type");
-        structStmt.setString(7, structType);
-        structStmt.setString(8, RDBMServices.dbFlag(xmlBool(structure.getAttribute("hidden"))));
-        structStmt.setString(9, RDBMServices.dbFlag(xmlBool(structure.getAttribute("immutable"))));
-        structStmt.setString(10, RDBMServices.dbFlag(xmlBool(structure.getAttribute("unremovable"))));
-        logger.debug(structStmt.toString());
-        structStmt.executeUpdate();
+        layoutRows.addStructure(saveStructId, nextStructId, childStructId, externalId,
+                isChannel ? Integer.valueOf(chanId) : null,
+                isChannel ? null : structure.getAttribute("name"),
+                structType,
+                xmlBool(structure.getAttribute("hidden")),
+                xmlBool(structure.getAttribute("immutable")),
+                xmlBool(structure.getAttribute("unremovable")));
 
         // code to persist extension attributes for dlm
         final NamedNodeMap attribs = node.getAttributes();
@@ -1746,12 +1822,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
             if (name.startsWith(Constants.NS) && !name.equals(Constants.ATT_PLF_ID)
                     && !name.equals(Constants.ATT_FRAGMENT) && !name.equals(Constants.ATT_PRECEDENCE)) {
                 // a cp extension attribute. Push into param table.
-                parmStmt.clearParameters();
-                parmStmt.setInt(1, saveStructId);
-                parmStmt.setString(2, name);
-                parmStmt.setString(3, attrib.getNodeValue());
-                logger.debug(parmStmt.toString());
-                parmStmt.executeUpdate();
+                layoutRows.addParameter(saveStructId, name, attrib.getNodeValue());
             }
         }
         final NodeList parameters = node.getChildNodes();
@@ -1772,12 +1843,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
                         // override only for adhoc or if diff from chan def
                         final IPortletDefinitionParameter cp = portletDef.getParameter(parmName);
                         if (cp == null || !cp.getValue().equals(parmValue)) {
-                            parmStmt.clearParameters();
-                            parmStmt.setInt(1, saveStructId);
-                            parmStmt.setString(2, parmName);
-                            parmStmt.setString(3, parmValue);
-                            logger.debug(parmStmt.toString());
-                            parmStmt.executeUpdate();
+                            layoutRows.addParameter(saveStructId, parmName, parmValue);
                         }
                     }
                 }
@@ -19,6 +19,7 @@
 package org.jasig.portal.layout.dlm;
 
 import org.jasig.portal.IUserProfile;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeInterner;
 import org.w3c.dom.Document;
 
 
@@ -35,6 +36,7 @@ class UserView
     int layoutId = 0;
     int profileId = 1;
     String profileFname = "default"; /* Was 1 when profileId was the key. */
+    private volatile ImmutableLayoutNodeInterner layoutNodes;
 
     UserView (int fragmentOwnerUserId)
     {
@@ -54,4 +56,18 @@ class UserView
         return this.userId;
     }
     
+    /**
+     * @return The immutable nodes of this view's layout, shared by the compacted layouts of
+     * every user the fragment is applied to. Null if the view has no layout.
+     */
+    ImmutableLayoutNodeInterner getLayoutNodes() {
+        ImmutableLayoutNodeInterner nodes = this.layoutNodes;
+        if (nodes == null && this.layout != null) {
+            //Racing threads may each build an interner, any of them can be used
+            nodes = ImmutableLayoutNodeInterner.createShared(this.layout);
+            this.layoutNodes = nodes;
+        }
+        return nodes;
+    }
+    
 }
@@ -28,6 +28,7 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jasig.portal.layout.dlm.Evaluator;
 import org.jasig.portal.layout.dlm.EvaluatorFactory;
+import org.jasig.portal.layout.dlm.FragmentAudienceInputs;
 import org.jasig.portal.layout.dlm.FragmentDefinition;
 import org.jasig.portal.security.IPerson;
 import org.w3c.dom.Node;
@@ -56,6 +57,11 @@ public class AllUsersEvaluatorFactory extends Evaluator implements EvaluatorFact
     {
         return true;
     }
+    
+    @Override
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        return true;
+    }
 
     @Override
     public void toElement(Element parent) {
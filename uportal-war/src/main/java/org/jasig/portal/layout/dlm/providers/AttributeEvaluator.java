@@ -31,6 +31,7 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jasig.portal.layout.dlm.Evaluator;
 import org.jasig.portal.layout.dlm.EvaluatorFactory;
+import org.jasig.portal.layout.dlm.FragmentAudienceInputs;
 import org.jasig.portal.security.IPerson;
 
 /**
@@ -141,6 +142,12 @@ public class AttributeEvaluator
         return false;
     }
     
+    @Override
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        inputs.addAttribute(this.name);
+        return true;
+    }
+    
     @Override
     public void toElement(Element parent) {
 
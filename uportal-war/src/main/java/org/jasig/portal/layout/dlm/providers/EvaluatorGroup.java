@@ -33,6 +33,7 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.IndexColumn;
 import org.jasig.portal.layout.dlm.Evaluator;
+import org.jasig.portal.layout.dlm.FragmentAudienceInputs;
 
 /**
  * An {@link Evaluator} that contains a group of other evaluators
@@ -53,4 +54,19 @@ public abstract class EvaluatorGroup extends Evaluator {
     public void addEvaluator(Evaluator e) {
         this.evaluators.add(e);
     }
+
+    /**
+     * The group can be shared between users if all of its children can be.
+     */
+    @Override
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        boolean shareable = true;
+        if (this.evaluators != null) {
+            //Visit every child, even after one is not shareable, so the inputs track the whole tree
+            for (final Evaluator v : this.evaluators) {
+                shareable &= v.collectAudienceInputs(inputs);
+            }
+        }
+        return shareable;
+    }
 }
\ No newline at end of file
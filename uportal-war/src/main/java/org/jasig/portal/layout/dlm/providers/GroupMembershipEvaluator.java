@@ -33,6 +33,7 @@ import org.jasig.portal.groups.IGroupConstants;
 import org.jasig.portal.groups.IGroupMember;
 import org.jasig.portal.layout.dlm.Evaluator;
 import org.jasig.portal.layout.dlm.EvaluatorFactory;
+import org.jasig.portal.layout.dlm.FragmentAudienceInputs;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.services.GroupService;
 
@@ -155,6 +156,12 @@ public class GroupMembershipEvaluator extends Evaluator
           }
       }
 
+    @Override
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        inputs.addGroup(this.groupKey);
+        return true;
+    }
+
     @Override
     public void toElement(Element parent) {
 
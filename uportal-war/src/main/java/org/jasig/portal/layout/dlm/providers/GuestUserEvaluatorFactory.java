@@ -31,6 +31,7 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jasig.portal.layout.dlm.Evaluator;
 import org.jasig.portal.layout.dlm.EvaluatorFactory;
+import org.jasig.portal.layout.dlm.FragmentAudienceInputs;
 import org.jasig.portal.layout.dlm.FragmentDefinition;
 import org.jasig.portal.security.IPerson;
 import org.w3c.dom.Node;
@@ -66,6 +67,12 @@ public class GuestUserEvaluatorFactory extends Evaluator implements EvaluatorFac
         }
         return p.isGuest();
     }
+    
+    @Override
+    protected boolean addAudienceInputs(FragmentAudienceInputs inputs) {
+        inputs.addGuestCheck();
+        return true;
+    }
 
     @Override
     public void toElement(Element parent) {
@@ -230,12 +230,10 @@ public class ChannelListController {
         uncategorizedPortletsBean.setName(UNCATEGORIZED);
         uncategorizedPortletsBean.setDescription(messageSource.getMessage(UNCATEGORIZED_DESC, new Object[] {}, locale));
 
-        for (IPortletDefinition portlet : portletsNotYetCategorized) {
-            if (authorizationService.canPrincipalBrowse(ap, portlet)) {
-                // construct a new channel bean from this channel
-                ChannelBean channel = getChannel(portlet, request, locale);
-                uncategorizedPortletsBean.addChannel(channel);
-            }
+        for (IPortletDefinition portlet : authorizationService.filterBrowsablePortlets(ap, portletsNotYetCategorized)) {
+            // construct a new channel bean from this channel
+            ChannelBean channel = getChannel(portlet, request, locale);
+            uncategorizedPortletsBean.addChannel(channel);
         }
         // Add even if no portlets in category
         categories.add(uncategorizedPortletsBean);
@@ -256,22 +254,19 @@ public class ChannelListController {
         EntityIdentifier ei = user.getEntityIdentifier();
         IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 
-        for(IPortletDefinition portlet : portlets) {
-
-            if (authorizationService.canPrincipalBrowse(ap, portlet)) {
-                // construct a new channel bean from this channel
-                ChannelBean channel = getChannel(portlet, request, locale);
-                categoryBean.addChannel(channel);
-            }
-
-            /*
-             * Remove the portlet from the uncategorized collection;
-             * note -- this approach will not prevent portlets from
-             * appearing in multiple categories (as appropriate).
-             */
-            portletsNotYetCategorized.remove(portlet);
+        for(IPortletDefinition portlet : authorizationService.filterBrowsablePortlets(ap, portlets)) {
+            // construct a new channel bean from this channel
+            ChannelBean channel = getChannel(portlet, request, locale);
+            categoryBean.addChannel(channel);
         }
 
+        /*
+         * Remove the portlets from the uncategorized collection;
+         * note -- this approach will not prevent portlets from
+         * appearing in multiple categories (as appropriate).
+         */
+        portletsNotYetCategorized.removeAll(portlets);
+
         /* Now add child categories. */
         for(PortletCategory childCategory : this.portletCategoryRegistry.getChildCategories(category)) {
             ChannelCategoryBean childCategoryBean = prepareCategoryBean(request, childCategory, portletsNotYetCategorized, user, locale);
@@ -344,11 +339,9 @@ public class ChannelListController {
             IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 
             Set<PortletDefinitionBean> marketplacePortlets = new HashSet<>();
-            for (IPortletDefinition portlet : portletsNotYetCategorized) {
-                if (authorizationService.canPrincipalBrowse(ap, portlet)) {
-                    PortletDefinitionBean pdb = preparePortletDefinitionBean(request, portlet, locale);
-                    marketplacePortlets.add(pdb);
-                }
+            for (IPortletDefinition portlet : authorizationService.filterBrowsablePortlets(ap, portletsNotYetCategorized)) {
+                PortletDefinitionBean pdb = preparePortletDefinitionBean(request, portlet, locale);
+                marketplacePortlets.add(pdb);
             }
 
             // construct a new channel category bean for this category
@@ -383,21 +376,18 @@ public class ChannelListController {
         IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 
         Set<PortletDefinitionBean> marketplacePortlets = new HashSet<>();
-        for(IPortletDefinition portlet : portlets) {
-
-            if (authorizationService.canPrincipalBrowse(ap, portlet)) {
-                PortletDefinitionBean pdb = preparePortletDefinitionBean(req, portlet, locale);
-                marketplacePortlets.add(pdb);
-            }
-
-            /*
-             * Remove the portlet from the uncategorized collection;
-             * note -- this approach will not prevent portlets from
-             * appearing in multiple categories (as appropriate).
-             */
-            portletsNotYetCategorized.remove(portlet);
+        for(IPortletDefinition portlet : authorizationService.filterBrowsablePortlets(ap, portlets)) {
+            PortletDefinitionBean pdb = preparePortletDefinitionBean(req, portlet, locale);
+            marketplacePortlets.add(pdb);
         }
 
+        /*
+         * Remove the portlets from the uncategorized collection;
+         * note -- this approach will not prevent portlets from
+         * appearing in multiple categories (as appropriate).
+         */
+        portletsNotYetCategorized.removeAll(portlets);
+
         // construct a new portlet category bean for this category
         PortletCategoryBean categoryBean = PortletCategoryBean.fromPortletCategory(category, subcategories, marketplacePortlets);
         categoryBean.setName(messageSource.getMessage(category.getName(), new Object[] {}, locale));
@@ -0,0 +1,480 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Immutable element of a user layout. Instances never change once created and carry no reference
+ * to their parent, so a single instance can be shared by the layouts of every user that contains
+ * an identical subtree. A user's layout is then just the nodes that differ for that user (their
+ * own folders, reordered or filtered parents and so on) pointing at the fragment subtrees they
+ * have in common with everyone else.
+ * <p>
+ * Only element structure is retained, text and comment nodes are dropped since user layouts do
+ * not carry any. Attributes are kept in a canonical order so that two nodes built from elements
+ * whose attributes were added in a different order are still equal.
+ *
+ * @see ImmutableLayoutNodeInterner
+ */
+public final class ImmutableLayoutNode {
+    private static final String[] EMPTY_STRINGS = new String[0];
+    private static final ImmutableLayoutNode[] EMPTY_NODES = new ImmutableLayoutNode[0];
+    
+    private final NodeName name;
+    private final NodeName[] attributeNames;
+    private final String[] attributeValues;
+    private final String[] namespacePrefixes;
+    private final String[] namespaceUris;
+    private final ImmutableLayoutNode[] children;
+    private final int hash;
+    
+    private ImmutableLayoutNode(NodeName name, NodeName[] attributeNames, String[] attributeValues,
+            String[] namespacePrefixes, String[] namespaceUris, ImmutableLayoutNode[] children) {
+        this.name = name;
+        this.attributeNames = attributeNames;
+        this.attributeValues = attributeValues;
+        this.namespacePrefixes = namespacePrefixes;
+        this.namespaceUris = namespaceUris;
+        this.children = children;
+        
+        int h = name.hashCode();
+        h = 31 * h + Arrays.hashCode(attributeNames);
+        h = 31 * h + Arrays.hashCode(attributeValues);
+        h = 31 * h + Arrays.hashCode(namespaceUris);
+        h = 31 * h + Arrays.hashCode(children);
+        this.hash = h;
+    }
+    
+    /**
+     * Build an immutable copy of the document element of the specified layout, re-using nodes
+     * known to the interner wherever an identical subtree exists.
+     * 
+     * @param layout The layout document to copy
+     * @param interner Source of shared nodes, may not be null
+     */
+    public static ImmutableLayoutNode fromDocument(Document layout, ImmutableLayoutNodeInterner interner) {
+        return fromElement(layout.getDocumentElement(), interner);
+    }
+    
+    /**
+     * Build an immutable copy of the specified element and all element descendants, re-using
+     * nodes known to the interner wherever an identical subtree exists.
+     */
+    public static ImmutableLayoutNode fromElement(Element element, ImmutableLayoutNodeInterner interner) {
+        final List<ImmutableLayoutNode> childNodes = new ArrayList<ImmutableLayoutNode>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                childNodes.add(fromElement((Element) child, interner));
+            }
+        }
+        
+        final NamedNodeMap attributes = element.getAttributes();
+        final List<Attr> attrs = new ArrayList<Attr>(attributes.getLength());
+        final List<Attr> namespaces = new ArrayList<Attr>(0);
+        for (int index = 0; index < attributes.getLength(); index++) {
+            final Attr attr = (Attr) attributes.item(index);
+            if (isNamespaceDeclaration(attr)) {
+                namespaces.add(attr);
+            }
+            else {
+                attrs.add(attr);
+            }
+        }
+        Collections.sort(attrs, ATTR_ORDER);
+        Collections.sort(namespaces, ATTR_ORDER);
+        
+        final NodeName[] attributeNames = attrs.isEmpty() ? NodeName.EMPTY : new NodeName[attrs.size()];
+        final String[] attributeValues = attrs.isEmpty() ? EMPTY_STRINGS : new String[attrs.size()];
+        for (int index = 0; index < attributeNames.length; index++) {
+            final Attr attr = attrs.get(index);
+            attributeNames[index] = interner.internName(NodeName.fromNode(attr));
+            attributeValues[index] = interner.internValue(attr.getValue());
+        }
+        
+        final String[] namespacePrefixes = namespaces.isEmpty() ? EMPTY_STRINGS : new String[namespaces.size()];
+        final String[] namespaceUris = namespaces.isEmpty() ? EMPTY_STRINGS : new String[namespaces.size()];
+        for (int index = 0; index < namespacePrefixes.length; index++) {
+            final Attr attr = namespaces.get(index);
+            final String attrName = attr.getName();
+            final int separator = attrName.indexOf(':');
+            namespacePrefixes[index] = separator < 0 ? XMLConstants.DEFAULT_NS_PREFIX : attrName.substring(separator + 1);
+            namespaceUris[index] = interner.internValue(attr.getValue());
+        }
+        
+        final ImmutableLayoutNode[] children = childNodes.isEmpty() ? EMPTY_NODES : childNodes.toArray(new ImmutableLayoutNode[childNodes.size()]);
+        
+        final ImmutableLayoutNode node = new ImmutableLayoutNode(interner.internName(NodeName.fromNode(element)),
+                attributeNames, attributeValues, namespacePrefixes, namespaceUris, children);
+        return interner.intern(node);
+    }
+    
+    private static boolean isNamespaceDeclaration(Attr attr) {
+        if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+            return true;
+        }
+        final String attrName = attr.getName();
+        return XMLConstants.XMLNS_ATTRIBUTE.equals(attrName) || attrName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+    }
+    
+    /**
+     * @return The full name of the element
+     */
+    public NodeName getName() {
+        return this.name;
+    }
+    
+    /**
+     * @return The qualified name of the element, for example <code>folder</code> or <code>dlm:positionSet</code>
+     */
+    public String getNodeName() {
+        return this.name.getQualifiedName();
+    }
+    
+    /**
+     * @return The local name of the element, never null
+     */
+    public String getLocalName() {
+        return this.name.getLocalName();
+    }
+    
+    /**
+     * @return The namespace URI of the element, null if it has none
+     */
+    public String getNamespaceURI() {
+        return this.name.getNamespaceURI();
+    }
+    
+    /**
+     * @return The value of the <code>ID</code> attribute, an empty String if the element has none
+     */
+    public String getId() {
+        return this.getAttribute("ID");
+    }
+    
+    /**
+     * Same semantics as {@link Element#getAttribute(String)}, matches on the qualified name and
+     * returns an empty String if no such attribute exists.
+     */
+    public String getAttribute(String qualifiedName) {
+        for (int index = 0; index < this.attributeNames.length; index++) {
+            if (this.attributeNames[index].getQualifiedName().equals(qualifiedName)) {
+                return this.attributeValues[index];
+            }
+        }
+        return "";
+    }
+    
+    /**
+     * Same semantics as {@link Element#getAttributeNS(String, String)}, returns an empty String
+     * if no such attribute exists.
+     */
+    public String getAttributeNS(String namespaceURI, String localName) {
+        for (int index = 0; index < this.attributeNames.length; index++) {
+            final NodeName attributeName = this.attributeNames[index];
+            if (attributeName.getLocalName().equals(localName) && equal(attributeName.getNamespaceURI(), namespaceURI)) {
+                return this.attributeValues[index];
+            }
+        }
+        return "";
+    }
+    
+    public int getAttributeCount() {
+        return this.attributeNames.length;
+    }
+    
+    public NodeName getAttributeName(int index) {
+        return this.attributeNames[index];
+    }
+    
+    public String getAttributeValue(int index) {
+        return this.attributeValues[index];
+    }
+    
+    /**
+     * @return Number of namespaces declared on this element
+     */
+    public int getNamespaceCount() {
+        return this.namespacePrefixes.length;
+    }
+    
+    public String getNamespacePrefix(int index) {
+        return this.namespacePrefixes[index];
+    }
+    
+    public String getNamespaceUri(int index) {
+        return this.namespaceUris[index];
+    }
+    
+    /**
+     * @return Read-only view of the child elements
+     */
+    public List<ImmutableLayoutNode> getChildren() {
+        return Collections.unmodifiableList(Arrays.asList(this.children));
+    }
+    
+    public int getChildCount() {
+        return this.children.length;
+    }
+    
+    public ImmutableLayoutNode getChild(int index) {
+        return this.children[index];
+    }
+    
+    /**
+     * Find the element with the specified <code>ID</code> attribute.
+     * 
+     * @return The path from this node to the matching node, inclusive of both, or null if no descendant has the id.
+     */
+    public List<ImmutableLayoutNode> findPathById(String id) {
+        final List<ImmutableLayoutNode> path = new ArrayList<ImmutableLayoutNode>();
+        if (this.findPathById(id, path)) {
+            return path;
+        }
+        return null;
+    }
+    
+    private boolean findPathById(String id, List<ImmutableLayoutNode> path) {
+        path.add(this);
+        if (id.equals(this.getId())) {
+            return true;
+        }
+        for (final ImmutableLayoutNode child : this.children) {
+            if (child.findPathById(id, path)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+    
+    /**
+     * Collect this node and all descendants with the specified element name in document order,
+     * same as {@link Document#getElementsByTagName(String)}.
+     */
+    public List<ImmutableLayoutNode> getElementsByTagName(String nodeName) {
+        final List<ImmutableLayoutNode> elements = new ArrayList<ImmutableLayoutNode>();
+        this.collectElementsByTagName(nodeName, elements);
+        return elements;
+    }
+    
+    private void collectElementsByTagName(String nodeName, List<ImmutableLayoutNode> elements) {
+        if (this.name.getQualifiedName().equals(nodeName)) {
+            elements.add(this);
+        }
+        for (final ImmutableLayoutNode child : this.children) {
+            child.collectElementsByTagName(nodeName, elements);
+        }
+    }
+    
+    /**
+     * Create a mutable DOM copy of this node owned by the specified document. ID attributes are
+     * registered so {@link Document#getElementById(String)} works once the copy is attached.
+     * 
+     * @param document The document that will own the new element
+     * @param deep If true all descendants are copied as well 
+     */
+    public Element toElement(Document document, boolean deep) {
+        final Element element;
+        if (this.name.isNamespaceAware()) {
+            element = document.createElementNS(this.name.getNamespaceURI(), this.name.getQualifiedName());
+        }
+        else {
+            element = document.createElement(this.name.getQualifiedName());
+        }
+        
+        for (int index = 0; index < this.namespacePrefixes.length; index++) {
+            final String prefix = this.namespacePrefixes[index];
+            final String qualifiedName = XMLConstants.DEFAULT_NS_PREFIX.equals(prefix) ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, qualifiedName, this.namespaceUris[index]);
+        }
+        
+        for (int index = 0; index < this.attributeNames.length; index++) {
+            final NodeName attributeName = this.attributeNames[index];
+            if (attributeName.isNamespaceAware()) {
+                element.setAttributeNS(attributeName.getNamespaceURI(), attributeName.getQualifiedName(), this.attributeValues[index]);
+            }
+            else {
+                element.setAttribute(attributeName.getQualifiedName(), this.attributeValues[index]);
+            }
+            
+            if ("ID".equals(attributeName.getQualifiedName())) {
+                element.setIdAttribute("ID", true);
+            }
+        }
+        
+        if (deep) {
+            for (final ImmutableLayoutNode child : this.children) {
+                element.appendChild(child.toElement(document, true));
+            }
+        }
+        
+        return element;
+    }
+    
+    /**
+     * Append a deep copy of this node to the specified empty document as its document element.
+     * 
+     * @return The document passed in
+     */
+    public Document toDocument(Document document) {
+        document.appendChild(this.toElement(document, true));
+        return document;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ImmutableLayoutNode)) {
+            return false;
+        }
+        final ImmutableLayoutNode other = (ImmutableLayoutNode) obj;
+        return this.hash == other.hash
+                && this.name.equals(other.name)
+                && Arrays.equals(this.attributeNames, other.attributeNames)
+                && Arrays.equals(this.attributeValues, other.attributeValues)
+                && Arrays.equals(this.namespacePrefixes, other.namespacePrefixes)
+                && Arrays.equals(this.namespaceUris, other.namespaceUris)
+                && Arrays.equals(this.children, other.children);
+    }
+
+    @Override
+    public String toString() {
+        return "ImmutableLayoutNode [name=" + this.name + ", ID=" + this.getId() + ", children=" + this.children.length + "]";
+    }
+    
+    private static boolean equal(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+    
+    private static final Comparator<Attr> ATTR_ORDER = new Comparator<Attr>() {
+        @Override
+        public int compare(Attr o1, Attr o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+    
+    /**
+     * Name of an element or attribute. Elements and attributes created with the DOM level 1 APIs
+     * have no namespace or local name, for those the qualified name doubles as the local name.
+     */
+    public static final class NodeName {
+        static final NodeName[] EMPTY = new NodeName[0];
+        
+        private final String qualifiedName;
+        private final String localName;
+        private final String prefix;
+        private final String namespaceURI;
+        private final boolean namespaceAware;
+        private final int hash;
+        
+        private NodeName(String qualifiedName, String localName, String prefix, String namespaceURI, boolean namespaceAware) {
+            this.qualifiedName = qualifiedName;
+            this.localName = localName;
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+            this.namespaceAware = namespaceAware;
+            
+            int h = qualifiedName.hashCode();
+            h = 31 * h + (namespaceURI == null ? 0 : namespaceURI.hashCode());
+            h = 31 * h + (namespaceAware ? 1 : 0);
+            this.hash = h;
+        }
+        
+        static NodeName fromNode(Node node) {
+            final String localName = node.getLocalName();
+            if (localName == null) {
+                return new NodeName(node.getNodeName(), node.getNodeName(), null, null, false);
+            }
+            return new NodeName(node.getNodeName(), localName, node.getPrefix(), node.getNamespaceURI(), true);
+        }
+        
+        public String getQualifiedName() {
+            return this.qualifiedName;
+        }
+        
+        public String getLocalName() {
+            return this.localName;
+        }
+        
+        /**
+         * @return The namespace prefix, null if there is none
+         */
+        public String getPrefix() {
+            return this.prefix;
+        }
+        
+        /**
+         * @return The namespace URI, null if there is none
+         */
+        public String getNamespaceURI() {
+            return this.namespaceURI;
+        }
+        
+        /**
+         * @return true if the name was created with the DOM level 2 namespace aware APIs
+         */
+        public boolean isNamespaceAware() {
+            return this.namespaceAware;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof NodeName)) {
+                return false;
+            }
+            final NodeName other = (NodeName) obj;
+            return this.namespaceAware == other.namespaceAware
+                    && this.qualifiedName.equals(other.qualifiedName)
+                    && equal(this.namespaceURI, other.namespaceURI);
+        }
+
+        @Override
+        public String toString() {
+            return this.namespaceURI == null ? this.qualifiedName : "{" + this.namespaceURI + "}" + this.qualifiedName;
+        }
+    }
+}
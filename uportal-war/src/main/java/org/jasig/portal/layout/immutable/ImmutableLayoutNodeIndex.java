@@ -0,0 +1,165 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup tables over an immutable layout, built with a single walk of the tree so that node, tab
+ * and portlet lookups don't have to search the layout on every call. The index is only valid for
+ * the layout it was built from, a new index must be created for every published layout.
+ * <p>
+ * Lookups follow the semantics of the DOM searches they replace: when an id or fname occurs more
+ * than once the first node in document order wins.
+ */
+public final class ImmutableLayoutNodeIndex {
+    private static final String FOLDER = "folder";
+    private static final String CHANNEL = "channel";
+    
+    private final ImmutableLayoutNode layout;
+    private final Map<String, ImmutableLayoutNode> nodesById = new HashMap<String, ImmutableLayoutNode>();
+    private final Map<String, String> parentIdsById = new HashMap<String, String>();
+    private final Map<String, String> tabIdsById = new HashMap<String, String>();
+    private final Map<String, String> subscribeIdsByFname = new HashMap<String, String>();
+    private final List<String> visibleTabIds = new ArrayList<String>();
+
+    /**
+     * @param layout The document element of the layout
+     */
+    public ImmutableLayoutNodeIndex(ImmutableLayoutNode layout) {
+        this.layout = layout;
+        
+        //layout -> root/header/footer folders -> tabs
+        for (final ImmutableLayoutNode rootFolder : layout.getChildren()) {
+            if (!FOLDER.equals(rootFolder.getNodeName())) {
+                continue;
+            }
+            for (final ImmutableLayoutNode tab : rootFolder.getChildren()) {
+                if (FOLDER.equals(tab.getNodeName()) && "regular".equals(tab.getAttribute("type"))
+                        && "false".equals(tab.getAttribute("hidden"))) {
+                    this.visibleTabIds.add(tab.getId());
+                }
+            }
+        }
+        
+        this.indexNode(layout, null, 0, null);
+    }
+    
+    private void indexNode(ImmutableLayoutNode node, String parentId, int depth, String tabId) {
+        final String nodeName = node.getNodeName();
+        final String id = node.getId();
+        
+        if (depth == 2 && (FOLDER.equals(nodeName) || CHANNEL.equals(nodeName))) {
+            tabId = id;
+        }
+        
+        if (id.length() > 0 && !this.nodesById.containsKey(id)) {
+            this.nodesById.put(id, node);
+            this.parentIdsById.put(id, parentId);
+            if (tabId != null) {
+                this.tabIdsById.put(id, tabId);
+            }
+        }
+        
+        if (CHANNEL.equals(nodeName)) {
+            final String fname = node.getAttribute("fname");
+            if (!this.subscribeIdsByFname.containsKey(fname)) {
+                this.subscribeIdsByFname.put(fname, id.length() == 0 ? null : id);
+            }
+        }
+        
+        for (final ImmutableLayoutNode child : node.getChildren()) {
+            this.indexNode(child, id, depth + 1, tabId);
+        }
+    }
+
+    /**
+     * @return The layout this index was built from
+     */
+    public ImmutableLayoutNode getLayout() {
+        return this.layout;
+    }
+    
+    /**
+     * @return The node with the specified ID, null if there is no such node
+     */
+    public ImmutableLayoutNode getNode(String id) {
+        return this.nodesById.get(id);
+    }
+    
+    /**
+     * @return The ID of the parent of the node with the specified ID, null if there is no such node or it is the root
+     */
+    public String getParentId(String id) {
+        return this.parentIdsById.get(id);
+    }
+    
+    /**
+     * @return The subscribe ID of the first portlet with the fname, null if the layout doesn't contain the portlet
+     */
+    public String getSubscribeId(String fname) {
+        return this.subscribeIdsByFname.get(fname);
+    }
+    
+    /**
+     * @return The subscribe ID of the first portlet with the fname below the specified folder, null if there is none
+     */
+    public String getSubscribeId(String parentFolderId, String fname) {
+        final ImmutableLayoutNode folder = this.nodesById.get(parentFolderId);
+        if (folder == null || !FOLDER.equals(folder.getNodeName())) {
+            return null;
+        }
+        
+        for (final ImmutableLayoutNode channel : folder.getElementsByTagName(CHANNEL)) {
+            if (fname.equals(channel.getAttribute("fname"))) {
+                return channel.getId();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return The ID of the tab (child of a root, header or footer folder) containing the node, the node's ID if it is a tab, null if the node isn't in a tab
+     */
+    public String getTabId(String id) {
+        return this.tabIdsById.get(id);
+    }
+    
+    /**
+     * @param tabIndex 1 based index of the tab
+     * @return The ID of the tab at the index counting only regular tabs that are not hidden, null if there are not that many tabs
+     */
+    public String getVisibleTabId(int tabIndex) {
+        if (tabIndex < 1 || tabIndex > this.visibleTabIds.size()) {
+            return null;
+        }
+        return this.visibleTabIds.get(tabIndex - 1);
+    }
+    
+    /**
+     * @return The IDs of the regular tabs that are not hidden, in layout order
+     */
+    public List<String> getVisibleTabIds() {
+        return Collections.unmodifiableList(this.visibleTabIds);
+    }
+}
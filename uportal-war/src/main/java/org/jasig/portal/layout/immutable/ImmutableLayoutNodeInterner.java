@@ -0,0 +1,133 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode.NodeName;
+import org.w3c.dom.Document;
+
+/**
+ * Canonicalizes {@link ImmutableLayoutNode}s, names and attribute values so that equal subtrees
+ * built for different users end up as the same instance. An interner is used in one of two ways:
+ * <ul>
+ *  <li>Shared: created via {@link #createShared(Document)} from a fragment layout, never modified
+ *  afterwards and safe to read from many threads.</li>
+ *  <li>Private: created for a single layout conversion, consults any number of shared interners
+ *  first and then de-duplicates within the layout being converted. Not thread-safe.</li>
+ * </ul>
+ */
+public final class ImmutableLayoutNodeInterner {
+    private final List<ImmutableLayoutNodeInterner> sharedInterners;
+    private final Map<ImmutableLayoutNode, ImmutableLayoutNode> nodes = new HashMap<ImmutableLayoutNode, ImmutableLayoutNode>();
+    private final Map<NodeName, NodeName> names = new HashMap<NodeName, NodeName>();
+    private final Map<String, String> values = new HashMap<String, String>();
+    private ImmutableLayoutNode root;
+    
+    /**
+     * Create a private interner that de-duplicates within a single layout.
+     */
+    public ImmutableLayoutNodeInterner() {
+        this(Collections.<ImmutableLayoutNodeInterner>emptyList());
+    }
+    
+    /**
+     * Create a private interner that re-uses nodes from the specified shared interners before
+     * falling back to de-duplicating within a single layout.
+     */
+    public ImmutableLayoutNodeInterner(List<ImmutableLayoutNodeInterner> sharedInterners) {
+        this.sharedInterners = sharedInterners;
+    }
+    
+    /**
+     * Convert the layout and return an interner containing every node, name and value in it.
+     * The returned interner must only be passed to {@link #ImmutableLayoutNodeInterner(List)}
+     * and never used directly for another conversion.
+     */
+    public static ImmutableLayoutNodeInterner createShared(Document layout) {
+        final ImmutableLayoutNodeInterner interner = new ImmutableLayoutNodeInterner();
+        interner.root = ImmutableLayoutNode.fromDocument(layout, interner);
+        return interner;
+    }
+    
+    /**
+     * @return The root node of the layout a shared interner was created from, null for private interners
+     */
+    public ImmutableLayoutNode getRoot() {
+        return this.root;
+    }
+    
+    /**
+     * @return Number of distinct nodes known to this interner, excluding shared interners
+     */
+    public int size() {
+        return this.nodes.size();
+    }
+    
+    ImmutableLayoutNode intern(ImmutableLayoutNode node) {
+        for (final ImmutableLayoutNodeInterner sharedInterner : this.sharedInterners) {
+            final ImmutableLayoutNode sharedNode = sharedInterner.nodes.get(node);
+            if (sharedNode != null) {
+                return sharedNode;
+            }
+        }
+        
+        final ImmutableLayoutNode existing = this.nodes.get(node);
+        if (existing != null) {
+            return existing;
+        }
+        this.nodes.put(node, node);
+        return node;
+    }
+    
+    NodeName internName(NodeName name) {
+        for (final ImmutableLayoutNodeInterner sharedInterner : this.sharedInterners) {
+            final NodeName sharedName = sharedInterner.names.get(name);
+            if (sharedName != null) {
+                return sharedName;
+            }
+        }
+        
+        final NodeName existing = this.names.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        this.names.put(name, name);
+        return name;
+    }
+    
+    String internValue(String value) {
+        for (final ImmutableLayoutNodeInterner sharedInterner : this.sharedInterners) {
+            final String sharedValue = sharedInterner.values.get(value);
+            if (sharedValue != null) {
+                return sharedValue;
+            }
+        }
+        
+        final String existing = this.values.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        this.values.put(value, value);
+        return value;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode.NodeName;
+import org.jasig.portal.xml.stream.XMLEventBufferReader;
+
+/**
+ * Streams an {@link ImmutableLayoutNode} tree as a complete document. Names created with the
+ * DOM level 1 APIs, such as <code>dlm:origin</code> set via {@link org.w3c.dom.Element#setAttribute(String, String)},
+ * are resolved against the namespaces declared on their ancestors, the same result a reader
+ * parsing the serialized layout would produce.
+ */
+public class ImmutableLayoutXMLEventReader extends XMLEventBufferReader {
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
+    
+    public ImmutableLayoutXMLEventReader(ImmutableLayoutNode root) {
+        super(createEvents(root).listIterator());
+    }
+    
+    private static List<XMLEvent> createEvents(ImmutableLayoutNode root) {
+        final List<XMLEvent> events = new ArrayList<XMLEvent>();
+        events.add(EVENT_FACTORY.createStartDocument());
+        addEvents(root, new HashMap<String, String>(), events);
+        events.add(EVENT_FACTORY.createEndDocument());
+        return events;
+    }
+    
+    private static void addEvents(ImmutableLayoutNode node, Map<String, String> parentScope, List<XMLEvent> events) {
+        Map<String, String> scope = parentScope;
+        final List<Namespace> namespaces = new ArrayList<Namespace>(node.getNamespaceCount());
+        if (node.getNamespaceCount() > 0) {
+            scope = new HashMap<String, String>(parentScope);
+            for (int index = 0; index < node.getNamespaceCount(); index++) {
+                final String prefix = node.getNamespacePrefix(index);
+                final String uri = node.getNamespaceUri(index);
+                scope.put(prefix, uri);
+                namespaces.add(EVENT_FACTORY.createNamespace(prefix, uri));
+            }
+        }
+        
+        final List<Attribute> attributes = new ArrayList<Attribute>(node.getAttributeCount());
+        for (int index = 0; index < node.getAttributeCount(); index++) {
+            final QName attributeName = toQName(node.getAttributeName(index), scope, false);
+            attributes.add(EVENT_FACTORY.createAttribute(attributeName, node.getAttributeValue(index)));
+        }
+        
+        final QName elementName = toQName(node.getName(), scope, true);
+        events.add(EVENT_FACTORY.createStartElement(elementName, attributes.iterator(), namespaces.iterator()));
+        
+        for (int index = 0; index < node.getChildCount(); index++) {
+            addEvents(node.getChild(index), scope, events);
+        }
+        
+        events.add(EVENT_FACTORY.createEndElement(elementName, namespaces.iterator()));
+    }
+    
+    private static QName toQName(NodeName name, Map<String, String> scope, boolean element) {
+        if (name.isNamespaceAware()) {
+            final String namespaceURI = name.getNamespaceURI();
+            final String prefix = name.getPrefix();
+            return new QName(namespaceURI == null ? XMLConstants.NULL_NS_URI : namespaceURI, name.getLocalName(),
+                    prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+        }
+        
+        final String qualifiedName = name.getQualifiedName();
+        final int separator = qualifiedName.indexOf(':');
+        if (separator < 0) {
+            //Unprefixed attributes are never in the default namespace
+            final String namespaceURI = element ? scope.get(XMLConstants.DEFAULT_NS_PREFIX) : null;
+            return new QName(namespaceURI == null ? XMLConstants.NULL_NS_URI : namespaceURI, qualifiedName);
+        }
+        
+        final String prefix = qualifiedName.substring(0, separator);
+        final String namespaceURI = scope.get(prefix);
+        if (namespaceURI == null) {
+            return new QName(qualifiedName);
+        }
+        return new QName(namespaceURI, qualifiedName.substring(separator + 1), prefix);
+    }
+}
@@ -0,0 +1,486 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.simple;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.RDBMServices;
+
+/**
+ * The UP_LAYOUT_STRUCT and UP_LAYOUT_PARAM rows of a single user layout. The rows to store are
+ * collected while walking the layout document; they can then be written from scratch or diffed
+ * against the rows currently in the database so that only changed rows are touched.
+ */
+public final class LayoutRowSet {
+    private static final String SELECT_STRUCT_SQL = "SELECT STRUCT_ID, NEXT_STRUCT_ID, CHLD_STRUCT_ID, EXTERNAL_ID, CHAN_ID, NAME, TYPE, HIDDEN, IMMUTABLE, UNREMOVABLE " +
+            "FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=?";
+    private static final String INSERT_STRUCT_SQL = "INSERT INTO UP_LAYOUT_STRUCT " +
+            "(NEXT_STRUCT_ID, CHLD_STRUCT_ID, EXTERNAL_ID, CHAN_ID, NAME, TYPE, HIDDEN, IMMUTABLE, UNREMOVABLE, USER_ID, LAYOUT_ID, STRUCT_ID) " +
+            "VALUES (?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String UPDATE_STRUCT_SQL = "UPDATE UP_LAYOUT_STRUCT " +
+            "SET NEXT_STRUCT_ID=?, CHLD_STRUCT_ID=?, EXTERNAL_ID=?, CHAN_ID=?, NAME=?, TYPE=?, HIDDEN=?, IMMUTABLE=?, UNREMOVABLE=? " +
+            "WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=?";
+    private static final String DELETE_STRUCT_SQL = "DELETE FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=?";
+    
+    private static final String SELECT_PARAM_SQL = "SELECT STRUCT_ID, STRUCT_PARM_NM, STRUCT_PARM_VAL FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=?";
+    private static final String INSERT_PARAM_SQL = "INSERT INTO UP_LAYOUT_PARAM (STRUCT_PARM_VAL, USER_ID, LAYOUT_ID, STRUCT_ID, STRUCT_PARM_NM) VALUES (?,?,?,?,?)";
+    private static final String UPDATE_PARAM_SQL = "UPDATE UP_LAYOUT_PARAM SET STRUCT_PARM_VAL=? WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=? AND STRUCT_PARM_NM=?";
+    private static final String DELETE_PARAM_SQL = "DELETE FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=? AND STRUCT_PARM_NM=?";
+    
+    private final Map<Integer, StructureRow> structures = new LinkedHashMap<Integer, StructureRow>();
+    private final Map<ParameterKey, String> parameters = new LinkedHashMap<ParameterKey, String>();
+    private boolean duplicateKeys = false;
+    
+    /**
+     * Add a UP_LAYOUT_STRUCT row
+     * 
+     * @param externalId The EXTERNAL_ID, null if there is none
+     * @param chanId The CHAN_ID, null for folders
+     * @param name The NAME, null for channels
+     */
+    public void addStructure(int structId, int nextStructId, int childStructId, Integer externalId, Integer chanId,
+            String name, String type, boolean hidden, boolean immutable, boolean unremovable) {
+        final StructureRow row = new StructureRow(nextStructId, childStructId, externalId, chanId, name, type,
+                RDBMServices.dbFlag(hidden), RDBMServices.dbFlag(immutable), RDBMServices.dbFlag(unremovable));
+        if (this.structures.put(structId, row) != null) {
+            this.duplicateKeys = true;
+        }
+    }
+    
+    /**
+     * Add a UP_LAYOUT_PARAM row
+     */
+    public void addParameter(int structId, String name, String value) {
+        final ParameterKey parameterKey = new ParameterKey(structId, name);
+        if (this.parameters.containsKey(parameterKey)) {
+            this.duplicateKeys = true;
+        }
+        this.parameters.put(parameterKey, value);
+    }
+    
+    /**
+     * @return true if a struct id or struct id and parameter name pair was added more than once.
+     * Such a layout can only be written by {@link #insertAll(Connection, int, int)}, which reports the conflict.
+     */
+    public boolean hasDuplicateKeys() {
+        return this.duplicateKeys;
+    }
+    
+    public int getStructureCount() {
+        return this.structures.size();
+    }
+    
+    public int getParameterCount() {
+        return this.parameters.size();
+    }
+    
+    /**
+     * Read the rows currently stored for a layout.
+     */
+    public static LayoutRowSet load(Connection con, int userId, int layoutId) throws SQLException {
+        final LayoutRowSet rowSet = new LayoutRowSet();
+        
+        PreparedStatement pstmt = con.prepareStatement(SELECT_STRUCT_SQL);
+        try {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, layoutId);
+            final ResultSet rs = pstmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    final int structId = rs.getInt(1);
+                    final int nextStructId = rs.getInt(2);
+                    final int childStructId = rs.getInt(3);
+                    final Integer externalId = parseExternalId(rs.getString(4));
+                    int chanId = rs.getInt(5);
+                    final Integer chanIdValue = rs.wasNull() ? null : chanId;
+                    rowSet.structures.put(structId, new StructureRow(nextStructId, childStructId, externalId, chanIdValue,
+                            rs.getString(6), rs.getString(7), rs.getString(8), rs.getString(9), rs.getString(10)));
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            pstmt.close();
+        }
+        
+        pstmt = con.prepareStatement(SELECT_PARAM_SQL);
+        try {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, layoutId);
+            final ResultSet rs = pstmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    rowSet.parameters.put(new ParameterKey(rs.getInt(1), rs.getString(2)), rs.getString(3));
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            pstmt.close();
+        }
+        
+        return rowSet;
+    }
+    
+    private static Integer parseExternalId(String externalId) {
+        if (externalId == null || externalId.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(externalId.trim());
+        }
+        catch (NumberFormatException e) {
+            //Unparsable value, never equal to a parsed one so the row is rewritten
+            return Integer.MIN_VALUE;
+        }
+    }
+    
+    /**
+     * Insert all rows, the layout must not have any rows stored.
+     */
+    public void insertAll(Connection con, int userId, int layoutId) throws SQLException {
+        final PreparedStatement structStmt = con.prepareStatement(INSERT_STRUCT_SQL);
+        try {
+            for (final Map.Entry<Integer, StructureRow> structureEntry : this.structures.entrySet()) {
+                structureEntry.getValue().bind(structStmt, userId, layoutId, structureEntry.getKey());
+                structStmt.addBatch();
+            }
+            executeBatch(structStmt, this.structures.size());
+        }
+        finally {
+            structStmt.close();
+        }
+        
+        final PreparedStatement parmStmt = con.prepareStatement(INSERT_PARAM_SQL);
+        try {
+            for (final Map.Entry<ParameterKey, String> parameterEntry : this.parameters.entrySet()) {
+                bindParameter(parmStmt, parameterEntry.getValue(), userId, layoutId, parameterEntry.getKey());
+                parmStmt.addBatch();
+            }
+            executeBatch(parmStmt, this.parameters.size());
+        }
+        finally {
+            parmStmt.close();
+        }
+    }
+    
+    /**
+     * Issue the deletes, updates and inserts needed to turn the stored rows into these rows.
+     * 
+     * @param stored The rows currently stored for the layout, as returned by {@link #load(Connection, int, int)}
+     * @return The number of rows changed or -1 if an update or delete did not affect exactly one row,
+     *  meaning the stored rows changed concurrently and the caller has to rewrite the layout instead.
+     */
+    public int applyChanges(Connection con, int userId, int layoutId, LayoutRowSet stored) throws SQLException {
+        final List<Integer> deletedStructures = new ArrayList<Integer>();
+        for (final Integer structId : stored.structures.keySet()) {
+            if (!this.structures.containsKey(structId)) {
+                deletedStructures.add(structId);
+            }
+        }
+        final List<ParameterKey> deletedParameters = new ArrayList<ParameterKey>();
+        for (final ParameterKey parameterKey : stored.parameters.keySet()) {
+            if (!this.parameters.containsKey(parameterKey)) {
+                deletedParameters.add(parameterKey);
+            }
+        }
+        
+        final Map<Integer, StructureRow> updatedStructures = new LinkedHashMap<Integer, StructureRow>();
+        final Map<Integer, StructureRow> insertedStructures = new LinkedHashMap<Integer, StructureRow>();
+        for (final Map.Entry<Integer, StructureRow> structureEntry : this.structures.entrySet()) {
+            final StructureRow storedRow = stored.structures.get(structureEntry.getKey());
+            if (storedRow == null) {
+                insertedStructures.put(structureEntry.getKey(), structureEntry.getValue());
+            }
+            else if (!storedRow.equals(structureEntry.getValue())) {
+                updatedStructures.put(structureEntry.getKey(), structureEntry.getValue());
+            }
+        }
+        final Map<ParameterKey, String> updatedParameters = new LinkedHashMap<ParameterKey, String>();
+        final Map<ParameterKey, String> insertedParameters = new LinkedHashMap<ParameterKey, String>();
+        for (final Map.Entry<ParameterKey, String> parameterEntry : this.parameters.entrySet()) {
+            //Stored rows may have a null value so presence of the key decides between insert and update
+            if (!stored.parameters.containsKey(parameterEntry.getKey())) {
+                insertedParameters.put(parameterEntry.getKey(), parameterEntry.getValue());
+            }
+            else if (!equalValue(stored.parameters.get(parameterEntry.getKey()), parameterEntry.getValue())) {
+                updatedParameters.put(parameterEntry.getKey(), parameterEntry.getValue());
+            }
+        }
+        
+        //Parameters are removed before and added after their structures
+        if (!deletedParameters.isEmpty()) {
+            final PreparedStatement pstmt = con.prepareStatement(DELETE_PARAM_SQL);
+            try {
+                for (final ParameterKey parameterKey : deletedParameters) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, layoutId);
+                    pstmt.setInt(3, parameterKey.structId);
+                    pstmt.setString(4, parameterKey.name);
+                    pstmt.addBatch();
+                }
+                if (!executeBatch(pstmt, deletedParameters.size())) {
+                    return -1;
+                }
+            }
+            finally {
+                pstmt.close();
+            }
+        }
+        if (!deletedStructures.isEmpty()) {
+            final PreparedStatement pstmt = con.prepareStatement(DELETE_STRUCT_SQL);
+            try {
+                for (final Integer structId : deletedStructures) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, layoutId);
+                    pstmt.setInt(3, structId);
+                    pstmt.addBatch();
+                }
+                if (!executeBatch(pstmt, deletedStructures.size())) {
+                    return -1;
+                }
+            }
+            finally {
+                pstmt.close();
+            }
+        }
+        if (!writeStructures(con, UPDATE_STRUCT_SQL, updatedStructures, userId, layoutId)
+                || !writeStructures(con, INSERT_STRUCT_SQL, insertedStructures, userId, layoutId)
+                || !writeParameters(con, UPDATE_PARAM_SQL, updatedParameters, userId, layoutId)
+                || !writeParameters(con, INSERT_PARAM_SQL, insertedParameters, userId, layoutId)) {
+            return -1;
+        }
+        
+        return deletedParameters.size() + deletedStructures.size() + updatedStructures.size() + insertedStructures.size()
+                + updatedParameters.size() + insertedParameters.size();
+    }
+    
+    private static boolean writeStructures(Connection con, String sql, Map<Integer, StructureRow> rows, int userId, int layoutId) throws SQLException {
+        if (rows.isEmpty()) {
+            return true;
+        }
+        final PreparedStatement pstmt = con.prepareStatement(sql);
+        try {
+            for (final Map.Entry<Integer, StructureRow> structureEntry : rows.entrySet()) {
+                structureEntry.getValue().bind(pstmt, userId, layoutId, structureEntry.getKey());
+                pstmt.addBatch();
+            }
+            return executeBatch(pstmt, rows.size());
+        }
+        finally {
+            pstmt.close();
+        }
+    }
+    
+    private static boolean writeParameters(Connection con, String sql, Map<ParameterKey, String> rows, int userId, int layoutId) throws SQLException {
+        if (rows.isEmpty()) {
+            return true;
+        }
+        final PreparedStatement pstmt = con.prepareStatement(sql);
+        try {
+            for (final Map.Entry<ParameterKey, String> parameterEntry : rows.entrySet()) {
+                bindParameter(pstmt, parameterEntry.getValue(), userId, layoutId, parameterEntry.getKey());
+                pstmt.addBatch();
+            }
+            return executeBatch(pstmt, rows.size());
+        }
+        finally {
+            pstmt.close();
+        }
+    }
+    
+    /**
+     * Insert and update statements for parameters share parameter order: value first, then the key columns.
+     */
+    private static void bindParameter(PreparedStatement pstmt, String value, int userId, int layoutId, ParameterKey key) throws SQLException {
+        pstmt.setString(1, value);
+        pstmt.setInt(2, userId);
+        pstmt.setInt(3, layoutId);
+        pstmt.setInt(4, key.structId);
+        pstmt.setString(5, key.name);
+    }
+    
+    /**
+     * @return true if every statement in the batch affected exactly one row, drivers that do not
+     *  report counts are trusted.
+     */
+    private static boolean executeBatch(PreparedStatement pstmt, int size) throws SQLException {
+        if (size == 0) {
+            return true;
+        }
+        final int[] counts = pstmt.executeBatch();
+        for (final int count : counts) {
+            if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "LayoutRowSet [structures=" + this.structures + ", parameters=" + this.parameters + "]";
+    }
+    
+    private static boolean equalValue(String a, String b) {
+        //Some databases store empty strings as null
+        if (a == null || a.length() == 0) {
+            return b == null || b.length() == 0;
+        }
+        return a.equals(b);
+    }
+    
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+    
+    private static final class StructureRow {
+        private final int nextStructId;
+        private final int childStructId;
+        private final Integer externalId;
+        private final Integer chanId;
+        private final String name;
+        private final String type;
+        private final String hidden;
+        private final String immutable;
+        private final String unremovable;
+        
+        StructureRow(int nextStructId, int childStructId, Integer externalId, Integer chanId, String name,
+                String type, String hidden, String immutable, String unremovable) {
+            this.nextStructId = nextStructId;
+            this.childStructId = childStructId;
+            this.externalId = externalId;
+            this.chanId = chanId;
+            this.name = name;
+            this.type = type;
+            this.hidden = hidden;
+            this.immutable = immutable;
+            this.unremovable = unremovable;
+        }
+        
+        /**
+         * Insert and update statements for structures share parameter order: the data columns
+         * first, then USER_ID, LAYOUT_ID and STRUCT_ID.
+         */
+        void bind(PreparedStatement pstmt, int userId, int layoutId, int structId) throws SQLException {
+            pstmt.setInt(1, this.nextStructId);
+            pstmt.setInt(2, this.childStructId);
+            if (this.externalId != null) {
+                pstmt.setInt(3, this.externalId);
+            }
+            else {
+                pstmt.setNull(3, Types.NUMERIC);
+            }
+            if (this.chanId != null) {
+                pstmt.setInt(4, this.chanId);
+            }
+            else {
+                pstmt.setNull(4, Types.NUMERIC);
+            }
+            if (this.name != null) {
+                pstmt.setString(5, this.name);
+            }
+            else {
+                pstmt.setNull(5, Types.VARCHAR);
+            }
+            pstmt.setString(6, this.type);
+            pstmt.setString(7, this.hidden);
+            pstmt.setString(8, this.immutable);
+            pstmt.setString(9, this.unremovable);
+            pstmt.setInt(10, userId);
+            pstmt.setInt(11, layoutId);
+            pstmt.setInt(12, structId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.nextStructId + this.childStructId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof StructureRow)) {
+                return false;
+            }
+            final StructureRow other = (StructureRow) obj;
+            return this.nextStructId == other.nextStructId
+                    && this.childStructId == other.childStructId
+                    && equal(this.externalId, other.externalId)
+                    && equal(this.chanId, other.chanId)
+                    && equalValue(this.name, other.name)
+                    && equalValue(this.type, other.type)
+                    && equalValue(this.hidden, other.hidden)
+                    && equalValue(this.immutable, other.immutable)
+                    && equalValue(this.unremovable, other.unremovable);
+        }
+
+        @Override
+        public String toString() {
+            return "[next=" + this.nextStructId + ", child=" + this.childStructId + ", chanId=" + this.chanId + ", name=" + this.name + ", type=" + this.type + "]";
+        }
+    }
+    
+    private static final class ParameterKey {
+        private final int structId;
+        private final String name;
+        
+        ParameterKey(int structId, String name) {
+            this.structId = structId;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.structId + this.name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ParameterKey)) {
+                return false;
+            }
+            final ParameterKey other = (ParameterKey) obj;
+            return this.structId == other.structId && this.name.equals(other.name);
+        }
+
+        @Override
+        public String toString() {
+            return this.structId + ":" + this.name;
+        }
+    }
+}
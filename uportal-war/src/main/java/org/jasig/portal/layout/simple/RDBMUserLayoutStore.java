@@ -24,10 +24,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -46,6 +50,7 @@ import org.jasig.portal.jpa.BasePortalJpaDao;
 import org.jasig.portal.layout.IUserLayoutStore;
 import org.jasig.portal.layout.LayoutStructure;
 import org.jasig.portal.layout.dao.IStylesheetDescriptorDao;
+import org.jasig.portal.portlet.om.IPortletDefinition;
 import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
 import org.jasig.portal.rdbm.DatabaseMetaDataImpl;
 import org.jasig.portal.rdbm.IDatabaseMetadata;
@@ -64,6 +69,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcOperations;
@@ -83,6 +89,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import com.google.common.cache.Cache;
+import com.google.common.collect.Iterables;
 
 /**
  * SQL implementation for the 2.x relational database model.
@@ -117,6 +124,14 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
     protected IPortletDefinitionRegistry portletDefinitionRegistry;
     protected IStylesheetDescriptorDao stylesheetDescriptorDao;
     protected SQLExceptionTranslator exceptionTranslator;
+    private boolean incrementalLayoutSave = true;
+    private int bulkLoadBatchSize = 500;
+    
+    /*
+     * Portlet definitions resolved once for all of the layouts being loaded or stored by the
+     * current thread, such as by getPersonalUserLayouts or a layout import.
+     */
+    private final ThreadLocal<Map<Integer, IPortletDefinition>> layoutPortletDefinitionsHolder = new ThreadLocal<Map<Integer, IPortletDefinition>>();
 
     // I18n property
     protected static final boolean localeAware = LocaleManager.isLocaleAware();
@@ -166,6 +181,28 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
         this.portletDefinitionRegistry = portletDefinitionRegistry;
     }
 
+    /**
+     * If true saving a layout only deletes, updates and inserts the UP_LAYOUT_STRUCT and
+     * UP_LAYOUT_PARAM rows that differ from the stored rows. If false every save deletes and
+     * re-inserts all of the layout's rows. Defaults to true.
+     */
+    @Value("${org.jasig.portal.layout.simple.RDBMUserLayoutStore.incrementalLayoutSave:true}")
+    public void setIncrementalLayoutSave(boolean incrementalLayoutSave) {
+        this.incrementalLayoutSave = incrementalLayoutSave;
+    }
+
+    /**
+     * The maximum number of users whose layouts are loaded by a single set of queries in
+     * {@link #getPersonalUserLayouts(Collection, String, Locale)}. Defaults to 500.
+     */
+    @Value("${org.jasig.portal.layout.simple.RDBMUserLayoutStore.bulkLoadBatchSize:500}")
+    public void setBulkLoadBatchSize(int bulkLoadBatchSize) {
+        if (bulkLoadBatchSize < 1) {
+            throw new IllegalArgumentException("bulkLoadBatchSize must be greater than 0: " + bulkLoadBatchSize);
+        }
+        this.bulkLoadBatchSize = bulkLoadBatchSize;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         if (this.databaseMetadata.supportsOuterJoins()) {
@@ -950,6 +987,256 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
         });
     }
 
+    /**
+     * Loads the layouts in batches of at most {@link #setBulkLoadBatchSize(int)} users. Each batch
+     * reads the profile ids, layout ids, structures and parameters of all of its users with one
+     * query each and resolves every portlet definition referenced by the batch once before the
+     * layout documents are built. Layout ids are resolved the same way as
+     * {@link #getLayoutID(int, int)} does for a single user.
+     */
+    @Override
+    public Map<String, Document> getPersonalUserLayouts(Collection<String> userNames, final String profileFname, Locale locale) {
+        final Map<String, Document> layouts = new LinkedHashMap<String, Document>();
+        if (userNames.isEmpty()) {
+            return layouts;
+        }
+
+        final String layoutLocale = (locale != null ? locale : Locale.getDefault()).toString();
+        final long startTime = System.currentTimeMillis();
+        for (final List<String> batch : Iterables.partition(new LinkedHashSet<String>(userNames), this.bulkLoadBatchSize)) {
+            jdbcOperations.execute(new ConnectionCallback<Object>() {
+                @Override
+                public Object doInConnection(Connection con) throws SQLException, DataAccessException {
+                    loadPersonalUserLayouts(con, batch, profileFname, layoutLocale, layouts);
+                    return null;
+                }
+            });
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("getPersonalUserLayouts(): Loaded {} layouts for {} users in {} milliseconds",
+                    new Object[] { layouts.size(), userNames.size(), System.currentTimeMillis() - startTime });
+        }
+
+        return layouts;
+    }
+
+    /**
+     * Load the stored layouts of one batch of users and add them to the layouts map keyed by user name
+     */
+    private void loadPersonalUserLayouts(Connection con, List<String> userNames, String profileFname,
+            String locale, Map<String, Document> layouts) throws SQLException {
+
+        //Profile id of every user in the batch with the profile, resolved the same way as getUserProfileByFname
+        final Map<Integer, String> userNamesById = new HashMap<Integer, String>();
+        final Map<Integer, Integer> profileIds = new HashMap<Integer, Integer>();
+
+        final StringBuilder userNameParams = new StringBuilder();
+        for (int i = 0; i < userNames.size(); i++) {
+            userNameParams.append(i == 0 ? "?" : ",?");
+        }
+        String sql = "SELECT U.USER_ID, U.USER_NAME, UUP.PROFILE_ID " +
+                "FROM UP_USER U, UP_USER_PROFILE UUP " +
+                "WHERE U.USER_ID=UUP.USER_ID AND UUP.PROFILE_FNAME=? AND U.USER_NAME IN (" + userNameParams + ")";
+        logger.debug("getPersonalUserLayouts(): {}", sql);
+        final PreparedStatement pstmt = con.prepareStatement(sql);
+        try {
+            int paramIndex = 1;
+            pstmt.setString(paramIndex++, profileFname);
+            for (final String userName : userNames) {
+                pstmt.setString(paramIndex++, userName);
+            }
+
+            final ResultSet rs = pstmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    final int userId = rs.getInt(1);
+                    userNamesById.put(userId, rs.getString(2));
+                    profileIds.put(userId, rs.getInt(3));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            pstmt.close();
+        }
+
+        if (profileIds.isEmpty()) {
+            return;
+        }
+
+        //Users without a layout id use the layout of their template user and are left to the per-user path
+        final Map<Integer, Integer> storedLayoutIds = getLayoutIDs(con, profileIds);
+        for (final Iterator<Integer> layoutIdItr = storedLayoutIds.values().iterator(); layoutIdItr.hasNext();) {
+            if (layoutIdItr.next() == 0) {
+                layoutIdItr.remove();
+            }
+        }
+
+        if (storedLayoutIds.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder userIds = new StringBuilder();
+        for (final Integer userId : storedLayoutIds.keySet()) {
+            userIds.append(userIds.length() == 0 ? "" : ",").append(userId);
+        }
+
+        //Layout id and first struct id of every user in the batch with a stored layout for the profile
+        final Map<Integer, Tuple<Integer, Integer>> layoutIds = new HashMap<Integer, Tuple<Integer, Integer>>();
+        final Map<Integer, HashMap<Integer, LayoutStructure>> layoutStructures = new HashMap<Integer, HashMap<Integer, LayoutStructure>>();
+        final Set<Integer> chanIds = new HashSet<Integer>();
+        final Statement stmt = con.createStatement();
+        try {
+            sql = "SELECT USER_ID,LAYOUT_ID,INIT_STRUCT_ID FROM UP_USER_LAYOUT WHERE USER_ID IN (" + userIds + ")";
+            logger.debug("getPersonalUserLayouts(): {}", sql);
+            ResultSet rs = stmt.executeQuery(sql);
+            try {
+                while (rs.next()) {
+                    final int userId = rs.getInt(1);
+                    final int layoutId = rs.getInt(2);
+                    if (storedLayoutIds.get(userId) == layoutId) {
+                        layoutIds.put(userId, new Tuple<Integer, Integer>(layoutId, rs.getInt(3)));
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+
+            if (layoutIds.isEmpty()) {
+                return;
+            }
+
+            sql = "SELECT USER_ID,LAYOUT_ID,STRUCT_ID,NEXT_STRUCT_ID,CHLD_STRUCT_ID,CHAN_ID,NAME,TYPE,HIDDEN,UNREMOVABLE,IMMUTABLE " +
+                    "FROM UP_LAYOUT_STRUCT WHERE USER_ID IN (" + userIds + ")";
+            logger.debug("getPersonalUserLayouts(): {}", sql);
+            rs = stmt.executeQuery(sql);
+            try {
+                while (rs.next()) {
+                    //Some JDBC drivers require columns accessed in order
+                    final int userId = rs.getInt(1);
+                    final int layoutId = rs.getInt(2);
+                    final int structId = getIntOrZero(rs, 3);
+                    final int nextId = getIntOrZero(rs, 4);
+                    final int childId = getIntOrZero(rs, 5);
+                    final int chanId = getIntOrZero(rs, 6);
+                    final String name = rs.getString(7);
+                    final String type = rs.getString(8);
+                    final String hidden = rs.getString(9);
+                    final String unremovable = rs.getString(10);
+                    final String immutable = rs.getString(11);
+
+                    final Tuple<Integer, Integer> userLayoutIds = layoutIds.get(userId);
+                    if (userLayoutIds == null || userLayoutIds.first != layoutId) {
+                        continue;
+                    }
+
+                    final LayoutStructure ls;
+                    if (localeAware) {
+                        ls = new LayoutStructure(structId, nextId, childId, chanId, hidden, unremovable, immutable, locale);
+                    }
+                    else {
+                        ls = new LayoutStructure(structId, nextId, childId, chanId, hidden, unremovable, immutable);
+                    }
+
+                    if (ls.isChannel()) {
+                        chanIds.add(chanId);
+                    }
+                    else {
+                        ls.addFolderData(name, type);
+                    }
+
+                    HashMap<Integer, LayoutStructure> layoutStructure = layoutStructures.get(userId);
+                    if (layoutStructure == null) {
+                        layoutStructure = new HashMap<Integer, LayoutStructure>();
+                        layoutStructures.put(userId, layoutStructure);
+                    }
+                    layoutStructure.put(structId, ls);
+                }
+            } finally {
+                rs.close();
+            }
+
+            sql = "SELECT USER_ID,LAYOUT_ID,STRUCT_ID,STRUCT_PARM_NM,STRUCT_PARM_VAL " +
+                    "FROM UP_LAYOUT_PARAM WHERE USER_ID IN (" + userIds + ") ORDER BY USER_ID,LAYOUT_ID,STRUCT_ID";
+            logger.debug("getPersonalUserLayouts(): {}", sql);
+            rs = stmt.executeQuery(sql);
+            try {
+                while (rs.next()) {
+                    final int userId = rs.getInt(1);
+                    final int layoutId = rs.getInt(2);
+                    final int structId = rs.getInt(3);
+                    final String name = rs.getString(4);
+                    final String value = rs.getString(5); // Oracle JDBC requires us to do this for longs
+
+                    final HashMap<Integer, LayoutStructure> layoutStructure = layoutStructures.get(userId);
+                    if (layoutStructure == null || layoutIds.get(userId).first != layoutId) {
+                        continue;
+                    }
+                    final LayoutStructure ls = layoutStructure.get(structId);
+                    if (ls != null) {
+                        ls.addParameter(name, value);
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+
+        final Map<Integer, IPortletDefinition> portletDefinitions = new HashMap<Integer, IPortletDefinition>(chanIds.size() * 2);
+        for (final Integer chanId : chanIds) {
+            portletDefinitions.put(chanId, this.portletDefinitionRegistry.getPortletDefinition(String.valueOf(chanId)));
+        }
+
+        this.setLayoutPortletDefinitions(portletDefinitions);
+        try {
+            for (final Map.Entry<Integer, HashMap<Integer, LayoutStructure>> layoutStructureEntry : layoutStructures.entrySet()) {
+                final Integer userId = layoutStructureEntry.getKey();
+                final Document doc = DocumentFactory.getThreadDocument();
+                final Element root = doc.createElement("layout");
+                createLayout(layoutStructureEntry.getValue(), doc, root, layoutIds.get(userId).second);
+                doc.appendChild(root);
+                layouts.put(userNamesById.get(userId), doc);
+            }
+        } finally {
+            this.clearLayoutPortletDefinitions();
+        }
+    }
+
+    private static int getIntOrZero(ResultSet rs, int columnIndex) throws SQLException {
+        final int value = rs.getInt(columnIndex);
+        // Result Set returns 0 by default if the value was null
+        // Except if you are using poolman 2.0.4 in which case you get -1 back
+        return rs.wasNull() ? 0 : value;
+    }
+
+    /**
+     * Portlet definition of a channel in a layout being loaded or stored, subclasses should use this
+     * in {@link #getStructure(Document, LayoutStructure)} and when saving channel nodes so the
+     * definitions already resolved for the layouts are not looked up again for every node.
+     */
+    protected final IPortletDefinition getLayoutPortletDefinition(int chanId) {
+        final Map<Integer, IPortletDefinition> portletDefinitions = this.layoutPortletDefinitionsHolder.get();
+        if (portletDefinitions != null && portletDefinitions.containsKey(chanId)) {
+            return portletDefinitions.get(chanId);
+        }
+        return this.portletDefinitionRegistry.getPortletDefinition(String.valueOf(chanId));
+    }
+
+    /**
+     * Resolve {@link #getLayoutPortletDefinition(int)} from the portlet definitions, keyed by
+     * channel id, on the current thread until {@link #clearLayoutPortletDefinitions()} is called
+     */
+    protected final void setLayoutPortletDefinitions(Map<Integer, IPortletDefinition> portletDefinitions) {
+        this.layoutPortletDefinitionsHolder.set(portletDefinitions);
+    }
+
+    protected final void clearLayoutPortletDefinitions() {
+        this.layoutPortletDefinitionsHolder.remove();
+    }
+
     public IUserProfile getUserProfileById (final IPerson person, final int profileId) {
         final int userId = person.getID();
         return jdbcOperations.execute(new ConnectionCallback<IUserProfile>() {
@@ -1179,7 +1466,12 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
 
     protected abstract Element getStructure(Document doc, LayoutStructure ls);
 
-    protected abstract int saveStructure (Node node, PreparedStatement structStmt, PreparedStatement parmStmt) throws SQLException;
+    /**
+     * Add the rows for the node, its children and its following siblings to the row set.
+     * 
+     * @return The struct id of the node, 0 if nothing was stored for it
+     */
+    protected abstract int saveStructure (Node node, LayoutRowSet layoutRows);
 
     public void setUserBrowserMapping (final IPerson person, final String userAgentArg, final int profileId) {
         final int userId = person.getID();
@@ -1268,48 +1560,13 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
                             firstLayout = true;
                         }
 
-                        String sql = "DELETE FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=?";
-                        PreparedStatement pstmt = con.prepareStatement(sql);
-                        try {
-                            pstmt.clearParameters();
-                            pstmt.setInt(1, userId);
-                            pstmt.setInt(2, layoutId);
-                                logger.debug(sql);
-                            pstmt.executeUpdate();
-                        } finally {
-                            pstmt.close();
-                        }
-
-                        sql = "DELETE FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=?";
-                        pstmt = con.prepareStatement(sql);
-                        try {
-                            pstmt.clearParameters();
-                            pstmt.setInt(1, userId);
-                            pstmt.setInt(2, layoutId);
-                            logger.debug(sql);
-                            pstmt.executeUpdate();
-                        } finally {
-                            pstmt.close();
-                        }
-
-                        PreparedStatement structStmt = con.prepareStatement("INSERT INTO UP_LAYOUT_STRUCT "
-                                + "(USER_ID, LAYOUT_ID, STRUCT_ID, NEXT_STRUCT_ID, CHLD_STRUCT_ID,EXTERNAL_ID,CHAN_ID,NAME,TYPE,HIDDEN,IMMUTABLE,UNREMOVABLE) "
-                                + "VALUES (" + userId + "," + layoutId + ",?,?,?,?,?,?,?,?,?,?)");
-
-                        PreparedStatement parmStmt = con.prepareStatement("INSERT INTO UP_LAYOUT_PARAM "
-                                + "(USER_ID, LAYOUT_ID, STRUCT_ID, STRUCT_PARM_NM, STRUCT_PARM_VAL) " + "VALUES (" + userId + "," + layoutId + ",?,?,?)");
-
-                        int firstStructId;
-                        try {
-                            firstStructId = saveStructure(layoutXML.getFirstChild().getFirstChild(), structStmt, parmStmt);
-                        } finally {
-                            structStmt.close();
-                            parmStmt.close();
-                        }
+                        final LayoutRowSet layoutRows = new LayoutRowSet();
+                        final int firstStructId = saveStructure(layoutXML.getFirstChild().getFirstChild(), layoutRows);
+                        writeLayoutRows(con, userId, layoutId, layoutRows, firstLayout);
 
                         //Check to see if the user has a matching layout
-                        sql = "SELECT * FROM UP_USER_LAYOUT WHERE USER_ID=? AND LAYOUT_ID=?";
-                        pstmt = con.prepareStatement(sql);
+                        String sql = "SELECT * FROM UP_USER_LAYOUT WHERE USER_ID=? AND LAYOUT_ID=?";
+                        PreparedStatement pstmt = con.prepareStatement(sql);
                         try {
                             pstmt.clearParameters();
                             pstmt.setInt(1, userId);
@@ -1473,6 +1730,50 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
         }
     }
 
+    /**
+     * Store the rows of a layout. Unless disabled only rows that differ from the stored ones are
+     * written, falling back to replacing all rows if the stored rows change while saving.
+     */
+    protected void writeLayoutRows(Connection con, int userId, int layoutId, LayoutRowSet layoutRows, boolean firstLayout) throws SQLException {
+        if (this.incrementalLayoutSave && !firstLayout && !layoutRows.hasDuplicateKeys()) {
+            final LayoutRowSet storedRows = LayoutRowSet.load(con, userId, layoutId);
+            final int changedRows = layoutRows.applyChanges(con, userId, layoutId, storedRows);
+            if (changedRows >= 0) {
+                logger.debug("Saved layout {} for user {} by changing {} of {} rows", layoutId, userId, changedRows,
+                        layoutRows.getStructureCount() + layoutRows.getParameterCount());
+                return;
+            }
+            
+            logger.warn("Stored rows of layout {} for user {} changed while saving, replacing all rows", layoutId, userId);
+        }
+        
+        String sql = "DELETE FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=?";
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        try {
+            pstmt.clearParameters();
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, layoutId);
+            logger.debug(sql);
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+
+        sql = "DELETE FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=?";
+        pstmt = con.prepareStatement(sql);
+        try {
+            pstmt.clearParameters();
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, layoutId);
+            logger.debug(sql);
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+        
+        layoutRows.insertAll(con, userId, layoutId);
+    }
+
     public void updateUserProfile (final IPerson person, final IUserProfile profile) {
         final int userId = person.getID();
         this.transactionOperations.execute(new TransactionCallback<Object>() {
@@ -1656,37 +1957,59 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
         return jdbcOperations.execute(new ConnectionCallback<Integer>() {
             @Override
             public Integer doInConnection(Connection con) throws SQLException, DataAccessException {
+                return getLayoutIDs(con, Collections.singletonMap(userId, profileId)).get(userId);
+            }
+        });
+    }
 
-                String query =
-                        "SELECT LAYOUT_ID " +
-                                "FROM UP_USER_PROFILE " +
-                                "WHERE USER_ID=? AND PROFILE_ID=?";
-
-                int layoutId = 0;
-                PreparedStatement pstmt = con.prepareStatement(query);
-
-                final int u = userId;
-                final int p = profileId;
+    /**
+     * Returns the current layout IDs for users and profiles, used both when loading a single
+     * layout and when bulk loading layouts so the two always agree on which layout a user has.
+     *
+     * @param profileIds The profileId to get the layout id for keyed by userId
+     * @return The layout_id field keyed by userId for every user in profileIds, 0 if the profile does not exist or the field is null
+     */
+    private Map<Integer, Integer> getLayoutIDs(Connection con, Map<Integer, Integer> profileIds) throws SQLException {
+        final StringBuilder userIdParams = new StringBuilder();
+        for (int i = 0; i < profileIds.size(); i++) {
+            userIdParams.append(i == 0 ? "?" : ",?");
+        }
+        final String query =
+                "SELECT USER_ID, PROFILE_ID, LAYOUT_ID " +
+                        "FROM UP_USER_PROFILE " +
+                        "WHERE USER_ID IN (" + userIdParams + ")";
+
+        final Map<Integer, Integer> layoutIds = new HashMap<Integer, Integer>();
+        for (final Integer userId : profileIds.keySet()) {
+            layoutIds.put(userId, 0);
+        }
 
-                logger.debug("getLayoutID(userId={}, profileId={} ): {}", u, p, query);
+        logger.debug("getLayoutIDs(profileIds={}): {}", profileIds, query);
 
-                pstmt.setInt(1, u);
-                pstmt.setInt(2, p);
-                try {
-                    ResultSet rs = pstmt.executeQuery();
-                    if (rs.next()) {
-                        layoutId = rs.getInt(1);
+        final PreparedStatement pstmt = con.prepareStatement(query);
+        try {
+            int paramIndex = 1;
+            for (final Integer userId : profileIds.keySet()) {
+                pstmt.setInt(paramIndex++, userId);
+            }
 
-                        if (rs.wasNull()) {
-                            layoutId = 0;
-                        }
+            final ResultSet rs = pstmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    final int userId = rs.getInt(1);
+                    final int profileId = rs.getInt(2);
+                    final int layoutId = getIntOrZero(rs, 3);
+                    if (profileIds.get(userId) == profileId) {
+                        layoutIds.put(userId, layoutId);
                     }
-                } finally {
-                    pstmt.close();
                 }
-                return layoutId;
+            } finally {
+                rs.close();
             }
-        });
+        } finally {
+            pstmt.close();
+        }
+        return layoutIds;
     }
 
     /* (non-Javadoc)
@@ -19,8 +19,10 @@
 package org.jasig.portal.layout.simple;
 
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
 
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
@@ -33,11 +35,15 @@ import org.apache.commons.logging.LogFactory;
 import org.jasig.portal.PortalException;
 import org.jasig.portal.layout.IUserLayout;
 import org.jasig.portal.layout.INodeIdResolver;
+import org.jasig.portal.layout.PortletTabIdResolver;
 import org.jasig.portal.layout.dlm.DistributedUserLayout;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode;
+import org.jasig.portal.layout.immutable.ImmutableLayoutNodeIndex;
 import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
 import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
 import org.jasig.portal.layout.node.UserLayoutNodeDescription;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
+import org.jasig.portal.utils.DocumentFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -47,6 +53,10 @@ import org.w3c.dom.NodeList;
  * The simple user layout implementation. This
  * layout is based on a Document.
  * 
+ * Once the layout has been compacted reads are answered from the published
+ * immutable layout without locking, otherwise the Document is read while holding
+ * the read lock of the layout.
+ * 
  * Prior to uPortal 2.5, this class existed in the org.jasig.portal.layout package.
  * It was moved to its present package to reflect that it is part of the
  * Simple Layout Management implementation.
@@ -55,9 +65,10 @@ import org.w3c.dom.NodeList;
  * @version $Revision$
  */
 public class SimpleLayout implements IUserLayout {
+    private static final String FOLDER = "folder";
+    private static final String CHANNEL = "channel";
     
     private final DistributedUserLayout userLayout;
-    private final Document layout;
     private final String layoutId;
     private final String cacheKey;
     
@@ -65,93 +76,246 @@ public class SimpleLayout implements IUserLayout {
     
     public SimpleLayout(DistributedUserLayout userLayout, String layoutId, String cacheKey) {
         this.userLayout = userLayout;
-        this.layout = this.userLayout.getLayout();
         this.layoutId = layoutId;
         this.cacheKey = cacheKey;
     }
 
+    /**
+     * @return The index of the published compact layout, which is read without locking, null if the
+     * layout has not been compacted or the current thread is updating it and must see its own changes
+     */
+    private ImmutableLayoutNodeIndex getLayoutIndex() {
+        if (this.userLayout.isUpdatingThread()) {
+            return null;
+        }
+        return this.userLayout.getLayoutIndex();
+    }
+    
+    /**
+     * @return The acquired read lock of the layout, must be released once done reading the DOM
+     */
+    private Lock lockLayoutForRead() {
+        final Lock readLock = this.userLayout.getReadLock();
+        readLock.lock();
+        return readLock;
+    }
+
+    /**
+     * The document is looked up on use, only while holding the read lock.
+     */
+    private Document getLayout() {
+        return this.userLayout.getLayout();
+    }
+    
+    /**
+     * @return A DOM copy of the node that can be passed to the node description constructors, null if node is null
+     */
+    private static Element toElement(ImmutableLayoutNode node) {
+        if (node == null) {
+            return null;
+        }
+        // channel descriptions are read from the parameter children, folders need no children
+        return node.toElement(DocumentFactory.getThreadDocument(), CHANNEL.equals(node.getNodeName()));
+    }
+
     @Override
     public void writeTo(Document document) throws PortalException {
-        document.appendChild(document.importNode(layout.getDocumentElement(), true));
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            layoutIndex.getLayout().toDocument(document);
+            return;
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            document.appendChild(document.importNode(getLayout().getDocumentElement(), true));
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     @Override
     public void writeTo(String nodeId, Document document) throws PortalException {
-        document.appendChild(document.importNode(layout.getElementById(nodeId), true));
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            document.appendChild(layoutIndex.getNode(nodeId).toElement(document, true));
+            return;
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            document.appendChild(document.importNode(getLayout().getElementById(nodeId), true));
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     @Override
     public IUserLayoutNodeDescription getNodeDescription(String nodeId) throws PortalException {
-        Element element = layout.getElementById(nodeId);
-        return UserLayoutNodeDescription.createUserLayoutNodeDescription(element);
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return UserLayoutNodeDescription.createUserLayoutNodeDescription(toElement(layoutIndex.getNode(nodeId)));
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Element element = getLayout().getElementById(nodeId);
+            return UserLayoutNodeDescription.createUserLayoutNodeDescription(element);
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     @Override
     public String getParentId(String nodeId) throws PortalException {
-        String parentId = null;
-        Element element = layout.getElementById(nodeId);
-        if (element != null) {
-            Node parent = element.getParentNode();
-            if (parent != null && parent.getNodeType() == Node.ELEMENT_NODE) {
-                Element parentE = (Element)parent;
-                parentId = parentE.getAttribute("ID");
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getParentId(nodeId);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            String parentId = null;
+            Element element = getLayout().getElementById(nodeId);
+            if (element != null) {
+                Node parent = element.getParentNode();
+                if (parent != null && parent.getNodeType() == Node.ELEMENT_NODE) {
+                    Element parentE = (Element)parent;
+                    parentId = parentE.getAttribute("ID");
+                }
             }
+            return parentId;
+        }
+        finally {
+            readLock.unlock();
         }
-        return parentId;
     }
 
     @Override
     public Enumeration getChildIds(String nodeId) throws PortalException {
         Vector v = new Vector();
-        IUserLayoutNodeDescription node = getNodeDescription(nodeId);
-        if (node instanceof IUserLayoutFolderDescription) {
-            Element element = layout.getElementById(nodeId);
-            for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
-                if (n.getNodeType() == Node.ELEMENT_NODE) {
-                    Element e = (Element)n;
-                    if (e.getAttribute("ID") != null) {
-                        v.add(e.getAttribute("ID"));
+        
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            final ImmutableLayoutNode node = layoutIndex.getNode(nodeId);
+            IUserLayoutNodeDescription description = UserLayoutNodeDescription.createUserLayoutNodeDescription(toElement(node));
+            if (description instanceof IUserLayoutFolderDescription) {
+                for (final ImmutableLayoutNode child : node.getChildren()) {
+                    v.add(child.getId());
+                }
+            }
+            return v.elements();
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            Element element = getLayout().getElementById(nodeId);
+            IUserLayoutNodeDescription node = UserLayoutNodeDescription.createUserLayoutNodeDescription(element);
+            if (node instanceof IUserLayoutFolderDescription) {
+                for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+                    if (n.getNodeType() == Node.ELEMENT_NODE) {
+                        Element e = (Element)n;
+                        if (e.getAttribute("ID") != null) {
+                            v.add(e.getAttribute("ID"));
+                        }
                     }
                 }
             }
         }
+        finally {
+            readLock.unlock();
+        }
         return v.elements();
     }
 
     @Override
     public String getNextSiblingId(String nodeId) throws PortalException {
-        String nextSiblingId = null;
-        Element element = layout.getElementById(nodeId);
-        if (element != null) {
-            Node sibling = element.getNextSibling();
-            // Find the next element node
-            while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
-                sibling = sibling.getNextSibling();
-            }
-            if (sibling != null) {
-                Element e = (Element)sibling;
-                nextSiblingId = e.getAttribute("ID");
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return getSiblingId(layoutIndex, nodeId, 1);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            String nextSiblingId = null;
+            Element element = getLayout().getElementById(nodeId);
+            if (element != null) {
+                Node sibling = element.getNextSibling();
+                // Find the next element node
+                while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+                    sibling = sibling.getNextSibling();
+                }
+                if (sibling != null) {
+                    Element e = (Element)sibling;
+                    nextSiblingId = e.getAttribute("ID");
+                }
             }
+            return nextSiblingId;
+        }
+        finally {
+            readLock.unlock();
         }
-        return nextSiblingId;
     }
 
     @Override
     public String getPreviousSiblingId(String nodeId) throws PortalException {
-        String prevSiblingId = null;
-        Element element = layout.getElementById(nodeId);
-        if (element != null) {
-            Node sibling = element.getPreviousSibling();
-            // Find the previous element node
-            while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
-                sibling = sibling.getPreviousSibling();
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return getSiblingId(layoutIndex, nodeId, -1);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            String prevSiblingId = null;
+            Element element = getLayout().getElementById(nodeId);
+            if (element != null) {
+                Node sibling = element.getPreviousSibling();
+                // Find the previous element node
+                while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+                    sibling = sibling.getPreviousSibling();
+                }
+                if (sibling != null) {
+                    Element e = (Element)sibling;
+                    prevSiblingId = e.getAttribute("ID");
+                }
             }
-            if (sibling != null) {
-                Element e = (Element)sibling;
-                prevSiblingId = e.getAttribute("ID");
+            return prevSiblingId;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * @param offset 1 for the next sibling, -1 for the previous sibling
+     * @return The ID of the sibling of the node in the compact layout, null if the node or the sibling doesn't exist
+     */
+    private static String getSiblingId(ImmutableLayoutNodeIndex layoutIndex, String nodeId, int offset) {
+        if (layoutIndex.getNode(nodeId) == null) {
+            return null;
+        }
+        
+        // the parent may not have an ID, find it through the path to the node
+        final List<ImmutableLayoutNode> path = layoutIndex.getLayout().findPathById(nodeId);
+        if (path.size() < 2) {
+            return null;
+        }
+        
+        final ImmutableLayoutNode node = path.get(path.size() - 1);
+        final ImmutableLayoutNode parent = path.get(path.size() - 2);
+        for (int index = 0; index < parent.getChildCount(); index++) {
+            if (parent.getChild(index) == node) {
+                final int siblingIndex = index + offset;
+                if (siblingIndex < 0 || siblingIndex >= parent.getChildCount()) {
+                    return null;
+                }
+                return parent.getChild(siblingIndex).getId();
             }
         }
-        return prevSiblingId;
+        return null;
     }
 
     @Override
@@ -166,19 +330,30 @@ public class SimpleLayout implements IUserLayout {
 
     @Override
     public String getNodeId(String fname) throws PortalException {
-        String nodeId = null;
-        NodeList nl = layout.getElementsByTagName("channel");
-        for (int i = 0; i < nl.getLength(); i++) {
-            Node node = nl.item(i);
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element channelE = (Element)node;
-                if (fname.equals(channelE.getAttribute("fname"))) {
-                    nodeId = channelE.getAttribute("ID");
-                    break;
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getSubscribeId(fname);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            String nodeId = null;
+            NodeList nl = getLayout().getElementsByTagName("channel");
+            for (int i = 0; i < nl.getLength(); i++) {
+                Node node = nl.item(i);
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    Element channelE = (Element)node;
+                    if (fname.equals(channelE.getAttribute("fname"))) {
+                        nodeId = channelE.getAttribute("ID");
+                        break;
+                    }
                 }
             }
+            return nodeId;
+        }
+        finally {
+            readLock.unlock();
         }
-        return nodeId;
     }
     
     /* (non-Javadoc)
@@ -186,8 +361,24 @@ public class SimpleLayout implements IUserLayout {
      */
     @Override
     public String findNodeId(XPathExpression xpathExpression) throws PortalException {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            // evaluated against a private copy of the published layout that is not kept
+            return this.evaluate(xpathExpression, layoutIndex.getLayout().toDocument(DocumentFactory.getThreadDocument()));
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
         try {
-            return xpathExpression.evaluate(this.layout);
+            return this.evaluate(xpathExpression, this.getLayout());
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    private String evaluate(XPathExpression xpathExpression, Document layout) {
+        try {
+            return xpathExpression.evaluate(layout);
         }
         catch (XPathExpressionException e) {
             throw new PortalException("Exception while executing XPathExpression: " + xpathExpression, e);
@@ -196,17 +387,80 @@ public class SimpleLayout implements IUserLayout {
     
     @Override
     public String findNodeId(INodeIdResolver finder) {
-        return finder.traverseDocument(this.layout);
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return finder.traverseDocument(layoutIndex.getLayout().toDocument(DocumentFactory.getThreadDocument()));
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            return finder.traverseDocument(this.getLayout());
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public String getTabId(String nodeId) {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getTabId(nodeId);
+        }
+        
+        return this.findNodeId(new PortletTabIdResolver(nodeId));
+    }
+
+    @Override
+    public String getVisibleTabId(int tabIndex) {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            return layoutIndex.getVisibleTabId(tabIndex);
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
+        try {
+            // '/layout/folder/folder' - tabs
+            int index = 0;
+            final Element layout = this.getLayout().getDocumentElement();
+            for (Node rootFolder = layout.getFirstChild(); rootFolder != null; rootFolder = rootFolder.getNextSibling()) {
+                if (!"folder".equals(rootFolder.getNodeName())) {
+                    continue;
+                }
+                for (Node tab = rootFolder.getFirstChild(); tab != null; tab = tab.getNextSibling()) {
+                    if (tab.getNodeType() == Node.ELEMENT_NODE && "folder".equals(tab.getNodeName())) {
+                        final Element tabE = (Element)tab;
+                        if ("regular".equals(tabE.getAttribute("type")) && "false".equals(tabE.getAttribute("hidden"))
+                                && ++index == tabIndex) {
+                            return tabE.getAttribute("ID");
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     @Override
     public Enumeration getNodeIds() throws PortalException {
         Vector v = new Vector();
+        
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            // the "*" expression below selects the document element
+            v.add(layoutIndex.getLayout().getId());
+            return v.elements();
+        }
+        
+        final Lock readLock = this.lockLayoutForRead();
         try {
             String expression = "*";
             XPathFactory fac = XPathFactory.newInstance();
             XPath xpath = fac.newXPath();
-            NodeList nl = (NodeList) xpath.evaluate(expression, layout, 
+            NodeList nl = (NodeList) xpath.evaluate(expression, this.getLayout(), 
                     XPathConstants.NODESET);
             for (int i = 0; i < nl.getLength(); i++) {
                 Node node = nl.item(i);
@@ -218,24 +472,46 @@ public class SimpleLayout implements IUserLayout {
         } catch (Exception e) {
             log.error("Exception getting node ids.", e);
         }
+        finally {
+            readLock.unlock();
+        }
         return v.elements();
     }
 
     @Override
     public String getRootId() {
+        final ImmutableLayoutNodeIndex layoutIndex = this.getLayoutIndex();
+        if (layoutIndex != null) {
+            // same as the "/layout/folder" expression below
+            final ImmutableLayoutNode layout = layoutIndex.getLayout();
+            if ("layout".equals(layout.getNodeName())) {
+                for (final ImmutableLayoutNode child : layout.getChildren()) {
+                    if (FOLDER.equals(child.getNodeName())) {
+                        return child.getId();
+                    }
+                }
+            }
+            log.error("Error getting root id, the layout has no root folder.");
+            return null;
+        }
+        
         String rootNode = null;
+        final Lock readLock = this.lockLayoutForRead();
         try {
             
             String expression = "/layout/folder";
             XPathFactory fac = XPathFactory.newInstance();
             XPath xpath = fac.newXPath();
-            Element rootNodeE = (Element) xpath.evaluate(expression, layout, 
+            Element rootNodeE = (Element) xpath.evaluate(expression, this.getLayout(), 
                     XPathConstants.NODE);
             
             rootNode = rootNodeE.getAttribute("ID");
         } catch (Exception e) {
             log.error("Error getting root id.", e);
         }
+        finally {
+            readLock.unlock();
+        }
         return rootNode;
     }
 
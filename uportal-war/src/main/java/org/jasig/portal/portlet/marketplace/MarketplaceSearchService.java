@@ -18,6 +18,7 @@
  */
 package org.jasig.portal.portlet.marketplace;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.portlet.PortletRequest;
@@ -33,6 +34,7 @@ import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlets.groupselector.EntityEnum;
 import org.jasig.portal.portlets.search.IPortalSearchService;
 import org.jasig.portal.search.SearchResult;
+import org.jasig.portal.security.IAuthorizationPrincipal;
 import org.jasig.portal.security.IAuthorizationService;
 import org.jasig.portal.url.IPortalRequestUtils;
 import org.jasig.portal.url.IPortalUrlBuilder;
@@ -110,46 +112,52 @@ public class MarketplaceSearchService implements IPortalSearchService {
         
         final HttpServletRequest httpServletRequest = this.portalRequestUtils.getPortletHttpRequest(request);
         
-        final SearchResults results =  new SearchResults();
+        final List<IPortletDefinition> matchingPortlets = new ArrayList<IPortletDefinition>();
         for (IPortletDefinition portlet : portlets) {
             if (this.matches(queryString,
                 new MarketplacePortletDefinition(portlet,
                     this.marketplaceService, this.portletCategoryRegistry))) {
+                matchingPortlets.add(portlet);
+            }
+        }
+
+        // If user does not have browse permission, exclude the portlet.
+        final IAuthorizationPrincipal principal = authorizationService.newPrincipal(request.getRemoteUser(), EntityEnum.PERSON.getClazz());
+        final List<IPortletDefinition> browsablePortlets = authorizationService.filterBrowsablePortlets(principal, matchingPortlets);
+
+        final SearchResults results =  new SearchResults();
+        for (IPortletDefinition portlet : browsablePortlets) {
+            final IPortletWindow portletWindow = this.portletWindowRegistry.getOrCreateDefaultPortletWindowByFname(httpServletRequest, portlet.getFName());
+            // portletWindow is null if user does not have access to portlet.
+            if (portletWindow != null) {
                 final SearchResult result = new SearchResult();
                 result.setTitle(portlet.getTitle());
                 result.setSummary(portlet.getDescription());
                 result.getType().add("marketplace");
 
-                final IPortletWindow portletWindow = this.portletWindowRegistry.getOrCreateDefaultPortletWindowByFname(httpServletRequest, portlet.getFName());
-                // portletWindow is null if user does not have access to portlet.
-                // If user does not have browse permission, exclude the portlet.
-                if (portletWindow != null && authorizationService.canPrincipalBrowse(
-                        authorizationService.newPrincipal(request.getRemoteUser(), EntityEnum.PERSON.getClazz()),
-                        portlet)) {
-                    final IPortletWindowId portletWindowId = portletWindow.getPortletWindowId();
-                    final IPortalUrlBuilder portalUrlBuilder = this.portalUrlProvider.getPortalUrlBuilderByPortletFName(httpServletRequest, portlet.getFName(), UrlType.RENDER);
-                    final IPortletUrlBuilder portletUrlBuilder = portalUrlBuilder.getPortletUrlBuilder(portletWindowId);
-                    portletUrlBuilder.setWindowState(PortletUtils.getWindowState("maximized"));
-                    result.setExternalUrl(portalUrlBuilder.getUrlString());
-
-                    PortletUrl url = new PortletUrl();
-                    url.setType(PortletUrlType.RENDER);
-                    url.setPortletMode("VIEW");
-                    url.setWindowState("maximized");
-                    PortletUrlParameter actionParam = new PortletUrlParameter();
-                    actionParam.setName("action");
-                    actionParam.getValue().add("view");
-                    url.getParam().add(actionParam);
-                    PortletUrlParameter fNameParam = new PortletUrlParameter();
-                    fNameParam.setName("fName");
-                    fNameParam.getValue().add(portlet.getFName());
-                    url.getParam().add(fNameParam);
-                    result.setPortletUrl(url);
-                    //Add the result to list to return
-                    results.getSearchResult().add(result);
-                }
+                final IPortletWindowId portletWindowId = portletWindow.getPortletWindowId();
+                final IPortalUrlBuilder portalUrlBuilder = this.portalUrlProvider.getPortalUrlBuilderByPortletFName(httpServletRequest, portlet.getFName(), UrlType.RENDER);
+                final IPortletUrlBuilder portletUrlBuilder = portalUrlBuilder.getPortletUrlBuilder(portletWindowId);
+                portletUrlBuilder.setWindowState(PortletUtils.getWindowState("maximized"));
+                result.setExternalUrl(portalUrlBuilder.getUrlString());
+
+                PortletUrl url = new PortletUrl();
+                url.setType(PortletUrlType.RENDER);
+                url.setPortletMode("VIEW");
+                url.setWindowState("maximized");
+                PortletUrlParameter actionParam = new PortletUrlParameter();
+                actionParam.setName("action");
+                actionParam.getValue().add("view");
+                url.getParam().add(actionParam);
+                PortletUrlParameter fNameParam = new PortletUrlParameter();
+                fNameParam.setName("fName");
+                fNameParam.getValue().add(portlet.getFName());
+                url.getParam().add(fNameParam);
+                result.setPortletUrl(url);
+                //Add the result to list to return
+                results.getSearchResult().add(result);
             }
-    	}
+        }
         return results;
     }
     
@@ -181,19 +181,24 @@ public class MarketplaceService implements IMarketplaceService, ApplicationListe
 
         final Set<MarketplaceEntry> visiblePortletDefinitions = new HashSet<>();
 
-        for (final IPortletDefinition portletDefinition : allDisplayablePortletDefinitions) {
+        // Check the permissions of the user on all of the portlets at once rather than one portlet at a time
+        final List<IPortletDefinition> browseablePortletDefinitions =
+                authorizationService.filterBrowsablePortlets(principal, allDisplayablePortletDefinitions);
+        //short-cut for guest user, it will always be false for guest, otherwise evaluate
+        final Set<IPortletDefinition> addablePortletDefinitions = user.isGuest()
+                ? Collections.<IPortletDefinition>emptySet()
+                : new HashSet<>(authorizationService.filterSubscribablePortlets(principal, browseablePortletDefinitions));
 
-            if (mayBrowsePortlet(principal, portletDefinition)) {
-                final MarketplacePortletDefinition marketplacePortletDefinition = getOrCreateMarketplacePortletDefinition(portletDefinition);
-                final MarketplaceEntry entry =
-                    new MarketplaceEntry(marketplacePortletDefinition, user);
+        for (final IPortletDefinition portletDefinition : browseablePortletDefinitions) {
+            final MarketplacePortletDefinition marketplacePortletDefinition = getOrCreateMarketplacePortletDefinition(portletDefinition);
+            final MarketplaceEntry entry =
+                new MarketplaceEntry(marketplacePortletDefinition, user);
 
-                // flag whether this use can add the portlet...
-                boolean canAdd = mayAddPortlet(user, portletDefinition);
-                entry.setCanAdd(canAdd);
+            // flag whether this use can add the portlet...
+            boolean canAdd = addablePortletDefinitions.contains(portletDefinition);
+            entry.setCanAdd(canAdd);
 
-                visiblePortletDefinitions.add(entry);
-            }
+            visiblePortletDefinitions.add(entry);
         }
 
         logger.trace("These portlet definitions {} are browseable by {}.", visiblePortletDefinitions, user);
@@ -19,6 +19,7 @@
 package org.jasig.portal.portlet.rendering;
 
 import java.io.Writer;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -108,6 +109,28 @@ public interface IPortletExecutionManager {
      */
     public boolean isPortletRenderRequested(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
 
+    /**
+     * @return true if the BODY render for the specified portlet has completed during this request and its output can
+     * be retrieved without waiting.
+     */
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
+    
+    /**
+     * @return The portlets whose HEAD has been requested to render during this request.
+     */
+    public Set<IPortletWindowId> getPortletHeaderRendersRequested(HttpServletRequest request);
+    
+    /**
+     * @return The portlets whose BODY has been requested to render during this request.
+     */
+    public Set<IPortletWindowId> getPortletRendersRequested(HttpServletRequest request);
+    
+    /**
+     * @return true if the HEAD or BODY output of any portlet rendered during this request was replaced with an error
+     * because the portlet failed, timed out or is in maintenance mode.
+     */
+    public boolean isAnyPortletRenderFailed(HttpServletRequest request);
+
     /**
      * @see #getPortletHeadOutput(IPortletWindowId, HttpServletRequest, HttpServletResponse)
      * @param subscribeId
@@ -19,6 +19,7 @@
 package org.jasig.portal.portlet.rendering;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -57,6 +58,7 @@ import org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletFailureExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletRenderExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletWorkerFactory;
+import org.jasig.portal.portlet.rendering.worker.PortletExecutionGovernor;
 import org.jasig.portal.portlets.error.MaintenanceModeException;
 import org.jasig.portal.utils.ConcurrentMapUtils;
 import org.jasig.portal.utils.web.PortalWebUtils;
@@ -91,6 +93,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     private static final long DEBUG_TIMEOUT = TimeUnit.HOURS.toMillis(1);
     private static final String PORTLET_HEADER_RENDERING_MAP = PortletExecutionManager.class.getName() + ".PORTLET_HEADER_RENDERING_MAP";
     private static final String PORTLET_RENDERING_MAP = PortletExecutionManager.class.getName() + ".PORTLET_RENDERING_MAP";
+    private static final String PORTLET_RENDER_FAILED = PortletExecutionManager.class.getName() + ".PORTLET_RENDER_FAILED";
 
     protected static final String SESSION_ATTRIBUTE__PORTLET_FAILURE_CAUSE_MAP = PortletExecutionManager.class.getName() + ".PORTLET_FAILURE_CAUSE_MAP";
 
@@ -120,6 +123,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     private IPortletEventCoordinationService eventCoordinationService;
     private IPortletWorkerFactory portletWorkerFactory;
     private IPortletExecutionEventFactory portletExecutionEventFactory;
+    private PortletExecutionGovernor portletExecutionGovernor;
     
     /**
      * @param maxEventIterations The maximum number of iterations to spend dispatching events. Defaults to 100
@@ -201,6 +205,11 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         this.portletExecutionEventFactory = portletExecutionEventFactory;
     }
 
+    @Autowired
+    public void setPortletExecutionGovernor(PortletExecutionGovernor portletExecutionGovernor) {
+        this.portletExecutionGovernor = portletExecutionGovernor;
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex)
             throws Exception {
@@ -627,6 +636,52 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return tracker != null;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isPortletRenderComplete(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletRenderingMap = this.getPortletRenderingMap(request);
+        final IPortletRenderExecutionWorker tracker = portletRenderingMap.get(portletWindowId);
+        
+        return tracker != null && tracker.isComplete();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletHeaderRendersRequested(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public Set<IPortletWindowId> getPortletHeaderRendersRequested(HttpServletRequest request) {
+        return Collections.unmodifiableSet(this.getPortletHeaderRenderingMap(request).keySet());
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletRendersRequested(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public Set<IPortletWindowId> getPortletRendersRequested(HttpServletRequest request) {
+        return Collections.unmodifiableSet(this.getPortletRenderingMap(request).keySet());
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isAnyPortletRenderFailed(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public boolean isAnyPortletRenderFailed(HttpServletRequest request) {
+        if (request.getAttribute(PORTLET_RENDER_FAILED) != null) {
+            return true;
+        }
+        
+        //Workers started for a failed action or a portlet in maintenance mode only render an error
+        for (final IPortletRenderExecutionWorker worker : this.getPortletRenderingMap(request).values()) {
+            if (worker instanceof IPortletFailureExecutionWorker) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
     /* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletHeadOutput(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
@@ -641,6 +696,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     			return output == null ? "" : output;
     		} catch (Exception e) {
     			logger.error("failed to render header output for " + portletWindowId, e);
+    			request.setAttribute(PORTLET_RENDER_FAILED, Boolean.TRUE);
     			return "";
     		}
     	} 
@@ -697,6 +753,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
 			final String output = tracker.getOutput(timeout);
 			return output == null ? "" : output;
 		} catch (Exception e) {
+		    request.setAttribute(PORTLET_RENDER_FAILED, Boolean.TRUE);
 		    final IPortletFailureExecutionWorker failureWorker = this.portletWorkerFactory.createFailureWorker(request, response, portletWindowId, e);
 		    // TODO publish portlet error event?
 		    try {
@@ -822,6 +879,9 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
      * configured timeout by 20 the first 5 times it executes. The key is the portlet descriptor so even if you
      * have the same portlet (web proxy for example) published 20 times only the first 5 renders of ANY WPP
      * will get the extra time.
+     * <p>
+     * Once the warm up executions are done the timeout is passed through the {@link PortletExecutionGovernor}
+     * which may shorten it based on the portlet's observed latency.
      * @param portletDefinition
      * @param request
      * @param timeout
@@ -833,7 +893,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         final int executionCount = counter.get();
         
         if (executionCount > extendedTimeoutExecutions) {
-            return timeout;
+            return this.portletExecutionGovernor.getAdaptiveTimeout(portletDescriptorKey, timeout);
         }
 
         if (logger.isDebugEnabled()) {
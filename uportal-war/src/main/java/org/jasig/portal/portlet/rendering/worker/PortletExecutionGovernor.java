@@ -0,0 +1,538 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.rendering.worker;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.PortletHungEvent;
+import org.jasig.portal.portlet.om.IPortletDescriptorKey;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.utils.ConcurrentMapUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import com.google.common.base.Function;
+
+/**
+ * Adaptive execution governor for portlet workers. For each portlet descriptor a latency histogram, the number of
+ * executing workers and a failure/hang rate are tracked and used to:
+ * <ul>
+ *  <li>Deny new workers once a portlet has {@link #setMaxConcurrentExecutions(int)} workers submitted and not yet
+ *      complete (bulkhead), the slot is reserved when the worker is submitted and released when it completes</li>
+ *  <li>Deny new workers for a period once the rate of failed and hung executions crosses
+ *      {@link #setFailureRateThreshold(double)} (circuit breaker), a single trial execution is allowed once the
+ *      open period has elapsed and its outcome closes or re-opens the circuit</li>
+ *  <li>Shorten the configured portlet timeout to a multiple of the observed latency percentile via
+ *      {@link #getAdaptiveTimeout(IPortletDescriptorKey, long)}</li>
+ * </ul>
+ * Denied workers fail in {@link #preSubmit(HttpServletRequest, HttpServletResponse, IPortletExecutionContext)} the same
+ * way as workers denied by the {@link HungWorkerAnalyzer}, which results in the error portlet being rendered without
+ * using a portlet thread.
+ */
+@ManagedResource("uPortal:section=Framework,name=PortletExecutionGovernor")
+@Service("portletExecutionGovernor")
+public class PortletExecutionGovernor implements ApplicationListener<PortalEvent>, IPortletExecutionInterceptor, PortletExecutionGovernorMXBean {
+    private static final String DESCRIPTOR_KEY_ATTRIBUTE = PortletExecutionGovernor.class.getName() + ".DESCRIPTOR_KEY";
+    private static final String HUNG_ATTRIBUTE = PortletExecutionGovernor.class.getName() + ".HUNG";
+    private static final String SLOT_ATTRIBUTE = PortletExecutionGovernor.class.getName() + ".SLOT";
+    
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final ConcurrentMap<IPortletDescriptorKey, PortletExecutionState> executionStates = ConcurrentMapUtils.makeDefaultsMap(new Function<IPortletDescriptorKey, PortletExecutionState>() {
+        public PortletExecutionState apply(IPortletDescriptorKey key) {
+            return new PortletExecutionState();
+        }
+    });
+    
+    private IPortletWindowRegistry portletWindowRegistry;
+    
+    private int maxConcurrentExecutions = 0;
+    private double failureRateThreshold = 0;
+    private int circuitBreakerMinExecutions = 20;
+    private long circuitBreakerWindow = 60000;
+    private long circuitBreakerOpenDuration = 30000;
+    private double adaptiveTimeoutMultiplier = 0;
+    private double adaptiveTimeoutPercentile = .99;
+    private int adaptiveTimeoutMinSamples = 100;
+    private long adaptiveTimeoutMinimum = 1000;
+    
+    @Autowired
+    public void setPortletWindowRegistry(IPortletWindowRegistry portletWindowRegistry) {
+        this.portletWindowRegistry = portletWindowRegistry;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.maxConcurrentExecutions:0}")
+    @Override
+    public void setMaxConcurrentExecutions(int maxConcurrentExecutions) {
+        this.maxConcurrentExecutions = maxConcurrentExecutions;
+    }
+
+    @Override
+    public int getMaxConcurrentExecutions() {
+        return this.maxConcurrentExecutions;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.failureRateThreshold:0}")
+    @Override
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    @Override
+    public double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.circuitBreakerMinExecutions:20}")
+    @Override
+    public void setCircuitBreakerMinExecutions(int circuitBreakerMinExecutions) {
+        this.circuitBreakerMinExecutions = circuitBreakerMinExecutions;
+    }
+
+    @Override
+    public int getCircuitBreakerMinExecutions() {
+        return this.circuitBreakerMinExecutions;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.circuitBreakerWindow:60000}")
+    @Override
+    public void setCircuitBreakerWindow(long circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    @Override
+    public long getCircuitBreakerWindow() {
+        return this.circuitBreakerWindow;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.circuitBreakerOpenDuration:30000}")
+    @Override
+    public void setCircuitBreakerOpenDuration(long circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    @Override
+    public long getCircuitBreakerOpenDuration() {
+        return this.circuitBreakerOpenDuration;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.adaptiveTimeoutMultiplier:0}")
+    @Override
+    public void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    @Override
+    public double getAdaptiveTimeoutMultiplier() {
+        return this.adaptiveTimeoutMultiplier;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.adaptiveTimeoutPercentile:.99}")
+    @Override
+    public void setAdaptiveTimeoutPercentile(double adaptiveTimeoutPercentile) {
+        this.adaptiveTimeoutPercentile = adaptiveTimeoutPercentile;
+    }
+
+    @Override
+    public double getAdaptiveTimeoutPercentile() {
+        return this.adaptiveTimeoutPercentile;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.adaptiveTimeoutMinSamples:100}")
+    @Override
+    public void setAdaptiveTimeoutMinSamples(int adaptiveTimeoutMinSamples) {
+        this.adaptiveTimeoutMinSamples = adaptiveTimeoutMinSamples;
+    }
+
+    @Override
+    public int getAdaptiveTimeoutMinSamples() {
+        return this.adaptiveTimeoutMinSamples;
+    }
+
+    @Value("${org.jasig.portal.portlet.governor.adaptiveTimeoutMinimum:1000}")
+    @Override
+    public void setAdaptiveTimeoutMinimum(long adaptiveTimeoutMinimum) {
+        this.adaptiveTimeoutMinimum = adaptiveTimeoutMinimum;
+    }
+
+    @Override
+    public long getAdaptiveTimeoutMinimum() {
+        return this.adaptiveTimeoutMinimum;
+    }
+
+    @Override
+    public Map<String, String> getPortletExecutionStates() {
+        final long now = System.currentTimeMillis();
+        final Map<String, String> states = new TreeMap<String, String>();
+        
+        for (final Map.Entry<IPortletDescriptorKey, PortletExecutionState> entry : this.executionStates.entrySet()) {
+            final IPortletDescriptorKey key = entry.getKey();
+            final PortletExecutionState state = entry.getValue();
+            states.put(key.getWebAppName() + "/" + key.getPortletName(), state.toString(now));
+        }
+        
+        return states;
+    }
+    
+    @Override
+    public void reset() {
+        this.executionStates.clear();
+    }
+    
+    /**
+     * @return The execution tracking for the portlet
+     */
+    PortletExecutionState getPortletExecutionState(IPortletDescriptorKey portletDescriptorKey) {
+        return this.executionStates.get(portletDescriptorKey);
+    }
+    
+    /**
+     * Calculate the timeout to use for a portlet. If adaptive timeouts are enabled and enough executions of the portlet
+     * have been seen the timeout is the configured multiple of the latency percentile, bounded by the adaptive timeout
+     * minimum and the passed timeout.
+     * 
+     * @param portletDescriptorKey The portlet to get the timeout for
+     * @param timeout The configured timeout for the portlet
+     * @return The timeout to use for the portlet
+     */
+    public long getAdaptiveTimeout(IPortletDescriptorKey portletDescriptorKey, long timeout) {
+        if (this.adaptiveTimeoutMultiplier <= 0) {
+            return timeout;
+        }
+        
+        final PortletExecutionState state = this.executionStates.get(portletDescriptorKey);
+        if (state.latencies.getSampleCount() < this.adaptiveTimeoutMinSamples) {
+            return timeout;
+        }
+        
+        final long percentileLatency = state.latencies.getPercentile(this.adaptiveTimeoutPercentile);
+        final long adaptiveTimeout = Math.max((long)(percentileLatency * this.adaptiveTimeoutMultiplier), this.adaptiveTimeoutMinimum);
+        return Math.min(adaptiveTimeout, timeout);
+    }
+
+    @Override
+    public void onApplicationEvent(PortalEvent event) {
+        if (event instanceof PortletHungEvent) {
+            final IPortletExecutionWorker<?> worker = ((PortletHungEvent) event).getWorker();
+            final IPortletDescriptorKey portletDescriptorKey = (IPortletDescriptorKey)worker.getExecutionAttribute(DESCRIPTOR_KEY_ATTRIBUTE);
+            if (portletDescriptorKey == null) {
+                //Not a worker the governor has seen
+                return;
+            }
+            
+            //Record the hang now, postExecution will not count the outcome again when the worker eventually completes
+            worker.setExecutionAttribute(HUNG_ATTRIBUTE, Boolean.TRUE);
+            final PortletExecutionState state = this.executionStates.get(portletDescriptorKey);
+            state.hungCount.incrementAndGet();
+            this.recordOutcome(portletDescriptorKey, state, false);
+        }
+    }
+
+    @Override
+    public void preSubmit(HttpServletRequest request, HttpServletResponse response, IPortletExecutionContext context) {
+        final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(request, context.getPortletWindowId());
+        if (portletWindow == null) {
+            return;
+        }
+        
+        final IPortletDescriptorKey portletDescriptorKey = portletWindow.getPortletEntity().getPortletDefinition().getPortletDescriptorKey();
+        final PortletExecutionState state = this.executionStates.get(portletDescriptorKey);
+        
+        if (!state.tryReserveSlot(this.maxConcurrentExecutions)) {
+            state.rejectedCount.incrementAndGet();
+            final String msg = "Denying worker execution for " + context.getPortletFname() + " that has " + state.inFlight.get() + " executing workers over limit of " + this.maxConcurrentExecutions;
+            logger.info(msg);
+            throw new IllegalStateException(msg);
+        }
+        
+        if (this.failureRateThreshold > 0 && !state.allowExecution(System.currentTimeMillis(), this.circuitBreakerOpenDuration)) {
+            state.inFlight.decrementAndGet();
+            state.rejectedCount.incrementAndGet();
+            final String msg = "Denying worker execution for " + context.getPortletFname() + ", circuit is open due to a failure rate over " + this.failureRateThreshold;
+            logger.debug(msg);
+            throw new IllegalStateException(msg);
+        }
+        
+        //Only set once the worker is allowed, postExecution is also called for denied workers and must not record
+        //an outcome for them. The slot is released in postExecution.
+        context.setExecutionAttribute(DESCRIPTOR_KEY_ATTRIBUTE, portletDescriptorKey);
+        context.setExecutionAttribute(SLOT_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    @Override
+    public void preExecution(HttpServletRequest request, HttpServletResponse response, IPortletExecutionContext context) {
+        //The execution slot was reserved in preSubmit
+    }
+
+    @Override
+    public void postExecution(HttpServletRequest request, HttpServletResponse response,
+            IPortletExecutionContext context, Exception e) {
+        final IPortletDescriptorKey portletDescriptorKey = (IPortletDescriptorKey)context.getExecutionAttribute(DESCRIPTOR_KEY_ATTRIBUTE);
+        if (portletDescriptorKey == null) {
+            return;
+        }
+        
+        final PortletExecutionState state = this.executionStates.get(portletDescriptorKey);
+        if (context.getExecutionAttribute(SLOT_ATTRIBUTE) != null) {
+            context.setExecutionAttribute(SLOT_ATTRIBUTE, null);
+            state.inFlight.decrementAndGet();
+        }
+        state.latencies.record(System.currentTimeMillis() - context.getStartedTime());
+        
+        //Hung workers already had their outcome recorded when the hang was detected
+        if (context.getExecutionAttribute(HUNG_ATTRIBUTE) == null) {
+            if (e != null) {
+                state.failedCount.incrementAndGet();
+            }
+            this.recordOutcome(portletDescriptorKey, state, e == null);
+        }
+    }
+    
+    private void recordOutcome(IPortletDescriptorKey portletDescriptorKey, PortletExecutionState state, boolean success) {
+        state.executionCount.incrementAndGet();
+        if (this.failureRateThreshold <= 0) {
+            return;
+        }
+        
+        final boolean opened = state.recordOutcome(success, System.currentTimeMillis(), 
+                this.circuitBreakerWindow, this.circuitBreakerMinExecutions, this.failureRateThreshold, this.circuitBreakerOpenDuration);
+        if (opened) {
+            logger.warn("Opened circuit for {}/{} for {}ms, failure rate is over {}", 
+                    new Object[] { portletDescriptorKey.getWebAppName(), portletDescriptorKey.getPortletName(), this.circuitBreakerOpenDuration, this.failureRateThreshold });
+        }
+    }
+    
+    enum CircuitState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+    
+    /**
+     * Execution tracking for a single portlet
+     */
+    static final class PortletExecutionState {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong executionCount = new AtomicLong();
+        final AtomicLong failedCount = new AtomicLong();
+        final AtomicLong hungCount = new AtomicLong();
+        final AtomicLong rejectedCount = new AtomicLong();
+        
+        private final AtomicBoolean trialExecuting = new AtomicBoolean();
+        private volatile CircuitState circuitState = CircuitState.CLOSED;
+        private volatile long openUntil;
+        private volatile long trialStarted;
+        
+        //Guarded by this
+        private long windowStart;
+        private int windowExecutions;
+        private int windowFailures;
+        
+        CircuitState getCircuitState() {
+            return this.circuitState;
+        }
+        
+        /**
+         * Atomically reserve an execution slot
+         * 
+         * @param maxConcurrentExecutions Maximum number of reserved slots, 0 or less for no limit
+         * @return true if a slot was reserved, false if the limit has been reached
+         */
+        boolean tryReserveSlot(int maxConcurrentExecutions) {
+            while (true) {
+                final int inFlight = this.inFlight.get();
+                if (maxConcurrentExecutions > 0 && inFlight >= maxConcurrentExecutions) {
+                    return false;
+                }
+                if (this.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        /**
+         * @return true if a worker may be submitted for the portlet
+         */
+        boolean allowExecution(long now, long openDuration) {
+            if (this.circuitState == CircuitState.CLOSED) {
+                return true;
+            }
+            
+            if (this.circuitState == CircuitState.OPEN) {
+                if (now < this.openUntil) {
+                    return false;
+                }
+                this.circuitState = CircuitState.HALF_OPEN;
+            }
+            
+            //Only a single trial execution is allowed while half open, a trial that never reports an outcome
+            //(for example a worker canceled before it started) is replaced after the open duration
+            if (this.trialExecuting.compareAndSet(false, true) || now - this.trialStarted > openDuration) {
+                this.trialStarted = now;
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * @return true if the outcome caused the circuit to open
+         */
+        synchronized boolean recordOutcome(boolean success, long now, long window, int minExecutions, double failureRateThreshold, long openDuration) {
+            if (this.circuitState == CircuitState.HALF_OPEN) {
+                this.trialExecuting.set(false);
+                if (success) {
+                    this.circuitState = CircuitState.CLOSED;
+                    this.resetWindow(now);
+                    return false;
+                }
+                
+                this.open(now, openDuration);
+                return true;
+            }
+            
+            if (this.circuitState == CircuitState.OPEN) {
+                //Outcomes of workers submitted before the circuit opened
+                return false;
+            }
+            
+            if (now - this.windowStart > window) {
+                this.resetWindow(now);
+            }
+            
+            this.windowExecutions++;
+            if (!success) {
+                this.windowFailures++;
+            }
+            
+            if (this.windowExecutions >= minExecutions && ((double)this.windowFailures / this.windowExecutions) >= failureRateThreshold) {
+                this.open(now, openDuration);
+                return true;
+            }
+            
+            return false;
+        }
+        
+        private void open(long now, long openDuration) {
+            this.openUntil = now + openDuration;
+            this.circuitState = CircuitState.OPEN;
+            this.resetWindow(now);
+        }
+        
+        private void resetWindow(long now) {
+            this.windowStart = now;
+            this.windowExecutions = 0;
+            this.windowFailures = 0;
+        }
+        
+        String toString(long now) {
+            final CircuitState circuitState = this.circuitState;
+            return "circuit=" + circuitState + 
+                    (circuitState == CircuitState.OPEN ? " (" + Math.max(0, this.openUntil - now) + "ms)" : "") +
+                    ", inFlight=" + this.inFlight.get() + 
+                    ", p50=" + this.latencies.getPercentile(.5) + "ms" +
+                    ", p99=" + this.latencies.getPercentile(.99) + "ms" +
+                    ", executions=" + this.executionCount.get() +
+                    ", failed=" + this.failedCount.get() +
+                    ", hung=" + this.hungCount.get() +
+                    ", rejected=" + this.rejectedCount.get();
+        }
+    }
+    
+    /**
+     * Lock free latency histogram with power of two millisecond buckets. Counts are halved once the sample count
+     * reaches the decay limit so the percentiles follow recent behavior.
+     */
+    static final class LatencyHistogram {
+        private static final int BUCKETS = 24;
+        private static final long DECAY_LIMIT = 10000;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong samples = new AtomicLong();
+        
+        void record(long latency) {
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(latency, 0)));
+            this.buckets.incrementAndGet(bucket);
+            
+            if (this.samples.incrementAndGet() >= DECAY_LIMIT) {
+                this.decay();
+            }
+        }
+        
+        long getSampleCount() {
+            return this.samples.get();
+        }
+        
+        /**
+         * @return The upper bound, in ms, of the bucket containing the percentile, 0 if no samples have been recorded
+         */
+        long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += this.buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            
+            final long target = (long)Math.ceil(total * percentile);
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += this.buckets.get(i);
+                if (count >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+        
+        private synchronized void decay() {
+            if (this.samples.get() < DECAY_LIMIT) {
+                //Another thread already decayed the counts
+                return;
+            }
+            
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count;
+                do {
+                    count = this.buckets.get(i);
+                } while (!this.buckets.compareAndSet(i, count, count / 2));
+                total += count / 2;
+            }
+            this.samples.set(total);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.rendering.worker;
+
+import java.util.Map;
+
+
+/**
+ * JMX configuration and stats for PortletExecutionGovernor
+ */
+public interface PortletExecutionGovernorMXBean {
+
+    /**
+     * @return Maximum number of concurrently executing workers allowed per portlet, 0 for no limit
+     */
+    int getMaxConcurrentExecutions();
+
+    /**
+     * @param maxConcurrentExecutions Maximum number of concurrently executing workers allowed per portlet, 0 for no limit
+     */
+    void setMaxConcurrentExecutions(int maxConcurrentExecutions);
+
+    /**
+     * @return Ratio of failed and hung executions in a window that opens a portlet's circuit, 0 disables the circuit breaker
+     */
+    double getFailureRateThreshold();
+
+    /**
+     * @param failureRateThreshold Ratio of failed and hung executions in a window that opens a portlet's circuit, 0 disables the circuit breaker
+     */
+    void setFailureRateThreshold(double failureRateThreshold);
+
+    /**
+     * @return Minimum number of executions in a window before the failure rate is evaluated
+     */
+    int getCircuitBreakerMinExecutions();
+
+    /**
+     * @param circuitBreakerMinExecutions Minimum number of executions in a window before the failure rate is evaluated
+     */
+    void setCircuitBreakerMinExecutions(int circuitBreakerMinExecutions);
+
+    /**
+     * @return Length in ms of the window failure rates are tracked over
+     */
+    long getCircuitBreakerWindow();
+
+    /**
+     * @param circuitBreakerWindow Length in ms of the window failure rates are tracked over
+     */
+    void setCircuitBreakerWindow(long circuitBreakerWindow);
+
+    /**
+     * @return Time in ms an open circuit waits before allowing a trial execution
+     */
+    long getCircuitBreakerOpenDuration();
+
+    /**
+     * @param circuitBreakerOpenDuration Time in ms an open circuit waits before allowing a trial execution
+     */
+    void setCircuitBreakerOpenDuration(long circuitBreakerOpenDuration);
+
+    /**
+     * @return Multiplier applied to the observed latency percentile to calculate a portlet's timeout, 0 disables adaptive timeouts
+     */
+    double getAdaptiveTimeoutMultiplier();
+
+    /**
+     * @param adaptiveTimeoutMultiplier Multiplier applied to the observed latency percentile to calculate a portlet's timeout, 0 disables adaptive timeouts
+     */
+    void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier);
+
+    /**
+     * @return Latency percentile used for adaptive timeouts
+     */
+    double getAdaptiveTimeoutPercentile();
+
+    /**
+     * @param adaptiveTimeoutPercentile Latency percentile used for adaptive timeouts
+     */
+    void setAdaptiveTimeoutPercentile(double adaptiveTimeoutPercentile);
+
+    /**
+     * @return Number of latency samples required before adaptive timeouts are applied to a portlet
+     */
+    int getAdaptiveTimeoutMinSamples();
+
+    /**
+     * @param adaptiveTimeoutMinSamples Number of latency samples required before adaptive timeouts are applied to a portlet
+     */
+    void setAdaptiveTimeoutMinSamples(int adaptiveTimeoutMinSamples);
+
+    /**
+     * @return Lower bound in ms for adaptive timeouts
+     */
+    long getAdaptiveTimeoutMinimum();
+
+    /**
+     * @param adaptiveTimeoutMinimum Lower bound in ms for adaptive timeouts
+     */
+    void setAdaptiveTimeoutMinimum(long adaptiveTimeoutMinimum);
+
+    /**
+     * @return Execution state by portlet: circuit state, in-flight workers, latency percentiles and outcome counts
+     */
+    Map<String, String> getPortletExecutionStates();
+    
+    /**
+     * Close all circuits and reset all tracked latencies and counts
+     */
+    void reset();
+}
@@ -18,10 +18,7 @@
  */
 package org.jasig.portal.portlet.rendering.worker;
 
-import java.util.Iterator;
-import java.util.Set;
-
-import org.jasig.portal.utils.threading.QualityOfServiceBlockingQueue;
+import org.jasig.portal.utils.threading.ConcurrentQualityOfServiceBlockingQueue;
 
 /**
  * QOS based queue that spreads out workers by fname.
@@ -29,54 +26,20 @@ import org.jasig.portal.utils.threading.QualityOfServiceBlockingQueue;
  * @author Eric Dalquist
  * @version $Revision$
  */
-public class PortletWorkerExecutionQueue extends QualityOfServiceBlockingQueue<String, PortletExecutionCallable<?>> {
-    private Iterator<String> keyIterator;
-    
+public class PortletWorkerExecutionQueue extends ConcurrentQualityOfServiceBlockingQueue<String, PortletExecutionCallable<?>> {
     public PortletWorkerExecutionQueue() {
-        this.resetKeyIterator();
+        super();
     }
     
     public PortletWorkerExecutionQueue(int capacity) {
         super(capacity);
-        this.resetKeyIterator();
     }
 
     /* (non-Javadoc)
-     * @see org.jasig.portal.portlet.rendering.QualityOfServiceQueue#getElementKey(java.lang.Object)
+     * @see org.jasig.portal.utils.threading.ConcurrentQualityOfServiceBlockingQueue#getElementKey(java.lang.Object)
      */
     @Override
     protected String getElementKey(PortletExecutionCallable<?> e) {
         return e.getPortletFname();
     }
-
-    /* (non-Javadoc)
-     * @see org.jasig.portal.portlet.rendering.QualityOfServiceQueue#getNextElementKey()
-     */
-    @Override
-    protected String getNextElementKey() {
-        boolean reset = false;
-        
-        String key;
-        do {
-            //If we hit the end of the iterator reset it
-            if (!this.keyIterator.hasNext()) {
-                //Safety check to prevent an infinite loop, only allow a reset once
-                if (reset) {
-                    throw new IllegalStateException("getNextElementKey() was called but no key could be found that had queued elements: " + this.toString());
-                }
-                
-                reset = true;
-                this.resetKeyIterator();
-            }
-            
-            key = this.keyIterator.next();
-        } while (this.isKeyEmpty(key));
-        
-        return key;
-    }
-    
-    protected void resetKeyIterator() {
-        final Set<String> keySet = this.getKeySet();
-        this.keyIterator = keySet.iterator();
-    }
 }
@@ -18,6 +18,7 @@
  */
 package org.jasig.portal.portlets.search.portletregistry;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.portlet.PortletRequest;
@@ -34,6 +35,7 @@ import org.jasig.portal.portlets.search.IPortalSearchService;
 import org.jasig.portal.search.SearchRequest;
 import org.jasig.portal.search.SearchResult;
 import org.jasig.portal.search.SearchResults;
+import org.jasig.portal.security.IAuthorizationPrincipal;
 import org.jasig.portal.security.IAuthorizationService;
 import org.jasig.portal.url.IPortalRequestUtils;
 import org.jasig.portal.url.IPortalUrlBuilder;
@@ -88,28 +90,33 @@ public class PortletRegistrySearchService implements IPortalSearchService {
         
         final HttpServletRequest httpServletRequest = this.portalRequestUtils.getPortletHttpRequest(request);
         
-        final SearchResults results =  new SearchResults();
+        final List<IPortletDefinition> matchingPortlets = new ArrayList<IPortletDefinition>();
         for (IPortletDefinition portlet : portlets) {
             if (matches(queryString, portlet)) {
+                matchingPortlets.add(portlet);
+            }
+        }
+
+        // If user does not have browse permission, exclude the portlet.
+        final IAuthorizationPrincipal principal = authorizationService.newPrincipal(request.getRemoteUser(), EntityEnum.PERSON.getClazz());
+        final List<IPortletDefinition> browsablePortlets = authorizationService.filterBrowsablePortlets(principal, matchingPortlets);
+
+        final SearchResults results =  new SearchResults();
+        for (IPortletDefinition portlet : browsablePortlets) {
+            final IPortletWindow portletWindow = this.portletWindowRegistry.getOrCreateDefaultPortletWindowByFname(httpServletRequest, portlet.getFName());
+            // portletWindow is null if user does not have access to portlet.
+            if (portletWindow != null) {
                 final SearchResult result = new SearchResult();
                 result.setTitle(portlet.getTitle());
                 result.setSummary(portlet.getDescription());
                 result.getType().add(searchResultType);
 
-                final IPortletWindow portletWindow = this.portletWindowRegistry.getOrCreateDefaultPortletWindowByFname(httpServletRequest, portlet.getFName());
-                // portletWindow is null if user does not have access to portlet.
-                // If user does not have browse permission, exclude the portlet.
-                if (portletWindow != null && authorizationService.canPrincipalBrowse(
-                        authorizationService.newPrincipal(request.getRemoteUser(), EntityEnum.PERSON.getClazz()),
-                        portlet)) {
-                    final IPortletWindowId portletWindowId = portletWindow.getPortletWindowId();
-                    final IPortalUrlBuilder portalUrlBuilder = this.portalUrlProvider.getPortalUrlBuilderByPortletFName(httpServletRequest, portlet.getFName(), UrlType.RENDER);
-                    final IPortletUrlBuilder portletUrlBuilder = portalUrlBuilder.getPortletUrlBuilder(portletWindowId);
-                    portletUrlBuilder.setWindowState(PortletUtils.getWindowState("maximized"));
-                    result.setExternalUrl(portalUrlBuilder.getUrlString());
-                    results.getSearchResult().add(result);
-                }
-
+                final IPortletWindowId portletWindowId = portletWindow.getPortletWindowId();
+                final IPortalUrlBuilder portalUrlBuilder = this.portalUrlProvider.getPortalUrlBuilderByPortletFName(httpServletRequest, portlet.getFName(), UrlType.RENDER);
+                final IPortletUrlBuilder portletUrlBuilder = portalUrlBuilder.getPortletUrlBuilder(portletWindowId);
+                portletUrlBuilder.setWindowState(PortletUtils.getWindowState("maximized"));
+                result.setExternalUrl(portalUrlBuilder.getUrlString());
+                results.getSearchResult().add(result);
             }
         }
 
@@ -19,7 +19,9 @@
 package org.jasig.portal.rendering;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -30,6 +32,7 @@ import org.jasig.portal.character.stream.CharacterEventReader;
 import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEvent;
 import org.jasig.portal.events.IPortletExecutionEventFactory;
 import org.jasig.portal.url.IPortalRequestInfo;
 import org.jasig.portal.url.IUrlSyntaxProvider;
@@ -46,12 +49,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
     public static final String CHARACTER_SET = "UTF-8";
     public static final String DEFAULT_MEDIA_TYPE = "text/html";
+    private static final Charset CHARSET = Charset.forName(CHARACTER_SET);
     
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
     private CharacterPipelineComponent pipeline;
     private IPortletExecutionEventFactory portalEventFactory;
     private IUrlSyntaxProvider urlSyntaxProvider;
+    private boolean writeToOutputStream = false;
+    private PageVersionService pageVersionService;
+    private boolean conditionalRendering = false;
     
 
     @Autowired
@@ -71,6 +78,28 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
     public void setPipeline(CharacterPipelineComponent pipeline) {
         this.pipeline = pipeline;
     }
+    
+    /**
+     * If true the response is written via {@link HttpServletResponse#getOutputStream()} and
+     * {@link EncodedCharacterDataEvent}s are copied to the stream without being re-encoded.
+     * If false (the default) all data is written via {@link HttpServletResponse#getWriter()}.
+     */
+    public void setWriteToOutputStream(boolean writeToOutputStream) {
+        this.writeToOutputStream = writeToOutputStream;
+    }
+
+    public void setPageVersionService(PageVersionService pageVersionService) {
+        this.pageVersionService = pageVersionService;
+    }
+
+    /**
+     * If true (and a {@link PageVersionService} is set) every page is sent with an ETag and a request
+     * for a page that has not changed since and whose portlets would all replay their cached output
+     * is answered with a 304 without running the pipeline. Defaults to false.
+     */
+    public void setConditionalRendering(boolean conditionalRendering) {
+        this.conditionalRendering = conditionalRendering;
+    }
 
     @Override
     public void renderState(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
@@ -80,6 +109,21 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         res.setDateHeader("Expires", 0);
         
         final long startTime = System.nanoTime();
+        
+        final String etag;
+        if (this.conditionalRendering && this.pageVersionService != null) {
+            etag = this.pageVersionService.getPageETag(req);
+            res.setHeader("ETag", etag);
+            
+            if (this.pageVersionService.isPageUnchanged(req, etag)) {
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                this.publishRenderEvent(req, startTime);
+                return;
+            }
+        }
+        else {
+            etag = null;
+        }
 
         final PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader = this.pipeline.getEventReader(req, res);
         final String mediaType = getMediaType(req, res, pipelineEventReader);
@@ -88,22 +132,65 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         final String contentType = mediaType + "; charset=" + CHARACTER_SET;
         res.setContentType(contentType);
         
+        if (this.writeToOutputStream) {
+            this.writeEncoded(res, pipelineEventReader);
+        }
+        else {
+            this.writeCharacters(res, pipelineEventReader);
+        }
+        
+        if (etag != null) {
+            this.pageVersionService.pageRendered(req, etag);
+        }
+        
+        this.publishRenderEvent(req, startTime);
+    }
+    
+    private void publishRenderEvent(HttpServletRequest req, long startTime) {
+        final long executionTime = System.nanoTime() - startTime;
+        final IPortalRequestInfo portalRequestInfo = this.urlSyntaxProvider.getPortalRequestInfo(req);
+        this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
+    }
+
+    /**
+     * Write the character events to the response writer
+     */
+    protected void writeCharacters(HttpServletResponse res, PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader) throws IOException {
         final PrintWriter writer = res.getWriter();
         
         for (final CharacterEvent event : pipelineEventReader) {
-            if (CharacterEventTypes.CHARACTER != event.getEventType()) {
-                throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
-            }
-            
-            final String data = ((CharacterDataEvent)event).getData();
+            final String data = getCharacterData(event);
             writer.print(data);
             writer.flush();
             res.flushBuffer();
         }
+    }
+    
+    /**
+     * Write the character events to the response output stream, pre-encoded events are written directly
+     */
+    protected void writeEncoded(HttpServletResponse res, PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader) throws IOException {
+        final OutputStream out = res.getOutputStream();
         
-        final long executionTime = System.nanoTime() - startTime;
-        final IPortalRequestInfo portalRequestInfo = this.urlSyntaxProvider.getPortalRequestInfo(req);
-        this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
+        for (final CharacterEvent event : pipelineEventReader) {
+            if (event instanceof EncodedCharacterDataEvent && CHARACTER_SET.equals(((EncodedCharacterDataEvent) event).getCharacterSet())) {
+                ((EncodedCharacterDataEvent) event).writeTo(out);
+            }
+            else {
+                final String data = getCharacterData(event);
+                out.write(data.getBytes(CHARSET));
+            }
+            out.flush();
+            res.flushBuffer();
+        }
+    }
+    
+    private String getCharacterData(CharacterEvent event) {
+        if (CharacterEventTypes.CHARACTER != event.getEventType()) {
+            throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
+        }
+        
+        return ((CharacterDataEvent)event).getData();
     }
 
     /**
@@ -0,0 +1,299 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.jasig.portal.IUserPreferencesManager;
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.i18n.LocaleManager;
+import org.jasig.portal.layout.IStylesheetUserPreferencesService;
+import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.portlet.container.cache.CacheState;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+import org.jasig.portal.user.IUserInstance;
+import org.jasig.portal.user.IUserInstanceManager;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.jasig.portal.utils.web.PortalWebUtils;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Tracks the version of the page rendered for a request without running the rendering pipeline.
+ * The version is a composite of the layout version from {@link IUserLayoutManager#getLayoutVersion()},
+ * the stylesheet preferences version from {@link IStylesheetUserPreferencesService#getPreferencesVersion(HttpServletRequest)},
+ * the profile, the locales and the requested URL.
+ * <p>
+ * Portlet content is not part of the version. Instead a page is remembered in the session if the
+ * HEAD and BODY output of every portlet on it is held in the portlet output cache, along with the
+ * time each cached output was stored. A later request for the same version of the page is
+ * answered with a 304 only while the portlet cache still holds unexpired output stored at those
+ * same times, which is exactly the output the portlet renderer would replay. Expiration, a
+ * portlet action or event purging the cache, or new output being cached all cause the page to be
+ * rendered again. Pages with a portlet whose output was not cached, or that failed, are never
+ * remembered.
+ */
+public class PageVersionService {
+    private static final String RENDERED_PAGES_KEY = PageVersionService.class.getName() + ".RENDERED_PAGES";
+    
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * Changes every time the portal is started so versions from a previous deployment, possibly
+     * with a different theme, are never matched.
+     */
+    private final long epoch = System.currentTimeMillis();
+    
+    private IUserInstanceManager userInstanceManager;
+    private IStylesheetUserPreferencesService stylesheetUserPreferencesService;
+    private IPortletExecutionManager portletExecutionManager;
+    private IPortletCacheControlService portletCacheControlService;
+    private ResourcesElementsProvider resourcesElementsProvider;
+    private int maxRenderedPages = 20;
+
+    @Autowired
+    public void setUserInstanceManager(IUserInstanceManager userInstanceManager) {
+        this.userInstanceManager = userInstanceManager;
+    }
+
+    @Autowired
+    public void setStylesheetUserPreferencesService(IStylesheetUserPreferencesService stylesheetUserPreferencesService) {
+        this.stylesheetUserPreferencesService = stylesheetUserPreferencesService;
+    }
+
+    @Autowired
+    public void setPortletExecutionManager(IPortletExecutionManager portletExecutionManager) {
+        this.portletExecutionManager = portletExecutionManager;
+    }
+
+    @Autowired
+    public void setPortletCacheControlService(IPortletCacheControlService portletCacheControlService) {
+        this.portletCacheControlService = portletCacheControlService;
+    }
+
+    @Autowired
+    public void setResourcesElementsProvider(ResourcesElementsProvider resourcesElementsProvider) {
+        this.resourcesElementsProvider = resourcesElementsProvider;
+    }
+
+    /**
+     * Maximum number of page versions with cached portlet output remembered per session, defaults to 20
+     */
+    public void setMaxRenderedPages(int maxRenderedPages) {
+        if (maxRenderedPages < 1) {
+            throw new IllegalArgumentException("maxRenderedPages must be at least 1: " + maxRenderedPages);
+        }
+        this.maxRenderedPages = maxRenderedPages;
+    }
+
+    /**
+     * @return A key that changes whenever the page rendered for the request could change for any reason other than portlet content
+     */
+    public CacheKey getPageVersionKey(HttpServletRequest request) {
+        final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
+        final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
+        final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
+        final IUserProfile userProfile = preferencesManager.getUserProfile();
+        final LocaleManager localeManager = userInstance.getLocaleManager();
+        final HttpSession session = request.getSession(false);
+        
+        return CacheKey.build(PageVersionService.class.getName(), 
+                this.epoch,
+                session != null ? session.getId() : null,
+                userInstance.getPerson().getUserName(),
+                userLayoutManager.getLayoutVersion(),
+                this.stylesheetUserPreferencesService.getPreferencesVersion(request),
+                userProfile.getProfileId(),
+                userProfile.getStructureStylesheetId(),
+                userProfile.getThemeStylesheetId(),
+                LocaleManager.stringValueOf(localeManager.getLocales()),
+                this.resourcesElementsProvider.getIncludedType(request),
+                request.getRequestURI(),
+                request.getQueryString());
+    }
+    
+    /**
+     * @return The ETag for the version of the page rendered for the request
+     */
+    public String getPageETag(HttpServletRequest request) {
+        final CacheKey pageVersionKey = this.getPageVersionKey(request);
+        return PortalWebUtils.buildETag((Object[]) pageVersionKey.getKey());
+    }
+    
+    /**
+     * @return true if the client already has the page with the specified ETag and every portlet on it would replay the cached output it was rendered with
+     */
+    public boolean isPageUnchanged(HttpServletRequest request, String etag) {
+        if (!PortalWebUtils.isETagMatched(request, etag)) {
+            return false;
+        }
+        
+        final HttpSession session = request.getSession(false);
+        if (session == null) {
+            return false;
+        }
+        
+        final RenderedPage renderedPage;
+        synchronized (WebUtils.getSessionMutex(session)) {
+            final RenderedPages renderedPages = (RenderedPages) session.getAttribute(RENDERED_PAGES_KEY);
+            renderedPage = renderedPages != null ? renderedPages.get(etag) : null;
+        }
+        if (renderedPage == null) {
+            return false;
+        }
+        
+        return this.isCachedOutputUnchanged(request, renderedPage.headerOutputTimes, true)
+                && this.isCachedOutputUnchanged(request, renderedPage.outputTimes, false);
+    }
+    
+    /**
+     * Called once the page with the specified ETag has been written, remembers the page if the
+     * output of every portlet rendered for it is held in the portlet cache.
+     */
+    public void pageRendered(HttpServletRequest request, String etag) {
+        final HttpSession session = request.getSession(false);
+        if (session == null) {
+            return;
+        }
+        
+        if (this.portletExecutionManager.isAnyPortletRenderFailed(request)) {
+            return;
+        }
+        
+        final Map<IPortletWindowId, Long> headerOutputTimes = this.getCachedOutputTimes(request, this.portletExecutionManager.getPortletHeaderRendersRequested(request), true);
+        if (headerOutputTimes == null) {
+            return;
+        }
+        final Map<IPortletWindowId, Long> outputTimes = this.getCachedOutputTimes(request, this.portletExecutionManager.getPortletRendersRequested(request), false);
+        if (outputTimes == null) {
+            return;
+        }
+        
+        synchronized (WebUtils.getSessionMutex(session)) {
+            RenderedPages renderedPages = (RenderedPages) session.getAttribute(RENDERED_PAGES_KEY);
+            if (renderedPages == null) {
+                renderedPages = new RenderedPages(this.maxRenderedPages);
+            }
+            renderedPages.put(etag, new RenderedPage(headerOutputTimes, outputTimes));
+            
+            //Set the attribute on every change so replicated sessions see the update
+            session.setAttribute(RENDERED_PAGES_KEY, renderedPages);
+        }
+        
+        this.logger.debug("Page {} rendered with only cached portlet output, later requests for it can be answered with a 304 while that output is still cached", etag);
+    }
+    
+    /**
+     * @return The time the cached output of each portlet was stored, null if the output of any of the portlets is not cached
+     */
+    protected Map<IPortletWindowId, Long> getCachedOutputTimes(HttpServletRequest request, Set<IPortletWindowId> portletWindowIds, boolean header) {
+        if (portletWindowIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        
+        final Map<IPortletWindowId, Long> outputTimes = new LinkedHashMap<IPortletWindowId, Long>();
+        for (final IPortletWindowId portletWindowId : portletWindowIds) {
+            final CachedPortletData<PortletRenderResult> cachedPortletData = this.getCachedPortletData(request, portletWindowId, header);
+            if (cachedPortletData == null) {
+                this.logger.trace("Output of {} is not cached, page will not be remembered", portletWindowId);
+                return null;
+            }
+            outputTimes.put(portletWindowId, cachedPortletData.getTimeStored());
+        }
+        return outputTimes;
+    }
+    
+    /**
+     * @return true if every portlet still has unexpired cached output stored at the specified time
+     */
+    protected boolean isCachedOutputUnchanged(HttpServletRequest request, Map<IPortletWindowId, Long> outputTimes, boolean header) {
+        for (final Map.Entry<IPortletWindowId, Long> outputTimeEntry : outputTimes.entrySet()) {
+            final IPortletWindowId portletWindowId = outputTimeEntry.getKey();
+            final CachedPortletData<PortletRenderResult> cachedPortletData = this.getCachedPortletData(request, portletWindowId, header);
+            if (cachedPortletData == null || cachedPortletData.getTimeStored() != outputTimeEntry.getValue()) {
+                this.logger.trace("Cached output of {} changed or expired, page must be rendered", portletWindowId);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return The cached output the portlet renderer would replay for the portlet, null if the portlet would be executed
+     */
+    protected CachedPortletData<PortletRenderResult> getCachedPortletData(HttpServletRequest request, IPortletWindowId portletWindowId, boolean header) {
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState;
+        if (header) {
+            cacheState = this.portletCacheControlService.getPortletRenderHeaderState(request, portletWindowId);
+        }
+        else {
+            cacheState = this.portletCacheControlService.getPortletRenderState(request, portletWindowId);
+        }
+        
+        return cacheState.isUseCachedData() ? cacheState.getCachedPortletData() : null;
+    }
+    
+    /**
+     * The time the cached HEAD and BODY output of each portlet on a rendered page was stored
+     */
+    private static final class RenderedPage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final Map<IPortletWindowId, Long> headerOutputTimes;
+        private final Map<IPortletWindowId, Long> outputTimes;
+        
+        public RenderedPage(Map<IPortletWindowId, Long> headerOutputTimes, Map<IPortletWindowId, Long> outputTimes) {
+            this.headerOutputTimes = headerOutputTimes;
+            this.outputTimes = outputTimes;
+        }
+    }
+    
+    /**
+     * The most recently rendered pages that contain only cached portlet output, keyed by ETag
+     */
+    private static final class RenderedPages extends LinkedHashMap<String, RenderedPage> {
+        private static final long serialVersionUID = 1L;
+        
+        private final int maxSize;
+
+        public RenderedPages(int maxSize) {
+            super(16, .75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RenderedPage> eldest) {
+            return this.size() > this.maxSize;
+        }
+    }
+}
@@ -18,15 +18,21 @@
  */
 package org.jasig.portal.rendering;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.CharacterEventReaderDelegate;
 import org.jasig.portal.character.stream.FilteringCharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.CharacterEventTypes;
 import org.jasig.portal.character.stream.events.PortletContentPlaceholderEvent;
 import org.jasig.portal.character.stream.events.PortletHeaderPlaceholderEvent;
 import org.jasig.portal.character.stream.events.PortletLinkPlaceholderEvent;
@@ -39,17 +45,35 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Inserts the results of portlet's rendering into the character stream
+ * <p>
+ * If progressive rendering is enabled portlet content that is not yet complete when its
+ * placeholder is reached is replaced with an empty container and the rest of the page is
+ * streamed without waiting. The content of these deferred portlets is written just before
+ * the closing body tag of the page, as each completes, along with a small script that moves
+ * it into its container. Only portlet content is deferred, title, link and new item count placeholders
+ * still wait for the portlet to complete.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class PortletRenderingIncorporationComponent extends CharacterPipelineComponentWrapper {
+    private static final String DEFERRED_CONTAINER_ID_PREFIX = "up-deferred-portlet-";
+    private static final String BODY_CLOSE_TAG = "</body";
+    
     private IPortletExecutionManager portletExecutionManager;
+    private boolean progressiveRendering = false;
     
     @Autowired
     public void setPortletExecutionManager(IPortletExecutionManager portletExecutionManager) {
         this.portletExecutionManager = portletExecutionManager;
     }
+    
+    /**
+     * If portlet content that is not yet complete should be streamed after the rest of the page, defaults to false
+     */
+    public void setProgressiveRendering(boolean progressiveRendering) {
+        this.progressiveRendering = progressiveRendering;
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.rendering.PipelineComponent#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
@@ -73,13 +97,22 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
         final CharacterEventReader eventReader = pipelineEventReader.getEventReader();
         final PortletIncorporatingEventReader portletIncorporatingEventReader = new PortletIncorporatingEventReader(eventReader, request, response);
         
+        final CharacterEventReader incorporatedEventReader;
+        if (this.progressiveRendering) {
+            incorporatedEventReader = new DeferredPortletEventReader(portletIncorporatingEventReader, request, response);
+        }
+        else {
+            incorporatedEventReader = portletIncorporatingEventReader;
+        }
+        
         final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-        return new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(portletIncorporatingEventReader, outputProperties);
+        return new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(incorporatedEventReader, outputProperties);
     }
 
     private class PortletIncorporatingEventReader extends FilteringCharacterEventReader {
         private final HttpServletRequest request;
         private final HttpServletResponse response;
+        private final Map<String, IPortletWindowId> deferredPortlets = new LinkedHashMap<String, IPortletWindowId>();
         
         public PortletIncorporatingEventReader(CharacterEventReader delegate, HttpServletRequest request, HttpServletResponse response) {
             super(delegate);
@@ -102,6 +135,10 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                     final PortletContentPlaceholderEvent contentPlaceholderEvent = (PortletContentPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = contentPlaceholderEvent.getPortletWindowId();
                     
+                    if (progressiveRendering && !portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response)) {
+                        return this.deferPortletContent(portletWindowId);
+                    }
+                    
                     final String output = portletExecutionManager.getPortletOutput(portletWindowId, this.request, this.response);
                     
                     return CharacterDataEventImpl.create(output);
@@ -136,5 +173,137 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                 }
             }
         }
+        
+        private CharacterEvent deferPortletContent(IPortletWindowId portletWindowId) {
+            if (!portletExecutionManager.isPortletRenderRequested(portletWindowId, this.request, this.response)) {
+                portletExecutionManager.startPortletRender(portletWindowId, this.request, this.response);
+            }
+            
+            final String containerId = DEFERRED_CONTAINER_ID_PREFIX + this.deferredPortlets.size();
+            this.deferredPortlets.put(containerId, portletWindowId);
+            
+            return CharacterDataEventImpl.create("<div id=\"" + containerId + "\" class=\"up-portlet-deferred\"></div>");
+        }
+    }
+    
+    /**
+     * Once the closing body tag of the page is reached writes out the content of each deferred
+     * portlet, in order of completion, followed by a script that moves it into its container,
+     * then the rest of the page. If the page has no closing body tag the deferred portlets are
+     * written after the end of the page.
+     */
+    private class DeferredPortletEventReader extends CharacterEventReaderDelegate {
+        private final PortletIncorporatingEventReader portletIncorporatingEventReader;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private CharacterEvent nextEvent;
+        private CharacterEvent bodyCloseEvent;
+        
+        public DeferredPortletEventReader(PortletIncorporatingEventReader delegate, HttpServletRequest request, HttpServletResponse response) {
+            super(delegate);
+            this.portletIncorporatingEventReader = delegate;
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.peek() != null;
+        }
+
+        @Override
+        public CharacterEvent next() {
+            final CharacterEvent event = this.peek();
+            if (event == null) {
+                throw new NoSuchElementException();
+            }
+            
+            this.nextEvent = null;
+            return event;
+        }
+
+        @Override
+        public CharacterEvent peek() {
+            if (this.nextEvent == null) {
+                this.nextEvent = this.readNextEvent();
+            }
+            return this.nextEvent;
+        }
+        
+        private CharacterEvent readNextEvent() {
+            final Map<String, IPortletWindowId> deferredPortlets = this.portletIncorporatingEventReader.deferredPortlets;
+            
+            //Between the end of the body content and the closing body tag, write the deferred portlets then the tag
+            if (this.bodyCloseEvent != null) {
+                if (!deferredPortlets.isEmpty()) {
+                    return this.renderNextDeferredPortlet();
+                }
+                
+                final CharacterEvent bodyCloseEvent = this.bodyCloseEvent;
+                this.bodyCloseEvent = null;
+                return bodyCloseEvent;
+            }
+            
+            if (super.hasNext()) {
+                final CharacterEvent event = super.next();
+                if (deferredPortlets.isEmpty() || event.getEventType() != CharacterEventTypes.CHARACTER) {
+                    return event;
+                }
+                
+                final String data = ((CharacterDataEvent) event).getData();
+                final int bodyCloseIndex = StringUtils.indexOfIgnoreCase(data, BODY_CLOSE_TAG);
+                if (bodyCloseIndex < 0) {
+                    return event;
+                }
+                
+                this.bodyCloseEvent = CharacterDataEventImpl.create(data.substring(bodyCloseIndex));
+                if (bodyCloseIndex > 0) {
+                    return CharacterDataEventImpl.create(data.substring(0, bodyCloseIndex));
+                }
+                return this.readNextEvent();
+            }
+            
+            if (!deferredPortlets.isEmpty()) {
+                return this.renderNextDeferredPortlet();
+            }
+            
+            return null;
+        }
+        
+        private CharacterEvent renderNextDeferredPortlet() {
+            final Map<String, IPortletWindowId> deferredPortlets = this.portletIncorporatingEventReader.deferredPortlets;
+            if (deferredPortlets.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            
+            //Prefer a portlet that is already complete, otherwise wait on the first deferred portlet
+            Map.Entry<String, IPortletWindowId> deferredPortlet = null;
+            for (final Map.Entry<String, IPortletWindowId> entry : deferredPortlets.entrySet()) {
+                if (portletExecutionManager.isPortletRenderComplete(entry.getValue(), this.request, this.response)) {
+                    deferredPortlet = entry;
+                    break;
+                }
+            }
+            if (deferredPortlet == null) {
+                deferredPortlet = deferredPortlets.entrySet().iterator().next();
+            }
+            
+            final String containerId = deferredPortlet.getKey();
+            final IPortletWindowId portletWindowId = deferredPortlet.getValue();
+            deferredPortlets.remove(containerId);
+            
+            final String output = portletExecutionManager.getPortletOutput(portletWindowId, this.request, this.response);
+            
+            final StringBuilder fragment = new StringBuilder(output.length() + 400);
+            fragment.append("<div id=\"").append(containerId).append("-content\" style=\"display:none\">");
+            fragment.append(output);
+            fragment.append("</div><script type=\"text/javascript\">(function(){");
+            fragment.append("var c=document.getElementById('").append(containerId).append("'),");
+            fragment.append("s=document.getElementById('").append(containerId).append("-content');");
+            fragment.append("if(c&&s){while(s.firstChild){c.appendChild(s.firstChild);}s.parentNode.removeChild(s);}");
+            fragment.append("})();</script>");
+            
+            return CharacterDataEventImpl.create(fragment.toString());
+        }
     }
 }
@@ -19,26 +19,49 @@
 package org.jasig.portal.rendering.cache;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Holder class for an event cache and output properties
+ * Holder class for an event cache and output properties. The events are stored in a
+ * flat array sized exactly to the number of events to avoid per-event list node overhead.
  */
 class CachedEventReader<E> implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     
-    private final List<E> eventCache;
+    private final Object[] eventCache;
     private final Map<String, String> outputProperties;
+    private final long estimatedSize;
 
     public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties) {
-        this.eventCache = Collections.unmodifiableList(eventCache);
+        this(eventCache, outputProperties, -1);
+    }
+
+    /**
+     * @param estimatedSize Estimated heap usage of the cached events in bytes, -1 if unknown
+     */
+    public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties, long estimatedSize) {
+        this.eventCache = eventCache.toArray();
         this.outputProperties = Collections.unmodifiableMap(outputProperties);
+        this.estimatedSize = estimatedSize;
     }
 
+    @SuppressWarnings("unchecked")
     public List<E> getEventCache() {
-        return this.eventCache;
+        return Collections.unmodifiableList((List<E>) Arrays.asList(this.eventCache));
+    }
+    
+    public int getEventCount() {
+        return this.eventCache.length;
+    }
+    
+    /**
+     * @return Estimated heap usage of the cached events in bytes, -1 if unknown
+     */
+    public long getEstimatedSize() {
+        return this.estimatedSize;
     }
 
     public Map<String, String> getOutputProperties() {
@@ -22,19 +22,73 @@ import java.util.ListIterator;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEvent;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEventImpl;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 
 /**
  * component that can cache character pipeline events
+ * <p>
+ * If {@link #setEncodeCharacterData(boolean)} is enabled character data is cached as
+ * {@link EncodedCharacterDataEvent}s holding pre-encoded UTF-8 bytes which can be written
+ * directly to the response output stream.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class CachingCharacterPipelineComponent extends CachingPipelineComponent<CharacterEventReader, CharacterEvent> implements CharacterPipelineComponent {
+    private boolean encodeCharacterData = false;
+    
+    /**
+     * If character data should be stored as pre-encoded UTF-8 bytes, defaults to false
+     */
+    public void setEncodeCharacterData(boolean encodeCharacterData) {
+        this.encodeCharacterData = encodeCharacterData;
+    }
     
     @Override
     protected CharacterEventReader createEventReader(ListIterator<CharacterEvent> eventCache) {
         return new CharacterEventBufferReader(eventCache);
     }
+
+    @Override
+    protected String getMergeableData(CharacterEvent event) {
+        if (event.getEventType() == CharacterEventTypes.CHARACTER) {
+            return ((CharacterDataEvent) event).getData();
+        }
+        
+        return null;
+    }
+
+    @Override
+    protected CharacterEvent createMergedEvent(String data) {
+        if (this.encodeCharacterData) {
+            return EncodedCharacterDataEventImpl.create(data);
+        }
+        
+        return CharacterDataEventImpl.create(data);
+    }
+
+    @Override
+    protected CharacterEvent prepareCachedEvent(CharacterEvent event) {
+        if (this.encodeCharacterData && event.getEventType() == CharacterEventTypes.CHARACTER && !(event instanceof EncodedCharacterDataEvent)) {
+            return EncodedCharacterDataEventImpl.create(((CharacterDataEvent) event).getData());
+        }
+        
+        return event;
+    }
+
+    @Override
+    protected long estimateEventSize(CharacterEvent event) {
+        if (event instanceof EncodedCharacterDataEvent) {
+            //object header + byte[]
+            return 24 + 16 + ((EncodedCharacterDataEvent) event).getEncodedLength();
+        }
+        
+        return super.estimateEventSize(event);
+    }
 }
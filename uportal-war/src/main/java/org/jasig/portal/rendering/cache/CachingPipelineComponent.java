@@ -18,8 +18,8 @@
  */
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -42,7 +42,9 @@ import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
- * Component that caches events from a wrapped component
+ * Component that caches events from a wrapped component. Adjacent events that subclasses report
+ * as mergeable via {@link #getMergeableData(Object)} are collapsed into the single event returned
+ * by {@link #createMergedEvent(String)} before being stored in a compact array backed buffer.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -53,6 +55,7 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
     private ResourcesElementsProvider resourcesElementsProvider;
     private Ehcache cache;
     private String beanName;
+    private final EventCacheStatistics cacheStatistics = new EventCacheStatistics();
     
     @Autowired
     public void setResourcesElementsProvider(ResourcesElementsProvider resourcesElementsProvider) {
@@ -67,6 +70,13 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
     public void setBeanName(String name) {
         this.beanName = name;
     }
+    
+    /**
+     * @return Statistics about the size of the event buffers created by this component
+     */
+    public final EventCacheStatistics getCacheStatistics() {
+        return this.cacheStatistics;
+    }
 
     @Override
     public final CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
@@ -98,20 +108,37 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
             logger.debug("{} - No cached events found for key {}, calling parent", this.beanName, cacheKey);
             final PipelineEventReader<R, E> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
 
-            //Copy the events from the reader into a buffer to be cached
-            final List<E> eventCache = new LinkedList<E>();
+            //Copy the events from the reader into a buffer to be cached, merging adjacent events where possible
+            final List<E> eventCache = new ArrayList<E>();
+            final List<E> pendingEvents = new ArrayList<E>();
+            final StringBuilder pendingData = new StringBuilder();
+            int sourceEventCount = 0;
             for (final E event : pipelineEventReader) {
-                //TODO add de-duplication logic here
-                eventCache.add(event);
+                sourceEventCount++;
+                
+                final String data = this.getMergeableData(event);
+                if (data != null) {
+                    pendingEvents.add(event);
+                    pendingData.append(data);
+                    continue;
+                }
+                
+                this.addPendingEvents(eventCache, pendingEvents, pendingData);
+                eventCache.add(this.prepareCachedEvent(event));
             }
+            this.addPendingEvents(eventCache, pendingEvents, pendingData);
 
+            final long estimatedSize = this.estimateBufferSize(eventCache);
             final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties));
+            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties), estimatedSize);
+            this.cacheStatistics.entryCached(sourceEventCount, eventCache.size(), estimatedSize);
 
             //Cache the buffer
             element = new Element(cacheKey, cachedEventReader);
             this.cache.put(element);
-            logger.debug("{} - Cached {} events for key {}", this.beanName, eventCache.size(), cacheKey);
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} - Cached {} events (merged from {}, ~{} bytes) for key {}", new Object[] { this.beanName, cachedEventReader.getEventCount(), sourceEventCount, estimatedSize, cacheKey });
+            }
         }
         else {
             logger.debug("{} - Found cached events for key {}", this.beanName, cacheKey);
@@ -124,6 +151,77 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
         return new PipelineEventReaderImpl<R, E>(eventReader, outputProperties);
     }
     
+    /**
+     * Add the buffered mergeable events to the cache as a single merged event, or as they are if
+     * there is only one or the subclass does not merge them, and clear the buffers.
+     */
+    private void addPendingEvents(List<E> eventCache, List<E> pendingEvents, StringBuilder pendingData) {
+        if (pendingEvents.isEmpty()) {
+            return;
+        }
+        
+        final E mergedEvent = pendingEvents.size() > 1 ? this.createMergedEvent(pendingData.toString()) : null;
+        if (mergedEvent != null) {
+            eventCache.add(this.prepareCachedEvent(mergedEvent));
+        }
+        else {
+            for (final E pendingEvent : pendingEvents) {
+                eventCache.add(this.prepareCachedEvent(pendingEvent));
+            }
+        }
+        
+        pendingEvents.clear();
+        pendingData.setLength(0);
+    }
+    
+    /**
+     * Estimate the heap used by the buffered events: the array and references plus each event
+     */
+    private long estimateBufferSize(List<E> eventCache) {
+        long size = 16 + 8 * (long) eventCache.size();
+        for (final E event : eventCache) {
+            size += this.estimateEventSize(event);
+        }
+        return size;
+    }
+    
+    /**
+     * @return The character data of the event if it can be merged with adjacent mergeable events, null if it can't be merged. Defaults to null. 
+     */
+    protected String getMergeableData(E event) {
+        return null;
+    }
+    
+    /**
+     * Create a single event from the combined data of several adjacent events for which
+     * {@link #getMergeableData(Object)} returned a non-null value.
+     * 
+     * @return The merged event, null if the events should be cached as they are. Defaults to null.
+     */
+    protected E createMergedEvent(String data) {
+        return null;
+    }
+    
+    /**
+     * Convert an event into the form that is stored in the cache, defaults to returning the event
+     */
+    protected E prepareCachedEvent(E event) {
+        return event;
+    }
+    
+    /**
+     * @return The estimated number of bytes retained by the event, used for cache statistics
+     */
+    protected long estimateEventSize(E event) {
+        final String data = this.getMergeableData(event);
+        if (data != null) {
+            //object header + String header + char[]
+            return 16 + 40 + 2 * (long) data.length();
+        }
+        
+        return 32;
+    }
+    
     //Ugly!!! Needed because XMLEventReader implements Iterator but does not parameterize it
     protected abstract R createEventReader(ListIterator<E> eventCache);
 }
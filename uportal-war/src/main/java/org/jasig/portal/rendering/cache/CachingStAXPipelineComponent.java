@@ -20,7 +20,9 @@ package org.jasig.portal.rendering.cache;
 
 import java.util.ListIterator;
 
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jasig.portal.rendering.StAXPipelineComponent;
@@ -33,9 +35,28 @@ import org.jasig.portal.xml.stream.XMLEventBufferReader;
  * @version $Revision$
  */
 public class CachingStAXPipelineComponent extends CachingPipelineComponent<XMLEventReader, XMLEvent> implements StAXPipelineComponent {
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
 
     @Override
     protected XMLEventReader createEventReader(ListIterator<XMLEvent> eventCache) {
         return new XMLEventBufferReader(eventCache);
     }
+
+    @Override
+    protected String getMergeableData(XMLEvent event) {
+        if (event.isCharacters()) {
+            final Characters characters = event.asCharacters();
+            //CDATA and ignorable whitespace need to retain their type so they are never merged
+            if (!characters.isCData() && !characters.isIgnorableWhiteSpace()) {
+                return characters.getData();
+            }
+        }
+        
+        return null;
+    }
+
+    @Override
+    protected XMLEvent createMergedEvent(String data) {
+        return EVENT_FACTORY.createCharacters(data);
+    }
 }
@@ -0,0 +1,106 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the size of the event buffers created by a {@link CachingPipelineComponent}. Sizes
+ * are estimates of the retained heap of the buffered events and are intended to be used for
+ * sizing the backing caches, not as an exact measurement.
+ */
+public class EventCacheStatistics {
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong sourceEventCount = new AtomicLong();
+    private final AtomicLong cachedEventCount = new AtomicLong();
+    private final AtomicLong estimatedSize = new AtomicLong();
+    private volatile long lastEntryEventCount;
+    private volatile long lastEntryEstimatedSize;
+    private final AtomicLong maxEntryEstimatedSize = new AtomicLong();
+    
+    void entryCached(long sourceEvents, long cachedEvents, long estimatedEntrySize) {
+        this.entryCount.incrementAndGet();
+        this.sourceEventCount.addAndGet(sourceEvents);
+        this.cachedEventCount.addAndGet(cachedEvents);
+        this.estimatedSize.addAndGet(estimatedEntrySize);
+        this.lastEntryEventCount = cachedEvents;
+        this.lastEntryEstimatedSize = estimatedEntrySize;
+        long max = this.maxEntryEstimatedSize.get();
+        while (estimatedEntrySize > max && !this.maxEntryEstimatedSize.compareAndSet(max, estimatedEntrySize)) {
+            max = this.maxEntryEstimatedSize.get();
+        }
+    }
+
+    /**
+     * @return Number of event buffers that have been created and cached
+     */
+    public long getEntryCount() {
+        return this.entryCount.get();
+    }
+
+    /**
+     * @return Number of events read from the wrapped component while creating event buffers
+     */
+    public long getSourceEventCount() {
+        return this.sourceEventCount.get();
+    }
+
+    /**
+     * @return Number of events stored in event buffers after adjacent events were merged
+     */
+    public long getCachedEventCount() {
+        return this.cachedEventCount.get();
+    }
+    
+    public long getMergedEventCount() {
+        return this.sourceEventCount.get() - this.cachedEventCount.get();
+    }
+
+    public double getAverageEventsPerEntry() {
+        final long entries = this.entryCount.get();
+        return entries == 0 ? 0 : (double) this.cachedEventCount.get() / entries;
+    }
+
+    public double getAverageEstimatedBytesPerEntry() {
+        final long entries = this.entryCount.get();
+        return entries == 0 ? 0 : (double) this.estimatedSize.get() / entries;
+    }
+
+    public long getLastEntryEventCount() {
+        return this.lastEntryEventCount;
+    }
+
+    public long getLastEntryEstimatedBytes() {
+        return this.lastEntryEstimatedSize;
+    }
+
+    public long getMaxEntryEstimatedBytes() {
+        return this.maxEntryEstimatedSize.get();
+    }
+    
+    public void reset() {
+        this.entryCount.set(0);
+        this.sourceEventCount.set(0);
+        this.cachedEventCount.set(0);
+        this.estimatedSize.set(0);
+        this.lastEntryEventCount = 0;
+        this.lastEntryEstimatedSize = 0;
+        this.maxEntryEstimatedSize.set(0);
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rest.layout;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.layout.node.IUserLayoutChannelDescription;
+import org.jasig.portal.layout.node.IUserLayoutFolderDescription;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.IPortletRenderer;
+import org.jasig.portal.security.xslt.XalanLayoutElementTitleHelper;
+import org.jasig.portal.url.IPortalUrlBuilder;
+import org.jasig.portal.url.IPortalUrlProvider;
+import org.jasig.portal.url.IPortletUrlBuilder;
+import org.jasig.portal.url.UrlType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the v1 layout JSON directly from the nodes of a user's {@link IUserLayoutManager} with a
+ * streaming generator. The document matches the one produced by the DLMMobileColumns structure
+ * and JsonLayout theme transforms for a layout without a focused portlet, without running the
+ * transforms or parsing their character events.
+ */
+@Service
+public class LayoutJsonSerializer {
+    public static final String HIDE_FROM_MOBILE_PARAMETER = "hideFromMobile";
+    public static final String BLOCK_IMPERSONATION_PARAMETER = "blockImpersonation";
+    public static final String MOBILE_ICON_URL_PARAMETER = "mobileIconUrl";
+    public static final String DEFAULT_ICON_PATH = "/media/skins/icons/mobile/default.png";
+
+    private static final String HEADER_FOLDER_TYPE = "header";
+    private static final String FOOTER_FOLDER_TYPE = "footer";
+    private static final String TAB_FOLDER_TYPE = "regular";
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private IPortalUrlProvider portalUrlProvider;
+    private IPortletWindowRegistry portletWindowRegistry;
+
+    @Autowired
+    public void setPortalUrlProvider(IPortalUrlProvider portalUrlProvider) {
+        this.portalUrlProvider = portalUrlProvider;
+    }
+
+    @Autowired
+    public void setPortletWindowRegistry(IPortletWindowRegistry portletWindowRegistry) {
+        this.portletWindowRegistry = portletWindowRegistry;
+    }
+
+    /**
+     * Write the layout JSON, the writer is flushed but not closed.
+     * 
+     * @param userName Value of the user field
+     * @param locale Locale of the user, used for the locale field and tab titles
+     * @param impersonating If portlets that block impersonation are left out of the tabs
+     */
+    public void writeLayout(HttpServletRequest request, IUserLayoutManager layoutManager, String userName,
+            Locale locale, boolean impersonating, Writer writer) throws IOException {
+
+        final String language = locale != null ? locale.toString().replace('_', '-') : "";
+
+        final List<String> headerFolderIds = new ArrayList<String>();
+        final List<IUserLayoutNodeDescription> tabs = new ArrayList<IUserLayoutNodeDescription>();
+        final List<String> footerFolderIds = new ArrayList<String>();
+        for (final Enumeration<String> childIds = layoutManager.getChildIds(layoutManager.getRootFolderId()); childIds.hasMoreElements();) {
+            final IUserLayoutNodeDescription node = layoutManager.getNode(childIds.nextElement());
+            if (!(node instanceof IUserLayoutFolderDescription)) {
+                continue;
+            }
+
+            final String folderType = ((IUserLayoutFolderDescription) node).getFolderType();
+            if (HEADER_FOLDER_TYPE.equals(folderType)) {
+                headerFolderIds.add(node.getId());
+            }
+            else if (TAB_FOLDER_TYPE.equals(folderType)) {
+                tabs.add(node);
+            }
+            else if (FOOTER_FOLDER_TYPE.equals(folderType)) {
+                footerFolderIds.add(node.getId());
+            }
+        }
+
+        final JsonGenerator generator = this.jsonFactory.createGenerator(writer);
+        generator.writeStartObject();
+        generator.writeStringField("user", userName);
+        generator.writeStringField("locale", language);
+        generator.writeObjectFieldStart("layout");
+
+        generator.writeObjectFieldStart("header");
+        generator.writeArrayFieldStart("portlets");
+        for (final String folderId : headerFolderIds) {
+            this.writePortlets(request, layoutManager, folderId, false, generator);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+
+        generator.writeArrayFieldStart("folders");
+        for (final IUserLayoutNodeDescription tab : tabs) {
+            final String tabId = tab.getId();
+            generator.writeStartObject();
+            generator.writeStringField("id", tabId);
+            generator.writeStringField("title", XalanLayoutElementTitleHelper.getTitle(tabId, language, tab.getName()));
+            generator.writeArrayFieldStart("portlets");
+            this.writePortlets(request, layoutManager, tabId, impersonating, generator);
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        generator.writeObjectFieldStart("footer");
+        generator.writeArrayFieldStart("portlets");
+        for (final String folderId : footerFolderIds) {
+            this.writePortlets(request, layoutManager, folderId, false, generator);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    /**
+     * Write every portlet in the folder and its sub-folders in document order
+     */
+    protected void writePortlets(HttpServletRequest request, IUserLayoutManager layoutManager, String folderId,
+            boolean impersonating, JsonGenerator generator) throws IOException {
+
+        for (final Enumeration<String> childIds = layoutManager.getChildIds(folderId); childIds.hasMoreElements();) {
+            final IUserLayoutNodeDescription node = layoutManager.getNode(childIds.nextElement());
+            if (node instanceof IUserLayoutFolderDescription) {
+                this.writePortlets(request, layoutManager, node.getId(), impersonating, generator);
+            }
+            else if (node instanceof IUserLayoutChannelDescription) {
+                final IUserLayoutChannelDescription channel = (IUserLayoutChannelDescription) node;
+                if ("true".equals(channel.getParameterValue(HIDE_FROM_MOBILE_PARAMETER))
+                        || (impersonating && "true".equals(channel.getParameterValue(BLOCK_IMPERSONATION_PARAMETER)))) {
+                    continue;
+                }
+
+                this.writePortlet(request, channel, generator);
+            }
+        }
+    }
+
+    protected void writePortlet(HttpServletRequest request, IUserLayoutChannelDescription channel, JsonGenerator generator)
+            throws IOException {
+
+        String iconUrl = channel.getParameterValue(MOBILE_ICON_URL_PARAMETER);
+        if (StringUtils.isEmpty(iconUrl)) {
+            iconUrl = request.getContextPath() + DEFAULT_ICON_PATH;
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("fname", StringUtils.defaultString(channel.getFunctionalName()));
+        generator.writeStringField("title", StringUtils.defaultString(channel.getTitle()));
+        generator.writeStringField("url", this.getPortletUrl(request, channel.getId()));
+        generator.writeStringField("description", StringUtils.defaultString(channel.getDescription()));
+        generator.writeStringField("iconUrl", iconUrl);
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return The URL to render the portlet detached
+     */
+    protected String getPortletUrl(HttpServletRequest request, String layoutNodeId) {
+        final IPortalUrlBuilder portalUrlBuilder = this.portalUrlProvider.getPortalUrlBuilderByLayoutNode(request, layoutNodeId, UrlType.RENDER);
+        final IPortletWindow portletWindow = this.portletWindowRegistry.getOrCreateDefaultPortletWindowByLayoutNodeId(request, layoutNodeId);
+        if (portletWindow != null) {
+            final IPortletUrlBuilder portletUrlBuilder = portalUrlBuilder.getPortletUrlBuilder(portletWindow.getPortletWindowId());
+            portletUrlBuilder.setWindowState(IPortletRenderer.DETACHED);
+        }
+        else {
+            this.logger.debug("No portlet window for layout node {}, returning the portal URL", layoutNodeId);
+        }
+        return portalUrlBuilder.getUrlString();
+    }
+}
@@ -19,18 +19,28 @@
 package org.jasig.portal.rest.layout;
 
 import java.io.IOException;
+import java.util.Locale;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.jasig.portal.events.IPortletExecutionEventFactory;
+import org.jasig.portal.json.rendering.JsonLayoutRenderingPipeline;
 import org.jasig.portal.layout.IStylesheetUserPreferencesService;
+import org.jasig.portal.layout.IUserLayoutManager;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.rendering.IPortalRenderingPipeline;
+import org.jasig.portal.security.IdentitySwapperManager;
+import org.jasig.portal.url.IUrlSyntaxProvider;
+import org.jasig.portal.user.IUserInstance;
+import org.jasig.portal.user.IUserInstanceManager;
+import org.jasig.portal.utils.web.PortalWebUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -49,6 +59,12 @@ public class LayoutJsonV1RenderingController {
 
     private IPortalRenderingPipeline portalRenderingPipeline;
     private IPortletWindowRegistry portletWindowRegistry;
+    private LayoutJsonSerializer layoutJsonSerializer;
+    private IUserInstanceManager userInstanceManager;
+    private IdentitySwapperManager identitySwapperManager;
+    private IPortletExecutionEventFactory portalEventFactory;
+    private IUrlSyntaxProvider urlSyntaxProvider;
+    private boolean nativeRendering = true;
 
     @Autowired
     private IStylesheetUserPreferencesService stylesheetUserPrefService;
@@ -64,6 +80,41 @@ public class LayoutJsonV1RenderingController {
         this.portletWindowRegistry = portletWindowRegistry;
     }
 
+    @Autowired
+    public void setLayoutJsonSerializer(LayoutJsonSerializer layoutJsonSerializer) {
+        this.layoutJsonSerializer = layoutJsonSerializer;
+    }
+
+    @Autowired
+    public void setUserInstanceManager(IUserInstanceManager userInstanceManager) {
+        this.userInstanceManager = userInstanceManager;
+    }
+
+    @Autowired
+    public void setIdentitySwapperManager(IdentitySwapperManager identitySwapperManager) {
+        this.identitySwapperManager = identitySwapperManager;
+    }
+
+    @Autowired
+    public void setPortalEventFactory(IPortletExecutionEventFactory portalEventFactory) {
+        this.portalEventFactory = portalEventFactory;
+    }
+
+    @Autowired
+    public void setUrlSyntaxProvider(IUrlSyntaxProvider urlSyntaxProvider) {
+        this.urlSyntaxProvider = urlSyntaxProvider;
+    }
+
+    /**
+     * If true the layout JSON is written directly from the user's layout by {@link LayoutJsonSerializer}
+     * and responses carry an ETag, if false it is rendered by the json rendering pipeline.
+     * Defaults to true.
+     */
+    @Value("${org.jasig.portal.rest.layout.LayoutJsonV1RenderingController.nativeRendering:true}")
+    public void setNativeRendering(boolean nativeRendering) {
+        this.nativeRendering = nativeRendering;
+    }
+
     @RequestMapping(value=URL, method = RequestMethod.GET)
     public void v1RenderRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -72,12 +123,49 @@ public class LayoutJsonV1RenderingController {
 
     private void internalRenderRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        if (this.nativeRendering) {
+            this.serializeLayout(request, response);
+            return;
+        }
+        
         setStructureStylesheetName(request);
         setThemeStylesheetName(request);
         portletWindowRegistry.disablePersistentWindowStates(request);
         portalRenderingPipeline.renderState(request, response);
     }
 
+    private void serializeLayout(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final long startTime = System.nanoTime();
+        
+        final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
+        final IUserLayoutManager layoutManager = userInstance.getPreferencesManager().getUserLayoutManager();
+        final String userName = userInstance.getPerson().getUserName();
+        final Locale[] locales = userInstance.getLocaleManager().getLocales();
+        final Locale locale = locales != null && locales.length > 0 ? locales[0] : null;
+        final boolean impersonating = this.identitySwapperManager.isImpersonating(request);
+        
+        //Require revalidation, the ETag lets unchanged layouts be answered with a 304
+        response.setHeader("pragma", "no-cache");
+        response.setHeader("Cache-Control", "no-cache, max-age=0, must-revalidate");
+        response.setDateHeader("Expires", 0);
+        
+        //The layout cache key changes every time the layout is modified
+        final String etag = PortalWebUtils.buildETag(layoutManager.getCacheKey(), userName, locale, impersonating, request.getContextPath());
+        response.setHeader("ETag", etag);
+        if (PortalWebUtils.isETagMatched(request, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        this.portletWindowRegistry.disablePersistentWindowStates(request);
+        response.setContentType("application/json; charset=" + JsonLayoutRenderingPipeline.CHARACTER_SET);
+        this.layoutJsonSerializer.writeLayout(request, layoutManager, userName, locale, impersonating, response.getWriter());
+        
+        final long executionTime = System.nanoTime() - startTime;
+        this.portalEventFactory.publishPortalRenderEvent(request, this, request.getPathInfo(), executionTime,
+                this.urlSyntaxProvider.getPortalRequestInfo(request));
+    }
+
     private void setStructureStylesheetName(final HttpServletRequest request) {
         stylesheetUserPrefService.setStructureStylesheetOverride(request, STRUCTURE_STYLESHEET_NAME);
     }
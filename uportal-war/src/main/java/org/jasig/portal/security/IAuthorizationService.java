@@ -18,6 +18,9 @@
  */
 package org.jasig.portal.security;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 
 import org.jasig.portal.AuthorizationException;
@@ -103,6 +106,31 @@ public interface IAuthorizationService
  */
     public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String channelPublishId)
     throws AuthorizationException;
+
+    /**
+     * Returns the portlets the principal has permission to browse, in the order of the
+     * collection.  Answers as {@link #canPrincipalBrowse(IAuthorizationPrincipal, IPortletDefinition)}
+     * would for each portlet but evaluates the principal's permissions once for all of them.
+     * @param principal principal
+     * @param portlets Portlets to check
+     * @return The portlets the principal has permission to browse
+     */
+    public List<IPortletDefinition> filterBrowsablePortlets(IAuthorizationPrincipal principal,
+            Collection<? extends IPortletDefinition> portlets);
+
+    /**
+     * Returns the portlets the principal has permission to subscribe to, in the order of the
+     * collection.  Answers as {@link #canPrincipalSubscribe(IAuthorizationPrincipal, String)}
+     * would for each portlet but evaluates the principal's permissions once for each lifecycle
+     * state rather than once for each portlet.
+     * @param principal principal
+     * @param portlets Portlets to check
+     * @return The portlets the principal has permission to subscribe to
+     * @exception AuthorizationException if the lifecycle state of a portlet is not recognized
+     */
+    public List<IPortletDefinition> filterSubscribablePortlets(IAuthorizationPrincipal principal,
+            Collection<? extends IPortletDefinition> portlets)
+    throws AuthorizationException;
 /**
  * Answers if the owner has given the principal permission to perform the activity on
  * the target.  Params <code>owner</code> and <code>activity</code> must be non-null.
@@ -179,6 +207,44 @@ public interface IAuthorizationService
  */
     public IPermission[] getPermissionsForOwner(String owner, String activity, String target)
     throws AuthorizationException;
+/**
+ * Returns the effective grants and denies the owner has given the <code>Principal</code>
+ * and the groups containing it for the activity.  The result reflects the permissions as
+ * of the call and is shared by callers asking for the same principal, owner and activity
+ * until permissions change.
+ *
+ * @return org.jasig.portal.security.IEffectivePermissions
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+    public IEffectivePermissions getEffectivePermissions (
+      IAuthorizationPrincipal principal,
+      String owner,
+      String activity)
+    throws AuthorizationException;
+/**
+ * Returns the targets the owner has given the principal permission to perform the activity on.
+ * Answers as <code>doesPrincipalHavePermission(principal, owner, activity, target)</code> would
+ * for each target but looks up the groups containing the principal and their permissions once
+ * for the whole collection.  Params <code>owner</code> and <code>activity</code> must be non-null.
+ *
+ * @return java.util.Set of the permitted targets
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ * @param targets java.util.Collection of target keys
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+    public Set<String> filterPermittedTargets (
+      IAuthorizationPrincipal principal,
+      String owner,
+      String activity,
+      Collection<String> targets)
+    throws AuthorizationException;
 /**
  * Returns the <code>IPermissions</code> owner has granted this <code>Principal</code> for
  * the specified activity and target.  Null parameters will be ignored, that is, all
@@ -0,0 +1,60 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security;
+
+import java.util.Set;
+
+/**
+ * The effective grants and denies an owner has given a principal for one activity, including
+ * those inherited from the groups containing the principal. Built once per principal, owner and
+ * activity so any number of targets can be checked without going back to the permission store or
+ * the groups system.
+ */
+public interface IEffectivePermissions {
+    
+    /**
+     * @return The principal the permissions are for
+     */
+    public IAuthorizationPrincipal getPrincipal();
+    
+    /**
+     * @return The owner of the permissions
+     */
+    public String getOwner();
+    
+    /**
+     * @return The activity of the permissions
+     */
+    public String getActivity();
+    
+    /**
+     * @return The targets of all active grants and denies of the principal and its containing groups
+     */
+    public Set<String> getTargets();
+    
+    /**
+     * Answers if there is a path from the principal up through its containing groups to a GRANT
+     * on the target, or on a group containing the target, that is not interrupted by a DENY.
+     * 
+     * @param target The target key
+     * @return true if an unblocked GRANT is found
+     * @throws org.jasig.portal.AuthorizationException if the groups containing the target could not be retrieved
+     */
+    public boolean hasUnblockedGrant(String target) throws org.jasig.portal.AuthorizationException;
+}
@@ -18,17 +18,13 @@
  */
 package org.jasig.portal.security.provider;
 
-import java.util.Date;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.Element;
-
 import org.jasig.portal.AuthorizationException;
-import org.jasig.portal.groups.GroupsException;
-import org.jasig.portal.groups.IGroupMember;
 import org.jasig.portal.permission.IPermissionActivity;
 import org.jasig.portal.permission.IPermissionOwner;
 import org.jasig.portal.permission.dao.IPermissionOwnerDao;
@@ -36,12 +32,12 @@ import org.jasig.portal.permission.target.IPermissionTarget;
 import org.jasig.portal.permission.target.IPermissionTargetProviderRegistry;
 import org.jasig.portal.security.IAuthorizationPrincipal;
 import org.jasig.portal.security.IAuthorizationService;
+import org.jasig.portal.security.IBulkPermissionPolicy;
+import org.jasig.portal.security.IEffectivePermissions;
 import org.jasig.portal.security.IPermission;
-import org.jasig.portal.security.IPermissionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
 /**
@@ -72,7 +68,7 @@ import org.springframework.stereotype.Service;
  *  Results in GRANT because there is an unblocked path to a GRANT.
  */
 @Service("anyUnblockedGrantPermissionPolicy")
-public class AnyUnblockedGrantPermissionPolicy implements IPermissionPolicy {
+public class AnyUnblockedGrantPermissionPolicy implements IBulkPermissionPolicy {
 
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -82,10 +78,6 @@ public class AnyUnblockedGrantPermissionPolicy implements IPermissionPolicy {
     @Autowired
     private IPermissionTargetProviderRegistry targetProviderRegistry;
 
-    @Autowired
-    @Qualifier(value="org.jasig.portal.security.provider.AnyUnblockedGrantPermissionPolicy.HAS_UNBLOCKED_GRANT")
-    private Cache hasUnblockedGrantCache;
-
     public boolean doesPrincipalHavePermission(
             IAuthorizationService service,
             IAuthorizationPrincipal principal,
@@ -108,39 +100,20 @@ public class AnyUnblockedGrantPermissionPolicy implements IPermissionPolicy {
         }
 
         // Is this user a super-user?  (Should this logic be moved to AuthorizationImpl?)
-        final IPermissionActivity allPermissionsActivity = permissionOwnerDao.getPermissionActivity(IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY);
-        if (!activity.equals(allPermissionsActivity)) {  // NOTE:  Must check to avoid infinite recursion
-            final IPermissionOwner allPermissionsOwner = permissionOwnerDao.getPermissionOwner(IPermission.PORTAL_SYSTEM);
-            final IPermissionTarget allPermissionsTarget = targetProviderRegistry.getTargetProvider(allPermissionsActivity.getTargetProviderKey()).getTarget(IPermission.ALL_TARGET);
-            if (doesPrincipalHavePermission(service, principal, allPermissionsOwner, allPermissionsActivity, allPermissionsTarget)) {
-                // Stop checking;  just return true
-                return true;
-            }
+        if (isSuperUser(service, principal, activity)) {
+            // Stop checking;  just return true
+            return true;
         }
 
         /*
          * uPortal uses a few "special" targets that signal permission to
          * perform the specified activity over an entire class of targets;
          * see if one of those applies in this case.
-         */
-        IPermissionTarget collectiveTarget = null;  // The "collective noun" representing a class of thing
-        switch (target.getTargetType()) {
-            case PORTLET:
-                collectiveTarget = targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_PORTLETS_TARGET);
-                break;
-            case CATEGORY:
-                collectiveTarget = targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_CATEGORIES_TARGET);
-                break;
-            case GROUP:
-                collectiveTarget = targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_GROUPS_TARGET);
-                break;
-            default:
-            // This sort of handling does not apply;  just pass through
-        }
-        /*
+         *
          * NOTE:  Cannot generalize to a collective target if we are already on
          * the collective target, else StackOverflowError.
          */
+        final IPermissionTarget collectiveTarget = getCollectiveTarget(activity, target);
         if (collectiveTarget != null && !collectiveTarget.equals(target)) {
             if (doesPrincipalHavePermission(service, principal, owner, activity, collectiveTarget)) {
                 /*
@@ -154,9 +127,8 @@ public class AnyUnblockedGrantPermissionPolicy implements IPermissionPolicy {
         // Search ourselves and all ancestors for an unblocked GRANT.
         boolean rslt;
         try {
-            // Track groups we've already explored to avoid infinite loop
-            final Set<IGroupMember> seenGroups = new HashSet<IGroupMember>(100);
-            rslt = hasUnblockedPathToGrantWithCache(service, principal, owner, activity, target, seenGroups);
+            final IEffectivePermissions effectivePermissions = service.getEffectivePermissions(principal, owner.getFname(), activity.getFname());
+            rslt = effectivePermissions.hasUnblockedGrant(target.getKey());
         } catch (Exception e) {
             log.error("Error searching for unblocked path to grant for principal [" + principal + "]", e);
             // fail closed
@@ -181,249 +153,116 @@ public class AnyUnblockedGrantPermissionPolicy implements IPermissionPolicy {
 
     }
 
-    private boolean hasUnblockedPathToGrantWithCache(IAuthorizationService service,
-            IAuthorizationPrincipal principal, IPermissionOwner owner,
-            IPermissionActivity activity, IPermissionTarget target,
-            Set<IGroupMember> seenGroups) throws GroupsException {
-
-        final CacheTuple cacheTuple = new CacheTuple(
-                principal.getPrincipalString(),
-                owner.getFname(),
-                activity.getFname(),
-                target.getKey());
-        Element element = hasUnblockedGrantCache.get(cacheTuple);
-        if (element == null) {
-            boolean answer = hasUnblockedPathToGrant(service, principal, owner, activity, target, seenGroups);
-            element = new Element(cacheTuple, answer);
-            hasUnblockedGrantCache.put(element);
-        }
-        return (Boolean) element.getObjectValue();
-
-    }
-
     /**
-     * This method performs the actual, low-level checking of a single activity
-     * and target.  Is IS responsible for performing the same check for
-     * affiliated groups in the Groups hierarchy, but it is NOT responsible for
-     * understanding the nuances of relationships some activities and/or targets
-     * have with one another (e.g. MANAGE_APPROVED, ALL_PORTLETS, etc.).  It
-     * performs the following steps, in order:
-     *
-     * <ol>
-     *   <li>Find out if the specified principal is <em>specifically</em> granted or denied;  if an answer is found in this step, return it</li>
-     *   <li>Find out what groups this principal belongs to;  convert each one to a principal and seek an answer by invoking ourselves recursively;  if an answer is found in this step, return it</li>
-     *   <li>Return false (no explicit GRANT means no permission)</li>
-     * </ol>
+     * Answers each target as {@link #doesPrincipalHavePermission} would, checking the super-user
+     * permission once for all of the targets, each collective target once for all of the targets
+     * it covers and every target against a single {@link IEffectivePermissions} of the principal.
      */
-    private boolean hasUnblockedPathToGrant(IAuthorizationService service,
-            IAuthorizationPrincipal principal, IPermissionOwner owner,
-            IPermissionActivity activity, IPermissionTarget target,
-            Set<IGroupMember> seenGroups) throws GroupsException {
+    @Override
+    public Set<IPermissionTarget> getPermittedTargets(
+            IAuthorizationService service,
+            IAuthorizationPrincipal principal,
+            IPermissionOwner owner,
+            IPermissionActivity activity,
+            Collection<IPermissionTarget> targets) throws AuthorizationException {
 
-        if (log.isTraceEnabled()) {
-            log.trace("Searching for unblocked path to GRANT for principal '{}' to "
-                    + "'{}' on target '{}' having already checked:  {}",
-                    principal.getKey(), activity.getFname(), target.getKey(), seenGroups);
+        final Set<IPermissionTarget> rslt = new HashSet<IPermissionTarget>();
+
+        if (service == null || principal == null || owner == null || activity == null) {
+            log.error("Null argument to AnyUnblockedGrantPermissionPolicy getPermittedTargets() method " +
+                    "should not be possible.  This is indicative of a potentially serious bug in the permissions " +
+                    "and authorization infrastructure;  service='{}', principal='{}', owner='{}', activity='{}'",
+                    service, principal, owner, activity);
+            // fail closed
+            return rslt;
         }
 
-        /*
-         * Step #1:  Specific GRANT/DENY attached to this principal
-         */
-        final IPermission[] permissions = service.getPermissionsForPrincipal(principal,
-                        owner.getFname(), activity.getFname(), target.getKey());
+        if (isSuperUser(service, principal, activity)) {
+            rslt.addAll(targets);
+            return rslt;
+        }
 
-        final Set<IPermission> activePermissions = removeInactivePermissions(permissions);
-        final boolean denyExists = containsType(activePermissions, IPermission.PERMISSION_TYPE_DENY);
-        if (denyExists) {
-            // We need go no further;  DENY trumps both GRANT & inherited permissions
-            return false;
+        final IEffectivePermissions effectivePermissions;
+        try {
+            effectivePermissions = service.getEffectivePermissions(principal, owner.getFname(), activity.getFname());
+        } catch (Exception e) {
+            log.error("Error searching for unblocked path to grant for principal [" + principal + "]", e);
+            // fail closed
+            return rslt;
         }
-        final boolean grantExists = containsType(activePermissions, IPermission.PERMISSION_TYPE_GRANT);
-        if (grantExists) {
-            // We need go no further;  explicit GRANT at this level of the hierarchy
-            if (log.isTraceEnabled()) {
-                log.trace("Found unblocked path to this permission set including a GRANT:  {}",
-                        activePermissions);
+
+        // Collective target to whether it is granted, each is searched at most once for the batch
+        final Map<IPermissionTarget, Boolean> collectiveGrants = new HashMap<IPermissionTarget, Boolean>();
+        for (final IPermissionTarget target : targets) {
+            final IPermissionTarget collectiveTarget = getCollectiveTarget(activity, target);
+            if (collectiveTarget != null) {
+                Boolean collectiveGranted = collectiveGrants.get(collectiveTarget);
+                if (collectiveGranted == null) {
+                    collectiveGranted = hasUnblockedGrant(effectivePermissions, principal, collectiveTarget);
+                    collectiveGrants.put(collectiveTarget, collectiveGranted);
+                }
+                if (collectiveGranted) {
+                    rslt.add(target);
+                    continue;
+                }
             }
-            return true;
-        }
 
-        /*
-         * Step #2:  Seek an answer from affiliated groups
-         */
-        IGroupMember principalAsGroupMember = service.getGroupMember(principal);
-        if (seenGroups.contains(principalAsGroupMember)) {
-            if (log.isTraceEnabled()) {
-                log.trace("Declining to re-examine principal '{}' for permission to '{}' "
-                        + "on '{}' because this group is among already checked groups:  {}",
-                        principal.getKey(), activity.getFname(), target.getKey(), seenGroups);
+            if (hasUnblockedGrant(effectivePermissions, principal, target)) {
+                rslt.add(target);
             }
-            return false;
         }
-        seenGroups.add(principalAsGroupMember);
-        @SuppressWarnings("unchecked")
-        Iterator<IGroupMember> immediatelyContainingGroups = principalAsGroupMember.getContainingGroups();
-        while (immediatelyContainingGroups.hasNext()) {
-            IGroupMember parentGroup = immediatelyContainingGroups.next();
-            try {
-                if (parentGroup != null) {
-                    IAuthorizationPrincipal parentPrincipal = service.newPrincipal( parentGroup );
-                    boolean parentHasUnblockedPathToGrant = hasUnblockedPathToGrantWithCache(service, parentPrincipal, owner, activity, target, seenGroups);
-                    if (parentHasUnblockedPathToGrant) {
-                        return true;
-                    }
-                    // Parent didn't have a path to grant, fall through and try another parent (if any)
-                }
-            } catch (Exception e) {
-                // problem evaluating this path, but let's not let it stop
-                // us from exploring other paths.  Though a portion of the
-                // group structure is broken, permission may be granted by
-                // an unbroken portion
-                log.error("Error evaluating permissions of parent group [" + parentGroup + "]", e);
-            }
 
+        if (log.isTraceEnabled()) {
+            log.trace("Principal '{}' is granted permission to perform activity '{}' under permission "
+                    + "owning system '{}' on {} of {} targets because this principal has an unblocked "
+                    + "path to a GRANT.", principal, activity.getFname(), owner.getFname(), rslt.size(), targets.size());
         }
 
-        /*
-         * Step #3:  No explicit GRANT means no permission
-         */
-        return false;
+        return rslt;
 
     }
 
     /**
-     * Returns a Set containing those IPermission instances where the present
-     * date is neither after the permission expiration if present nor before
-     * the permission start date if present.  Only permissions objects that have
-     * been filtered by this method should be checked.
-     *
-     * @return Potentially empty non-null Set of active permissions.
+     * Answers if the principal has been granted all permissions, false when checking the
+     * all permissions activity itself.
      */
-    private Set<IPermission> removeInactivePermissions(final IPermission[] perms) {
-        Date now = new Date();
-
-        Set<IPermission> rslt = new HashSet<IPermission>(1);
-
-        for (int i = 0; i < perms.length; i++) {
-            IPermission p = perms[i];
-
-            if (
-                (p.getEffective() == null || ! p.getEffective().after(now))
-                &&
-                (p.getExpires() == null || p.getExpires().after(now))
-             ) {
-                rslt.add(p);
-            }
-
+    private boolean isSuperUser(IAuthorizationService service, IAuthorizationPrincipal principal,
+            IPermissionActivity activity) throws AuthorizationException {
+        final IPermissionActivity allPermissionsActivity = permissionOwnerDao.getPermissionActivity(IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY);
+        if (activity.equals(allPermissionsActivity)) {  // NOTE:  Must check to avoid infinite recursion
+            return false;
         }
-
-        return rslt;
+        final IPermissionOwner allPermissionsOwner = permissionOwnerDao.getPermissionOwner(IPermission.PORTAL_SYSTEM);
+        final IPermissionTarget allPermissionsTarget = targetProviderRegistry.getTargetProvider(allPermissionsActivity.getTargetProviderKey()).getTarget(IPermission.ALL_TARGET);
+        return doesPrincipalHavePermission(service, principal, allPermissionsOwner, allPermissionsActivity, allPermissionsTarget);
     }
 
     /**
-     * Returns true if a set of IPermission instances contains a permission of
-     * the specified type, otherwise false.  Permissions passed to this method
-     * <em>must</em> already be filtered of inactive (expired) instances.
-     *
-     * @return True if the set contains a permission of the sought type, false otherwise
-     * @throws IllegalArgumentException if input set or type is null.
+     * @return The "collective noun" target representing the class of the target, null if the
+     * target has none
      */
-    private boolean containsType(final Set<IPermission> permissions, final String soughtType) {
-
-        // Assertions
-        if (permissions == null) {
-            throw new IllegalArgumentException("Cannot check null set for contents.");
-        }
-        if (soughtType == null) {
-            throw new IllegalArgumentException("Cannot search for type null.");
-        }
-
-        boolean rslt = false;  // default
-
-        for (IPermission p : permissions) {
-            if (soughtType.equals(p.getType())) {
-                rslt = true;
-            }
+    private IPermissionTarget getCollectiveTarget(IPermissionActivity activity, IPermissionTarget target) {
+        switch (target.getTargetType()) {
+            case PORTLET:
+                return targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_PORTLETS_TARGET);
+            case CATEGORY:
+                return targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_CATEGORIES_TARGET);
+            case GROUP:
+                return targetProviderRegistry.getTargetProvider(activity.getTargetProviderKey()).getTarget(IPermission.ALL_GROUPS_TARGET);
+            default:
+                // This sort of handling does not apply;  just pass through
+                return null;
         }
-
-        return rslt;
-
     }
 
-    /*
-     * Nested Types
-     */
-
-    private static final class CacheTuple {
-        private final String principalName;
-        private final String owner;
-        private final String activity;
-        private final String target;
-        public CacheTuple(String principalName, String owner, String activity, String target) {
-            this.principalName = principalName;
-            this.owner = owner;
-            this.activity = activity;
-            this.target = target;
-        }
-        @SuppressWarnings("unused")
-        public String getPrincipalName() {
-            return principalName;
-        }
-        @SuppressWarnings("unused")
-        public String getOwner() {
-            return owner;
-        }
-        @SuppressWarnings("unused")
-        public String getActivity() {
-            return activity;
-        }
-        @SuppressWarnings("unused")
-        public String getTarget() {
-            return target;
-        }
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result
-                    + ((activity == null) ? 0 : activity.hashCode());
-            result = prime * result + ((owner == null) ? 0 : owner.hashCode());
-            result = prime * result
-                    + ((principalName == null) ? 0 : principalName.hashCode());
-            result = prime * result
-                    + ((target == null) ? 0 : target.hashCode());
-            return result;
-        }
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            CacheTuple other = (CacheTuple) obj;
-            if (activity == null) {
-                if (other.activity != null)
-                    return false;
-            } else if (!activity.equals(other.activity))
-                return false;
-            if (owner == null) {
-                if (other.owner != null)
-                    return false;
-            } else if (!owner.equals(other.owner))
-                return false;
-            if (principalName == null) {
-                if (other.principalName != null)
-                    return false;
-            } else if (!principalName.equals(other.principalName))
-                return false;
-            if (target == null) {
-                if (other.target != null)
-                    return false;
-            } else if (!target.equals(other.target))
-                return false;
-            return true;
+    private boolean hasUnblockedGrant(IEffectivePermissions effectivePermissions, IAuthorizationPrincipal principal,
+            IPermissionTarget target) {
+        try {
+            return effectivePermissions.hasUnblockedGrant(target.getKey());
+        } catch (Exception e) {
+            log.error("Error searching for unblocked path to grant for principal [" + principal + "]", e);
+            // fail closed
+            return false;
         }
     }
 
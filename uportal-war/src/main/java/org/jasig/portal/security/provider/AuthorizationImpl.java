@@ -21,11 +21,19 @@ package org.jasig.portal.security.provider;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
@@ -51,6 +59,8 @@ import org.jasig.portal.portlet.om.PortletLifecycleState;
 import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
 import org.jasig.portal.security.IAuthorizationPrincipal;
 import org.jasig.portal.security.IAuthorizationService;
+import org.jasig.portal.security.IBulkPermissionPolicy;
+import org.jasig.portal.security.IEffectivePermissions;
 import org.jasig.portal.security.IPermission;
 import org.jasig.portal.security.IPermissionManager;
 import org.jasig.portal.security.IPermissionPolicy;
@@ -72,6 +82,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
 import org.springframework.stereotype.Service;
 
 /**
@@ -80,7 +91,7 @@ import org.springframework.stereotype.Service;
  * @author Scott Battaglia
  */
 @Service("authorizationService")
-public class AuthorizationImpl implements IAuthorizationService {
+public class AuthorizationImpl implements IAuthorizationService, ApplicationListener<PermissionsRefreshedEvent> {
 
     /** Instance of log in order to log events. */
     protected final Logger log = LoggerFactory.getLogger(getClass());
@@ -109,6 +120,15 @@ public class AuthorizationImpl implements IAuthorizationService {
     /** The cache to hold permission resolution. */
     private Ehcache doesPrincipalHavePermissionCache;
 
+    /** The cache to hold the effective permissions of principals. */
+    private Ehcache effectivePermissionsCache;
+
+    /** The entity cache holding the permission sets of principals. */
+    private Ehcache permissionSetCache;
+
+    /** Incremented whenever permissions are changed, effective permissions built from an older version are stale. */
+    private final AtomicLong permissionsVersion = new AtomicLong();
+
     /** The class representing the permission set type. */
     private static final Class<IPermissionSet> PERMISSION_SET_TYPE = IPermissionSet.class;
 
@@ -154,6 +174,14 @@ public class AuthorizationImpl implements IAuthorizationService {
         this.doesPrincipalHavePermissionCache = doesPrincipalHavePermissionCache;
     }
     @Autowired
+    public void setEffectivePermissionsCache(@Qualifier("org.jasig.portal.security.provider.AuthorizationImpl.EFFECTIVE_PERMISSIONS") Ehcache effectivePermissionsCache) {
+        this.effectivePermissionsCache = effectivePermissionsCache;
+    }
+    @Autowired
+    public void setPermissionSetCache(@Qualifier("org.jasig.portal.security.IPermissionSet") Ehcache permissionSetCache) {
+        this.permissionSetCache = permissionSetCache;
+    }
+    @Autowired
     public void setPortletDefinitionRegistry(IPortletDefinitionRegistry portletDefinitionRegistry) {
         this.portletDefinitionRegistry = portletDefinitionRegistry;
     }
@@ -180,6 +208,7 @@ throws AuthorizationException
         getPermissionStore().add(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        permissionsChanged();
     }
 }
 
@@ -438,38 +467,105 @@ public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String p
     }
 
     String target = PermissionHelper.permissionTargetIdForPortletDefinition(portlet);
+    String permission = getSubscribeActivity(portlet.getLifecycleState(), portletDefinitionId);
 
-    PortletLifecycleState state = portlet.getLifecycleState();
-    
-    /*
-     * Each channel lifecycle state now has its own subscribe permission.  The
-     * following logic checks the appropriate permission for the lifecycle.
-     */
-    String permission;
+    // Test the appropriate permission.  For subscribe activity permission, you could also have browse permission.
+    boolean allowed = doesPrincipalHavePermission(principal, owner, permission, target);
+    if (!allowed && permission == IPermission.PORTLET_SUBSCRIBER_ACTIVITY) {
+        return canPrincipalBrowse(principal, portlet);
+    }
+    return allowed;
+
+}
+
+/**
+ * Each channel lifecycle state has its own subscribe permission.
+ *
+ * @return The subscribe activity for portlets in the lifecycle state
+ * @exception AuthorizationException if the lifecycle state is not recognized
+ */
+private String getSubscribeActivity(PortletLifecycleState state, String portletDefinitionId)
+{
     if (state.equals(PortletLifecycleState.PUBLISHED)
             || state.equals(PortletLifecycleState.MAINTENANCE)) {
         // NB:  There is no separate SUBSCRIBE permission for MAINTENANCE
         // mode;  everyone simply sees the 'out of service' message
-        permission = IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.APPROVED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.CREATED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.EXPIRED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
+        return IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
     } else {
-			throw new AuthorizationException(
-					"Unrecognized lifecycle state for channel "
-							+ portletDefinitionId);
+        throw new AuthorizationException(
+                "Unrecognized lifecycle state for channel "
+                        + portletDefinitionId);
     }
+}
 
-    // Test the appropriate permission.  For subscribe activity permission, you could also have browse permission.
-    boolean allowed = doesPrincipalHavePermission(principal, owner, permission, target);
-    if (!allowed && permission == IPermission.PORTLET_SUBSCRIBER_ACTIVITY) {
-        return canPrincipalBrowse(principal, portlet);
+@Override
+public List<IPortletDefinition> filterBrowsablePortlets(IAuthorizationPrincipal principal,
+        Collection<? extends IPortletDefinition> portlets) {
+    final Set<String> targets = new HashSet<String>();
+    for (final IPortletDefinition portlet : portlets) {
+        targets.add(PermissionHelper.permissionTargetIdForPortletDefinition(portlet));
+    }
+
+    final Set<String> permitted = filterPermittedTargets(principal, IPermission.PORTAL_SUBSCRIBE,
+            IPermission.PORTLET_BROWSE_ACTIVITY, targets);
+    return getPermittedPortlets(portlets, permitted);
+}
+
+@Override
+public List<IPortletDefinition> filterSubscribablePortlets(IAuthorizationPrincipal principal,
+        Collection<? extends IPortletDefinition> portlets) {
+    final String owner = IPermission.PORTAL_SUBSCRIBE;
+
+    // Subscribe activity to the targets of the portlets it applies to
+    final Map<String, Set<String>> activityTargets = new HashMap<String, Set<String>>();
+    for (final IPortletDefinition portlet : portlets) {
+        final String activity = getSubscribeActivity(portlet.getLifecycleState(),
+                portlet.getPortletDefinitionId().getStringId());
+        Set<String> targets = activityTargets.get(activity);
+        if (targets == null) {
+            targets = new HashSet<String>();
+            activityTargets.put(activity, targets);
+        }
+        targets.add(PermissionHelper.permissionTargetIdForPortletDefinition(portlet));
     }
-    return allowed;
 
+    final Set<String> permitted = new HashSet<String>();
+    for (final Map.Entry<String, Set<String>> activityTargetsEntry : activityTargets.entrySet()) {
+        permitted.addAll(filterPermittedTargets(principal, owner, activityTargetsEntry.getKey(),
+                activityTargetsEntry.getValue()));
+    }
+
+    // For subscribe activity permission, you could also have browse permission.
+    final Set<String> subscribeTargets = activityTargets.get(IPermission.PORTLET_SUBSCRIBER_ACTIVITY);
+    if (subscribeTargets != null) {
+        subscribeTargets.removeAll(permitted);
+        if (!subscribeTargets.isEmpty()) {
+            permitted.addAll(filterPermittedTargets(principal, owner, IPermission.PORTLET_BROWSE_ACTIVITY,
+                    subscribeTargets));
+        }
+    }
+
+    return getPermittedPortlets(portlets, permitted);
+}
+
+/**
+ * @return The portlets whose permission target is permitted, in the order of the collection
+ */
+private List<IPortletDefinition> getPermittedPortlets(Collection<? extends IPortletDefinition> portlets,
+        Set<String> permitted) {
+    final List<IPortletDefinition> rslt = new ArrayList<IPortletDefinition>(permitted.size());
+    for (final IPortletDefinition portlet : portlets) {
+        if (permitted.contains(PermissionHelper.permissionTargetIdForPortletDefinition(portlet))) {
+            rslt.add(portlet);
+        }
+    }
+    return rslt;
 }
 
 /**
@@ -515,15 +611,7 @@ throws AuthorizationException
     public boolean doesPrincipalHavePermission(IAuthorizationPrincipal principal, String owner, String activity,
             String target, IPermissionPolicy policy) throws AuthorizationException {
         
-        final CacheKeyBuilder<Serializable, Serializable> cacheKeyBuilder = CacheKey.builder(AuthorizationImpl.class.getName());
-        final String username = principal.getKey();
-        if (IPerson.class.equals(principal.getType())) {
-            cacheKeyBuilder.addTag(UsernameTaggedCacheEntryPurger.createCacheEntryTag(username));
-        }
-        cacheKeyBuilder.addAll(policy.getClass(), username,
-                principal.getType(), owner, activity, target);
-        
-        final CacheKey key = cacheKeyBuilder.build();
+        final CacheKey key = createPermissionCacheKey(principal, owner, activity, target, policy);
 
         final Element element = this.doesPrincipalHavePermissionCache.get(key);
         if (element != null) {
@@ -539,12 +627,7 @@ throws AuthorizationException
          * the same to IAuthorizationService itself?
          */
         final IPermissionOwner ipOwner = permissionOwnerDao.getPermissionOwner(owner);
-        final IPermissionActivity ipActivity = permissionOwnerDao.getPermissionActivity(owner, activity);
-        if (ipActivity == null) {
-            // Means needed data is missing;  much clearer than NPE
-            String msg = "The following activity is not defined for owner '" + owner + "':  " + activity;
-            throw new RuntimeException(msg);
-        }
+        final IPermissionActivity ipActivity = getPermissionActivity(owner, activity);
         final IPermissionTargetProvider targetProvider = targetProviderRegistry.getTargetProvider(ipActivity.getTargetProviderKey());
         final IPermissionTarget ipTarget = targetProvider.getTarget(target);
 
@@ -559,6 +642,122 @@ throws AuthorizationException
         return doesPrincipalHavePermission;
     }
 
+    @Override
+    public Set<String> filterPermittedTargets(IAuthorizationPrincipal principal, String owner, String activity,
+            Collection<String> targets) throws AuthorizationException {
+        return filterPermittedTargets(principal, owner, activity, targets, getDefaultPermissionPolicy());
+    }
+
+    /**
+     * Answers each target as {@link #doesPrincipalHavePermission(IAuthorizationPrincipal, String, String, String, IPermissionPolicy)}
+     * would, sharing the cached answers with it.  The targets without a cached answer are handed
+     * to the policy together if it is an {@link IBulkPermissionPolicy}.
+     */
+    private Set<String> filterPermittedTargets(IAuthorizationPrincipal principal, String owner, String activity,
+            Collection<String> targets, IPermissionPolicy policy) throws AuthorizationException {
+
+        final Set<String> rslt = new HashSet<String>();
+
+        // Target to the key its answer will be cached under, for the targets not answered yet
+        final Map<String, CacheKey> uncachedTargets = new LinkedHashMap<String, CacheKey>();
+        final Set<String> checkedTargets = new HashSet<String>();
+        for (final String target : targets) {
+            if (!checkedTargets.add(target)) {
+                continue;
+            }
+
+            final CacheKey key = createPermissionCacheKey(principal, owner, activity, target, policy);
+            final Element element = this.doesPrincipalHavePermissionCache.get(key);
+            if (element == null) {
+                uncachedTargets.put(target, key);
+            }
+            else if ((Boolean) element.getValue()) {
+                rslt.add(target);
+            }
+        }
+
+        if (uncachedTargets.isEmpty()) {
+            return rslt;
+        }
+
+        final IPermissionOwner ipOwner = permissionOwnerDao.getPermissionOwner(owner);
+        final IPermissionActivity ipActivity = getPermissionActivity(owner, activity);
+        final IPermissionTargetProvider targetProvider = targetProviderRegistry.getTargetProvider(ipActivity.getTargetProviderKey());
+
+        final Map<String, IPermissionTarget> ipTargets = new LinkedHashMap<String, IPermissionTarget>();
+        for (final String target : uncachedTargets.keySet()) {
+            ipTargets.put(target, targetProvider.getTarget(target));
+        }
+
+        Set<IPermissionTarget> permittedTargets = null;
+        if (policy instanceof IBulkPermissionPolicy) {
+            final List<IPermissionTarget> knownTargets = new ArrayList<IPermissionTarget>(ipTargets.size());
+            for (final IPermissionTarget ipTarget : ipTargets.values()) {
+                if (ipTarget != null) {
+                    knownTargets.add(ipTarget);
+                }
+            }
+            permittedTargets = ((IBulkPermissionPolicy) policy).getPermittedTargets(this, principal, ipOwner,
+                    ipActivity, knownTargets);
+        }
+
+        for (final Map.Entry<String, IPermissionTarget> ipTargetEntry : ipTargets.entrySet()) {
+            final String target = ipTargetEntry.getKey();
+            final IPermissionTarget ipTarget = ipTargetEntry.getValue();
+
+            final boolean doesPrincipalHavePermission;
+            if (permittedTargets == null) {
+                doesPrincipalHavePermission = policy.doesPrincipalHavePermission(this, principal, ipOwner,
+                        ipActivity, ipTarget);
+            }
+            else if (ipTarget == null) {
+                // Unknown to the target provider, nothing can be permitted on it
+                log.debug("No permission target found for '{}', activity '{}' of owner '{}'", target, activity, owner);
+                continue;
+            }
+            else {
+                doesPrincipalHavePermission = permittedTargets.contains(ipTarget);
+            }
+
+            this.doesPrincipalHavePermissionCache.put(new Element(uncachedTargets.get(target), doesPrincipalHavePermission));
+            if (doesPrincipalHavePermission) {
+                rslt.add(target);
+            }
+        }
+
+        return rslt;
+    }
+
+    /**
+     * @return The key the answer of the policy for the principal, owner, activity and target is cached under
+     */
+    private CacheKey createPermissionCacheKey(IAuthorizationPrincipal principal, String owner, String activity,
+            String target, IPermissionPolicy policy) {
+        final CacheKeyBuilder<Serializable, Serializable> cacheKeyBuilder = CacheKey.builder(AuthorizationImpl.class.getName());
+        final String username = principal.getKey();
+        if (IPerson.class.equals(principal.getType())) {
+            cacheKeyBuilder.addTag(UsernameTaggedCacheEntryPurger.createCacheEntryTag(username));
+        }
+        cacheKeyBuilder.addAll(policy.getClass(), username,
+                principal.getType(), owner, activity, target);
+
+        return cacheKeyBuilder.build();
+    }
+
+    /**
+     * @return The activity of the owner
+     * @throws RuntimeException if the owner does not define the activity
+     */
+    private IPermissionActivity getPermissionActivity(String owner, String activity) {
+        final IPermissionActivity ipActivity = permissionOwnerDao.getPermissionActivity(owner, activity);
+        if (ipActivity == null) {
+            // Means needed data is missing;  much clearer than NPE
+            String msg = "The following activity is not defined for owner '" + owner + "':  " + activity;
+            throw new RuntimeException(msg);
+        }
+        return ipActivity;
+    }
+
 /**
  * Returns the <code>IPermissions</code> owner has granted this <code>Principal</code> for
  * the specified activity and target.  Null parameters will be ignored, that is, all
@@ -656,7 +855,7 @@ private IGroupMember getGroupMemberForPrincipal(IAuthorizationPrincipal principa
 throws GroupsException
 {
 
-    IGroupMember gm = GroupService.getGroupMember(principal.getKey(), principal.getType());
+    IGroupMember gm = getGroupMember(principal.getKey(), principal.getType());
 
     if (log.isDebugEnabled()) {
         log.debug("AuthorizationImpl.getGroupMemberForPrincipal(): principal [" + principal + "] " +
@@ -666,6 +865,29 @@ throws GroupsException
     return gm;
 }
 
+/**
+ * Hook into the Groups system for the <code>IGroupMember</code> of an entity or group.
+ * @return org.jasig.portal.groups.IGroupMember
+ * @param key java.lang.String
+ * @param type java.lang.Class
+ */
+protected IGroupMember getGroupMember(String key, Class type)
+throws GroupsException
+{
+    return GroupService.getGroupMember(key, type);
+}
+
+/**
+ * Hook into the Groups system for the group with the key.
+ * @return org.jasig.portal.groups.IEntityGroup, null if there is no such group
+ * @param key java.lang.String
+ */
+protected IEntityGroup findGroup(String key)
+throws GroupsException
+{
+    return GroupService.findGroup(key);
+}
+
 /**
  * Hook into the Groups system by converting the <code>IAuthorizationPrincipal</code> to
  * an <code>IGroupMember</code>.  Returns ALL the groups the <code>IGroupMember</code>
@@ -750,6 +972,158 @@ throws AuthorizationException
     return primGetPermissionsForPrincipal(principal, owner, activity, target);
 }
 
+/**
+ * Returns the effective grants and denies the owner has given the <code>Principal</code>
+ * and the groups containing it for the activity.  Built from the cached permissions of
+ * each principal and cached until permissions change, one of the permissions becomes
+ * effective or expires, or the cache entry times out.
+ *
+ * @return org.jasig.portal.security.IEffectivePermissions
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+@Override
+public IEffectivePermissions getEffectivePermissions(IAuthorizationPrincipal principal, String owner, String activity)
+throws AuthorizationException
+{
+    if ( ! this.cachePermissions )
+        { return primGetEffectivePermissions(principal, owner, activity); }
+
+    final CacheKeyBuilder<Serializable, Serializable> cacheKeyBuilder = CacheKey.builder(AuthorizationImpl.class.getName());
+    if (IPerson.class.equals(principal.getType())) {
+        cacheKeyBuilder.addTag(UsernameTaggedCacheEntryPurger.createCacheEntryTag(principal.getKey()));
+    }
+    cacheKeyBuilder.addAll(principal.getKey(), principal.getType(), owner, activity);
+    final CacheKey key = cacheKeyBuilder.build();
+
+    final Element element = this.effectivePermissionsCache.get(key);
+    if (element != null) {
+        final EffectivePermissionsImpl effectivePermissions = (EffectivePermissionsImpl) element.getObjectValue();
+        if (effectivePermissions.isCurrent(this.permissionsVersion.get(), System.currentTimeMillis())) {
+            return effectivePermissions;
+        }
+    }
+
+    final EffectivePermissionsImpl effectivePermissions = primGetEffectivePermissions(principal, owner, activity);
+    this.effectivePermissionsCache.put(new Element(key, effectivePermissions));
+    return effectivePermissions;
+}
+
+/**
+ * Walks up the groups containing the principal, numbering each principal reached with
+ * the principal itself as 0, and indexes the active grants and denies of each by target.
+ *
+ * @return EffectivePermissionsImpl
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param activity java.lang.String
+ */
+private EffectivePermissionsImpl primGetEffectivePermissions(IAuthorizationPrincipal principal, String owner, String activity)
+throws AuthorizationException
+{
+    //Read before loading any permissions so a concurrent change makes the result stale
+    final long version = this.permissionsVersion.get();
+    final long now = System.currentTimeMillis();
+    long validUntil = Long.MAX_VALUE;
+
+    final List<IAuthorizationPrincipal> principals = new ArrayList<IAuthorizationPrincipal>();
+    final Map<String, Integer> principalIndexes = new HashMap<String, Integer>();
+    final List<int[]> parents = new ArrayList<int[]>();
+    final Map<String, BitSet> grants = new HashMap<String, BitSet>();
+    final Map<String, BitSet> denies = new HashMap<String, BitSet>();
+
+    principals.add(principal);
+    principalIndexes.put(principal.getPrincipalString(), 0);
+
+    for (int principalIndex = 0; principalIndex < principals.size(); principalIndex++) {
+        final IAuthorizationPrincipal current = principals.get(principalIndex);
+
+        for (final IPermission permission : primGetPermissionsForPrincipal(current)) {
+            if (!owner.equals(permission.getOwner()) || !activity.equals(permission.getActivity())) {
+                continue;
+            }
+
+            final Date effective = permission.getEffective();
+            if (effective != null && effective.getTime() > now) {
+                //Not yet active, the snapshot is stale once it is
+                validUntil = Math.min(validUntil, effective.getTime());
+                continue;
+            }
+            final Date expires = permission.getExpires();
+            if (expires != null) {
+                if (expires.getTime() <= now) {
+                    continue;
+                }
+                validUntil = Math.min(validUntil, expires.getTime());
+            }
+
+            final Map<String, BitSet> targetPrincipals;
+            if (IPermission.PERMISSION_TYPE_DENY.equals(permission.getType())) {
+                targetPrincipals = denies;
+            }
+            else if (IPermission.PERMISSION_TYPE_GRANT.equals(permission.getType())) {
+                targetPrincipals = grants;
+            }
+            else {
+                continue;
+            }
+
+            BitSet principalsWithPermission = targetPrincipals.get(permission.getTarget());
+            if (principalsWithPermission == null) {
+                principalsWithPermission = new BitSet();
+                targetPrincipals.put(permission.getTarget(), principalsWithPermission);
+            }
+            principalsWithPermission.set(principalIndex);
+        }
+
+        final List<Integer> parentIndexes = new ArrayList<Integer>();
+        try {
+            final IGroupMember groupMember = getGroupMemberForPrincipal(current);
+            for (final Iterator<?> groupItr = groupMember.getContainingGroups(); groupItr.hasNext(); ) {
+                final IGroupMember group = (IGroupMember) groupItr.next();
+                if (group == null) {
+                    continue;
+                }
+
+                final IAuthorizationPrincipal groupPrincipal = newPrincipal(group);
+                Integer groupIndex = principalIndexes.get(groupPrincipal.getPrincipalString());
+                if (groupIndex == null) {
+                    groupIndex = principals.size();
+                    principals.add(groupPrincipal);
+                    principalIndexes.put(groupPrincipal.getPrincipalString(), groupIndex);
+                }
+                parentIndexes.add(groupIndex);
+            }
+        }
+        catch (GroupsException ge) {
+            if (principalIndex == 0) {
+                throw new AuthorizationException("Could not retrieve Groups for " + principal, ge);
+            }
+            // A portion of the group structure is broken, permission may still be granted
+            // through an unbroken portion
+            log.error("Error retrieving the containing groups of [" + current + "]", ge);
+        }
+
+        final int[] currentParents = new int[parentIndexes.size()];
+        for (int i = 0; i < currentParents.length; i++) {
+            currentParents[i] = parentIndexes.get(i);
+        }
+        parents.add(currentParents);
+    }
+
+    final EffectivePermissionsImpl effectivePermissions = new EffectivePermissionsImpl(this, principal, owner, activity,
+            parents.toArray(new int[parents.size()][]), grants, denies, version, validUntil);
+
+    if (log.isTraceEnabled()) {
+        log.trace("Built {} from {} principals", effectivePermissions, principals.size());
+    }
+
+    return effectivePermissions;
+}
+
 /**
  * @return org.jasig.portal.security.IPermissionStore
  */
@@ -990,6 +1364,60 @@ throws AuthorizationException
         return perms;
     }
 
+    final Set<String> containingGroups = getTargetContainingGroups(owner, activity, target);
+
+    List<IPermission> al = new ArrayList<IPermission>(perms.length);
+
+    for ( int i=0; i<perms.length; i++ ) {
+        String permissionTarget = perms[i].getTarget();
+
+        if (
+        		// owner matches
+        		(owner == null || owner.equals(perms[i].getOwner())) &&
+        		// activity matches
+                (activity == null || activity.equals(perms[i].getActivity())) &&
+                // target matches or is a member of the current permission target
+                (target == null || target.equals(permissionTarget) 
+                		|| containingGroups.contains(permissionTarget))    
+            ) {
+
+                al.add(perms[i]);
+        }
+        
+    }
+
+
+    
+    if (log.isTraceEnabled()) {
+        log.trace(
+                "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
+                "Principal: " + principal + " owner: " + owner +
+                " activity: " + activity + " target: " + target + " : permissions retrieved: " + al);
+    } else if (log.isDebugEnabled()) {
+        log.debug(
+                "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
+                "Principal: " + principal + " owner: " + owner +
+                " activity: " + activity + " target: " + target + " : number of permissions retrieved: " + al.size());
+    }
+
+
+    return ((IPermission[])al.toArray(new IPermission[al.size()]));
+
+}
+
+/**
+ * Returns the keys of the groups containing the target, permissions on these groups apply
+ * to the target as well.  Empty for the synthetic ALL targets and targets that are not
+ * entities.
+ *
+ * @return Set of group keys
+ * @param owner String
+ * @param activity String
+ * @param target String, may be null
+ */
+private Set<String> getTargetContainingGroups(String owner, String activity, String target)
+throws AuthorizationException
+{
 	Set<String> containingGroups;
 	
 	if (target != null) {
@@ -1024,12 +1452,12 @@ throws AuthorizationException
                 if (checkTargetForContainingGroups) {
                     log.debug("Target '{}' is an entity. Checking for group or groups containing entity", target);
 
-                    IGroupMember targetEntity = GroupService.findGroup(target);
+                    IGroupMember targetEntity = findGroup(target);
                     if (targetEntity == null) {
                         if (target.startsWith(IPermission.PORTLET_PREFIX)) {
-                            targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
+                            targetEntity = getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
                         } else {
-                            targetEntity = GroupService.getGroupMember(target, IPerson.class);
+                            targetEntity = getGroupMember(target, IPerson.class);
                         }
                     }
 
@@ -1050,43 +1478,28 @@ throws AuthorizationException
 		containingGroups = new HashSet<String>();
 	}
 
-    List<IPermission> al = new ArrayList<IPermission>(perms.length);
-
-    for ( int i=0; i<perms.length; i++ ) {
-        String permissionTarget = perms[i].getTarget();
-
-        if (
-        		// owner matches
-        		(owner == null || owner.equals(perms[i].getOwner())) &&
-        		// activity matches
-                (activity == null || activity.equals(perms[i].getActivity())) &&
-                // target matches or is a member of the current permission target
-                (target == null || target.equals(permissionTarget) 
-                		|| containingGroups.contains(permissionTarget))    
-            ) {
-
-                al.add(perms[i]);
-        }
-        
-    }
-
-
-    
-    if (log.isTraceEnabled()) {
-        log.trace(
-                "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
-                "Principal: " + principal + " owner: " + owner +
-                " activity: " + activity + " target: " + target + " : permissions retrieved: " + al);
-    } else if (log.isDebugEnabled()) {
-        log.debug(
-                "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
-                "Principal: " + principal + " owner: " + owner +
-                " activity: " + activity + " target: " + target + " : number of permissions retrieved: " + al.size());
-    }
-
+    return containingGroups;
+}
 
-    return ((IPermission[])al.toArray(new IPermission[al.size()]));
+/**
+ * Returns the target and the keys of the groups containing it, the targets of the
+ * permissions that apply to it.
+ *
+ * @return Set of target keys
+ * @param owner String
+ * @param activity String
+ * @param target String
+ */
+Set<String> getTargetKeys(String owner, String activity, String target)
+throws AuthorizationException
+{
+    final Set<String> containingGroups = getTargetContainingGroups(owner, activity, target);
+    if (containingGroups.isEmpty())
+        { return Collections.singleton(target); }
 
+    final Set<String> targetKeys = new HashSet<String>(containingGroups);
+    targetKeys.add(target);
+    return targetKeys;
 }
 
 /**
@@ -1138,6 +1551,7 @@ throws AuthorizationException
         getPermissionStore().delete(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        permissionsChanged();
     }
 }
 
@@ -1154,6 +1568,30 @@ throws AuthorizationException
         getPermissionStore().update(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        permissionsChanged();
     }
 }
+
+/**
+ * The permission store reloaded permissions changed by another server or outside of the portal,
+ * drops everything resolved from the permissions this server had loaded. The permission set cache
+ * is cleared without notifying its replicas, every server handles its own refresh.
+ */
+@Override
+public void onApplicationEvent(PermissionsRefreshedEvent event)
+{
+    if ( this.cachePermissions )
+        { this.permissionSetCache.removeAll(true); }
+    permissionsChanged();
+}
+
+/**
+ * Drops the effective permissions and permission checks resolved from the permissions
+ * as they were before a change.
+ */
+private void permissionsChanged()
+{
+    this.permissionsVersion.incrementAndGet();
+    this.doesPrincipalHavePermissionCache.removeAll();
+}
 }
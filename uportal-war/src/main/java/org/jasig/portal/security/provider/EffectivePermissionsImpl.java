@@ -0,0 +1,153 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.portal.AuthorizationException;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IEffectivePermissions;
+
+/**
+ * Effective permissions of a principal built by {@link AuthorizationImpl}. The principal and each
+ * of the groups containing it, directly or indirectly, are numbered with the principal at 0. The
+ * grants and denies on each target are held as the set of numbers of the principals they were
+ * given to.
+ */
+class EffectivePermissionsImpl implements IEffectivePermissions {
+    private final AuthorizationImpl authorizationService;
+    private final IAuthorizationPrincipal principal;
+    private final String owner;
+    private final String activity;
+    private final int[][] parents;
+    private final Map<String, BitSet> grants;
+    private final Map<String, BitSet> denies;
+    private final long version;
+    private final long validUntil;
+    
+    /**
+     * @param parents The numbers of the principals directly containing each principal
+     * @param grants Target to the principals with an active GRANT on it
+     * @param denies Target to the principals with an active DENY on it
+     * @param version The version of the permissions the snapshot was built from
+     * @param validUntil When the first of the permissions becomes effective or expires, {@link Long#MAX_VALUE} if none do
+     */
+    EffectivePermissionsImpl(AuthorizationImpl authorizationService, IAuthorizationPrincipal principal, String owner,
+            String activity, int[][] parents, Map<String, BitSet> grants, Map<String, BitSet> denies,
+            long version, long validUntil) {
+        this.authorizationService = authorizationService;
+        this.principal = principal;
+        this.owner = owner;
+        this.activity = activity;
+        this.parents = parents;
+        this.grants = grants;
+        this.denies = denies;
+        this.version = version;
+        this.validUntil = validUntil;
+    }
+
+    @Override
+    public IAuthorizationPrincipal getPrincipal() {
+        return this.principal;
+    }
+
+    @Override
+    public String getOwner() {
+        return this.owner;
+    }
+
+    @Override
+    public String getActivity() {
+        return this.activity;
+    }
+
+    @Override
+    public Set<String> getTargets() {
+        final Set<String> targets = new HashSet<String>(this.grants.keySet());
+        targets.addAll(this.denies.keySet());
+        return Collections.unmodifiableSet(targets);
+    }
+    
+    /**
+     * @return true if the snapshot reflects the permissions of the specified version at the specified time
+     */
+    boolean isCurrent(long version, long now) {
+        return this.version == version && now < this.validUntil;
+    }
+
+    @Override
+    public boolean hasUnblockedGrant(String target) throws AuthorizationException {
+        //Nothing can be granted without a grant, skips looking up the groups containing the target
+        if (this.grants.isEmpty()) {
+            return false;
+        }
+        
+        final BitSet granted = new BitSet(this.parents.length);
+        final BitSet denied = new BitSet(this.parents.length);
+        for (final String targetKey : this.authorizationService.getTargetKeys(this.owner, this.activity, target)) {
+            final BitSet targetGrants = this.grants.get(targetKey);
+            if (targetGrants != null) {
+                granted.or(targetGrants);
+            }
+            final BitSet targetDenies = this.denies.get(targetKey);
+            if (targetDenies != null) {
+                denied.or(targetDenies);
+            }
+        }
+        
+        if (granted.isEmpty()) {
+            return false;
+        }
+        return this.hasUnblockedGrant(0, granted, denied, new BitSet(this.parents.length));
+    }
+    
+    /**
+     * A DENY on a principal trumps both its GRANT and any it inherits, a GRANT ends the search,
+     * otherwise each containing group not already examined is searched in turn.
+     */
+    private boolean hasUnblockedGrant(int principalIndex, BitSet granted, BitSet denied, BitSet seen) {
+        if (denied.get(principalIndex)) {
+            return false;
+        }
+        if (granted.get(principalIndex)) {
+            return true;
+        }
+        if (seen.get(principalIndex)) {
+            return false;
+        }
+        seen.set(principalIndex);
+        
+        for (final int parentIndex : this.parents[principalIndex]) {
+            if (this.hasUnblockedGrant(parentIndex, granted, denied, seen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "EffectivePermissions [principal=" + this.principal + ", owner=" + this.owner + ", activity="
+                + this.activity + ", grants=" + this.grants.keySet() + ", denies=" + this.denies.keySet() + "]";
+    }
+}
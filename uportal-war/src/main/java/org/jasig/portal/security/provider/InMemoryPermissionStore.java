@@ -0,0 +1,489 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.portal.AuthorizationException;
+import org.jasig.portal.jpa.BasePortalJpaDao;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * {@link IPermissionStore} that answers {@link #select(String, String, String, String, String)}
+ * from an in-memory snapshot of every permission in the delegate store so permission lookups
+ * never go to the database.
+ * <p>
+ * The snapshot is loaded on first use and indexed by principal, target and activity, a select is
+ * answered by scanning the smallest index its criteria name. Changes made through this store are
+ * written to the delegate and applied to a copy of the snapshot which then replaces it, readers
+ * never lock. Every change also increments a version counter shared by the cluster in the
+ * UP_SEQUENCE table, code that writes UP_PERMISSION directly increments it with
+ * {@link #incrementVersion(JdbcOperations)}. {@link #refresh()} is called every few seconds and reloads the snapshot when
+ * another server has incremented the counter, or when the snapshot is older than the maximum age
+ * so permissions written to the database directly, for example by a data import, are eventually
+ * seen. A {@link PermissionsRefreshedEvent} is published after each reload.
+ */
+public class InMemoryPermissionStore implements IPermissionStore, ApplicationEventPublisherAware {
+    static final String VERSION_SEQUENCE_NAME = "UP_PERMISSION_VERSION";
+    private static final String SELECT_VERSION_QUERY = "SELECT SEQUENCE_VALUE FROM UP_SEQUENCE WHERE SEQUENCE_NAME=?";
+    private static final String INCREMENT_VERSION_QUERY = "UPDATE UP_SEQUENCE SET SEQUENCE_VALUE=SEQUENCE_VALUE+1 WHERE SEQUENCE_NAME=?";
+    private static final String INSERT_VERSION_QUERY = "INSERT INTO UP_SEQUENCE (SEQUENCE_NAME, SEQUENCE_VALUE) VALUES (?, ?)";
+    
+    /** Version of a snapshot loaded while the counter could not be read, never current so the next refresh reloads it */
+    static final long UNKNOWN_VERSION = -1;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    /** Held while writing to the delegate and while replacing the snapshot */
+    private final Object writeLock = new Object();
+
+    private IPermissionStore delegate;
+    private JdbcOperations jdbcOperations;
+    private TransactionOperations transactionOperations;
+    private ApplicationEventPublisher applicationEventPublisher;
+    private boolean enabled = true;
+    private long maxSnapshotAge = TimeUnit.MINUTES.toMillis(30);
+    
+    private volatile PermissionSnapshot snapshot;
+
+    /**
+     * @param delegate The store permissions are loaded from and changes are written to
+     */
+    @Required
+    public void setDelegate(IPermissionStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Autowired
+    public void setJdbcOperations(@Qualifier(BasePortalJpaDao.PERSISTENCE_UNIT_NAME) JdbcOperations jdbcOperations) {
+        this.jdbcOperations = jdbcOperations;
+    }
+
+    @Autowired
+    public void setTransactionOperations(@Qualifier(BasePortalJpaDao.PERSISTENCE_UNIT_NAME) TransactionOperations transactionOperations) {
+        this.transactionOperations = transactionOperations;
+    }
+
+    /**
+     * @param enabled If false every select goes to the delegate, changes still increment the version counter
+     */
+    @Value("${org.jasig.portal.security.provider.InMemoryPermissionStore.enabled:true}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param maxSnapshotAge Milliseconds after which the snapshot is reloaded even if the version counter has not changed
+     */
+    @Value("${org.jasig.portal.security.provider.InMemoryPermissionStore.maxSnapshotAge:1800000}")
+    public void setMaxSnapshotAge(long maxSnapshotAge) {
+        this.maxSnapshotAge = maxSnapshotAge;
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    @Override
+    public void add(IPermission[] perms) throws AuthorizationException {
+        synchronized (this.writeLock) {
+            this.delegate.add(perms);
+            
+            final long version = this.incrementVersion();
+            final PermissionSnapshot snapshot = this.snapshot;
+            if (snapshot != null) {
+                this.snapshot = snapshot.withAdded(perms, this.getChangedVersion(snapshot, version));
+            }
+        }
+    }
+
+    @Override
+    public void add(IPermission perm) throws AuthorizationException {
+        this.add(new IPermission[] { perm });
+    }
+
+    @Override
+    public void delete(IPermission[] perms) throws AuthorizationException {
+        synchronized (this.writeLock) {
+            this.delegate.delete(perms);
+            
+            final long version = this.incrementVersion();
+            final PermissionSnapshot snapshot = this.snapshot;
+            if (snapshot != null) {
+                this.snapshot = snapshot.withDeleted(perms, this.getChangedVersion(snapshot, version));
+            }
+        }
+    }
+
+    @Override
+    public void delete(IPermission perm) throws AuthorizationException {
+        this.delete(new IPermission[] { perm });
+    }
+
+    @Override
+    public void update(IPermission[] perms) throws AuthorizationException {
+        synchronized (this.writeLock) {
+            this.delegate.update(perms);
+            
+            final long version = this.incrementVersion();
+            final PermissionSnapshot snapshot = this.snapshot;
+            if (snapshot != null) {
+                this.snapshot = snapshot.withUpdated(perms, this.getChangedVersion(snapshot, version));
+            }
+        }
+    }
+
+    @Override
+    public void update(IPermission perm) throws AuthorizationException {
+        this.update(new IPermission[] { perm });
+    }
+
+    @Override
+    public IPermission newInstance(String owner) {
+        return this.delegate.newInstance(owner);
+    }
+
+    @Override
+    public IPermission[] select(String owner, String principal, String activity, String target, String type)
+            throws AuthorizationException {
+        
+        if (!this.enabled) {
+            return this.delegate.select(owner, principal, activity, target, type);
+        }
+        
+        return this.getSnapshot().select(owner, principal, activity, target, type);
+    }
+    
+    /**
+     * Reload the snapshot if another server changed permissions since it was loaded or if it is
+     * older than the maximum age. Nothing is done until the first select has loaded a snapshot.
+     * Called periodically by the task scheduler.
+     */
+    public void refresh() {
+        if (!this.enabled || this.snapshot == null) {
+            return;
+        }
+        
+        final PermissionSnapshot reloaded;
+        synchronized (this.writeLock) {
+            final long version;
+            try {
+                version = this.readVersion();
+            }
+            catch (DataAccessException e) {
+                this.logger.warn("Failed to read the permissions version, permissions will not be refreshed", e);
+                return;
+            }
+            
+            final PermissionSnapshot snapshot = this.snapshot;
+            if (version == snapshot.getVersion() && System.currentTimeMillis() - snapshot.getLoaded() < this.maxSnapshotAge) {
+                return;
+            }
+            
+            try {
+                reloaded = this.loadSnapshot();
+            }
+            catch (AuthorizationException e) {
+                this.logger.warn("Failed to reload permissions, the previously loaded permissions will be used until the next refresh", e);
+                return;
+            }
+            this.snapshot = reloaded;
+        }
+        
+        if (this.applicationEventPublisher != null) {
+            this.applicationEventPublisher.publishEvent(new PermissionsRefreshedEvent(this, reloaded.getVersion()));
+        }
+    }
+    
+    /**
+     * @return The current snapshot, loading it if this is the first use
+     */
+    protected PermissionSnapshot getSnapshot() throws AuthorizationException {
+        PermissionSnapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            synchronized (this.writeLock) {
+                snapshot = this.snapshot;
+                if (snapshot == null) {
+                    snapshot = this.loadSnapshot();
+                    this.snapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Load every permission from the delegate, the version counter is read first so a change made
+     * by another server while loading results in another reload.
+     */
+    protected PermissionSnapshot loadSnapshot() throws AuthorizationException {
+        long version;
+        try {
+            version = this.readVersion();
+        }
+        catch (DataAccessException e) {
+            this.logger.warn("Failed to read the permissions version, permissions will be reloaded on the next refresh", e);
+            version = UNKNOWN_VERSION;
+        }
+        
+        final long loaded = System.currentTimeMillis();
+        final IPermission[] permissions = this.delegate.select(null, null, null, null, null);
+        this.logger.debug("Loaded {} permissions at version {}", permissions.length, version);
+        
+        return new PermissionSnapshot(Arrays.asList(permissions), version, loaded);
+    }
+    
+    /**
+     * The snapshot only reflects the incremented counter if no other server changed permissions
+     * since it was loaded, otherwise it keeps its version so the next refresh reloads it.
+     */
+    protected long getChangedVersion(PermissionSnapshot snapshot, long incrementedVersion) {
+        if (incrementedVersion == snapshot.getVersion() + 1) {
+            return incrementedVersion;
+        }
+        return snapshot.getVersion();
+    }
+    
+    /**
+     * @return The value of the permissions version counter, 0 if permissions have never been changed
+     */
+    protected long readVersion() {
+        return readVersion(this.jdbcOperations);
+    }
+    
+    /**
+     * @return The incremented value of the permissions version counter, {@link #UNKNOWN_VERSION} if it could not be incremented
+     */
+    protected long incrementVersion() {
+        try {
+            return this.transactionOperations.execute(new TransactionCallback<Long>() {
+                @Override
+                public Long doInTransaction(TransactionStatus status) {
+                    return incrementVersion(jdbcOperations);
+                }
+            });
+        }
+        catch (DataAccessException e) {
+            this.logger.warn("Failed to increment the permissions version, other servers will not see the change until they reload permissions within " + this.maxSnapshotAge + "ms", e);
+            return UNKNOWN_VERSION;
+        }
+    }
+    
+    /**
+     * Increment the permissions version counter in the caller's transaction. Code that changes
+     * UP_PERMISSION without going through the permission store must call this so every server
+     * reloads its snapshot on the next refresh.
+     * 
+     * @return The incremented value of the permissions version counter
+     */
+    public static long incrementVersion(JdbcOperations jdbcOperations) {
+        final int updated = jdbcOperations.update(INCREMENT_VERSION_QUERY, VERSION_SEQUENCE_NAME);
+        if (updated == 0) {
+            jdbcOperations.update(INSERT_VERSION_QUERY, VERSION_SEQUENCE_NAME, 1);
+            return 1;
+        }
+        
+        //The row is locked by the update until the transaction ends so this reads our increment
+        return readVersion(jdbcOperations);
+    }
+    
+    private static long readVersion(JdbcOperations jdbcOperations) {
+        final List<Long> versions = jdbcOperations.queryForList(SELECT_VERSION_QUERY, Long.class, VERSION_SEQUENCE_NAME);
+        if (versions.isEmpty()) {
+            return 0;
+        }
+        return versions.get(0);
+    }
+    
+    /**
+     * Immutable set of permissions with indexes by principal, target and activity.
+     */
+    static final class PermissionSnapshot {
+        private final List<IPermission> permissions;
+        private final Map<String, List<IPermission>> byPrincipal = new HashMap<>();
+        private final Map<String, List<IPermission>> byTarget = new HashMap<>();
+        private final Map<String, List<IPermission>> byActivity = new HashMap<>();
+        private final long version;
+        private final long loaded;
+        
+        /**
+         * @param permissions The permissions, owned by the snapshot from now on
+         * @param version The permissions version counter value the permissions reflect
+         * @param loaded When the permissions were loaded from the database
+         */
+        PermissionSnapshot(List<IPermission> permissions, long version, long loaded) {
+            this.permissions = permissions;
+            this.version = version;
+            this.loaded = loaded;
+            
+            for (final IPermission permission : permissions) {
+                index(this.byPrincipal, permission.getPrincipal(), permission);
+                index(this.byTarget, permission.getTarget(), permission);
+                index(this.byActivity, permission.getActivity(), permission);
+            }
+        }
+        
+        public long getVersion() {
+            return this.version;
+        }
+        
+        public long getLoaded() {
+            return this.loaded;
+        }
+        
+        /**
+         * Select the permissions matching all of the non-null criteria, returns copies so callers
+         * can not modify the snapshot.
+         */
+        public IPermission[] select(String owner, String principal, String activity, String target, String type) {
+            //Scan the smallest of the indexes the criteria name, the other criteria are checked per permission
+            List<IPermission> candidates = this.permissions;
+            if (principal != null) {
+                candidates = smallest(candidates, this.byPrincipal, principal);
+            }
+            if (target != null) {
+                candidates = smallest(candidates, this.byTarget, target);
+            }
+            if (activity != null) {
+                candidates = smallest(candidates, this.byActivity, activity);
+            }
+            
+            final List<IPermission> selected = new ArrayList<>();
+            for (final IPermission permission : candidates) {
+                if (matches(owner, permission.getOwner())
+                        && matches(principal, permission.getPrincipal())
+                        && matches(activity, permission.getActivity())
+                        && matches(target, permission.getTarget())
+                        && matches(type, permission.getType())) {
+                    selected.add(copy(permission));
+                }
+            }
+            return selected.toArray(new IPermission[selected.size()]);
+        }
+        
+        PermissionSnapshot withAdded(IPermission[] added, long version) {
+            final List<IPermission> permissions = new ArrayList<>(this.permissions.size() + added.length);
+            permissions.addAll(this.permissions);
+            for (final IPermission permission : added) {
+                permissions.add(copy(permission));
+            }
+            return new PermissionSnapshot(permissions, version, this.loaded);
+        }
+        
+        PermissionSnapshot withDeleted(IPermission[] deleted, long version) {
+            final Set<List<String>> deletedKeys = new HashSet<>();
+            for (final IPermission permission : deleted) {
+                deletedKeys.add(getKey(permission));
+            }
+            
+            final List<IPermission> permissions = new ArrayList<>(this.permissions.size());
+            for (final IPermission permission : this.permissions) {
+                if (!deletedKeys.contains(getKey(permission))) {
+                    permissions.add(permission);
+                }
+            }
+            return new PermissionSnapshot(permissions, version, this.loaded);
+        }
+        
+        PermissionSnapshot withUpdated(IPermission[] updated, long version) {
+            final Map<List<String>, IPermission> updates = new HashMap<>();
+            for (final IPermission permission : updated) {
+                updates.put(getKey(permission), permission);
+            }
+            
+            final List<IPermission> permissions = new ArrayList<>(this.permissions.size());
+            for (final IPermission permission : this.permissions) {
+                final IPermission update = updates.get(getKey(permission));
+                permissions.add(update != null ? copy(update) : permission);
+            }
+            return new PermissionSnapshot(permissions, version, this.loaded);
+        }
+        
+        private static void index(Map<String, List<IPermission>> index, String key, IPermission permission) {
+            if (key == null) {
+                return;
+            }
+            
+            List<IPermission> permissions = index.get(key);
+            if (permissions == null) {
+                permissions = new ArrayList<>(1);
+                index.put(key, permissions);
+            }
+            permissions.add(permission);
+        }
+        
+        private static List<IPermission> smallest(List<IPermission> candidates, Map<String, List<IPermission>> index, String key) {
+            final List<IPermission> indexed = index.get(key);
+            if (indexed == null) {
+                return Collections.emptyList();
+            }
+            return indexed.size() < candidates.size() ? indexed : candidates;
+        }
+        
+        private static boolean matches(String criteria, String value) {
+            return criteria == null || criteria.equals(value);
+        }
+        
+        /**
+         * @return The columns the delegate store matches on when it updates or deletes a permission
+         */
+        private static List<String> getKey(IPermission permission) {
+            return Arrays.asList(permission.getOwner(), permission.getPrincipal(), permission.getActivity(), permission.getTarget());
+        }
+        
+        private static IPermission copy(IPermission permission) {
+            final PermissionImpl copy = new PermissionImpl(permission.getOwner());
+            copy.setPrincipal(permission.getPrincipal());
+            copy.setActivity(permission.getActivity());
+            copy.setTarget(permission.getTarget());
+            copy.setType(permission.getType());
+            copy.setEffective(copy(permission.getEffective()));
+            copy.setExpires(copy(permission.getExpires()));
+            return copy;
+        }
+        
+        private static Date copy(Date date) {
+            return date != null ? new Date(date.getTime()) : null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by {@link InMemoryPermissionStore} after it reloads its permissions from the database
+ * because they were changed by another server or outside of the portal. Anything resolved from
+ * the previously loaded permissions should be discarded.
+ */
+public class PermissionsRefreshedEvent extends ApplicationEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+
+    /**
+     * @param source The store that reloaded its permissions
+     * @param version The permissions version counter value the reloaded permissions reflect
+     */
+    public PermissionsRefreshedEvent(Object source, long version) {
+        super(source);
+        this.version = version;
+    }
+
+    /**
+     * @return The permissions version counter value the reloaded permissions reflect
+     */
+    public long getVersion() {
+        return this.version;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.utils.threading;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue backed by a preallocated array. Each slot carries a sequence number
+ * that producers and consumers use to claim the slot with a single CAS, so neither {@link #offer(Object)}
+ * nor {@link #poll()} allocate or take a lock. Safe for any number of producers and consumers, the
+ * expected use is many producers with a single draining consumer.
+ * <p>
+ * The capacity is rounded up to the next power of two.
+ */
+public final class BoundedRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+    
+    public BoundedRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        if (capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be no more than 2^30: " + capacity);
+        }
+        
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        
+        this.capacity = size;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+    
+    /**
+     * @return The number of elements the buffer can hold
+     */
+    public int capacity() {
+        return this.capacity;
+    }
+    
+    /**
+     * @return The approximate number of elements in the buffer
+     */
+    public int size() {
+        final long size = this.producerIndex.get() - this.consumerIndex.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, this.capacity);
+    }
+    
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+    
+    /**
+     * Add an element to the buffer
+     * 
+     * @return true if the element was added, false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element cannot be null");
+        }
+        
+        long position = this.producerIndex.get();
+        while (true) {
+            final int index = (int) (position & this.mask);
+            final long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.producerIndex.compareAndSet(position, position + 1)) {
+                    this.elements.lazySet(index, element);
+                    //Publishes the element to consumers
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.producerIndex.get();
+            }
+            else if (difference < 0) {
+                //Slot has not been consumed since the last lap, the buffer is full
+                return false;
+            }
+            else {
+                position = this.producerIndex.get();
+            }
+        }
+    }
+    
+    /**
+     * Remove the oldest element from the buffer
+     * 
+     * @return The oldest element, null if the buffer is empty
+     */
+    public E poll() {
+        long position = this.consumerIndex.get();
+        while (true) {
+            final int index = (int) (position & this.mask);
+            final long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.consumerIndex.compareAndSet(position, position + 1)) {
+                    final E element = this.elements.get(index);
+                    this.elements.lazySet(index, null);
+                    //Releases the slot to producers for the next lap
+                    this.sequences.set(index, position + this.mask + 1);
+                    return element;
+                }
+                position = this.consumerIndex.get();
+            }
+            else if (difference < 0) {
+                //Slot has not been published yet, the buffer is empty
+                return null;
+            }
+            else {
+                position = this.consumerIndex.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.utils.threading;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.portal.utils.ConcurrentMapUtils;
+
+/**
+ * A thread-safe blocking queue that places elements into sub-queues based on the key returned for each element by
+ * {@link #getElementKey(Object)} and returns elements round-robin across the keys that have queued elements, one
+ * element per key per turn. This provides the same quality of service as {@link QualityOfServiceBlockingQueue} with
+ * a round-robin {@link QualityOfServiceBlockingQueue#getNextElementKey()} without a queue wide lock.
+ * <p/>
+ * Each key has a lock-free sub-queue. Keys with queued elements are scheduled on a lock-free ready queue, a key is
+ * on the ready queue at most once and is re-appended to the tail after each element is taken from it. Blocking and
+ * capacity are handled by a pair of {@link Semaphore}s which only park threads that actually have to wait.
+ * <p/>
+ * Unlike {@link QualityOfServiceBlockingQueue} the element returned by {@link #peek()} is not guaranteed to be the
+ * next element returned by {@link #poll()}, and {@link #remove(Object)} may return false for an element that is
+ * concurrently being taken by another thread.
+ * 
+ * @param <K> The type of key used for grouping elements in the queue
+ * @param <T> The type of elements in the queue
+ */
+public abstract class ConcurrentQualityOfServiceBlockingQueue<K, T> extends AbstractQueue<T> implements BlockingQueue<T> {
+    private final ConcurrentMap<K, KeyedQueue<K, T>> keyedQueues = new ConcurrentHashMap<K, KeyedQueue<K, T>>();
+    private final Set<K> queueKeySet = Collections.unmodifiableSet(this.keyedQueues.keySet());
+    private final Queue<KeyedQueue<K, T>> readyQueues = new ConcurrentLinkedQueue<KeyedQueue<K, T>>();
+    
+    private final int capacity;
+    //One permit per queued element, a thread that acquires a permit is guaranteed an element to take
+    private final Semaphore elementPermits = new Semaphore(0);
+    //One permit per free slot
+    private final Semaphore spacePermits;
+    private final AtomicInteger size = new AtomicInteger();
+    
+    public ConcurrentQualityOfServiceBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+    
+    public ConcurrentQualityOfServiceBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        
+        this.capacity = capacity;
+        this.spacePermits = new Semaphore(capacity);
+    }
+    
+    /**
+     * @return the key for the specified element
+     */
+    protected abstract K getElementKey(T e);
+    
+    /**
+     * @return A read only Set of the keys in the queue
+     */
+    public final Set<K> getKeySet() {
+        return queueKeySet;
+    }
+    
+    /**
+     * @return true if there are no elements for the specified key
+     */
+    public final boolean isKeyEmpty(K key) {
+        final KeyedQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return true;
+        }
+        
+        return queue.elements.isEmpty();
+    }
+    
+    /**
+     * @return The number of elements in the queue for the specified key
+     */
+    public final int getKeySize(K key) {
+        final KeyedQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        
+        return queue.elements.size();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+     */
+    @Override
+    public final boolean offer(T e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (!this.spacePermits.tryAcquire()) {
+            return false;
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (!this.spacePermits.tryAcquire(timeout, unit)) {
+            return false;
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+     */
+    @Override
+    public final void put(T e) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        this.spacePermits.acquire();
+        
+        this.enqueue(e);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#poll()
+     */
+    @Override
+    public final T poll() {
+        if (!this.elementPermits.tryAcquire()) {
+            return null;
+        }
+        
+        return this.dequeue();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!this.elementPermits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        
+        return this.dequeue();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#take()
+     */
+    @Override
+    public final T take() throws InterruptedException {
+        this.elementPermits.acquire();
+        
+        return this.dequeue();
+    }
+
+    /**
+     * Returns the head of the next scheduled key's sub-queue, this is a snapshot and is not guaranteed to be the
+     * element returned by the next call to {@link #poll()}
+     * 
+     * @see java.util.Queue#peek()
+     */
+    @Override
+    public final T peek() {
+        for (final KeyedQueue<K, T> queue : this.readyQueues) {
+            final T e = queue.elements.peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+     */
+    @Override
+    public final int remainingCapacity() {
+        return this.capacity - this.size.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#size()
+     */
+    @Override
+    public final int size() {
+        return this.size.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#isEmpty()
+     */
+    @Override
+    public final boolean isEmpty() {
+        return this.size.get() == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#remove(java.lang.Object)
+     */
+    @Override
+    public final boolean remove(Object o) {
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyedQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return false;
+        }
+        
+        //Claim an element permit so that no taking thread is left waiting on the removed element
+        if (!this.elementPermits.tryAcquire()) {
+            return false;
+        }
+        
+        if (queue.elements.remove(o)) {
+            this.size.decrementAndGet();
+            this.spacePermits.release();
+            return true;
+        }
+        
+        this.elementPermits.release();
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#contains(java.lang.Object)
+     */
+    @Override
+    public final boolean contains(Object o) {
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyedQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return false;
+        }
+        
+        return queue.elements.contains(o);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        
+        int count = 0;
+        T e;
+        while (count < maxElements && (e = this.poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#clear()
+     */
+    @Override
+    public final void clear() {
+        while (this.poll() != null) {
+            //Drain all elements
+        }
+    }
+
+    /**
+     * Weakly consistent iterator over the elements of each key's sub-queue
+     * 
+     * @see java.util.Collection#iterator()
+     */
+    @Override
+    public final Iterator<T> iterator() {
+        return new ElementIterator();
+    }
+    
+    /**
+     * Add the element to its key's sub-queue and schedule the key, the caller MUST hold a space permit
+     */
+    private void enqueue(T e) {
+        final KeyedQueue<K, T> queue = this.getOrCreateQueue(e);
+        queue.elements.offer(e);
+        this.size.incrementAndGet();
+        this.schedule(queue);
+        this.elementPermits.release();
+    }
+    
+    /**
+     * Take the next element round-robin, the caller MUST hold an element permit
+     */
+    private T dequeue() {
+        while (true) {
+            final KeyedQueue<K, T> queue = this.readyQueues.poll();
+            if (queue == null) {
+                //The element for our permit is on a key that is briefly held by another thread, it will be
+                //back on the ready queue momentarily
+                Thread.yield();
+                continue;
+            }
+            
+            final T e = queue.elements.poll();
+            this.reschedule(queue);
+            
+            if (e != null) {
+                this.size.decrementAndGet();
+                this.spacePermits.release();
+                return e;
+            }
+        }
+    }
+    
+    /**
+     * Put the key on the ready queue if it isn't already scheduled
+     */
+    private void schedule(KeyedQueue<K, T> queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            this.readyQueues.offer(queue);
+        }
+    }
+    
+    /**
+     * Called by the thread that took the key off the ready queue, moves the key to the tail of the ready queue if
+     * it still has elements or unschedules it. The empty re-check after unscheduling closes the race with a
+     * concurrent {@link #enqueue(Object)} that saw the key as still scheduled.
+     */
+    private void reschedule(KeyedQueue<K, T> queue) {
+        if (!queue.elements.isEmpty()) {
+            this.readyQueues.offer(queue);
+            return;
+        }
+        
+        queue.scheduled.set(false);
+        if (!queue.elements.isEmpty()) {
+            this.schedule(queue);
+        }
+    }
+    
+    private KeyedQueue<K, T> getOrCreateQueue(T e) {
+        final K key = this.getElementKey(e);
+        KeyedQueue<K, T> queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            queue = new KeyedQueue<K, T>(key);
+            queue = ConcurrentMapUtils.putIfAbsent(this.keyedQueues, key, queue);
+        }
+        return queue;
+    }
+    
+    /**
+     * Sub-queue for a single key plus the flag tracking if the key is on the ready queue
+     */
+    private static final class KeyedQueue<K, T> {
+        private final K key;
+        private final Queue<T> elements = new ConcurrentLinkedQueue<T>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        public KeyedQueue(K key) {
+            this.key = key;
+        }
+        
+        @Override
+        public String toString() {
+            return this.key + "=" + this.elements.size();
+        }
+    }
+    
+    /**
+     * Iterates over the sub-queues in the keyedQueues Map
+     */
+    private final class ElementIterator implements Iterator<T> {
+        private final Iterator<KeyedQueue<K, T>> queueIterator;
+        private Iterator<T> elementIterator = null;
+        private T next = null;
+        private T last = null;
+        
+        public ElementIterator() {
+            this.queueIterator = keyedQueues.values().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                if (this.elementIterator != null && this.elementIterator.hasNext()) {
+                    this.next = this.elementIterator.next();
+                }
+                else if (this.queueIterator.hasNext()) {
+                    this.elementIterator = this.queueIterator.next().elements.iterator();
+                }
+                else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            this.last = this.next;
+            this.next = null;
+            return this.last;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            
+            ConcurrentQualityOfServiceBlockingQueue.this.remove(this.last);
+            this.last = null;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder str = new StringBuilder("{");
+        
+        for (final Iterator<Entry<K, KeyedQueue<K, T>>> entryItr = this.keyedQueues.entrySet().iterator(); entryItr.hasNext(); ) {
+            final Entry<K, KeyedQueue<K, T>> entry = entryItr.next();
+            str.append(entry.getValue());
+            
+            if (entryItr.hasNext()) {
+                str.append(", ");
+            }
+        }
+        
+        str.append("}");
+        return str.toString();
+    }
+}
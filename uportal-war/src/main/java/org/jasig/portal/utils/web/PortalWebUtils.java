@@ -18,6 +18,7 @@
  */
 package org.jasig.portal.utils.web;
 
+import java.nio.charset.Charset;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -27,6 +28,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
@@ -41,6 +43,8 @@ import org.springframework.web.util.WebUtils;
 public final class PortalWebUtils {
     private PortalWebUtils() { }
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /** Key for the mutex request session attribute */
     public static final String REQUEST_MUTEX_ATTRIBUTE = PortalWebUtils.class.getName() + ".MUTEX";
     
@@ -163,4 +167,39 @@ public final class PortalWebUtils {
         }
 
     }
+
+    /**
+     * Build a strong ETag from the values that identify a version of a response
+     * 
+     * @param versionParts The values the response depends on, null values are allowed
+     * @return The quoted ETag value
+     */
+    public static String buildETag(Object... versionParts) {
+        final StringBuilder version = new StringBuilder();
+        for (final Object versionPart : versionParts) {
+            version.append(versionPart).append('|');
+        }
+        return "\"" + DigestUtils.md5DigestAsHex(version.toString().getBytes(UTF_8)) + "\"";
+    }
+    
+    /**
+     * @return true if the If-None-Match header of the request matches the ETag and the request can be answered with a 304
+     */
+    public static boolean isETagMatched(HttpServletRequest request, String etag) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        
+        for (String requestETag : ifNoneMatch.split(",")) {
+            requestETag = requestETag.trim();
+            if (requestETag.startsWith("W/")) {
+                requestETag = requestETag.substring(2);
+            }
+            if ("*".equals(requestETag) || requestETag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -29,6 +29,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.portlet.ActionRequest;
@@ -39,16 +41,20 @@ import javax.xml.namespace.QName;
 import org.jasig.portal.concurrency.CallableWithoutResult;
 import org.jasig.portal.concurrency.FunctionWithoutResult;
 import org.jasig.portal.events.handlers.db.IPortalEventDao;
+import org.jasig.portal.events.handlers.db.JpaPortalEventStore;
+import org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler;
 import org.jasig.portal.mock.portlet.om.MockPortletWindowId;
 import org.jasig.portal.security.SystemPerson;
 import org.jasig.portal.test.BaseRawEventsJpaDaoTest;
 import org.joda.time.DateTime;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.aop.framework.Advised;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -143,6 +149,151 @@ public class JpaPortalEventStoreTest extends BaseRawEventsJpaDaoTest {
         verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
     }
 
+    @Test
+    public void testBatchInsertSkipsUnserializableEvents() throws Exception {
+        final DateTime startDate = DateTime.now().minusDays(1);
+        final DateTime endDate = DateTime.now().plusDays(1);
+        
+        final List<PortalEvent> originalEvents = generateEvents();
+        final List<PortalEvent> storedEvents = new LinkedList<PortalEvent>(originalEvents);
+        final String sessionId = "1234567890123_system_AAAAAAAAAAA";
+        storedEvents.add(storedEvents.size() / 2, new UnserializableEvent(new PortalEvent.PortalEventBuilder(this, "example.com", sessionId, SystemPerson.INSTANCE, null)));
+        
+        final JpaPortalEventStore portalEventStore = getPortalEventStore();
+        try {
+            portalEventStore.setJdbcBatchInsert(true);
+            execute(new CallableWithoutResult() {
+                @Override
+                protected void callWithoutResult() {
+                    portalEventDao.storePortalEvents(storedEvents);
+                }
+            });
+        }
+        finally {
+            portalEventStore.setJdbcBatchInsert(false);
+        }
+        
+        verifyGetEvents(originalEvents, startDate, endDate);
+        deleteEvents(originalEvents, startDate, endDate);
+        verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+    }
+
+    @Test
+    public void testFlushQueuedEventsInOneJdbcBatch() throws Exception {
+        final DateTime startDate = DateTime.now().minusDays(1);
+        final DateTime endDate = DateTime.now().plusDays(1);
+        
+        final List<PortalEvent> originalEvents = generateEvents();
+        
+        final PortalEventDaoQueuingEventHandler queuingEventHandler = new PortalEventDaoQueuingEventHandler();
+        queuingEventHandler.setPortalEventDao(portalEventDao);
+        queuingEventHandler.setBatchSize(originalEvents.size());
+        for (final PortalEvent event : originalEvents) {
+            queuingEventHandler.onApplicationEvent(event);
+        }
+        assertEquals(originalEvents.size(), queuingEventHandler.getQueueDepth());
+        
+        final JpaPortalEventStore portalEventStore = getPortalEventStore();
+        try {
+            portalEventStore.setJdbcBatchInsert(true);
+            execute(new CallableWithoutResult() {
+                @Override
+                protected void callWithoutResult() {
+                    queuingEventHandler.flush();
+                }
+            });
+        }
+        finally {
+            portalEventStore.setJdbcBatchInsert(false);
+        }
+        
+        //Every queued event is handed to a single storePortalEvents call which executes one JDBC batch
+        assertEquals(0, queuingEventHandler.getQueueDepth());
+        assertEquals(1, queuingEventHandler.getFlushedBatchCount());
+        assertEquals(originalEvents.size(), queuingEventHandler.getFlushedEventCount());
+        assertEquals(0, queuingEventHandler.getFailedBatchCount());
+        
+        verifyGetEvents(originalEvents, startDate, endDate);
+        deleteEvents(originalEvents, startDate, endDate);
+        verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+    }
+
+    @Test
+    public void testStoreMixedBinaryEvents() throws Exception {
+        final DateTime startDate = DateTime.now().minusDays(1);
+        final DateTime endDate = DateTime.now().plusDays(1);
+        
+        final List<PortalEvent> originalEvents = generateEvents();
+        final List<PortalEvent> jsonEvents = originalEvents.subList(0, originalEvents.size() / 2);
+        final List<PortalEvent> binaryEvents = originalEvents.subList(originalEvents.size() / 2, originalEvents.size());
+        
+        final JpaPortalEventStore portalEventStore = getPortalEventStore();
+        try {
+            execute(new CallableWithoutResult() {
+                @Override
+                protected void callWithoutResult() {
+                    portalEventDao.storePortalEvents(jsonEvents);
+                }
+            });
+            
+            portalEventStore.setBinaryEventData(true);
+            execute(new CallableWithoutResult() {
+                @Override
+                protected void callWithoutResult() {
+                    portalEventDao.storePortalEvents(binaryEvents);
+                }
+            });
+        }
+        finally {
+            portalEventStore.setBinaryEventData(false);
+        }
+        
+        verifyGetEvents(originalEvents, startDate, endDate);
+        verifyAggregateEvents(originalEvents, startDate, endDate);
+        deleteEvents(originalEvents, startDate, endDate);
+        verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+    }
+    
+    @Test
+    public void testAggregateEventsParallelDecode() throws Exception {
+        final DateTime startDate = DateTime.now().minusDays(1);
+        final DateTime endDate = DateTime.now().plusDays(1);
+        
+        final List<PortalEvent> originalEvents = generateEvents();
+        
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                portalEventDao.storePortalEvents(originalEvents);
+            }
+        });
+        
+        final JpaPortalEventStore portalEventStore = getPortalEventStore();
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            portalEventStore.setAggregationExecutor(executorService);
+            portalEventStore.setAggregationDecodeThreads(3);
+            
+            verifyAggregateEvents(originalEvents, startDate, endDate);
+            verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        }
+        finally {
+            portalEventStore.setAggregationDecodeThreads(1);
+            portalEventStore.setAggregationExecutor(null);
+            executorService.shutdown();
+        }
+        
+        deleteEvents(originalEvents, startDate, endDate);
+        verifyGetEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+    }
+    
+    protected JpaPortalEventStore getPortalEventStore() throws Exception {
+        if (portalEventDao instanceof Advised) {
+            return (JpaPortalEventStore)((Advised)portalEventDao).getTargetSource().getTarget();
+        }
+        return (JpaPortalEventStore)portalEventDao;
+    }
+
     protected void verifyGetEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
         execute(new CallableWithoutResult() {
             @Override
@@ -215,6 +366,22 @@ public class JpaPortalEventStoreTest extends BaseRawEventsJpaDaoTest {
         });
     }
     
+    /**
+     * Event that fails to serialize
+     */
+    private static final class UnserializableEvent extends PortalEvent {
+        private static final long serialVersionUID = 1L;
+
+        UnserializableEvent(PortalEventBuilder eventBuilder) {
+            super(eventBuilder);
+        }
+        
+        @JsonProperty
+        public String getBroken() {
+            throw new IllegalStateException("UnserializableEvent can't be serialized");
+        }
+    }
+    
     private static final long EVENT_DELAY = 100;
     protected List<PortalEvent> generateEvents() throws Exception {
         final String sessionId = "1234567890123_system_AAAAAAAAAAA";
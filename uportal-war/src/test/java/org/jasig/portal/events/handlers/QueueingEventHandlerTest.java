@@ -0,0 +1,104 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.handlers;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jasig.portal.events.handlers.QueueingEventHandler.OverflowPolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+
+public class QueueingEventHandlerTest {
+    private TestQueueingEventHandler queueingEventHandler;
+    
+    @Before
+    public void setup() {
+        this.queueingEventHandler = new TestQueueingEventHandler();
+        this.queueingEventHandler.setQueueCapacity(2);
+    }
+    
+    @Test
+    public void testDefaultPolicyDoesNotBlock() {
+        assertEquals(OverflowPolicy.DROP_OLDEST, this.queueingEventHandler.getOverflowPolicy());
+        
+        final TestEvent event1 = new TestEvent(1);
+        final TestEvent event2 = new TestEvent(2);
+        final TestEvent event3 = new TestEvent(3);
+        this.queueingEventHandler.onApplicationEvent(event1);
+        this.queueingEventHandler.onApplicationEvent(event2);
+        this.queueingEventHandler.onApplicationEvent(event3);
+        
+        assertEquals(1, this.queueingEventHandler.getDroppedEventCount());
+        assertEquals(0, this.queueingEventHandler.getBlockedEventCount());
+        
+        this.queueingEventHandler.flush();
+        assertEquals(2, this.queueingEventHandler.events.size());
+        assertEquals(event2, this.queueingEventHandler.events.get(0));
+        assertEquals(event3, this.queueingEventHandler.events.get(1));
+    }
+    
+    @Test
+    public void testBlockGivesUpAfterMaxBlockTime() {
+        this.queueingEventHandler.setOverflowPolicy(OverflowPolicy.BLOCK);
+        this.queueingEventHandler.setMaxBlockTime(50);
+        
+        final TestEvent event1 = new TestEvent(1);
+        final TestEvent event2 = new TestEvent(2);
+        this.queueingEventHandler.onApplicationEvent(event1);
+        this.queueingEventHandler.onApplicationEvent(event2);
+        
+        //Nothing flushes the queue, the publishing thread must give up and drop the event
+        final long start = System.currentTimeMillis();
+        this.queueingEventHandler.onApplicationEvent(new TestEvent(3));
+        final long blocked = System.currentTimeMillis() - start;
+        
+        assertTrue("Blocked for " + blocked + "ms", blocked >= 50);
+        assertEquals(1, this.queueingEventHandler.getBlockedEventCount());
+        assertEquals(1, this.queueingEventHandler.getDroppedEventCount());
+        
+        this.queueingEventHandler.flush();
+        assertEquals(2, this.queueingEventHandler.events.size());
+        assertEquals(event1, this.queueingEventHandler.events.get(0));
+        assertEquals(event2, this.queueingEventHandler.events.get(1));
+    }
+    
+    private static class TestQueueingEventHandler extends QueueingEventHandler<TestEvent> {
+        private final List<TestEvent> events = new ArrayList<TestEvent>();
+        
+        @Override
+        protected void onApplicationEvents(Iterable<TestEvent> events) {
+            for (final TestEvent event : events) {
+                this.events.add(event);
+            }
+        }
+    }
+    
+    private static class TestEvent extends ApplicationEvent {
+        private static final long serialVersionUID = 1L;
+
+        public TestEvent(Object source) {
+            super(source);
+        }
+    }
+}
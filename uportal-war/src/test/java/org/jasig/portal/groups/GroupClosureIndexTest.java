@@ -0,0 +1,144 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.EntityTypes;
+import org.jasig.portal.IBasicEntity;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class GroupClosureIndexTest {
+    private final Map<String, List<IGroupMember>> parents = new HashMap<String, List<IGroupMember>>();
+    private GroupClosureIndex groupClosureIndex;
+    private IEntityGroup[] chain;
+    private IGroupMember user;
+    
+    @Before
+    public void setup() throws Exception {
+        this.groupClosureIndex = new GroupClosureIndex();
+        
+        //user -> local.0 -> local.1 -> ... -> local.7
+        this.chain = new IEntityGroup[8];
+        for (int i = 0; i < this.chain.length; i++) {
+            this.chain[i] = this.mockMember(IEntityGroup.class, "local." + i, EntityTypes.GROUP_ENTITY_TYPE);
+        }
+        for (int i = 0; i < this.chain.length - 1; i++) {
+            this.parents.put(this.chain[i].getKey(), Arrays.<IGroupMember>asList(this.chain[i + 1]));
+        }
+        
+        this.user = this.mockMember(IGroupMember.class, "admin", EntityTypes.LEAF_ENTITY_TYPE);
+        this.parents.put(this.user.getKey(), Arrays.<IGroupMember>asList(this.chain[0]));
+    }
+    
+    @Test
+    public void testDeepMembership() throws Exception {
+        for (final IEntityGroup group : this.chain) {
+            assertTrue(group.getKey(), this.groupClosureIndex.isDeepMemberOf(this.user, group));
+        }
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.chain[2], this.chain[7]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.chain[7], this.chain[2]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.chain[3], this.chain[3]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.chain[3], this.user));
+        
+        assertEquals(8, this.groupClosureIndex.getAncestorGroupKeys(this.user).size());
+        assertEquals(Collections.emptySet(), this.groupClosureIndex.getAncestorGroupKeys(this.chain[7]));
+        
+        //Each member's containing groups are only looked up once
+        verify(this.user, times(1)).getContainingGroups();
+        for (final IEntityGroup group : this.chain) {
+            verify(group, times(1)).getContainingGroups();
+        }
+    }
+    
+    @Test
+    public void testInvalidateGroup() throws Exception {
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[7]));
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.chain[5], this.chain[7]));
+        assertEquals(9, this.groupClosureIndex.getClosureCount());
+        
+        //Remove local.3 from local.4
+        this.parents.put(this.chain[3].getKey(), Collections.<IGroupMember>emptyList());
+        this.groupClosureIndex.invalidate(this.chain[3].getEntityIdentifier());
+        
+        //Members below local.3 are dropped, members above are kept
+        assertEquals(4, this.groupClosureIndex.getClosureCount());
+        
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[3]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[4]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[7]));
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.chain[5], this.chain[7]));
+    }
+    
+    @Test
+    public void testInvalidateEntity() throws Exception {
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[7]));
+        
+        //Move the user directly into local.7
+        this.parents.put(this.user.getKey(), Arrays.<IGroupMember>asList(this.chain[7]));
+        this.groupClosureIndex.invalidate(this.user.getEntityIdentifier());
+        assertEquals(8, this.groupClosureIndex.getClosureCount());
+        
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[7]));
+        assertFalse(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[0]));
+    }
+    
+    @Test
+    public void testCycle() throws Exception {
+        this.parents.put(this.chain[7].getKey(), Arrays.<IGroupMember>asList(this.chain[0]));
+        
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.user, this.chain[7]));
+        assertTrue(this.groupClosureIndex.isDeepMemberOf(this.chain[7], this.chain[0]));
+        assertEquals(8, this.groupClosureIndex.getAncestorGroupKeys(this.user).size());
+    }
+    
+    private <T extends IGroupMember> T mockMember(Class<T> memberType, final String key, Class<? extends IBasicEntity> entityType) throws Exception {
+        final T member = mock(memberType);
+        when(member.getKey()).thenReturn(key);
+        when(member.isGroup()).thenReturn(EntityTypes.GROUP_ENTITY_TYPE.equals(entityType));
+        when(member.getEntityIdentifier()).thenReturn(new EntityIdentifier(key, entityType));
+        when(member.getContainingGroups()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final List<IGroupMember> memberParents = parents.get(key);
+                if (memberParents == null) {
+                    return Collections.emptyList().iterator();
+                }
+                return memberParents.iterator();
+            }
+        });
+        return member;
+    }
+}
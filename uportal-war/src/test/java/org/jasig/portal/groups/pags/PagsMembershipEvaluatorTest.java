@@ -0,0 +1,185 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups.pags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.portal.groups.pags.testers.IntegerGTTester;
+import org.jasig.portal.groups.pags.testers.RegexTester;
+import org.jasig.portal.groups.pags.testers.StringEqualsIgnoreCaseTester;
+import org.jasig.portal.groups.pags.testers.StringEqualsTester;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.PersonImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PagsMembershipEvaluatorTest {
+    private final Map<String, PagsGroup> groups = new LinkedHashMap<String, PagsGroup>();
+    private final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+    private final AtomicInteger regexTests = new AtomicInteger();
+    
+    @Before
+    public void setup() {
+        //Students: affiliation equals student OR (affiliation equals alum AND age > 30)
+        this.addGroup("Students", null,
+                new TestGroup[] {
+                    this.testGroup(new StringEqualsTester("affiliation", "student")),
+                    this.testGroup(new StringEqualsTester("affiliation", "alum"), new IntegerGTTester("age", "30")) });
+        
+        //Science Students: member of Students AND department equals ignoring case SCIENCE
+        this.addGroup("Science Students", "Students",
+                new TestGroup[] { this.testGroup(new StringEqualsIgnoreCaseTester("department", "SCIENCE")) });
+        
+        //Both groups test the same regex, it is only evaluated once
+        this.addGroup("Early Students", null,
+                new TestGroup[] { this.testGroup(this.countingRegexTester("id", "0[0-9]+")) });
+        this.addGroup("Early Ids", null,
+                new TestGroup[] { this.testGroup(this.countingRegexTester("id", "0[0-9]+")) });
+        
+        //No tests, only contains its member groups
+        this.addGroup("Everyone", null, new TestGroup[0]);
+        this.parents.put("Students", Collections.singleton("Everyone"));
+    }
+    
+    @Test
+    public void testContainingGroupNames() {
+        final PagsMembershipEvaluator evaluator = new PagsMembershipEvaluator(this.groups, this.parents);
+        
+        assertEquals(new HashSet<String>(Arrays.asList("Students", "Science Students", "Early Students", "Early Ids")),
+                evaluator.getContainingGroupNames(this.person("student", "31", "Science", "0123")));
+        assertEquals(1, this.regexTests.get());
+        
+        assertEquals(Collections.singleton("Students"),
+                evaluator.getContainingGroupNames(this.person("alum", "31", "History", "9123")));
+        
+        //Not in Students so not in Science Students either
+        assertEquals(Collections.<String>emptySet(),
+                evaluator.getContainingGroupNames(this.person("alum", "29", "science", "9123")));
+        
+        //Multi-valued attributes match if any value matches
+        assertEquals(new HashSet<String>(Arrays.asList("Students", "Science Students")),
+                evaluator.getContainingGroupNames(this.person(new String[] { "staff", "student" }, "20", "sCiEnCe", null)));
+    }
+    
+    @Test
+    public void testFailedGroup() {
+        this.groups.put("Students", null);
+        final PagsMembershipEvaluator evaluator = new PagsMembershipEvaluator(this.groups, this.parents);
+        
+        assertEquals(Collections.<String>emptySet(),
+                evaluator.getContainingGroupNames(this.person("student", "31", "Science", null)));
+    }
+    
+    @Test
+    public void testFingerprint() {
+        PagsMembershipEvaluator evaluator = new PagsMembershipEvaluator(this.groups, this.parents);
+        
+        final IPerson person = this.person("student", "31", "Science", "0123");
+        final IPerson samePerson = this.person("student", "31", "Science", "0123");
+        samePerson.setAttribute("mail", "other@example.edu");
+        assertEquals(evaluator.getFingerprint(person), evaluator.getFingerprint(samePerson));
+        
+        //Groups that test more than attributes can't be shared between people
+        this.addGroup("Tuesday", null, new TestGroup[] { this.testGroup(new IPersonTester() {
+            @Override
+            public boolean test(IPerson person) {
+                return true;
+            }
+        }) });
+        evaluator = new PagsMembershipEvaluator(this.groups, this.parents);
+        assertNull(evaluator.getFingerprint(person));
+        assertNotNull(evaluator.getContainingGroupNames(person));
+    }
+    
+    @Test
+    public void testFoldCase() {
+        assertEquals(PagsMembershipEvaluator.foldCase("ScIeNcE"), PagsMembershipEvaluator.foldCase("SCIENCE"));
+        assertEquals(PagsMembershipEvaluator.foldCase("\u0130"), PagsMembershipEvaluator.foldCase("i"));
+    }
+    
+    private IPerson person(Object affiliation, String age, String department, String id) {
+        final IPerson person = new PersonImpl();
+        person.setAttribute(IPerson.USERNAME, "user");
+        if (affiliation instanceof String[]) {
+            person.setAttribute("affiliation", Arrays.<Object>asList((String[]) affiliation));
+        }
+        else {
+            person.setAttribute("affiliation", affiliation);
+        }
+        person.setAttribute("age", age);
+        person.setAttribute("department", department);
+        if (id != null) {
+            person.setAttribute("id", id);
+        }
+        return person;
+    }
+    
+    private RegexTester countingRegexTester(String attribute, String pattern) {
+        return new CountingRegexTester(attribute, pattern, this.regexTests);
+    }
+    
+    private TestGroup testGroup(IPersonTester... testers) {
+        final TestGroup testGroup = new TestGroup();
+        for (final IPersonTester tester : testers) {
+            testGroup.addTest(tester);
+        }
+        return testGroup;
+    }
+    
+    private void addGroup(String name, String parent, TestGroup[] testGroups) {
+        final PagsGroup group = new PagsGroup();
+        group.setKey(name);
+        group.setName(name);
+        for (final TestGroup testGroup : testGroups) {
+            group.addTestGroup(testGroup);
+        }
+        this.groups.put(name, group);
+        
+        if (parent != null) {
+            this.parents.put(name, Collections.singleton(parent));
+        }
+    }
+    
+    private static final class CountingRegexTester extends RegexTester {
+        private final AtomicInteger count;
+        
+        @SuppressWarnings("deprecation")
+        public CountingRegexTester(String attribute, String test, AtomicInteger count) {
+            super(attribute, test);
+            this.count = count;
+        }
+
+        @Override
+        public boolean test(String att) {
+            this.count.incrementAndGet();
+            return super.test(att);
+        }
+    }
+}
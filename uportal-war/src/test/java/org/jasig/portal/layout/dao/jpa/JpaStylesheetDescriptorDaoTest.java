@@ -249,4 +249,117 @@ public class JpaStylesheetDescriptorDaoTest extends BasePortalJpaDaoTest {
             }
         });
     }
+
+    @Test
+    public void testStylesheetUserPreferencesWriteBehind() throws Exception {
+        final long ssdId = this.execute(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                final IStylesheetDescriptor stylesheetDescriptor = stylesheetDescriptorDao.createStylesheetDescriptor("columns", "classpath:/layout/struct/columns.xsl");
+                return stylesheetDescriptor.getId();
+            }
+        });
+
+        final IPerson person = mock(IPerson.class);
+        when(person.getID()).thenReturn(1);
+        
+        final IUserProfile userProfile = mock(IUserProfile.class);
+        when(userProfile.getProfileId()).thenReturn(1);
+        
+        final IStylesheetDescriptor stylesheetDescriptor = this.execute(new Callable<IStylesheetDescriptor>() {
+            @Override
+            public IStylesheetDescriptor call() throws Exception {
+                final IStylesheetDescriptor stylesheetDescriptor = stylesheetDescriptorDao.getStylesheetDescriptor(ssdId);
+                stylesheetUserPreferencesDao.createStylesheetUserPreferences(stylesheetDescriptor, person, userProfile);
+                return stylesheetDescriptor;
+            }
+        });
+        
+        //Stored preferences are queued and lookups return copies of them until they are flushed
+        final IStylesheetUserPreferences stylesheetUserPreferences = stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile);
+        stylesheetUserPreferences.setStylesheetParameter("activeTab", "1");
+        stylesheetUserPreferences.setLayoutAttribute("u1l1n1", "minimized", "true");
+        stylesheetUserPreferencesDao.storeStylesheetUserPreferences(stylesheetUserPreferences);
+        
+        //Changes made after storing are not seen by anyone else until stored again
+        stylesheetUserPreferences.setStylesheetParameter("activeTab", "2");
+        final IStylesheetUserPreferences queuedPreferences = stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile);
+        assertNotSame(stylesheetUserPreferences, queuedPreferences);
+        assertEquals("1", queuedPreferences.getStylesheetParameter("activeTab"));
+        
+        stylesheetUserPreferencesDao.storeStylesheetUserPreferences(stylesheetUserPreferences);
+        
+        final JpaStylesheetUserPreferencesDaoMXBean writeBehindDao = (JpaStylesheetUserPreferencesDaoMXBean) stylesheetUserPreferencesDao;
+        assertEquals(1, writeBehindDao.getPendingPreferences());
+        assertEquals("2", stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile).getStylesheetParameter("activeTab"));
+        
+        this.execute(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                assertEquals("2", stylesheetUserPreferencesDao.getStylesheetUserPreferencesForUser(1).get(0).getStylesheetParameter("activeTab"));
+                assertEquals("2", stylesheetUserPreferencesDao.getStylesheetUserPreferences().get(0).getStylesheetParameter("activeTab"));
+                return null;
+            }
+        });
+        
+        writeBehindDao.flush();
+        assertEquals(0, writeBehindDao.getPendingPreferences());
+        
+        this.execute(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                final IStylesheetUserPreferences storedPreferences = stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile);
+                
+                assertNotNull(storedPreferences);
+                assertEquals(Collections.singletonMap("activeTab", "2"), storedPreferences.populateStylesheetParameters(new MapPopulator<String, String>()).getMap());
+                assertEquals(Collections.singletonMap("minimized", "true"), storedPreferences.populateLayoutAttributes("u1l1n1", new MapPopulator<String, String>()).getMap());
+                
+                return null;
+            }
+        });
+        
+        //A copy read before a flush by this DAO is still written after it
+        final long staleCount = writeBehindDao.getStalePreferencesCount();
+        queuedPreferences.setStylesheetParameter("activeTab", "3");
+        stylesheetUserPreferencesDao.storeStylesheetUserPreferences(queuedPreferences);
+        writeBehindDao.flush();
+        
+        assertEquals(staleCount, writeBehindDao.getStalePreferencesCount());
+        assertEquals("3", this.getStoredStylesheetParameter(stylesheetDescriptor, person, userProfile, "activeTab"));
+        
+        //A copy read before the preferences were changed by someone else is discarded
+        final IStylesheetUserPreferences stalePreferences = stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile);
+        this.executeInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                final StylesheetUserPreferencesImpl storedPreferences = getEntityManager().find(StylesheetUserPreferencesImpl.class, stalePreferences.getId());
+                storedPreferences.setStylesheetParameter("activeTab", "4");
+                return null;
+            }
+        });
+        
+        stalePreferences.setStylesheetParameter("activeTab", "5");
+        stylesheetUserPreferencesDao.storeStylesheetUserPreferences(stalePreferences);
+        writeBehindDao.flush();
+        
+        assertEquals(staleCount + 1, writeBehindDao.getStalePreferencesCount());
+        assertEquals("4", this.getStoredStylesheetParameter(stylesheetDescriptor, person, userProfile, "activeTab"));
+        
+        this.execute(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                stylesheetUserPreferencesDao.deleteStylesheetUserPreferences(stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile));
+                return null;
+            }
+        });
+    }
+    
+    private String getStoredStylesheetParameter(final IStylesheetDescriptor stylesheetDescriptor, final IPerson person, final IUserProfile userProfile, final String name) {
+        return this.execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return stylesheetUserPreferencesDao.getStylesheetUserPreferences(stylesheetDescriptor, person, userProfile).getStylesheetParameter(name);
+            }
+        });
+    }
 }
@@ -0,0 +1,320 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.jasig.portal.layout.immutable.ImmutableLayoutNode;
+import org.jasig.portal.layout.simple.SimpleLayout;
+import org.jasig.portal.test.ThreadGroupRunner;
+import org.jasig.portal.utils.DocumentFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class DistributedUserLayoutTest {
+    private static final int WRITERS = 8;
+    private static final int UPDATES_PER_WRITER = 50;
+    private static final int READERS = 4;
+
+    @Test
+    public void testUpdatePublishesSnapshot() throws Exception {
+        final DistributedUserLayout userLayout = createCompactLayout();
+        final ImmutableLayoutNode original = userLayout.getCompactLayout();
+        assertNotNull(original);
+        
+        userLayout.beginUpdate();
+        try {
+            assertTrue(userLayout.isUpdatingThread());
+            addChannel(userLayout, "n1");
+            
+            //nested updates don't publish
+            userLayout.beginUpdate();
+            addChannel(userLayout, "n2");
+            userLayout.endUpdate(true);
+            
+            assertSame(original, userLayout.getCompactLayout());
+        }
+        finally {
+            userLayout.endUpdate(true);
+        }
+        
+        assertFalse(userLayout.isUpdatingThread());
+        final ImmutableLayoutNode updated = userLayout.getCompactLayout();
+        assertEquals(0, getRootFolder(original).getChildCount());
+        assertEquals(2, getRootFolder(updated).getChildCount());
+    }
+    
+    @Test
+    public void testReadsDontBlockOnUpdate() throws Exception {
+        final DistributedUserLayout userLayout = createCompactLayout();
+        final ImmutableLayoutNode original = userLayout.getCompactLayout();
+        
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        userLayout.beginUpdate();
+        try {
+            addChannel(userLayout, "n1");
+            
+            final Future<ImmutableLayoutNode> read = executor.submit(new Callable<ImmutableLayoutNode>() {
+                @Override
+                public ImmutableLayoutNode call() throws Exception {
+                    return userLayout.getCompactLayout();
+                }
+            });
+            assertSame(original, read.get(5, TimeUnit.SECONDS));
+            
+            final Future<Boolean> lockRead = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return userLayout.getReadLock().tryLock();
+                }
+            });
+            assertFalse("DOM readers must wait for the update", lockRead.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            userLayout.endUpdate(true);
+            executor.shutdown();
+        }
+        
+        assertEquals(1, getRootFolder(userLayout.getCompactLayout()).getChildCount());
+    }
+    
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final DistributedUserLayout userLayout = createCompactLayout();
+        final AtomicInteger nextId = new AtomicInteger();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger remainingWriters = new AtomicInteger(WRITERS);
+        final AtomicInteger snapshotsRead = new AtomicInteger();
+        
+        final ThreadGroupRunner threadGroupRunner = new ThreadGroupRunner("DistributedUserLayoutTest-", true);
+        threadGroupRunner.addTask(WRITERS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int update = 0; update < UPDATES_PER_WRITER; update++) {
+                        userLayout.beginUpdate();
+                        try {
+                            addChannel(userLayout, "n" + nextId.incrementAndGet());
+                        }
+                        finally {
+                            userLayout.endUpdate(true);
+                        }
+                    }
+                }
+                finally {
+                    if (remainingWriters.decrementAndGet() == 0) {
+                        writing.set(false);
+                    }
+                }
+            }
+        });
+        threadGroupRunner.addTask(READERS, new Runnable() {
+            @Override
+            public void run() {
+                int lastCount = 0;
+                while (writing.get()) {
+                    final ImmutableLayoutNode snapshot = userLayout.getCompactLayout();
+                    final List<ImmutableLayoutNode> channels = getRootFolder(snapshot).getChildren();
+                    
+                    //Published snapshots only ever grow and never contain a partial update
+                    assertTrue(channels.size() >= lastCount);
+                    final Set<String> ids = new HashSet<String>();
+                    for (final ImmutableLayoutNode channel : channels) {
+                        assertTrue(ids.add(channel.getId()));
+                        assertEquals(channel.getId(), channel.getAttribute("fname"));
+                    }
+                    lastCount = channels.size();
+                    snapshotsRead.incrementAndGet();
+                }
+            }
+        });
+        
+        threadGroupRunner.start();
+        threadGroupRunner.join();
+        
+        final ImmutableLayoutNode published = userLayout.getCompactLayout();
+        final Set<String> ids = new HashSet<String>();
+        for (final ImmutableLayoutNode channel : getRootFolder(published).getChildren()) {
+            ids.add(channel.getId());
+        }
+        assertEquals(WRITERS * UPDATES_PER_WRITER, ids.size());
+        for (int id = 1; id <= WRITERS * UPDATES_PER_WRITER; id++) {
+            assertTrue("Lost update n" + id, ids.contains("n" + id));
+        }
+        assertTrue(snapshotsRead.get() > 0);
+    }
+    
+    @Test
+    public void testSimpleLayoutReadsDuringUpdates() throws Exception {
+        final DistributedUserLayout userLayout = createCompactLayout();
+        final SimpleLayout simpleLayout = new SimpleLayout(userLayout, "1", "cacheKey");
+        final AtomicInteger nextId = new AtomicInteger();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger remainingWriters = new AtomicInteger(WRITERS);
+        final AtomicInteger layoutsRead = new AtomicInteger();
+        
+        final ThreadGroupRunner threadGroupRunner = new ThreadGroupRunner("SimpleLayoutTest-", true);
+        threadGroupRunner.addTask(WRITERS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int update = 0; update < UPDATES_PER_WRITER; update++) {
+                        userLayout.beginUpdate();
+                        try {
+                            addChannel(userLayout, "n" + nextId.incrementAndGet());
+                        }
+                        finally {
+                            userLayout.endUpdate(true);
+                        }
+                    }
+                }
+                finally {
+                    if (remainingWriters.decrementAndGet() == 0) {
+                        writing.set(false);
+                    }
+                }
+            }
+        });
+        threadGroupRunner.addTask(READERS, new Runnable() {
+            @Override
+            public void run() {
+                final XPathExpression channelCount;
+                try {
+                    channelCount = XPathFactory.newInstance().newXPath().compile("count(/layout/folder/channel)");
+                }
+                catch (XPathExpressionException e) {
+                    throw new IllegalStateException(e);
+                }
+                
+                int lastCount = 0;
+                while (writing.get()) {
+                    assertEquals("s1", simpleLayout.getRootId());
+                    
+                    final List<String> childIds = Collections.list((Enumeration<String>) simpleLayout.getChildIds("s1"));
+                    assertTrue(childIds.size() >= lastCount);
+                    assertEquals(childIds.size(), new HashSet<String>(childIds).size());
+                    for (final String childId : childIds) {
+                        assertTrue(childId.startsWith("n"));
+                        assertEquals("s1", simpleLayout.getParentId(childId));
+                    }
+                    if (childIds.size() > 1) {
+                        assertEquals(childIds.get(1), simpleLayout.getNextSiblingId(childIds.get(0)));
+                        assertEquals(childIds.get(0), simpleLayout.getPreviousSiblingId(childIds.get(1)));
+                    }
+                    lastCount = childIds.size();
+                    
+                    //XPath lookups and written copies see a complete layout at least as new as the child ids
+                    assertTrue(Integer.parseInt(simpleLayout.findNodeId(channelCount)) >= lastCount);
+                    final Document written = DocumentFactory.getThreadDocument();
+                    simpleLayout.writeTo(written);
+                    final int writtenCount = written.getElementsByTagName("channel").getLength();
+                    assertTrue(writtenCount >= lastCount);
+                    
+                    layoutsRead.incrementAndGet();
+                }
+            }
+        });
+        
+        threadGroupRunner.start();
+        threadGroupRunner.join();
+        
+        assertEquals(WRITERS * UPDATES_PER_WRITER, Collections.list(simpleLayout.getChildIds("s1")).size());
+        assertTrue(layoutsRead.get() > 0);
+    }
+    
+    @Test
+    public void testReadersDontKeepExpandedLayout() throws Exception {
+        final DistributedUserLayout userLayout = createCompactLayout();
+        
+        final Lock readLock = userLayout.getReadLock();
+        readLock.lock();
+        try {
+            assertNotSame(userLayout.getLayout(), userLayout.getLayout());
+        }
+        finally {
+            readLock.unlock();
+        }
+        
+        final Document snapshot = userLayout.getLayoutSnapshot();
+        userLayout.beginUpdate();
+        try {
+            assertSame(userLayout.getLayout(), userLayout.getLayout());
+            addChannel(userLayout, "n1");
+        }
+        finally {
+            userLayout.endUpdate(true);
+        }
+        
+        //Snapshots are not changed by later updates
+        assertEquals(0, snapshot.getElementsByTagName("channel").getLength());
+        assertEquals(1, userLayout.getLayoutSnapshot().getElementsByTagName("channel").getLength());
+    }
+    
+    private static DistributedUserLayout createCompactLayout() throws Exception {
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        final Element layout = document.createElement("layout");
+        layout.setAttribute("ID", "u1l1");
+        document.appendChild(layout);
+        final Element rootFolder = document.createElement("folder");
+        rootFolder.setAttribute("ID", "s1");
+        rootFolder.setAttribute("type", "root");
+        layout.appendChild(rootFolder);
+        
+        final DistributedUserLayout userLayout = new DistributedUserLayout(document, Collections.<String>emptySet(), null, null);
+        userLayout.compact();
+        return userLayout;
+    }
+    
+    private static void addChannel(DistributedUserLayout userLayout, String id) {
+        final Document document = userLayout.getLayout();
+        final Element channel = document.createElement("channel");
+        channel.setAttribute("ID", id);
+        channel.setAttribute("fname", id);
+        document.getDocumentElement().getFirstChild().appendChild(channel);
+    }
+    
+    private static ImmutableLayoutNode getRootFolder(ImmutableLayoutNode layout) {
+        return layout.getChild(0);
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.dom4j.Element;
+import org.jasig.portal.layout.dlm.providers.AllUsersEvaluatorFactory;
+import org.jasig.portal.layout.dlm.providers.AttributeEvaluator;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.PersonImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FragmentAudienceEvaluatorTest {
+    private CacheManager cacheManager;
+    private FragmentAudienceEvaluator fragmentAudienceEvaluator;
+    
+    @Before
+    public void setup() {
+        this.cacheManager = CacheManager.newInstance(new Configuration().name("FragmentAudienceEvaluatorTest"));
+        final Cache cache = new Cache(new CacheConfiguration("applicableFragments", 100));
+        this.cacheManager.addCache(cache);
+        
+        this.fragmentAudienceEvaluator = new FragmentAudienceEvaluator();
+        this.fragmentAudienceEvaluator.setApplicableFragmentsCache(cache);
+    }
+    
+    @After
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+    
+    @Test
+    public void testSharedBetweenMatchingUsers() {
+        final CountingAttributeEvaluator studentEvaluator = new CountingAttributeEvaluator("affiliation", "equals", "student");
+        final FragmentDefinition students = createFragment("students", studentEvaluator);
+        final FragmentDefinition everyone = createFragment("everyone", new AllUsersEvaluatorFactory());
+        final List<FragmentDefinition> definitions = Arrays.asList(students, everyone);
+        
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("student1", "student")));
+        assertEquals(1, studentEvaluator.count);
+        
+        //Same attributes, served from the cache
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("student2", "student")));
+        assertEquals(1, studentEvaluator.count);
+        
+        //Different attributes
+        assertEquals(Arrays.asList(everyone), this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("faculty1", "faculty")));
+        assertEquals(2, studentEvaluator.count);
+        
+        //Caching disabled
+        this.fragmentAudienceEvaluator.setCacheEnabled(false);
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("student3", "student")));
+        assertEquals(3, studentEvaluator.count);
+    }
+    
+    @Test
+    public void testUnshareableEvaluatedForEveryUser() {
+        final CountingAttributeEvaluator studentEvaluator = new CountingAttributeEvaluator("affiliation", "equals", "student");
+        final CountingEvaluator layoutEvaluator = new CountingEvaluator();
+        final FragmentDefinition students = createFragment("students", studentEvaluator);
+        final FragmentDefinition subscribed = createFragment("subscribed", layoutEvaluator);
+        final List<FragmentDefinition> definitions = Arrays.asList(students, subscribed);
+        
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("student1", "student")));
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("student2", "student")));
+        
+        assertEquals(1, studentEvaluator.count);
+        assertEquals(2, layoutEvaluator.count);
+    }
+    
+    @Test
+    public void testFragmentChangeRecomputes() {
+        final CountingAttributeEvaluator studentEvaluator = new CountingAttributeEvaluator("affiliation", "equals", "student");
+        final FragmentDefinition students = createFragment("students", studentEvaluator);
+        final List<FragmentDefinition> definitions = Arrays.asList(students);
+        
+        assertTrue(this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("staff1", "staff")).isEmpty());
+        assertEquals(1, studentEvaluator.count);
+        
+        //Add staff to the audience
+        final CountingAttributeEvaluator staffEvaluator = new CountingAttributeEvaluator("affiliation", "equals", "staff");
+        students.addEvaluator(staffEvaluator);
+        
+        assertEquals(definitions, this.fragmentAudienceEvaluator.getApplicableFragments(definitions, createPerson("staff2", "staff")));
+        assertEquals(2, studentEvaluator.count);
+        assertEquals(1, staffEvaluator.count);
+    }
+    
+    private static FragmentDefinition createFragment(String name, Evaluator evaluator) {
+        final FragmentDefinition fragmentDefinition = new FragmentDefinition(name);
+        fragmentDefinition.addEvaluator(evaluator);
+        return fragmentDefinition;
+    }
+    
+    private static IPerson createPerson(String userName, String affiliation) {
+        final PersonImpl person = new PersonImpl();
+        person.setAttribute(IPerson.USERNAME, userName);
+        person.setAttribute("affiliation", affiliation);
+        return person;
+    }
+    
+    private static class CountingAttributeEvaluator extends AttributeEvaluator {
+        private int count = 0;
+        
+        public CountingAttributeEvaluator(String name, String mode, String value) {
+            super(name, mode, value);
+        }
+
+        @Override
+        public boolean isApplicable(IPerson p) {
+            this.count++;
+            return super.isApplicable(p);
+        }
+    }
+    
+    /**
+     * Doesn't describe its audience inputs so it can't be shared between users
+     */
+    private static class CountingEvaluator extends Evaluator {
+        private int count = 0;
+        
+        @Override
+        public boolean isApplicable(IPerson person) {
+            this.count++;
+            return true;
+        }
+
+        @Override
+        public void toElement(Element parent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Class<? extends EvaluatorFactory> getFactoryClass() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getSummary() {
+            return "(COUNTING)";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class FragmentWarmupServiceTest {
+    private FragmentWarmupService fragmentWarmupService;
+    private FragmentActivator fragmentActivator;
+    private ConfigurationLoader configurationLoader;
+    private FragmentDefinition students;
+    private FragmentDefinition everyone;
+    
+    @Before
+    public void setup() {
+        this.fragmentActivator = mock(FragmentActivator.class);
+        this.configurationLoader = mock(ConfigurationLoader.class);
+        this.students = createFragment("students", "students-owner");
+        this.everyone = createFragment("everyone", "everyone-owner");
+        when(this.configurationLoader.getFragments()).thenReturn(Arrays.asList(this.students, this.everyone));
+        when(this.fragmentActivator.getActivatedLocales("students-owner")).thenReturn(Collections.singletonList(Locale.US));
+        
+        this.fragmentWarmupService = new FragmentWarmupService();
+        this.fragmentWarmupService.setFragmentActivator(this.fragmentActivator);
+        this.fragmentWarmupService.setConfigurationLoader(this.configurationLoader);
+        this.fragmentWarmupService.setWarmupThreads(1);
+        this.fragmentWarmupService.setWarmupLocales("en_US, fr_FR");
+        this.fragmentWarmupService.initializeWarmupExecutor();
+    }
+    
+    @After
+    public void tearDown() {
+        this.fragmentWarmupService.shutdownWarmupExecutor();
+    }
+    
+    @Test
+    public void testWarmupAllFragments() {
+        this.fragmentWarmupService.warmupAllFragments();
+        
+        verify(this.fragmentActivator).prefetchFragmentLayouts(Arrays.asList(this.students, this.everyone), Locale.US);
+        verify(this.fragmentActivator).prefetchFragmentLayouts(Arrays.asList(this.students, this.everyone), Locale.FRANCE);
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.students, Locale.US);
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.students, Locale.FRANCE);
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.everyone, Locale.US);
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.everyone, Locale.FRANCE);
+    }
+    
+    @Test
+    public void testWarmupWithoutPrefetchedLayouts() {
+        doThrow(new IllegalStateException("database unavailable")).when(this.fragmentActivator)
+            .prefetchFragmentLayouts(Arrays.asList(this.students, this.everyone), Locale.US);
+        
+        this.fragmentWarmupService.warmupAllFragments();
+        
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.students, Locale.US);
+        verify(this.fragmentActivator, timeout(5000)).getUserView(this.everyone, Locale.US);
+    }
+    
+    @Test
+    public void testRefreshDoesNotBlockCaller() throws Exception {
+        final CountDownLatch activating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.fragmentActivator.refreshUserView(this.students, Locale.US)).thenAnswer(new Answer<UserView>() {
+            @Override
+            public UserView answer(InvocationOnMock invocation) throws Throwable {
+                activating.countDown();
+                release.await();
+                return new UserView(1);
+            }
+        });
+        
+        this.fragmentWarmupService.refreshFragment(this.students, Locale.GERMANY);
+        assertTrue(activating.await(5, TimeUnit.SECONDS));
+        
+        //Requests made while the activation waits for the warm-up thread are coalesced
+        this.fragmentWarmupService.refreshFragment(this.students, Locale.US);
+        this.fragmentWarmupService.refreshFragment(this.students, Locale.US);
+        this.fragmentWarmupService.refreshFragment(this.students, Locale.US);
+        
+        //GERMANY from the first refresh, US from the coalesced refreshes
+        assertEquals(2, this.fragmentWarmupService.getPendingActivations());
+        verify(this.fragmentActivator, never()).clearChacheForOwner("students-owner");
+        
+        release.countDown();
+        verify(this.fragmentActivator, timeout(5000).times(2)).refreshUserView(this.students, Locale.US);
+        verify(this.fragmentActivator, timeout(5000)).refreshUserView(this.students, Locale.GERMANY);
+    }
+    
+    @Test
+    public void testSynchronousRefresh() {
+        this.fragmentWarmupService.setAsyncRefresh(false);
+        
+        this.fragmentWarmupService.refreshFragment(this.students, Locale.US);
+        
+        verify(this.fragmentActivator).clearChacheForOwner("students-owner");
+        verify(this.fragmentActivator).getUserView(this.students, Locale.US);
+        verify(this.fragmentActivator, never()).refreshUserView(this.students, Locale.US);
+    }
+    
+    private static FragmentDefinition createFragment(String name, String ownerId) {
+        final FragmentDefinition fragmentDefinition = mock(FragmentDefinition.class);
+        when(fragmentDefinition.getName()).thenReturn(name);
+        when(fragmentDefinition.getOwnerId()).thenReturn(ownerId);
+        return fragmentDefinition;
+    }
+}
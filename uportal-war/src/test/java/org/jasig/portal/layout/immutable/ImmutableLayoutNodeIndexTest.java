@@ -0,0 +1,103 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.jasig.portal.layout.PortletSubscribeIdResolver;
+import org.jasig.portal.layout.PortletTabIdResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+public class ImmutableLayoutNodeIndexTest {
+    private static final String LAYOUT =
+            "<layout ID=\"u20l1\">" +
+                "<folder ID=\"s1\" type=\"root\">" +
+                    "<folder ID=\"s2\" hidden=\"false\" type=\"header\">" +
+                        "<channel ID=\"n2\" fname=\"login\" hidden=\"false\"/>" +
+                    "</folder>" +
+                    "<folder ID=\"s3\" hidden=\"true\" type=\"regular\">" +
+                        "<channel ID=\"n4\" fname=\"weather\" hidden=\"false\"/>" +
+                    "</folder>" +
+                    "<folder ID=\"s5\" hidden=\"false\" type=\"regular\">" +
+                        "<folder ID=\"s6\" hidden=\"false\" type=\"regular\">" +
+                            "<channel ID=\"n7\" fname=\"weather\" hidden=\"false\">" +
+                                "<parameter name=\"portletName\" value=\"weather\"/>" +
+                            "</channel>" +
+                            "<channel ID=\"n8\" fname=\"news\" hidden=\"false\"/>" +
+                        "</folder>" +
+                    "</folder>" +
+                    "<folder ID=\"s9\" hidden=\"false\" type=\"regular\"/>" +
+                "</folder>" +
+            "</layout>";
+    
+    private Document document;
+    private ImmutableLayoutNodeIndex index;
+    
+    @Before
+    public void setup() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        this.document = documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(LAYOUT)));
+        
+        final ImmutableLayoutNode layout = ImmutableLayoutNode.fromDocument(this.document, new ImmutableLayoutNodeInterner());
+        this.index = new ImmutableLayoutNodeIndex(layout);
+    }
+
+    @Test
+    public void testNodeLookup() {
+        assertEquals("n8", this.index.getNode("n8").getId());
+        assertEquals("s6", this.index.getParentId("n8"));
+        assertEquals("u20l1", this.index.getParentId("s1"));
+        assertNull(this.index.getNode("n99"));
+    }
+    
+    @Test
+    public void testSubscribeIdLookup() {
+        for (final String fname : Arrays.asList("login", "weather", "news", "missing")) {
+            assertEquals(new PortletSubscribeIdResolver(fname).traverseDocument(this.document), this.index.getSubscribeId(fname));
+        }
+        
+        assertEquals("n7", this.index.getSubscribeId("s5", "weather"));
+        assertEquals("n4", this.index.getSubscribeId("s3", "weather"));
+        assertNull(this.index.getSubscribeId("s9", "weather"));
+        assertNull(this.index.getSubscribeId("n7", "weather"));
+    }
+    
+    @Test
+    public void testTabLookup() {
+        for (final String nodeId : Arrays.asList("s1", "s2", "n2", "s5", "s6", "n7", "n8", "s9", "n99")) {
+            assertEquals(nodeId, new PortletTabIdResolver(nodeId).traverseDocument(this.document), this.index.getTabId(nodeId));
+        }
+        
+        assertEquals(Arrays.asList("s5", "s9"), this.index.getVisibleTabIds());
+        assertEquals("s5", this.index.getVisibleTabId(1));
+        assertEquals("s9", this.index.getVisibleTabId(2));
+        assertNull(this.index.getVisibleTabId(0));
+        assertNull(this.index.getVisibleTabId(3));
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.immutable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+public class ImmutableLayoutNodeTest {
+    private static final String DLM_NS = "http://www.uportal.org/layout/dlm";
+    
+    private static final String CHANNEL =
+            "<channel ID=\"u16l1n8\" dlm:fragment=\"0\" fname=\"google-portlet\" hidden=\"false\">" +
+                "<parameter name=\"portletName\" value=\"google-search\"/>" +
+            "</channel>";
+    
+    private static final String FRAGMENT =
+            "<layout xmlns:dlm=\"" + DLM_NS + "\" ID=\"u16l1\">" +
+                "<folder ID=\"u16l1s1\" type=\"root\">" +
+                    "<folder ID=\"u16l1s7\" dlm:fragment=\"0\" hidden=\"false\" type=\"regular\">" +
+                        CHANNEL +
+                    "</folder>" +
+                "</folder>" +
+            "</layout>";
+    
+    private static final String USER =
+            "<layout xmlns:dlm=\"" + DLM_NS + "\" ID=\"u20l1\">" +
+                "<folder ID=\"s1\" type=\"root\">" +
+                    "<folder ID=\"s2\" hidden=\"true\" type=\"regular\"/>" +
+                    "<folder ID=\"u16l1s7\" dlm:fragment=\"0\" hidden=\"false\" type=\"regular\">" +
+                        CHANNEL +
+                        "<channel ID=\"n3\" fname=\"weather\" hidden=\"false\"/>" +
+                    "</folder>" +
+                "</folder>" +
+            "</layout>";
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Document document = parse(USER);
+        final ImmutableLayoutNode root = ImmutableLayoutNode.fromDocument(document, new ImmutableLayoutNodeInterner());
+        
+        final Document copy = root.toDocument(newDocumentBuilder().newDocument());
+        final ImmutableLayoutNode copyRoot = ImmutableLayoutNode.fromDocument(copy, new ImmutableLayoutNodeInterner());
+        assertEquals(root, copyRoot);
+        
+        final Element channel = copy.getElementById("u16l1n8");
+        assertEquals("google-portlet", channel.getAttribute("fname"));
+        assertEquals("0", channel.getAttributeNS(DLM_NS, "fragment"));
+        assertEquals("portletName", ((Element) channel.getFirstChild()).getAttribute("name"));
+    }
+    
+    @Test
+    public void testAttributeOrderIgnored() throws Exception {
+        final ImmutableLayoutNode first = ImmutableLayoutNode.fromDocument(parse("<folder ID=\"s1\" type=\"root\"/>"), new ImmutableLayoutNodeInterner());
+        final ImmutableLayoutNode second = ImmutableLayoutNode.fromDocument(parse("<folder type=\"root\" ID=\"s1\"/>"), new ImmutableLayoutNodeInterner());
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void testSharesFragmentSubtrees() throws Exception {
+        final ImmutableLayoutNodeInterner fragmentNodes = ImmutableLayoutNodeInterner.createShared(parse(FRAGMENT));
+        final List<ImmutableLayoutNode> fragmentPath = fragmentNodes.getRoot().findPathById("u16l1n8");
+        final ImmutableLayoutNode fragmentChannel = fragmentPath.get(fragmentPath.size() - 1);
+        
+        final ImmutableLayoutNodeInterner interner = new ImmutableLayoutNodeInterner(Collections.singletonList(fragmentNodes));
+        final ImmutableLayoutNode user = ImmutableLayoutNode.fromDocument(parse(USER), interner);
+        
+        final List<ImmutableLayoutNode> userPath = user.findPathById("u16l1n8");
+        assertSame(fragmentChannel, userPath.get(userPath.size() - 1));
+        
+        //The folder gained a user channel so it must be a copy
+        final ImmutableLayoutNode userFolder = userPath.get(userPath.size() - 2);
+        final ImmutableLayoutNode fragmentFolder = fragmentPath.get(fragmentPath.size() - 2);
+        assertEquals("u16l1s7", userFolder.getId());
+        assertNotSame(fragmentFolder, userFolder);
+        
+        //Only the nodes that differ from the fragment were created for the user
+        assertEquals(5, interner.size());
+    }
+    
+    @Test
+    public void testFindPathById() throws Exception {
+        final ImmutableLayoutNode root = ImmutableLayoutNode.fromDocument(parse(USER), new ImmutableLayoutNodeInterner());
+        
+        final List<String> ids = new ArrayList<String>();
+        for (final ImmutableLayoutNode node : root.findPathById("n3")) {
+            ids.add(node.getId());
+        }
+        assertEquals(Arrays.asList("u20l1", "s1", "u16l1s7", "n3"), ids);
+        
+        assertNull(root.findPathById("missing"));
+        assertEquals(2, root.getElementsByTagName("channel").size());
+    }
+    
+    @Test
+    public void testEventReader() throws Exception {
+        final ImmutableLayoutNode root = ImmutableLayoutNode.fromDocument(parse(USER), new ImmutableLayoutNodeInterner());
+        final XMLEventReader reader = new ImmutableLayoutXMLEventReader(root);
+        
+        assertEquals(XMLEvent.START_DOCUMENT, reader.nextEvent().getEventType());
+        
+        final List<String> elements = new ArrayList<String>();
+        String fragmentAttribute = null;
+        int depth = 0;
+        while (reader.hasNext()) {
+            final XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+                final StartElement startElement = event.asStartElement();
+                elements.add(startElement.getName().getLocalPart());
+                final Attribute id = startElement.getAttributeByName(new QName("ID"));
+                if (id != null && "u16l1n8".equals(id.getValue())) {
+                    fragmentAttribute = startElement.getAttributeByName(new QName(DLM_NS, "fragment")).getValue();
+                }
+            }
+            else if (event.isEndElement()) {
+                depth--;
+            }
+        }
+        
+        assertEquals(Arrays.asList("layout", "folder", "folder", "folder", "channel", "parameter", "channel"), elements);
+        assertEquals("0", fragmentAttribute);
+        assertEquals(0, depth);
+    }
+    
+    private static DocumentBuilder newDocumentBuilder() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        return documentBuilderFactory.newDocumentBuilder();
+    }
+    
+    private static Document parse(String xml) throws Exception {
+        return newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LayoutRowSetTest {
+    private Connection con;
+    private PreparedStatement statement;
+    
+    @Before
+    public void setup() throws Exception {
+        this.con = mock(Connection.class);
+        this.statement = mock(PreparedStatement.class);
+        when(this.con.prepareStatement(anyString())).thenReturn(this.statement);
+    }
+
+    @Test
+    public void testMoveOnlyUpdatesChangedRows() throws Exception {
+        final LayoutRowSet stored = new LayoutRowSet();
+        stored.addStructure(1, 0, 2, null, null, "Tab", "regular", false, false, false);
+        stored.addStructure(2, 3, 0, null, 10, null, null, false, false, false);
+        stored.addStructure(3, 0, 0, null, 11, null, null, false, false, false);
+        stored.addStructure(4, 1, 0, null, null, "Other", "regular", false, false, false);
+        stored.addParameter(2, "dlm:moveAllowed", "false");
+        
+        //Swap the two channels
+        final LayoutRowSet layout = new LayoutRowSet();
+        layout.addStructure(1, 0, 3, null, null, "Tab", "regular", false, false, false);
+        layout.addStructure(3, 2, 0, null, 11, null, null, false, false, false);
+        layout.addStructure(2, 0, 0, null, 10, null, null, false, false, false);
+        layout.addStructure(4, 1, 0, null, null, "Other", "regular", false, false, false);
+        layout.addParameter(2, "dlm:moveAllowed", "false");
+        
+        when(this.statement.executeBatch()).thenReturn(new int[] { 1, 1, 1 });
+        
+        assertEquals(3, layout.applyChanges(this.con, 20, 1, stored));
+        
+        verify(this.con).prepareStatement(startsWith("UPDATE UP_LAYOUT_STRUCT"));
+        verify(this.con, times(1)).prepareStatement(anyString());
+        verify(this.statement, times(3)).addBatch();
+    }
+    
+    @Test
+    public void testAddAndRemoveRows() throws Exception {
+        final LayoutRowSet stored = new LayoutRowSet();
+        stored.addStructure(1, 0, 2, null, null, "Tab", "regular", false, false, false);
+        stored.addStructure(2, 0, 0, null, 10, null, null, false, false, false);
+        stored.addParameter(2, "color", "blue");
+        
+        final LayoutRowSet layout = new LayoutRowSet();
+        layout.addStructure(1, 0, 5, null, null, "Tab", "regular", false, false, false);
+        layout.addStructure(5, 0, 0, null, 12, null, null, false, false, false);
+        layout.addParameter(5, "color", "red");
+        
+        when(this.statement.executeBatch()).thenReturn(new int[] { 1 });
+        
+        assertEquals(5, layout.applyChanges(this.con, 20, 1, stored));
+        
+        verify(this.con).prepareStatement(startsWith("DELETE FROM UP_LAYOUT_PARAM"));
+        verify(this.con).prepareStatement(startsWith("DELETE FROM UP_LAYOUT_STRUCT"));
+        verify(this.con).prepareStatement(startsWith("UPDATE UP_LAYOUT_STRUCT"));
+        verify(this.con).prepareStatement(startsWith("INSERT INTO UP_LAYOUT_STRUCT"));
+        verify(this.con).prepareStatement(startsWith("INSERT INTO UP_LAYOUT_PARAM"));
+        verify(this.con, never()).prepareStatement(startsWith("UPDATE UP_LAYOUT_PARAM"));
+    }
+    
+    @Test
+    public void testUnchangedLayoutWritesNothing() throws Exception {
+        final LayoutRowSet stored = new LayoutRowSet();
+        stored.addStructure(1, 0, 0, null, null, "", "regular", false, true, true);
+        
+        //Empty strings and nulls are the same to databases like Oracle
+        final LayoutRowSet layout = new LayoutRowSet();
+        layout.addStructure(1, 0, 0, null, null, null, "regular", false, true, true);
+        
+        assertEquals(0, layout.applyChanges(this.con, 20, 1, stored));
+        verify(this.con, never()).prepareStatement(anyString());
+    }
+    
+    @Test
+    public void testNullParameterValueUpdated() throws Exception {
+        final LayoutRowSet stored = new LayoutRowSet();
+        stored.addStructure(1, 0, 0, null, 10, null, null, false, false, false);
+        //Oracle stores empty strings as null
+        stored.addParameter(1, "color", null);
+        stored.addParameter(1, "size", null);
+        
+        final LayoutRowSet layout = new LayoutRowSet();
+        layout.addStructure(1, 0, 0, null, 10, null, null, false, false, false);
+        layout.addParameter(1, "color", "red");
+        layout.addParameter(1, "size", "");
+        
+        when(this.statement.executeBatch()).thenReturn(new int[] { 1 });
+        
+        assertEquals(1, layout.applyChanges(this.con, 20, 1, stored));
+        
+        verify(this.con).prepareStatement(startsWith("UPDATE UP_LAYOUT_PARAM"));
+        verify(this.con, never()).prepareStatement(startsWith("INSERT INTO UP_LAYOUT_PARAM"));
+        verify(this.statement, times(1)).addBatch();
+    }
+    
+    @Test
+    public void testConcurrentChangeDetected() throws Exception {
+        final LayoutRowSet stored = new LayoutRowSet();
+        stored.addStructure(1, 0, 0, null, null, "Tab", "regular", false, false, false);
+        
+        final LayoutRowSet layout = new LayoutRowSet();
+        layout.addStructure(1, 0, 0, null, null, "Renamed", "regular", false, false, false);
+        
+        //The row was deleted by another save
+        when(this.statement.executeBatch()).thenReturn(new int[] { 0 });
+        
+        assertEquals(-1, layout.applyChanges(this.con, 20, 1, stored));
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.layout.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.UserProfile;
+import org.jasig.portal.layout.LayoutStructure;
+import org.jasig.portal.layout.StructureParameter;
+import org.jasig.portal.layout.dlm.DistributedUserLayout;
+import org.jasig.portal.layout.dlm.FragmentChannelInfo;
+import org.jasig.portal.layout.dlm.FragmentNodeInfo;
+import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
+import org.jasig.portal.rdbm.IDatabaseMetadata;
+import org.jasig.portal.rdbm.IJoinQueryString;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.PersonImpl;
+import org.jasig.portal.utils.Tuple;
+import org.jasig.portal.xml.XmlUtilitiesImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.google.common.cache.Cache;
+
+/**
+ * Compares the layouts bulk loaded by {@link RDBMUserLayoutStore#getPersonalUserLayouts} with
+ * the layouts loaded one user at a time from the same tables.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/org/jasig/portal/layout/simple/rdbmUserLayoutStoreTestContext.xml")
+public class RDBMUserLayoutStoreTest {
+    private static final int TEMPLATE_USER_ID = 1;
+    
+    @Autowired
+    private DataSource dataSource;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    private TestUserLayoutStore layoutStore;
+
+    @Before
+    public void setup() throws Exception {
+        this.jdbcTemplate.update("CREATE TABLE UP_USER (USER_ID INTEGER, USER_NAME VARCHAR(100), USER_DFLT_USR_ID INTEGER, USER_DFLT_LAY_ID INTEGER, NEXT_STRUCT_ID INTEGER)");
+        this.jdbcTemplate.update("CREATE TABLE UP_USER_PROFILE (USER_ID INTEGER, PROFILE_ID INTEGER, PROFILE_FNAME VARCHAR(100), PROFILE_NAME VARCHAR(100), LAYOUT_ID INTEGER)");
+        this.jdbcTemplate.update("CREATE TABLE UP_USER_LAYOUT (USER_ID INTEGER, LAYOUT_ID INTEGER, INIT_STRUCT_ID INTEGER)");
+        this.jdbcTemplate.update("CREATE TABLE UP_LAYOUT_STRUCT (USER_ID INTEGER, LAYOUT_ID INTEGER, STRUCT_ID INTEGER, NEXT_STRUCT_ID INTEGER, " +
+                "CHLD_STRUCT_ID INTEGER, CHAN_ID INTEGER, NAME VARCHAR(100), TYPE VARCHAR(100), HIDDEN CHAR(1), UNREMOVABLE CHAR(1), IMMUTABLE CHAR(1))");
+        this.jdbcTemplate.update("CREATE TABLE UP_LAYOUT_PARAM (USER_ID INTEGER, LAYOUT_ID INTEGER, STRUCT_ID INTEGER, STRUCT_PARM_NM VARCHAR(100), STRUCT_PARM_VAL VARCHAR(100))");
+        
+        this.addUser(TEMPLATE_USER_ID, "template");
+        this.addProfile(TEMPLATE_USER_ID, 1, "default", 1);
+        this.addLayout(TEMPLATE_USER_ID, 1, 1, "Template Tab", 90);
+        
+        this.addUser(10, "owner-a");
+        this.addProfile(10, 1, "default", 1);
+        this.addLayout(10, 1, 1, "Tab A", 91);
+        
+        //The default profile is not the user's first profile and uses the second layout
+        this.addUser(11, "owner-b");
+        this.addProfile(11, 1, "mobile", 1);
+        this.addProfile(11, 2, "default", 2);
+        this.addLayout(11, 1, 1, "Mobile Tab B", 92);
+        this.addLayout(11, 2, 5, "Tab B", 93);
+        
+        //Still using the template user's layout
+        this.addUser(12, "owner-c");
+        this.addProfile(12, 1, "default", null);
+        
+        final IJoinQueryString joinQuery = mock(IJoinQueryString.class);
+        when(joinQuery.getQuery("layout")).thenReturn(
+                "UP_LAYOUT_STRUCT ULS LEFT OUTER JOIN UP_LAYOUT_PARAM USP ON ULS.USER_ID = USP.USER_ID AND ULS.STRUCT_ID = USP.STRUCT_ID WHERE");
+        final IDatabaseMetadata databaseMetadata = mock(IDatabaseMetadata.class);
+        when(databaseMetadata.supportsOuterJoins()).thenReturn(true);
+        when(databaseMetadata.getJoinQuery()).thenReturn(joinQuery);
+        
+        this.layoutStore = new TestUserLayoutStore();
+        this.layoutStore.setDataSource(this.dataSource);
+        this.layoutStore.setPlatformTransactionManager(this.transactionManager);
+        this.layoutStore.setDatabaseMetadata(databaseMetadata);
+        this.layoutStore.setPortletDefinitionRegistry(mock(IPortletDefinitionRegistry.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.jdbcTemplate.update("DROP TABLE UP_LAYOUT_PARAM");
+        this.jdbcTemplate.update("DROP TABLE UP_LAYOUT_STRUCT");
+        this.jdbcTemplate.update("DROP TABLE UP_USER_LAYOUT");
+        this.jdbcTemplate.update("DROP TABLE UP_USER_PROFILE");
+        this.jdbcTemplate.update("DROP TABLE UP_USER");
+    }
+
+    @Test
+    public void testBulkLayoutsMatchPerUserLayouts() throws Exception {
+        final Map<String, Document> layouts = this.layoutStore.getPersonalUserLayouts(
+                Arrays.asList("owner-a", "owner-b", "owner-c", "unknown"), "default", null);
+        
+        //Users without a stored layout are left to the per-user path
+        assertEquals(new HashSet<String>(Arrays.asList("owner-a", "owner-b")), layouts.keySet());
+        
+        assertEquals(toString(this.layoutStore.getPersonalUserLayout(createPerson(10), createProfile(1, "default"))), toString(layouts.get("owner-a")));
+        assertEquals(toString(this.layoutStore.getPersonalUserLayout(createPerson(11), createProfile(2, "default"))), toString(layouts.get("owner-b")));
+        assertTrue(toString(layouts.get("owner-b")).contains("\"Tab B\""));
+    }
+
+    @Test
+    public void testBulkLayoutsInBatches() throws Exception {
+        this.layoutStore.setBulkLoadBatchSize(1);
+        
+        final Map<String, Document> layouts = this.layoutStore.getPersonalUserLayouts(
+                Arrays.asList("owner-a", "owner-b", "owner-c"), "default", null);
+        
+        assertEquals(new HashSet<String>(Arrays.asList("owner-a", "owner-b")), layouts.keySet());
+        assertEquals(toString(this.layoutStore.getPersonalUserLayout(createPerson(11), createProfile(2, "default"))), toString(layouts.get("owner-b")));
+    }
+
+    @Test
+    public void testGetLayoutID() throws Exception {
+        assertEquals(1, this.layoutStore.getLayoutID(10, 1));
+        assertEquals(1, this.layoutStore.getLayoutID(11, 1));
+        assertEquals(2, this.layoutStore.getLayoutID(11, 2));
+        assertEquals(0, this.layoutStore.getLayoutID(11, 3));
+        assertEquals(0, this.layoutStore.getLayoutID(12, 1));
+        assertEquals(0, this.layoutStore.getLayoutID(99, 1));
+    }
+
+    private void addUser(int userId, String userName) {
+        this.jdbcTemplate.update("INSERT INTO UP_USER VALUES (?, ?, ?, ?, ?)", userId, userName, TEMPLATE_USER_ID, 1, 10);
+    }
+
+    private void addProfile(int userId, int profileId, String profileFname, Integer layoutId) {
+        this.jdbcTemplate.update("INSERT INTO UP_USER_PROFILE VALUES (?, ?, ?, ?, ?)", userId, profileId, profileFname, profileFname, layoutId);
+    }
+
+    /**
+     * Adds a layout of a root folder containing a tab with a single portlet
+     */
+    private void addLayout(int userId, int layoutId, int rootId, String tabName, int chanId) {
+        final int tabId = rootId + 1;
+        final int channelId = rootId + 2;
+        this.jdbcTemplate.update("INSERT INTO UP_USER_LAYOUT VALUES (?, ?, ?)", userId, layoutId, rootId);
+        this.jdbcTemplate.update("INSERT INTO UP_LAYOUT_STRUCT VALUES (?, ?, ?, NULL, ?, NULL, 'Root', 'root', 'N', 'Y', 'N')", userId, layoutId, rootId, tabId);
+        this.jdbcTemplate.update("INSERT INTO UP_LAYOUT_STRUCT VALUES (?, ?, ?, NULL, ?, NULL, ?, 'regular', 'N', 'N', 'N')", userId, layoutId, tabId, channelId, tabName);
+        this.jdbcTemplate.update("INSERT INTO UP_LAYOUT_STRUCT VALUES (?, ?, ?, NULL, NULL, ?, NULL, NULL, 'N', 'N', 'N')", userId, layoutId, channelId, chanId);
+        this.jdbcTemplate.update("INSERT INTO UP_LAYOUT_PARAM VALUES (?, ?, ?, 'tabGroup', ?)", userId, layoutId, tabId, tabName);
+        this.jdbcTemplate.update("INSERT INTO UP_LAYOUT_PARAM VALUES (?, ?, ?, 'minimized', 'false')", userId, layoutId, channelId);
+    }
+
+    private static IPerson createPerson(int userId) {
+        final IPerson person = new PersonImpl();
+        person.setID(userId);
+        return person;
+    }
+
+    private static IUserProfile createProfile(int profileId, String profileFname) {
+        return new UserProfile(profileId, profileFname, profileFname, null, 0, 1, 1);
+    }
+
+    private static String toString(Node node) {
+        return XmlUtilitiesImpl.toString(node);
+    }
+    
+    /**
+     * Builds a plain element with the attributes and parameters of each stored structure
+     */
+    private static class TestUserLayoutStore extends RDBMUserLayoutStore {
+        @Override
+        protected Element getStructure(Document doc, LayoutStructure ls) {
+            final Element structure;
+            if (ls.isChannel()) {
+                structure = doc.createElement("channel");
+                structure.setAttribute("ID", channelPrefix + ls.getStructId());
+                structure.setAttribute("chanID", String.valueOf(ls.getChanId()));
+            }
+            else {
+                structure = doc.createElement("folder");
+                structure.setAttribute("ID", folderPrefix + ls.getStructId());
+                structure.setAttribute("name", ls.getName());
+                structure.setAttribute("type", ls.getType());
+            }
+            structure.setAttribute("hidden", String.valueOf(ls.isHidden()));
+            structure.setAttribute("unremovable", String.valueOf(ls.isUnremovable()));
+            structure.setAttribute("immutable", String.valueOf(ls.isImmutable()));
+            
+            for (final Object parameter : ls.getParameters()) {
+                final StructureParameter structureParameter = (StructureParameter) parameter;
+                final Element parameterElement = doc.createElement("parameter");
+                parameterElement.setAttribute("name", structureParameter.getName());
+                parameterElement.setAttribute("value", structureParameter.getValue());
+                structure.appendChild(parameterElement);
+            }
+            
+            return structure;
+        }
+
+        @Override
+        protected int saveStructure(Node node, LayoutRowSet layoutRows) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void importLayout(org.dom4j.Element layout) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLayoutImportExportCache(Cache<Tuple<String, String>, Document> layoutCache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DistributedUserLayout getUserLayout(IPerson person, IUserProfile profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public org.dom4j.Element exportLayout(IPerson person, IUserProfile profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setUserLayout(IPerson person, IUserProfile profile, Document layoutXML, boolean channelsAdded,
+                boolean updateFragmentCache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, Document> getFragmentLayoutCopies() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FragmentChannelInfo getFragmentChannelInfo(String sId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FragmentNodeInfo getFragmentNodeInfo(String sId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isFragmentOwner(IPerson person) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isFragmentOwner(String username) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Document getFragmentLayout(IPerson person, IUserProfile profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getNextStructDirectiveId(IPerson person) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double getFragmentPrecedence(int index) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
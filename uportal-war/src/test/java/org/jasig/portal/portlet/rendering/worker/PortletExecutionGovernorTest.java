@@ -0,0 +1,376 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.rendering.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.portlet.om.IPortletDescriptorKey;
+import org.jasig.portal.portlet.om.IPortletEntity;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.worker.PortletExecutionGovernor.CircuitState;
+import org.jasig.portal.portlet.rendering.worker.PortletExecutionGovernor.LatencyHistogram;
+import org.jasig.portal.portlet.rendering.worker.PortletExecutionGovernor.PortletExecutionState;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Unit tests for PortletExecutionGovernor.
+ */
+public class PortletExecutionGovernorTest {
+    
+    @Mock IPortletWindowRegistry portletWindowRegistry;
+    
+    @Mock IPortletWindowId portletWindowId;
+    
+    @Mock IPortletWindow portletWindow;
+    
+    @Mock IPortletEntity portletEntity;
+    
+    @Mock IPortletDefinition portletDefinition;
+    
+    @Mock IPortletDescriptorKey portletDescriptorKey;
+    
+    private final MockHttpServletRequest request = new MockHttpServletRequest();
+
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    
+    private PortletExecutionGovernor governor;
+    
+    @Before
+    public void setup() {
+        initMocks(this);
+        
+        when(portletWindowRegistry.getPortletWindow(request, portletWindowId)).thenReturn(portletWindow);
+        when(portletWindow.getPortletEntity()).thenReturn(portletEntity);
+        when(portletEntity.getPortletDefinition()).thenReturn(portletDefinition);
+        when(portletDefinition.getPortletDescriptorKey()).thenReturn(portletDescriptorKey);
+        
+        governor = new PortletExecutionGovernor();
+        governor.setPortletWindowRegistry(portletWindowRegistry);
+    }
+    
+    @Test
+    public void testBulkheadDeniesExcessWorkers() {
+        governor.setMaxConcurrentExecutions(2);
+        
+        final IPortletExecutionContext first = createContext();
+        final IPortletExecutionContext second = createContext();
+        submitAndStart(first);
+        submitAndStart(second);
+        
+        try {
+            governor.preSubmit(request, response, createContext());
+            fail("third concurrent worker should have been denied");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        
+        governor.postExecution(request, response, first, null);
+        
+        //A slot is free again
+        submitAndStart(createContext());
+    }
+    
+    @Test
+    public void testBulkheadReservesSlotOnSubmit() {
+        governor.setMaxConcurrentExecutions(2);
+        
+        //Submitted workers hold a slot before they start executing
+        final IPortletExecutionContext first = createContext();
+        governor.preSubmit(request, response, first);
+        governor.preSubmit(request, response, createContext());
+        
+        final IPortletExecutionContext denied = createContext();
+        try {
+            governor.preSubmit(request, response, denied);
+            fail("third submitted worker should have been denied");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        
+        //The denied worker still runs the execution lifecycle, it must not release a slot it never held
+        //or be recorded as an execution
+        governor.preExecution(request, response, denied);
+        governor.postExecution(request, response, denied, null);
+        final PortletExecutionState state = governor.getPortletExecutionState(portletDescriptorKey);
+        assertEquals(0, state.executionCount.get());
+        assertEquals(0, state.failedCount.get());
+        assertEquals(1, state.rejectedCount.get());
+        assertEquals(0, state.latencies.getSampleCount());
+        try {
+            governor.preSubmit(request, response, createContext());
+            fail("worker should have been denied, no slot has been released");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        
+        //Completing a worker releases its slot once
+        governor.postExecution(request, response, first, null);
+        governor.postExecution(request, response, first, null);
+        assertEquals(1, state.executionCount.get());
+        assertEquals(0, state.failedCount.get());
+        assertEquals(1, state.latencies.getSampleCount());
+        governor.preSubmit(request, response, createContext());
+        try {
+            governor.preSubmit(request, response, createContext());
+            fail("worker should have been denied, only one slot was released");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+    }
+    
+    @Test
+    public void testConcurrentSubmitsRespectBulkhead() throws Exception {
+        final int maxConcurrentExecutions = 3;
+        governor.setMaxConcurrentExecutions(maxConcurrentExecutions);
+        
+        final int threads = 16;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicInteger submitted = new AtomicInteger();
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                final IPortletExecutionContext context = createContext();
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        startLatch.await();
+                        try {
+                            governor.preSubmit(request, response, context);
+                            submitted.incrementAndGet();
+                        }
+                        catch (IllegalStateException e) {
+                            //denied
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            startLatch.countDown();
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        
+        assertEquals(maxConcurrentExecutions, submitted.get());
+    }
+    
+    @Test
+    public void testCircuitOpensOnFailures() {
+        governor.setFailureRateThreshold(.5);
+        governor.setCircuitBreakerMinExecutions(4);
+        governor.setCircuitBreakerOpenDuration(60000);
+        
+        for (int i = 0; i < 4; i++) {
+            final IPortletExecutionContext context = createContext();
+            submitAndStart(context);
+            governor.postExecution(request, response, context, i % 2 == 0 ? new Exception() : null);
+        }
+        
+        try {
+            governor.preSubmit(request, response, createContext());
+            fail("worker should have been denied by the open circuit");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        
+        assertTrue(governor.getPortletExecutionStates().values().iterator().next().startsWith("circuit=OPEN"));
+    }
+    
+    @Test
+    public void testDeniedWorkersDoNotCompleteTrial() throws Exception {
+        governor.setFailureRateThreshold(.5);
+        governor.setCircuitBreakerMinExecutions(1);
+        governor.setCircuitBreakerOpenDuration(50);
+        
+        final IPortletExecutionContext failed = createContext();
+        submitAndStart(failed);
+        governor.postExecution(request, response, failed, new Exception());
+        final PortletExecutionState state = governor.getPortletExecutionState(portletDescriptorKey);
+        assertEquals(CircuitState.OPEN, state.getCircuitState());
+        
+        //Worker denied while open, its lifecycle must not count as a success
+        final IPortletExecutionContext deniedOpen = createContext();
+        try {
+            governor.preSubmit(request, response, deniedOpen);
+            fail("worker should have been denied by the open circuit");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        governor.postExecution(request, response, deniedOpen, null);
+        
+        //Open duration elapsed, a single trial is submitted and other workers are denied while it executes
+        Thread.sleep(100);
+        final IPortletExecutionContext trial = createContext();
+        submitAndStart(trial);
+        assertEquals(CircuitState.HALF_OPEN, state.getCircuitState());
+        
+        final IPortletExecutionContext deniedHalfOpen = createContext();
+        try {
+            governor.preSubmit(request, response, deniedHalfOpen);
+            fail("worker should have been denied while the trial executes");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        governor.postExecution(request, response, deniedHalfOpen, null);
+        
+        //Only the trial's outcome closes the circuit
+        assertEquals(CircuitState.HALF_OPEN, state.getCircuitState());
+        assertEquals(1, state.executionCount.get());
+        assertEquals(1, state.failedCount.get());
+        assertEquals(2, state.rejectedCount.get());
+        assertEquals(1, state.latencies.getSampleCount());
+        
+        governor.postExecution(request, response, trial, null);
+        assertEquals(CircuitState.CLOSED, state.getCircuitState());
+        assertEquals(2, state.executionCount.get());
+        assertEquals(1, state.failedCount.get());
+    }
+    
+    @Test
+    public void testCircuitHalfOpenTrial() {
+        final PortletExecutionState state = new PortletExecutionState();
+        
+        assertTrue(state.recordOutcome(false, 0, 1000, 1, .5, 100));
+        assertEquals(CircuitState.OPEN, state.getCircuitState());
+        assertFalse(state.allowExecution(50, 100));
+        
+        //Open duration elapsed, only one trial allowed
+        assertTrue(state.allowExecution(101, 100));
+        assertFalse(state.allowExecution(102, 100));
+        assertEquals(CircuitState.HALF_OPEN, state.getCircuitState());
+        
+        //Failed trial re-opens
+        assertTrue(state.recordOutcome(false, 110, 1000, 1, .5, 100));
+        assertFalse(state.allowExecution(150, 100));
+        
+        //Successful trial closes
+        assertTrue(state.allowExecution(211, 100));
+        assertFalse(state.recordOutcome(true, 220, 1000, 1, .5, 100));
+        assertEquals(CircuitState.CLOSED, state.getCircuitState());
+        assertTrue(state.allowExecution(230, 100));
+    }
+    
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(.99));
+        
+        for (int i = 0; i < 98; i++) {
+            histogram.record(10);
+        }
+        histogram.record(900);
+        histogram.record(3000);
+        
+        assertEquals(16, histogram.getPercentile(.5));
+        assertEquals(1024, histogram.getPercentile(.99));
+        assertEquals(4096, histogram.getPercentile(1));
+        assertEquals(100, histogram.getSampleCount());
+    }
+    
+    @Test
+    public void testAdaptiveTimeout() {
+        governor.setAdaptiveTimeoutMultiplier(4);
+        governor.setAdaptiveTimeoutMinSamples(10);
+        governor.setAdaptiveTimeoutMinimum(100);
+        
+        //Not enough samples yet
+        assertEquals(5000, governor.getAdaptiveTimeout(portletDescriptorKey, 5000));
+        
+        for (int i = 0; i < 10; i++) {
+            final IPortletExecutionContext context = createContext();
+            when(context.getStartedTime()).thenReturn(System.currentTimeMillis() - 200);
+            submitAndStart(context);
+            governor.postExecution(request, response, context, null);
+        }
+        
+        //p99 bucket is 256ms (200ms +/- clock) so the timeout is 4x that, capped by the configured timeout
+        final long timeout = governor.getAdaptiveTimeout(portletDescriptorKey, 5000);
+        assertTrue("unexpected adaptive timeout " + timeout, timeout == 1024 || timeout == 2048);
+        assertEquals(500, governor.getAdaptiveTimeout(portletDescriptorKey, 500));
+    }
+    
+    private void submitAndStart(IPortletExecutionContext context) {
+        governor.preSubmit(request, response, context);
+        governor.preExecution(request, response, context);
+    }
+    
+    private IPortletExecutionContext createContext() {
+        final IPortletExecutionContext context = mock(IPortletExecutionContext.class);
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        
+        when(context.getPortletWindowId()).thenReturn(portletWindowId);
+        when(context.getPortletFname()).thenReturn("governed");
+        when(context.getStartedTime()).thenReturn(System.currentTimeMillis());
+        when(context.setExecutionAttribute(anyString(), any())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                return attributes.put((String)args[0], args[1]);
+            }
+        });
+        when(context.getExecutionAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+        
+        return context;
+    }
+}
@@ -18,12 +18,31 @@
  */
 package org.jasig.portal.rendering;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.OutputKeys;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEventImpl;
+import org.jasig.portal.events.IPortletExecutionEventFactory;
 import org.jasig.portal.url.IUrlSyntaxProvider;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -36,6 +55,10 @@ public class DynamicRenderingPipelineTest {
 
     @Mock CharacterPipelineComponent characterPipelineComponent;
 
+    @Mock IPortletExecutionEventFactory portalEventFactory;
+
+    @Mock PageVersionService pageVersionService;
+
     @Before
     public void beforeTests() {
         initMocks(this);
@@ -60,4 +83,92 @@ public class DynamicRenderingPipelineTest {
 
         assertEquals(friendlyToString, dynamicRenderingPipeline.toString());
     }
+
+    /**
+     * Test that pre-encoded and plain character data are both written when writing to the output stream.
+     */
+    @Test
+    public void writesEncodedCharacterDataToOutputStream() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        final List<CharacterEvent> events = Arrays.asList(
+                EncodedCharacterDataEventImpl.create("<p>caf\u00e9</p>"),
+                CharacterDataEventImpl.create("<p>na\u00efve</p>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader =
+                new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(
+                        new CharacterEventBufferReader(events.listIterator()),
+                        Collections.singletonMap(OutputKeys.MEDIA_TYPE, "text/html"));
+        when(characterPipelineComponent.getEventReader(request, response)).thenReturn(eventReader);
+
+        final DynamicRenderingPipeline dynamicRenderingPipeline = new DynamicRenderingPipeline();
+        dynamicRenderingPipeline.setUrlSyntaxProvider(urlSyntaxProvider);
+        dynamicRenderingPipeline.setPortalEventFactory(portalEventFactory);
+        dynamicRenderingPipeline.setPipeline(characterPipelineComponent);
+        dynamicRenderingPipeline.setWriteToOutputStream(true);
+
+        dynamicRenderingPipeline.renderState(request, response);
+
+        assertEquals("text/html; charset=UTF-8", response.getContentType());
+        assertArrayEquals("<p>caf\u00e9</p><p>na\u00efve</p>".getBytes("UTF-8"), response.getContentAsByteArray());
+    }
+
+    /**
+     * Test that an unchanged page without portlets is answered with a 304 without running the pipeline.
+     */
+    @Test
+    public void unchangedStaticPageIsNotModified() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        when(pageVersionService.getPageETag(request)).thenReturn("\"v1\"");
+        when(pageVersionService.isPageUnchanged(request, "\"v1\"")).thenReturn(true);
+
+        final DynamicRenderingPipeline dynamicRenderingPipeline = new DynamicRenderingPipeline();
+        dynamicRenderingPipeline.setUrlSyntaxProvider(urlSyntaxProvider);
+        dynamicRenderingPipeline.setPortalEventFactory(portalEventFactory);
+        dynamicRenderingPipeline.setPipeline(characterPipelineComponent);
+        dynamicRenderingPipeline.setPageVersionService(pageVersionService);
+        dynamicRenderingPipeline.setConditionalRendering(true);
+
+        dynamicRenderingPipeline.renderState(request, response);
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals("\"v1\"", response.getHeader("ETag"));
+        assertEquals(0, response.getContentAsByteArray().length);
+        verify(characterPipelineComponent, never()).getEventReader(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        verify(pageVersionService, never()).pageRendered(request, "\"v1\"");
+    }
+
+    /**
+     * Test that a changed page is rendered, sent with its ETag and reported to the page version service.
+     */
+    @Test
+    public void changedPageIsRendered() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        final List<CharacterEvent> events = Arrays.<CharacterEvent>asList(CharacterDataEventImpl.create("<p>page</p>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader =
+                new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(
+                        new CharacterEventBufferReader(events.listIterator()),
+                        Collections.singletonMap(OutputKeys.MEDIA_TYPE, "text/html"));
+        when(characterPipelineComponent.getEventReader(request, response)).thenReturn(eventReader);
+        when(pageVersionService.getPageETag(request)).thenReturn("\"v2\"");
+        when(pageVersionService.isPageUnchanged(request, "\"v2\"")).thenReturn(false);
+
+        final DynamicRenderingPipeline dynamicRenderingPipeline = new DynamicRenderingPipeline();
+        dynamicRenderingPipeline.setUrlSyntaxProvider(urlSyntaxProvider);
+        dynamicRenderingPipeline.setPortalEventFactory(portalEventFactory);
+        dynamicRenderingPipeline.setPipeline(characterPipelineComponent);
+        dynamicRenderingPipeline.setPageVersionService(pageVersionService);
+        dynamicRenderingPipeline.setConditionalRendering(true);
+
+        dynamicRenderingPipeline.renderState(request, response);
+
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals("\"v2\"", response.getHeader("ETag"));
+        assertEquals("<p>page</p>", response.getContentAsString());
+        verify(pageVersionService).pageRendered(request, "\"v2\"");
+    }
 }
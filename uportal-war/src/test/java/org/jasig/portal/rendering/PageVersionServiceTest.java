@@ -0,0 +1,175 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.portal.portlet.container.cache.CacheState;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.portlet.rendering.PortletRenderResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+public class PageVersionServiceTest {
+    @Mock private IPortletExecutionManager portletExecutionManager;
+    @Mock private IPortletCacheControlService portletCacheControlService;
+    @Mock private IPortletWindowId portletWindowId;
+    
+    private PageVersionService pageVersionService;
+    private MockHttpSession session;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        
+        this.pageVersionService = new PageVersionService();
+        this.pageVersionService.setPortletExecutionManager(this.portletExecutionManager);
+        this.pageVersionService.setPortletCacheControlService(this.portletCacheControlService);
+        this.pageVersionService.setMaxRenderedPages(2);
+        
+        this.session = new MockHttpSession();
+    }
+    
+    private MockHttpServletRequest createRequest(String ifNoneMatch) {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setSession(this.session);
+        if (ifNoneMatch != null) {
+            request.addHeader("If-None-Match", ifNoneMatch);
+        }
+        return request;
+    }
+    
+    private void setRenderedPortlets(MockHttpServletRequest request, Set<IPortletWindowId> headerPortletWindowIds, Set<IPortletWindowId> portletWindowIds) {
+        when(this.portletExecutionManager.getPortletHeaderRendersRequested(request)).thenReturn(headerPortletWindowIds);
+        when(this.portletExecutionManager.getPortletRendersRequested(request)).thenReturn(portletWindowIds);
+    }
+    
+    /**
+     * Sets the cached output returned for any request, null timeStored for no usable cached output
+     */
+    @SuppressWarnings("unchecked")
+    private void setCachedOutput(Long headerTimeStored, Long timeStored) {
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> headerCacheState = mock(CacheState.class);
+        if (headerTimeStored != null) {
+            final CachedPortletData<PortletRenderResult> cachedPortletData = mock(CachedPortletData.class);
+            when(cachedPortletData.getTimeStored()).thenReturn(headerTimeStored);
+            when(headerCacheState.isUseCachedData()).thenReturn(true);
+            when(headerCacheState.getCachedPortletData()).thenReturn(cachedPortletData);
+        }
+        
+        final CacheState<CachedPortletData<PortletRenderResult>, PortletRenderResult> cacheState = mock(CacheState.class);
+        if (timeStored != null) {
+            final CachedPortletData<PortletRenderResult> cachedPortletData = mock(CachedPortletData.class);
+            when(cachedPortletData.getTimeStored()).thenReturn(timeStored);
+            when(cacheState.isUseCachedData()).thenReturn(true);
+            when(cacheState.getCachedPortletData()).thenReturn(cachedPortletData);
+        }
+        
+        when(this.portletCacheControlService.getPortletRenderHeaderState(any(HttpServletRequest.class), eq(this.portletWindowId))).thenReturn(headerCacheState);
+        when(this.portletCacheControlService.getPortletRenderState(any(HttpServletRequest.class), eq(this.portletWindowId))).thenReturn(cacheState);
+    }
+    
+    @Test
+    public void testPageWithoutPortletsUnchanged() {
+        final MockHttpServletRequest renderRequest = createRequest(null);
+        setRenderedPortlets(renderRequest, Collections.<IPortletWindowId>emptySet(), Collections.<IPortletWindowId>emptySet());
+        this.pageVersionService.pageRendered(renderRequest, "\"a\"");
+        
+        assertTrue(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"b\""));
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest(null), "\"a\""));
+    }
+    
+    @Test
+    public void testPageWithCachedPortletsUnchanged() {
+        final MockHttpServletRequest renderRequest = createRequest(null);
+        setRenderedPortlets(renderRequest, Collections.singleton(this.portletWindowId), Collections.singleton(this.portletWindowId));
+        setCachedOutput(1000l, 2000l);
+        this.pageVersionService.pageRendered(renderRequest, "\"a\"");
+        
+        //Same cached output is still valid
+        assertTrue(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        
+        //New body output was cached
+        setCachedOutput(1000l, 3000l);
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        
+        //Header output expired or was purged
+        setCachedOutput(null, 2000l);
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        
+        //Original output back in the cache
+        setCachedOutput(1000l, 2000l);
+        assertTrue(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+    }
+    
+    @Test
+    public void testPageWithUncachedPortletNotRemembered() {
+        final MockHttpServletRequest renderRequest = createRequest(null);
+        setRenderedPortlets(renderRequest, Collections.<IPortletWindowId>emptySet(), Collections.singleton(this.portletWindowId));
+        setCachedOutput(null, null);
+        this.pageVersionService.pageRendered(renderRequest, "\"a\"");
+        
+        //Output cached later does not make the page eligible, it was never remembered
+        setCachedOutput(null, 2000l);
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        assertFalse(this.session.getAttributeNames().hasMoreElements());
+    }
+    
+    @Test
+    public void testPageWithFailedPortletNotRemembered() {
+        final MockHttpServletRequest renderRequest = createRequest(null);
+        setRenderedPortlets(renderRequest, Collections.<IPortletWindowId>emptySet(), Collections.singleton(this.portletWindowId));
+        setCachedOutput(null, 2000l);
+        when(this.portletExecutionManager.isAnyPortletRenderFailed(renderRequest)).thenReturn(true);
+        this.pageVersionService.pageRendered(renderRequest, "\"a\"");
+        
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+    }
+    
+    @Test
+    public void testOldestRenderedPageEvicted() {
+        for (final String etag : new String[] { "\"a\"", "\"b\"", "\"c\"" }) {
+            final MockHttpServletRequest renderRequest = createRequest(null);
+            setRenderedPortlets(renderRequest, Collections.<IPortletWindowId>emptySet(), Collections.<IPortletWindowId>emptySet());
+            this.pageVersionService.pageRendered(renderRequest, etag);
+        }
+        
+        assertFalse(this.pageVersionService.isPageUnchanged(createRequest("\"a\""), "\"a\""));
+        assertTrue(this.pageVersionService.isPageUnchanged(createRequest("\"b\""), "\"b\""));
+        assertTrue(this.pageVersionService.isPageUnchanged(createRequest("\"c\""), "\"c\""));
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Unit tests for PortletRenderingIncorporationComponent.
+ */
+public class PortletRenderingIncorporationComponentTest {
+
+    @Mock CharacterPipelineComponent wrappedComponent;
+
+    @Mock IPortletExecutionManager portletExecutionManager;
+
+    @Mock IPortletWindowId fastPortletWindowId;
+
+    @Mock IPortletWindowId slowPortletWindowId;
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest();
+
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @Before
+    public void beforeTests() {
+        initMocks(this);
+
+        final List<CharacterEvent> events = Arrays.<CharacterEvent>asList(
+                CharacterDataEventImpl.create("<body>"),
+                new PortletContentPlaceholderEventImpl(slowPortletWindowId),
+                CharacterDataEventImpl.create("<hr/>"),
+                new PortletContentPlaceholderEventImpl(fastPortletWindowId),
+                CharacterDataEventImpl.create("<p/></body></html>"));
+        when(wrappedComponent.getEventReader(request, response)).thenReturn(
+                new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(events.listIterator())));
+
+        when(portletExecutionManager.isPortletRenderComplete(fastPortletWindowId, request, response)).thenReturn(true);
+        when(portletExecutionManager.isPortletRenderComplete(slowPortletWindowId, request, response)).thenReturn(false);
+        when(portletExecutionManager.isPortletRenderRequested(slowPortletWindowId, request, response)).thenReturn(true);
+        when(portletExecutionManager.getPortletOutput(fastPortletWindowId, request, response)).thenReturn("fast");
+        when(portletExecutionManager.getPortletOutput(slowPortletWindowId, request, response)).thenReturn("slow");
+    }
+
+    /**
+     * Test that portlet content is written in place when progressive rendering is disabled.
+     */
+    @Test
+    public void incorporatesPortletContentInPlace() {
+        final PortletRenderingIncorporationComponent component = createComponent(false);
+
+        assertEquals("<body>slow<hr/>fast<p/></body></html>", render(component));
+        verify(portletExecutionManager, never()).isPortletRenderComplete(slowPortletWindowId, request, response);
+    }
+
+    /**
+     * Test that incomplete portlet content is deferred until the end of the body.
+     */
+    @Test
+    public void defersIncompletePortletContent() {
+        final PortletRenderingIncorporationComponent component = createComponent(true);
+
+        final String output = render(component);
+
+        final String expectedPage = "<body><div id=\"up-deferred-portlet-0\" class=\"up-portlet-deferred\"></div><hr/>fast<p/>";
+        assertTrue(output, output.startsWith(expectedPage));
+        assertTrue(output, output.substring(expectedPage.length()).startsWith(
+                "<div id=\"up-deferred-portlet-0-content\" style=\"display:none\">slow</div><script"));
+        assertTrue(output, output.endsWith("</script></body></html>"));
+    }
+
+    /**
+     * Test that deferred portlet content is written after the page when there is no closing body tag.
+     */
+    @Test
+    public void defersToEndOfPageWithoutBody() {
+        final List<CharacterEvent> events = Arrays.<CharacterEvent>asList(
+                new PortletContentPlaceholderEventImpl(slowPortletWindowId),
+                CharacterDataEventImpl.create("<hr/>"));
+        when(wrappedComponent.getEventReader(request, response)).thenReturn(
+                new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(events.listIterator())));
+        final PortletRenderingIncorporationComponent component = createComponent(true);
+
+        final String output = render(component);
+
+        assertTrue(output, output.startsWith("<div id=\"up-deferred-portlet-0\" class=\"up-portlet-deferred\"></div><hr/>"
+                + "<div id=\"up-deferred-portlet-0-content\" style=\"display:none\">slow</div><script"));
+        assertTrue(output, output.endsWith("</script>"));
+    }
+
+    private PortletRenderingIncorporationComponent createComponent(boolean progressiveRendering) {
+        final PortletRenderingIncorporationComponent component = new PortletRenderingIncorporationComponent();
+        component.setWrappedComponent(wrappedComponent);
+        component.setPortletExecutionManager(portletExecutionManager);
+        component.setProgressiveRendering(progressiveRendering);
+        return component;
+    }
+
+    private String render(PortletRenderingIncorporationComponent component) {
+        final StringBuilder output = new StringBuilder();
+        for (final CharacterEvent event : component.getEventReader(request, response)) {
+            output.append(((CharacterDataEvent) event).getData());
+        }
+        return output.toString();
+    }
+}
@@ -18,6 +18,7 @@
  */
 package org.jasig.portal.rendering.cache;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
@@ -25,6 +26,7 @@ import static org.easymock.EasyMock.notNull;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -33,7 +35,10 @@ import net.sf.ehcache.Element;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.easymock.Capture;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
@@ -116,4 +121,107 @@ public class CachingCharacterPipelineComponentTest {
         
         verify(cache, targetComponent, elementsProvider);
     }
+    
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCacheMissMergesCharacterData() {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        final CacheKey cacheKey = CacheKey.build("testCacheKey");
+        final CharacterEvent placeholderEvent = new PortletContentPlaceholderEventImpl(null);
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                CharacterDataEventImpl.create("<div>"),
+                CharacterDataEventImpl.create("  "),
+                CharacterDataEventImpl.create("<span>"),
+                placeholderEvent,
+                CharacterDataEventImpl.create("</span>"),
+                CharacterDataEventImpl.create("</div>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader = new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(eventBuffer.listIterator()));
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        final CharacterPipelineComponent targetComponent = createMock(CharacterPipelineComponent.class);
+        final ResourcesElementsProvider elementsProvider = createMock(ResourcesElementsProvider.class);
+        final Capture<Element> elementCapture = new Capture<Element>();
+        
+        expect(elementsProvider.getDefaultIncludedType()).andReturn(Included.AGGREGATED);
+        expect(targetComponent.getCacheKey(mockReq, mockRes)).andReturn(cacheKey);
+        expect(cache.get(cacheKey)).andReturn(null);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        cache.put(capture(elementCapture));
+        expectLastCall();
+        
+        replay(cache, targetComponent, elementsProvider);
+        
+        final CachingCharacterPipelineComponent cachingComponent = new CachingCharacterPipelineComponent();
+        cachingComponent.setCache(cache);
+        cachingComponent.setWrappedComponent(targetComponent);
+        cachingComponent.setResourcesElementsProvider(elementsProvider);
+        
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> actualEventReader = cachingComponent.getEventReader(mockReq, mockRes);
+
+        final CharacterEventReader reader = actualEventReader.getEventReader();
+        Assert.assertEquals(CharacterDataEventImpl.create("<div>  <span>"), reader.next());
+        Assert.assertSame(placeholderEvent, reader.next());
+        Assert.assertEquals(CharacterDataEventImpl.create("</span></div>"), reader.next());
+        Assert.assertFalse(reader.hasNext());
+        
+        final CachedEventReader<CharacterEvent> cachedEventReader = (CachedEventReader<CharacterEvent>) elementCapture.getValue().getObjectValue();
+        Assert.assertEquals(3, cachedEventReader.getEventCount());
+        
+        final EventCacheStatistics cacheStatistics = cachingComponent.getCacheStatistics();
+        Assert.assertEquals(1, cacheStatistics.getEntryCount());
+        Assert.assertEquals(6, cacheStatistics.getSourceEventCount());
+        Assert.assertEquals(3, cacheStatistics.getCachedEventCount());
+        Assert.assertTrue(cacheStatistics.getLastEntryEstimatedBytes() > 0);
+        
+        verify(cache, targetComponent, elementsProvider);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCacheMissKeepsEventsWhenMergeDeclined() {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        final CacheKey cacheKey = CacheKey.build("testCacheKey");
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                CharacterDataEventImpl.create("<div>"),
+                CharacterDataEventImpl.create("</div>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader = new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(eventBuffer.listIterator()));
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        final CharacterPipelineComponent targetComponent = createMock(CharacterPipelineComponent.class);
+        final ResourcesElementsProvider elementsProvider = createMock(ResourcesElementsProvider.class);
+        final Capture<Element> elementCapture = new Capture<Element>();
+        
+        expect(elementsProvider.getDefaultIncludedType()).andReturn(Included.AGGREGATED);
+        expect(targetComponent.getCacheKey(mockReq, mockRes)).andReturn(cacheKey);
+        expect(cache.get(cacheKey)).andReturn(null);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        cache.put(capture(elementCapture));
+        expectLastCall();
+        
+        replay(cache, targetComponent, elementsProvider);
+        
+        final CachingCharacterPipelineComponent cachingComponent = new CachingCharacterPipelineComponent() {
+            @Override
+            protected CharacterEvent createMergedEvent(String data) {
+                return null;
+            }
+        };
+        cachingComponent.setCache(cache);
+        cachingComponent.setWrappedComponent(targetComponent);
+        cachingComponent.setResourcesElementsProvider(elementsProvider);
+        
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> actualEventReader = cachingComponent.getEventReader(mockReq, mockRes);
+
+        final CharacterEventReader reader = actualEventReader.getEventReader();
+        Assert.assertEquals(CharacterDataEventImpl.create("<div>"), reader.next());
+        Assert.assertEquals(CharacterDataEventImpl.create("</div>"), reader.next());
+        Assert.assertFalse(reader.hasNext());
+        
+        final CachedEventReader<CharacterEvent> cachedEventReader = (CachedEventReader<CharacterEvent>) elementCapture.getValue().getObjectValue();
+        Assert.assertEquals(2, cachedEventReader.getEventCount());
+        
+        verify(cache, targetComponent, elementsProvider);
+    }
 }
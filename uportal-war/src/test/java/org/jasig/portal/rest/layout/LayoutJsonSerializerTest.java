@@ -0,0 +1,189 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.rest.layout;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
+import org.jasig.portal.layout.node.UserLayoutChannelDescription;
+import org.jasig.portal.layout.node.UserLayoutFolderDescription;
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.IPortletRenderer;
+import org.jasig.portal.url.IPortalUrlBuilder;
+import org.jasig.portal.url.IPortalUrlProvider;
+import org.jasig.portal.url.IPortletUrlBuilder;
+import org.jasig.portal.url.UrlType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class LayoutJsonSerializerTest {
+    private final Map<String, IUserLayoutNodeDescription> nodes = new HashMap<String, IUserLayoutNodeDescription>();
+    private final Map<String, String[]> children = new HashMap<String, String[]>();
+    private LayoutJsonSerializer layoutJsonSerializer;
+    private IUserLayoutManager layoutManager;
+    private IPortletUrlBuilder portletUrlBuilder;
+    private MockHttpServletRequest request;
+    
+    @Before
+    public void setup() {
+        this.layoutManager = mock(IUserLayoutManager.class);
+        when(this.layoutManager.getRootFolderId()).thenReturn("s1");
+        when(this.layoutManager.getNode(anyString())).thenAnswer(new Answer<IUserLayoutNodeDescription>() {
+            @Override
+            public IUserLayoutNodeDescription answer(InvocationOnMock invocation) throws Throwable {
+                return nodes.get(invocation.getArguments()[0]);
+            }
+        });
+        when(this.layoutManager.getChildIds(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final String[] childIds = children.get(invocation.getArguments()[0]);
+                return Collections.enumeration(childIds != null ? Arrays.asList(childIds) : Collections.<String>emptyList());
+            }
+        });
+        
+        addFolder("s1", "Root", "root", "s2", "s3", "s6");
+        addFolder("s2", "Header", "header", "n10");
+        addFolder("s3", "Welcome", "regular", "s4", "s5");
+        addFolder("s4", "Column 1", "regular", "n11", "n12");
+        addFolder("s5", "Column 2", "regular", "n13");
+        addFolder("s6", "Footer", "footer", "n14");
+        addPortlet("n10", "login", "Sign In");
+        addPortlet("n11", "email", "Email \"Inbox\"").setParameterValue("mobileIconUrl", "/icons/email.png");
+        addPortlet("n12", "desktop-only", "Desktop Only").setParameterValue("hideFromMobile", "true");
+        addPortlet("n13", "grades", "Grades").setParameterValue("blockImpersonation", "true");
+        addPortlet("n14", "about", "About");
+        
+        this.request = new MockHttpServletRequest();
+        this.request.setContextPath("/uPortal");
+        
+        final IPortalUrlProvider portalUrlProvider = mock(IPortalUrlProvider.class);
+        final IPortletWindowRegistry portletWindowRegistry = mock(IPortletWindowRegistry.class);
+        final IPortletWindow portletWindow = mock(IPortletWindow.class);
+        final IPortletWindowId portletWindowId = mock(IPortletWindowId.class);
+        this.portletUrlBuilder = mock(IPortletUrlBuilder.class);
+        when(portletWindow.getPortletWindowId()).thenReturn(portletWindowId);
+        when(portletWindowRegistry.getOrCreateDefaultPortletWindowByLayoutNodeId(any(HttpServletRequest.class), anyString())).thenReturn(portletWindow);
+        when(portalUrlProvider.getPortalUrlBuilderByLayoutNode(any(HttpServletRequest.class), anyString(), eq(UrlType.RENDER))).thenAnswer(new Answer<IPortalUrlBuilder>() {
+            @Override
+            public IPortalUrlBuilder answer(InvocationOnMock invocation) throws Throwable {
+                final IPortalUrlBuilder portalUrlBuilder = mock(IPortalUrlBuilder.class);
+                when(portalUrlBuilder.getPortletUrlBuilder(any(IPortletWindowId.class))).thenReturn(portletUrlBuilder);
+                when(portalUrlBuilder.getUrlString()).thenReturn("/uPortal/p/" + invocation.getArguments()[1] + "/detached/render.uP");
+                return portalUrlBuilder;
+            }
+        });
+        
+        this.layoutJsonSerializer = new LayoutJsonSerializer();
+        this.layoutJsonSerializer.setPortalUrlProvider(portalUrlProvider);
+        this.layoutJsonSerializer.setPortletWindowRegistry(portletWindowRegistry);
+    }
+    
+    @Test
+    public void testWriteLayout() throws Exception {
+        final JsonNode json = this.writeLayout(false);
+        
+        assertEquals("student", json.get("user").asText());
+        assertEquals("en-US", json.get("locale").asText());
+        
+        final JsonNode layout = json.get("layout");
+        final JsonNode headerPortlets = layout.get("header").get("portlets");
+        assertEquals(1, headerPortlets.size());
+        assertEquals("login", headerPortlets.get(0).get("fname").asText());
+        assertEquals("/uPortal/media/skins/icons/mobile/default.png", headerPortlets.get(0).get("iconUrl").asText());
+        
+        final JsonNode folders = layout.get("folders");
+        assertEquals(1, folders.size());
+        assertEquals("s3", folders.get(0).get("id").asText());
+        assertEquals("Welcome", folders.get(0).get("title").asText());
+        
+        final JsonNode tabPortlets = folders.get(0).get("portlets");
+        assertEquals(2, tabPortlets.size());
+        assertEquals("email", tabPortlets.get(0).get("fname").asText());
+        assertEquals("Email \"Inbox\"", tabPortlets.get(0).get("title").asText());
+        assertEquals("/uPortal/p/n11/detached/render.uP", tabPortlets.get(0).get("url").asText());
+        assertEquals("/icons/email.png", tabPortlets.get(0).get("iconUrl").asText());
+        assertEquals("grades", tabPortlets.get(1).get("fname").asText());
+        
+        final JsonNode footerPortlets = layout.get("footer").get("portlets");
+        assertEquals(1, footerPortlets.size());
+        assertEquals("about", footerPortlets.get(0).get("fname").asText());
+        
+        verify(this.portletUrlBuilder, times(4)).setWindowState(IPortletRenderer.DETACHED);
+    }
+    
+    @Test
+    public void testWriteLayoutImpersonating() throws Exception {
+        final JsonNode json = this.writeLayout(true);
+        
+        final JsonNode tabPortlets = json.get("layout").get("folders").get(0).get("portlets");
+        assertEquals(1, tabPortlets.size());
+        assertEquals("email", tabPortlets.get(0).get("fname").asText());
+    }
+    
+    private JsonNode writeLayout(boolean impersonating) throws Exception {
+        final StringWriter writer = new StringWriter();
+        this.layoutJsonSerializer.writeLayout(this.request, this.layoutManager, "student", Locale.US, impersonating, writer);
+        return new ObjectMapper().readTree(writer.toString());
+    }
+    
+    private void addFolder(String id, String name, String type, String... childIds) {
+        final UserLayoutFolderDescription folder = new UserLayoutFolderDescription();
+        folder.setId(id);
+        folder.setName(name);
+        folder.setFolderType(type);
+        this.nodes.put(id, folder);
+        this.children.put(id, childIds);
+    }
+    
+    private UserLayoutChannelDescription addPortlet(String id, String fname, String title) {
+        final UserLayoutChannelDescription channel = new UserLayoutChannelDescription();
+        channel.setId(id);
+        channel.setFunctionalName(fname);
+        channel.setTitle(title);
+        channel.setDescription(title + " portlet");
+        this.nodes.put(id, channel);
+        return channel;
+    }
+}
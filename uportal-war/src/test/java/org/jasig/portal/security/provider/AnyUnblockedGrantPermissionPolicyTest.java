@@ -0,0 +1,198 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jasig.portal.permission.IPermissionActivity;
+import org.jasig.portal.permission.IPermissionOwner;
+import org.jasig.portal.permission.dao.IPermissionOwnerDao;
+import org.jasig.portal.permission.target.IPermissionTarget;
+import org.jasig.portal.permission.target.IPermissionTarget.TargetType;
+import org.jasig.portal.permission.target.IPermissionTargetProvider;
+import org.jasig.portal.permission.target.IPermissionTargetProviderRegistry;
+import org.jasig.portal.permission.target.PermissionTargetImpl;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IAuthorizationService;
+import org.jasig.portal.security.IEffectivePermissions;
+import org.jasig.portal.security.IPermission;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AnyUnblockedGrantPermissionPolicyTest {
+    private static final String TARGET_PROVIDER = "portlets";
+    
+    @InjectMocks private AnyUnblockedGrantPermissionPolicy policy;
+    @Mock private IPermissionOwnerDao permissionOwnerDao;
+    @Mock private IPermissionTargetProviderRegistry targetProviderRegistry;
+    @Mock private IPermissionTargetProvider targetProvider;
+    @Mock private IAuthorizationService service;
+    @Mock private IAuthorizationPrincipal principal;
+    @Mock private IPermissionOwner subscribeOwner;
+    @Mock private IPermissionOwner systemOwner;
+    @Mock private IPermissionActivity browseActivity;
+    @Mock private IPermissionActivity allPermissionsActivity;
+    @Mock private IEffectivePermissions browsePermissions;
+    @Mock private IEffectivePermissions allPermissions;
+    
+    private final Set<String> browseGrants = new HashSet<String>();
+    private final Set<String> allGrants = new HashSet<String>();
+    
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        
+        when(this.subscribeOwner.getFname()).thenReturn(IPermission.PORTAL_SUBSCRIBE);
+        when(this.systemOwner.getFname()).thenReturn(IPermission.PORTAL_SYSTEM);
+        when(this.browseActivity.getFname()).thenReturn(IPermission.PORTLET_BROWSE_ACTIVITY);
+        when(this.browseActivity.getTargetProviderKey()).thenReturn(TARGET_PROVIDER);
+        when(this.allPermissionsActivity.getFname()).thenReturn(IPermission.ALL_PERMISSIONS_ACTIVITY);
+        when(this.allPermissionsActivity.getTargetProviderKey()).thenReturn(TARGET_PROVIDER);
+        
+        when(this.permissionOwnerDao.getPermissionOwner(IPermission.PORTAL_SYSTEM)).thenReturn(this.systemOwner);
+        when(this.permissionOwnerDao.getPermissionActivity(IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY))
+            .thenReturn(this.allPermissionsActivity);
+        
+        when(this.targetProviderRegistry.getTargetProvider(TARGET_PROVIDER)).thenReturn(this.targetProvider);
+        when(this.targetProvider.getTarget(anyString())).thenAnswer(new Answer<IPermissionTarget>() {
+            @Override
+            public IPermissionTarget answer(InvocationOnMock invocation) throws Throwable {
+                return portletTarget((String) invocation.getArguments()[0]);
+            }
+        });
+        
+        when(this.service.getEffectivePermissions(this.principal, IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_BROWSE_ACTIVITY))
+            .thenReturn(this.browsePermissions);
+        when(this.service.getEffectivePermissions(this.principal, IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY))
+            .thenReturn(this.allPermissions);
+        when(this.browsePermissions.hasUnblockedGrant(anyString())).thenAnswer(new GrantAnswer(this.browseGrants));
+        when(this.allPermissions.hasUnblockedGrant(anyString())).thenAnswer(new GrantAnswer(this.allGrants));
+    }
+    
+    @Test
+    public void testPermittedTargets() throws Exception {
+        this.browseGrants.add("PORTLET_ID.1");
+        this.browseGrants.add("PORTLET_ID.3");
+        
+        final List<IPermissionTarget> targets = portletTargets("PORTLET_ID.1", "PORTLET_ID.2", "PORTLET_ID.3", "PORTLET_ID.4");
+        final Set<IPermissionTarget> permitted = this.policy.getPermittedTargets(this.service, this.principal,
+                this.subscribeOwner, this.browseActivity, targets);
+        
+        assertEquals(new HashSet<IPermissionTarget>(portletTargets("PORTLET_ID.1", "PORTLET_ID.3")), permitted);
+        this.assertSameAsSingleChecks(targets, permitted);
+    }
+    
+    @Test
+    public void testPermittedTargetsSharesLookups() throws Exception {
+        this.browseGrants.add("PORTLET_ID.2");
+        
+        this.policy.getPermittedTargets(this.service, this.principal, this.subscribeOwner, this.browseActivity,
+                portletTargets("PORTLET_ID.1", "PORTLET_ID.2", "PORTLET_ID.3", "PORTLET_ID.4", "PORTLET_ID.5"));
+        
+        //Once for the super-user check, once for the collective target and each portlet
+        verify(this.service, times(1)).getEffectivePermissions(this.principal, IPermission.PORTAL_SYSTEM, IPermission.ALL_PERMISSIONS_ACTIVITY);
+        verify(this.service, times(1)).getEffectivePermissions(this.principal, IPermission.PORTAL_SUBSCRIBE, IPermission.PORTLET_BROWSE_ACTIVITY);
+        verify(this.browsePermissions, times(1)).hasUnblockedGrant(IPermission.ALL_PORTLETS_TARGET);
+    }
+    
+    @Test
+    public void testCollectiveTarget() throws Exception {
+        this.browseGrants.add(IPermission.ALL_PORTLETS_TARGET);
+        
+        final List<IPermissionTarget> targets = portletTargets("PORTLET_ID.1", "PORTLET_ID.2");
+        final Set<IPermissionTarget> permitted = this.policy.getPermittedTargets(this.service, this.principal,
+                this.subscribeOwner, this.browseActivity, targets);
+        
+        assertEquals(new HashSet<IPermissionTarget>(targets), permitted);
+        this.assertSameAsSingleChecks(targets, permitted);
+    }
+    
+    @Test
+    public void testSuperUser() throws Exception {
+        this.allGrants.add(IPermission.ALL_TARGET);
+        
+        final List<IPermissionTarget> targets = portletTargets("PORTLET_ID.1", "PORTLET_ID.2");
+        final Set<IPermissionTarget> permitted = this.policy.getPermittedTargets(this.service, this.principal,
+                this.subscribeOwner, this.browseActivity, targets);
+        
+        assertEquals(new HashSet<IPermissionTarget>(targets), permitted);
+        this.assertSameAsSingleChecks(targets, permitted);
+    }
+    
+    @Test
+    public void testNoTargets() throws Exception {
+        assertEquals(Collections.emptySet(), this.policy.getPermittedTargets(this.service, this.principal,
+                this.subscribeOwner, this.browseActivity, Collections.<IPermissionTarget>emptyList()));
+    }
+    
+    private void assertSameAsSingleChecks(List<IPermissionTarget> targets, Set<IPermissionTarget> permitted) throws Exception {
+        for (final IPermissionTarget target : targets) {
+            final boolean single = this.policy.doesPrincipalHavePermission(this.service, this.principal,
+                    this.subscribeOwner, this.browseActivity, target);
+            if (permitted.contains(target)) {
+                assertTrue(target.getKey(), single);
+            }
+            else {
+                assertFalse(target.getKey(), single);
+            }
+        }
+    }
+    
+    private static List<IPermissionTarget> portletTargets(String... keys) {
+        final IPermissionTarget[] targets = new IPermissionTarget[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            targets[i] = portletTarget(keys[i]);
+        }
+        return Arrays.asList(targets);
+    }
+    
+    private static IPermissionTarget portletTarget(String key) {
+        return new PermissionTargetImpl(key, key, TargetType.PORTLET);
+    }
+    
+    private static final class GrantAnswer implements Answer<Boolean> {
+        private final Set<String> grants;
+        
+        public GrantAnswer(Set<String> grants) {
+            this.grants = grants;
+        }
+        
+        @Override
+        public Boolean answer(InvocationOnMock invocation) throws Throwable {
+            return this.grants.contains(invocation.getArguments()[0]);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EffectivePermissionsImplTest {
+    private static final String OWNER = "UP_PORTLET_SUBSCRIBE";
+    private static final String ACTIVITY = "BROWSE";
+    
+    /*
+     * 0 Principal -- 1 Small group -- 3 Bigger group -- 4 Huge group
+     * 0 Principal -- 2 Other group -- 3 Bigger group
+     */
+    private static final int[][] PARENTS = new int[][] { { 1, 2 }, { 3 }, { 3 }, { 4 }, {} };
+    
+    private final Map<String, BitSet> grants = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> denies = new HashMap<String, BitSet>();
+    private AuthorizationImpl authorizationService;
+    
+    @Before
+    public void setup() throws Exception {
+        this.authorizationService = mock(AuthorizationImpl.class);
+        for (final String target : Arrays.asList("PORTLET_ID_1", "PORTLET_ID_2", "PORTLET_ID_3", "PORTLET_ID_4")) {
+            when(this.authorizationService.getTargetKeys(OWNER, ACTIVITY, target)).thenReturn(Collections.singleton(target));
+        }
+        when(this.authorizationService.getTargetKeys(OWNER, ACTIVITY, "PORTLET_ID_5")).thenReturn(
+                new HashSet<String>(Arrays.asList("PORTLET_ID_5", "local.10")));
+    }
+    
+    @Test
+    public void testUnblockedGrant() throws Exception {
+        //Explicit grant on the principal
+        this.permission(this.grants, "PORTLET_ID_1", 0);
+        //Grant on a containing group
+        this.permission(this.grants, "PORTLET_ID_2", 4);
+        //Grant blocked on every path
+        this.permission(this.grants, "PORTLET_ID_3", 4);
+        this.permission(this.denies, "PORTLET_ID_3", 3);
+        //Grant blocked on one path but not the other
+        this.permission(this.grants, "PORTLET_ID_4", 3);
+        this.permission(this.denies, "PORTLET_ID_4", 1);
+        //Grant on a group containing the target
+        this.permission(this.grants, "local.10", 2);
+        
+        final EffectivePermissionsImpl effectivePermissions = this.build();
+        
+        assertTrue(effectivePermissions.hasUnblockedGrant("PORTLET_ID_1"));
+        assertTrue(effectivePermissions.hasUnblockedGrant("PORTLET_ID_2"));
+        assertFalse(effectivePermissions.hasUnblockedGrant("PORTLET_ID_3"));
+        assertTrue(effectivePermissions.hasUnblockedGrant("PORTLET_ID_4"));
+        assertTrue(effectivePermissions.hasUnblockedGrant("PORTLET_ID_5"));
+        
+        assertEquals(new HashSet<String>(Arrays.asList("PORTLET_ID_1", "PORTLET_ID_2", "PORTLET_ID_3", "PORTLET_ID_4", "local.10")),
+                effectivePermissions.getTargets());
+    }
+    
+    @Test
+    public void testDenyOnPrincipal() throws Exception {
+        this.permission(this.grants, "PORTLET_ID_1", 0);
+        this.permission(this.denies, "PORTLET_ID_1", 0);
+        this.permission(this.grants, "PORTLET_ID_2", 1);
+        this.permission(this.denies, "PORTLET_ID_2", 0);
+        
+        final EffectivePermissionsImpl effectivePermissions = this.build();
+        
+        assertFalse(effectivePermissions.hasUnblockedGrant("PORTLET_ID_1"));
+        assertFalse(effectivePermissions.hasUnblockedGrant("PORTLET_ID_2"));
+    }
+    
+    @Test
+    public void testCurrent() throws Exception {
+        final EffectivePermissionsImpl effectivePermissions = new EffectivePermissionsImpl(this.authorizationService,
+                mock(IAuthorizationPrincipal.class), OWNER, ACTIVITY, PARENTS, this.grants, this.denies, 3, 1000);
+        
+        assertTrue(effectivePermissions.isCurrent(3, 999));
+        assertFalse(effectivePermissions.isCurrent(3, 1000));
+        assertFalse(effectivePermissions.isCurrent(4, 999));
+        assertFalse(effectivePermissions.hasUnblockedGrant("PORTLET_ID_1"));
+    }
+    
+    private EffectivePermissionsImpl build() {
+        return new EffectivePermissionsImpl(this.authorizationService, mock(IAuthorizationPrincipal.class), OWNER,
+                ACTIVITY, PARENTS, this.grants, this.denies, 0, Long.MAX_VALUE);
+    }
+    
+    private void permission(Map<String, BitSet> permissions, String target, int principalIndex) {
+        BitSet principals = permissions.get(target);
+        if (principals == null) {
+            principals = new BitSet();
+            permissions.put(target, principals);
+        }
+        principals.set(principalIndex);
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.security.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+public class InMemoryPermissionStoreTest {
+    private static final String OWNER = "UP_PORTLET_SUBSCRIBE";
+    private static final String ACTIVITY = "SUBSCRIBE";
+    
+    private InMemoryPermissionStore store;
+    @Mock private IPermissionStore delegate;
+    @Mock private JdbcOperations jdbcOperations;
+    @Mock private TransactionOperations transactionOperations;
+    @Mock private ApplicationEventPublisher applicationEventPublisher;
+    
+    private long version = 4;
+    
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        
+        when(this.jdbcOperations.queryForList(anyString(), eq(Long.class), eq(InMemoryPermissionStore.VERSION_SEQUENCE_NAME)))
+            .thenAnswer(new Answer<List<Long>>() {
+                @Override
+                public List<Long> answer(InvocationOnMock invocation) throws Throwable {
+                    return Collections.singletonList(version);
+                }
+            });
+        when(this.jdbcOperations.update(anyString(), eq(InMemoryPermissionStore.VERSION_SEQUENCE_NAME)))
+            .thenAnswer(new Answer<Integer>() {
+                @Override
+                public Integer answer(InvocationOnMock invocation) throws Throwable {
+                    version++;
+                    return 1;
+                }
+            });
+        when(this.transactionOperations.execute(any(TransactionCallback.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((TransactionCallback<?>) invocation.getArguments()[0]).doInTransaction(null);
+            }
+        });
+        when(this.delegate.select(null, null, null, null, null)).thenReturn(new IPermission[] {
+            createPermission("2.admin", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT),
+            createPermission("2.admin", "PORTLET_ID.2", IPermission.PERMISSION_TYPE_GRANT),
+            createPermission("2.students", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_DENY),
+        });
+        
+        this.store = new InMemoryPermissionStore();
+        this.store.setDelegate(this.delegate);
+        this.store.setJdbcOperations(this.jdbcOperations);
+        this.store.setTransactionOperations(this.transactionOperations);
+        this.store.setApplicationEventPublisher(this.applicationEventPublisher);
+    }
+    
+    @Test
+    public void testSelectFromSnapshot() throws Exception {
+        assertEquals(2, this.store.select(OWNER, "2.admin", ACTIVITY, null, null).length);
+        assertEquals(2, this.store.select(null, null, null, "PORTLET_ID.1", null).length);
+        assertEquals(1, this.store.select(null, null, ACTIVITY, "PORTLET_ID.1", IPermission.PERMISSION_TYPE_DENY).length);
+        assertEquals(3, this.store.select(null, null, null, null, null).length);
+        assertEquals(0, this.store.select(null, "2.faculty", null, null, null).length);
+        assertEquals(0, this.store.select("UP_SYSTEM", "2.admin", null, null, null).length);
+        
+        verify(this.delegate, times(1)).select(null, null, null, null, null);
+    }
+    
+    @Test
+    public void testSelectReturnsCopies() throws Exception {
+        final IPermission permission = this.store.select(null, "2.students", null, null, null)[0];
+        permission.setType(IPermission.PERMISSION_TYPE_GRANT);
+        
+        assertNotSame(permission, this.store.select(null, "2.students", null, null, null)[0]);
+        assertEquals(IPermission.PERMISSION_TYPE_DENY, this.store.select(null, "2.students", null, null, null)[0].getType());
+    }
+    
+    @Test
+    public void testLocalChangesAppliedToSnapshot() throws Exception {
+        this.store.select(null, null, null, null, null);
+        
+        final IPermission added = createPermission("2.faculty", "PORTLET_ID.3", IPermission.PERMISSION_TYPE_GRANT);
+        this.store.add(added);
+        verify(this.delegate).add(new IPermission[] { added });
+        assertEquals(1, this.store.select(null, "2.faculty", null, null, null).length);
+        
+        final IPermission updated = createPermission("2.students", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        this.store.update(updated);
+        assertEquals(IPermission.PERMISSION_TYPE_GRANT, this.store.select(null, "2.students", null, null, null)[0].getType());
+        
+        this.store.delete(createPermission("2.admin", "PORTLET_ID.2", IPermission.PERMISSION_TYPE_GRANT));
+        assertEquals(1, this.store.select(null, "2.admin", null, null, null).length);
+        
+        assertEquals(7, this.version);
+        
+        //The snapshot reflects every increment so the refresh does not reload it
+        this.store.refresh();
+        verify(this.delegate, times(1)).select(null, null, null, null, null);
+        verify(this.applicationEventPublisher, never()).publishEvent(any(PermissionsRefreshedEvent.class));
+    }
+    
+    @Test
+    public void testRefreshReloadsRemoteChanges() throws Exception {
+        this.store.select(null, null, null, null, null);
+        
+        this.store.refresh();
+        verify(this.delegate, times(1)).select(null, null, null, null, null);
+        
+        //Another server changed permissions
+        this.version++;
+        when(this.delegate.select(null, null, null, null, null)).thenReturn(new IPermission[] {
+            createPermission("2.admin", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT),
+        });
+        
+        this.store.refresh();
+        verify(this.delegate, times(2)).select(null, null, null, null, null);
+        verify(this.applicationEventPublisher).publishEvent(any(PermissionsRefreshedEvent.class));
+        assertEquals(1, this.store.select(null, null, null, null, null).length);
+    }
+    
+    @Test
+    public void testRemoteChangeDuringLocalChangeReloads() throws Exception {
+        this.store.select(null, null, null, null, null);
+        
+        //Another server changed permissions before this one did
+        this.version++;
+        this.store.add(createPermission("2.faculty", "PORTLET_ID.3", IPermission.PERMISSION_TYPE_GRANT));
+        
+        this.store.refresh();
+        verify(this.delegate, times(2)).select(null, null, null, null, null);
+    }
+    
+    @Test
+    public void testRefreshReloadsDirectChanges() throws Exception {
+        this.store.select(null, null, null, null, null);
+        
+        //Permissions deleted with SQL, for example when a user is removed
+        when(this.delegate.select(null, null, null, null, null)).thenReturn(new IPermission[0]);
+        assertEquals(5, InMemoryPermissionStore.incrementVersion(this.jdbcOperations));
+        
+        this.store.refresh();
+        verify(this.delegate, times(2)).select(null, null, null, null, null);
+        assertEquals(0, this.store.select(null, "2.admin", null, null, null).length);
+    }
+    
+    @Test
+    public void testRefreshReloadsExpiredSnapshot() throws Exception {
+        this.store.setMaxSnapshotAge(-1);
+        this.store.select(null, null, null, null, null);
+        
+        this.store.refresh();
+        verify(this.delegate, times(2)).select(null, null, null, null, null);
+    }
+    
+    @Test
+    public void testRefreshBeforeFirstSelect() throws Exception {
+        this.store.refresh();
+        verify(this.delegate, never()).select(null, null, null, null, null);
+        verify(this.jdbcOperations, never()).queryForList(anyString(), eq(Long.class), eq(InMemoryPermissionStore.VERSION_SEQUENCE_NAME));
+    }
+    
+    @Test
+    public void testDisabled() throws Exception {
+        this.store.setEnabled(false);
+        
+        this.store.select(OWNER, "2.admin", null, null, null);
+        this.store.select(OWNER, "2.admin", null, null, null);
+        verify(this.delegate, times(2)).select(OWNER, "2.admin", null, null, null);
+        
+        this.store.add(createPermission("2.faculty", "PORTLET_ID.3", IPermission.PERMISSION_TYPE_GRANT));
+        assertEquals(5, this.version);
+    }
+    
+    private static IPermission createPermission(String principal, String target, String type) {
+        final IPermission permission = new PermissionImpl(OWNER);
+        permission.setPrincipal(principal);
+        permission.setActivity(ACTIVITY);
+        permission.setTarget(target);
+        permission.setType(type);
+        return permission;
+    }
+}
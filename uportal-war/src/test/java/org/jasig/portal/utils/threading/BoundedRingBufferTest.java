@@ -0,0 +1,115 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.utils.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BoundedRingBufferTest {
+    @Test
+    public void testCapacityRoundedToPowerOfTwo() {
+        assertEquals(1, new BoundedRingBuffer<Object>(1).capacity());
+        assertEquals(1024, new BoundedRingBuffer<Object>(1000).capacity());
+        assertEquals(1024, new BoundedRingBuffer<Object>(1024).capacity());
+    }
+    
+    @Test
+    public void testFifoAndFull() {
+        final BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertFalse(buffer.offer(4));
+            assertEquals(4, buffer.size());
+            
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(i), buffer.poll());
+            }
+            assertNull(buffer.poll());
+            assertEquals(0, buffer.size());
+        }
+    }
+    
+    @Test(expected=NullPointerException.class)
+    public void testNullElement() {
+        new BoundedRingBuffer<Object>(4).offer(null);
+    }
+    
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int perProducer = 50000;
+        final BoundedRingBuffer<Long> buffer = new BoundedRingBuffer<Long>(256);
+        final CountDownLatch start = new CountDownLatch(1);
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        for (long i = 1; i <= perProducer; i++) {
+                            while (!buffer.offer(i)) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                });
+            }
+            start.countDown();
+            
+            long received = 0;
+            long sum = 0;
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (received < (long) producers * perProducer && System.currentTimeMillis() < deadline) {
+                final Long value = buffer.poll();
+                if (value != null) {
+                    received++;
+                    sum += value;
+                }
+            }
+            
+            assertEquals((long) producers * perProducer, received);
+            assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum);
+            assertNull(buffer.poll());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.utils.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ConcurrentQualityOfServiceBlockingQueueTest {
+    /**
+     * Keys elements by their first character
+     */
+    private static class FirstCharQueue extends ConcurrentQualityOfServiceBlockingQueue<Character, String> {
+        public FirstCharQueue() {
+            super();
+        }
+        
+        public FirstCharQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected Character getElementKey(String e) {
+            return e.charAt(0);
+        }
+    }
+    
+    @Test
+    public void testRoundRobin() {
+        final FirstCharQueue queue = new FirstCharQueue();
+        queue.add("a1");
+        queue.add("a2");
+        queue.add("a3");
+        queue.add("b1");
+        queue.add("c1");
+        queue.add("c2");
+        
+        assertEquals(6, queue.size());
+        assertEquals(3, queue.getKeySize('a'));
+        
+        assertEquals("a1", queue.poll());
+        assertEquals("b1", queue.poll());
+        assertEquals("c1", queue.poll());
+        assertEquals("a2", queue.poll());
+        assertEquals("c2", queue.poll());
+        assertEquals("a3", queue.poll());
+        assertNull(queue.poll());
+        
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.isKeyEmpty('b'));
+        
+        //Drained keys are rescheduled at the tail when new elements arrive
+        queue.add("b2");
+        queue.add("a4");
+        assertEquals("b2", queue.poll());
+        assertEquals("a4", queue.poll());
+    }
+    
+    @Test
+    public void testCapacity() throws Exception {
+        final FirstCharQueue queue = new FirstCharQueue(2);
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("b1"));
+        assertFalse(queue.offer("c1"));
+        assertFalse(queue.offer("c1", 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.remainingCapacity());
+        
+        assertEquals("a1", queue.take());
+        assertEquals(1, queue.remainingCapacity());
+        assertTrue(queue.offer("c1"));
+        
+        assertEquals("b1", queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals("c1", queue.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void testRemoveAndDrain() {
+        final FirstCharQueue queue = new FirstCharQueue(4);
+        queue.add("a1");
+        queue.add("a2");
+        queue.add("b1");
+        
+        assertTrue(queue.contains("a2"));
+        assertTrue(queue.remove("a2"));
+        assertFalse(queue.remove("a2"));
+        assertFalse(queue.contains("a2"));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.remainingCapacity());
+        
+        final List<String> drained = new ArrayList<String>();
+        assertEquals(2, queue.drainTo(drained));
+        assertEquals(2, drained.size());
+        assertTrue(drained.contains("a1"));
+        assertTrue(drained.contains("b1"));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final int producers = 8;
+        final int consumers = 4;
+        final int perProducer = 20000;
+        final FirstCharQueue queue = new FirstCharQueue(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong consumed = new AtomicLong();
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int p = 0; p < producers; p++) {
+                final String prefix = Character.toString((char) ('a' + p));
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < perProducer; i++) {
+                                queue.put(prefix + i);
+                            }
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+            }
+            for (int c = 0; c < consumers; c++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            while (queue.poll(1, TimeUnit.SECONDS) != null) {
+                                consumed.incrementAndGet();
+                            }
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+            }
+            
+            start.countDown();
+            for (final Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        assertEquals(producers * perProducer, consumed.get());
+        assertEquals(0, queue.size());
+        assertEquals(64, queue.remainingCapacity());
+    }
+}